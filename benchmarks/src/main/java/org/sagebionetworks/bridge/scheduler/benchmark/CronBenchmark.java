@@ -0,0 +1,71 @@
+package org.sagebionetworks.bridge.scheduler.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.sagebionetworks.bridge.scheduler.CronEvaluator;
+
+/**
+ * Benchmarks computing the fire times for a single schedule, which is what the scheduler's getProcessingTimes() does
+ * for each due schedule. Like the scheduler, the buffer holds at most 61 fire times (the max executions per run, plus
+ * one to detect overflow), so dense schedules over long windows stop early.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CronBenchmark {
+    private static final long START_MILLIS = DateTime.parse("2018-03-27T18:05:00.000Z").getMillis();
+    private static final long MILLIS_PER_HOUR = 60 * 60 * 1000;
+
+    /**
+     * Cron expressions, from sparse to dense. The last one uses "L", which isn't supported by the bitset engine and
+     * is evaluated by Quartz.
+     */
+    @Param({ "0 0 0 * * ?", "0 0 * * * ?", "0 * * * * ?", "*/10 * * * * ?", "0 15 10 L * ?" })
+    public String cronSchedule;
+
+    /** Length of the window, in hours. The hourly scheduler normally uses a 1 hour window. */
+    @Param({ "1", "24" })
+    public int windowHours;
+
+    private CronEvaluator cronEvaluator;
+    private long endMillis;
+    private long[] buffer;
+
+    @Setup
+    public void setup() {
+        cronEvaluator = CronEvaluator.parse(cronSchedule);
+        endMillis = START_MILLIS + windowHours * MILLIS_PER_HOUR;
+        buffer = new long[61];
+    }
+
+    @Benchmark
+    public int getFireTimes() {
+        return cronEvaluator.getFireTimes(START_MILLIS, endMillis, buffer);
+    }
+
+    @Benchmark
+    public long getNextFireTimeAfter() {
+        return cronEvaluator.getNextFireTimeAfter(START_MILLIS);
+    }
+
+    @Benchmark
+    public CronEvaluator parse() {
+        return CronEvaluator.parse(cronSchedule);
+    }
+}
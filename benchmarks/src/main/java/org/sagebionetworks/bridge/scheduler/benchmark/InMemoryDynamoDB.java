@@ -0,0 +1,77 @@
+package org.sagebionetworks.bridge.scheduler.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+/**
+ * In-memory stand-in for DynamoDB, so that benchmarks measure the scheduler rather than the network. Supports just
+ * enough for the scheduler: GetItem, PutItem and BatchWriteItem (puts only) by hash key, and Scan (in a single page,
+ * optionally segmented). Tables must be created with {@link #createTable} first.
+ */
+public class InMemoryDynamoDB extends AbstractAmazonDynamoDB {
+    private final Map<String, String> hashKeyNamesByTable = new HashMap<>();
+    private final Map<String, Map<AttributeValue, Map<String, AttributeValue>>> itemsByTable = new HashMap<>();
+
+    /** Creates an empty table with the given hash key attribute. */
+    public void createTable(String tableName, String hashKeyName) {
+        hashKeyNamesByTable.put(tableName, hashKeyName);
+        itemsByTable.put(tableName, new LinkedHashMap<>());
+    }
+
+    @Override
+    public GetItemResult getItem(GetItemRequest request) {
+        String hashKeyName = hashKeyNamesByTable.get(request.getTableName());
+        AttributeValue hashKey = request.getKey().get(hashKeyName);
+        return new GetItemResult().withItem(itemsByTable.get(request.getTableName()).get(hashKey));
+    }
+
+    @Override
+    public PutItemResult putItem(PutItemRequest request) {
+        String hashKeyName = hashKeyNamesByTable.get(request.getTableName());
+        Map<String, AttributeValue> item = new HashMap<>(request.getItem());
+        itemsByTable.get(request.getTableName()).put(item.get(hashKeyName), item);
+        return new PutItemResult();
+    }
+
+    @Override
+    public BatchWriteItemResult batchWriteItem(BatchWriteItemRequest request) {
+        for (Map.Entry<String, List<WriteRequest>> oneEntry : request.getRequestItems().entrySet()) {
+            for (WriteRequest oneWriteRequest : oneEntry.getValue()) {
+                putItem(new PutItemRequest().withTableName(oneEntry.getKey())
+                        .withItem(oneWriteRequest.getPutRequest().getItem()));
+            }
+        }
+        return new BatchWriteItemResult().withUnprocessedItems(new HashMap<>());
+    }
+
+    @Override
+    public ScanResult scan(ScanRequest request) {
+        // Items are assigned to segments round-robin. Projections are ignored.
+        int segment = request.getSegment() != null ? request.getSegment() : 0;
+        int totalSegments = request.getTotalSegments() != null ? request.getTotalSegments() : 1;
+        List<Map<String, AttributeValue>> itemList = new ArrayList<>();
+        int i = 0;
+        for (Map<String, AttributeValue> oneItem : itemsByTable.get(request.getTableName()).values()) {
+            if (i % totalSegments == segment) {
+                itemList.add(oneItem);
+            }
+            i++;
+        }
+        return new ScanResult().withItems(itemList).withCount(itemList.size()).withScannedCount(itemList.size());
+    }
+}
@@ -0,0 +1,44 @@
+package org.sagebionetworks.bridge.scheduler.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.services.sqs.AbstractAmazonSQS;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+
+/**
+ * In-memory stand-in for SQS. Accepts every message, and counts them instead of storing them, so that memory doesn't
+ * grow over a long benchmark. Safe to call from multiple threads.
+ */
+public class InMemorySqs extends AbstractAmazonSQS {
+    private long numMessages = 0;
+
+    /** Returns the number of messages received since the last call, and resets the count. */
+    public synchronized long drainMessageCount() {
+        long count = numMessages;
+        numMessages = 0;
+        return count;
+    }
+
+    @Override
+    public synchronized SendMessageResult sendMessage(SendMessageRequest request) {
+        numMessages++;
+        return new SendMessageResult().withMessageId(String.valueOf(numMessages));
+    }
+
+    @Override
+    public synchronized SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+        List<SendMessageBatchResultEntry> successList = new ArrayList<>();
+        for (SendMessageBatchRequestEntry oneEntry : request.getEntries()) {
+            numMessages++;
+            successList.add(new SendMessageBatchResultEntry().withId(oneEntry.getId())
+                    .withMessageId(String.valueOf(numMessages)));
+        }
+        return new SendMessageBatchResult().withSuccessful(successList);
+    }
+}
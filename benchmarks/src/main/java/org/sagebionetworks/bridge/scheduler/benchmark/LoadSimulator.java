@@ -0,0 +1,295 @@
+package org.sagebionetworks.bridge.scheduler.benchmark;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+
+import org.sagebionetworks.bridge.scheduler.AsyncMessageSink;
+import org.sagebionetworks.bridge.scheduler.BridgeMasterScheduler;
+import org.sagebionetworks.bridge.scheduler.ConfigCache;
+import org.sagebionetworks.bridge.scheduler.DispatchResult;
+import org.sagebionetworks.bridge.scheduler.InMemoryConfigSource;
+import org.sagebionetworks.bridge.scheduler.InMemoryMessageSink;
+import org.sagebionetworks.bridge.scheduler.InMemoryStatusStore;
+import org.sagebionetworks.bridge.scheduler.LatencyHistogram;
+import org.sagebionetworks.bridge.scheduler.MessageSink;
+import org.sagebionetworks.bridge.scheduler.SchedulerMetrics;
+
+/**
+ * <p>
+ * Replays days of simulated time through the scheduler, over tens of thousands of synthetic schedules, against the
+ * in-memory config source, status store, and message sink. Reports message throughput, run latency percentiles, the
+ * p99 of each run phase, and failed and duplicate messages. Use it to find scaling limits locally, and to see how
+ * backend latency and errors affect runs.
+ * </p>
+ * <p>
+ * The simulated clock steps forward between runs, same as the scheduled Lambda trigger. Backend latency is real (the
+ * in-memory backends sleep), so a simulation with latency takes real time. Options are passed as "--name value":
+ * </p>
+ * <ul>
+ *     <li>--configs: number of synthetic schedules (default 10000)</li>
+ *     <li>--days: days of simulated time (default 1)</li>
+ *     <li>--step-minutes: simulated minutes between runs (default 60)</li>
+ *     <li>--concurrency: scheduler concurrency (default 1)</li>
+ *     <li>--async-window: async send window, or 0 for synchronous sends (default 0)</li>
+ *     <li>--latency-ms, --jitter-ms: latency of each backend call (default 0)</li>
+ *     <li>--error-rate: fraction of backend calls that fail (default 0)</li>
+ *     <li>--entry-error-rate: fraction of single messages that fail in a send (default 0)</li>
+ * </ul>
+ */
+public class LoadSimulator {
+    private static final long MILLIS_PER_MINUTE = 60 * 1000;
+    private static final long NANOS_PER_MILLI = 1000 * 1000;
+    private static final int NUM_QUEUES = 10;
+
+    // 5 minutes after the hour, same as the Lambda trigger.
+    private static final long START_MILLIS = DateTime.parse("2018-03-27T19:05:00.000Z").getMillis();
+
+    private static final Map<String, String> DEFAULT_OPTIONS;
+    static {
+        Map<String, String> optionMap = new LinkedHashMap<>();
+        optionMap.put("configs", "10000");
+        optionMap.put("days", "1");
+        optionMap.put("step-minutes", "60");
+        optionMap.put("concurrency", "1");
+        optionMap.put("async-window", "0");
+        optionMap.put("latency-ms", "0");
+        optionMap.put("jitter-ms", "0");
+        optionMap.put("error-rate", "0");
+        optionMap.put("entry-error-rate", "0");
+        DEFAULT_OPTIONS = Collections.unmodifiableMap(optionMap);
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> optionMap = parseOptions(args);
+        int numConfigs = Integer.parseInt(optionMap.get("configs"));
+        int numDays = Integer.parseInt(optionMap.get("days"));
+        long stepMillis = Long.parseLong(optionMap.get("step-minutes")) * MILLIS_PER_MINUTE;
+        if (numConfigs < 1 || numDays < 1 || stepMillis < MILLIS_PER_MINUTE) {
+            throw new IllegalArgumentException("configs, days, and step-minutes must be positive");
+        }
+
+        // Backends. Latency and errors apply to the scheduler's calls, not to the setup below.
+        InMemoryConfigSource configSource = new InMemoryConfigSource();
+        InMemoryStatusStore statusStore = new InMemoryStatusStore();
+        InMemoryMessageSink messageSink = new InMemoryMessageSink();
+        addConfigs(configSource, numConfigs);
+        statusStore.putItem(new Item().withString("hashKey", "BridgeMasterScheduler")
+                .withLong("lastProcessedTime", START_MILLIS));
+
+        long latencyMillis = Long.parseLong(optionMap.get("latency-ms"));
+        long jitterMillis = Long.parseLong(optionMap.get("jitter-ms"));
+        double errorRate = Double.parseDouble(optionMap.get("error-rate"));
+        configSource.getFaultInjector().setLatencyMillis(latencyMillis);
+        configSource.getFaultInjector().setMaxJitterMillis(jitterMillis);
+        configSource.getFaultInjector().setErrorRate(errorRate);
+        statusStore.getFaultInjector().setLatencyMillis(latencyMillis);
+        statusStore.getFaultInjector().setMaxJitterMillis(jitterMillis);
+        statusStore.getFaultInjector().setErrorRate(errorRate);
+        messageSink.getFaultInjector().setLatencyMillis(latencyMillis);
+        messageSink.getFaultInjector().setMaxJitterMillis(jitterMillis);
+        messageSink.getFaultInjector().setErrorRate(errorRate);
+        messageSink.setEntryErrorRate(Double.parseDouble(optionMap.get("entry-error-rate")));
+
+        // With an async window, sends run on a thread pool as big as the window, like the async SQS client's.
+        int asyncWindow = Integer.parseInt(optionMap.get("async-window"));
+        ExecutorService sendExecutor = asyncWindow > 0 ? Executors.newFixedThreadPool(asyncWindow) : null;
+
+        BridgeMasterScheduler scheduler = new BridgeMasterScheduler();
+        scheduler.setConcurrency(Integer.parseInt(optionMap.get("concurrency")));
+        scheduler.setConfigSource(configSource);
+        scheduler.setStatusStore(statusStore);
+        if (sendExecutor != null) {
+            scheduler.setMessageSink(new ExecutorAsyncMessageSink(messageSink, sendExecutor));
+            scheduler.setAsyncSendWindow(asyncWindow);
+        } else {
+            scheduler.setMessageSink(messageSink);
+        }
+
+        // The scheduler logs every run. Discard its logs, and print the report to the original stdout.
+        PrintStream originalOut = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                // Discard.
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                // Discard.
+            }
+        }));
+
+        LatencyHistogram runHistogram = new LatencyHistogram();
+        Map<SchedulerMetrics.Phase, LatencyHistogram> phaseHistogramMap = new EnumMap<>(SchedulerMetrics.Phase.class);
+        for (SchedulerMetrics.Phase onePhase : SchedulerMetrics.Phase.values()) {
+            phaseHistogramMap.put(onePhase, new LatencyHistogram());
+        }
+        SchedulerMetrics previousMetrics = null;
+        long numFailedRuns = 0;
+        long numFailed = 0;
+        long numDuplicates = 0;
+        long endMillis = START_MILLIS + numDays * 24 * 60 * MILLIS_PER_MINUTE;
+        try {
+            for (long nowMillis = START_MILLIS + stepMillis; nowMillis <= endMillis; nowMillis += stepMillis) {
+                DateTimeUtils.setCurrentMillisFixed(nowMillis);
+                long startNanos = System.nanoTime();
+                try {
+                    scheduler.schedule();
+                } catch (RuntimeException ex) {
+                    // Same as the Lambda. The run fails, and the next run picks up from the last status.
+                    ex.printStackTrace();
+                    numFailedRuns++;
+                }
+                runHistogram.recordSince(startNanos);
+
+                // Per-phase metrics are only kept for the last run, so collect them after each run. A failed run may
+                // leave the previous run's metrics in place. Don't count those twice.
+                SchedulerMetrics metrics = scheduler.getLastRunMetrics();
+                if (metrics != null && metrics != previousMetrics) {
+                    previousMetrics = metrics;
+                    for (SchedulerMetrics.Phase onePhase : SchedulerMetrics.Phase.values()) {
+                        LatencyHistogram runPhaseHistogram = metrics.getHistogram(onePhase);
+                        if (runPhaseHistogram.getCount() > 0) {
+                            phaseHistogramMap.get(onePhase).record(runPhaseHistogram.getTotalNanos());
+                        }
+                    }
+                    DispatchResult dispatchResult = metrics.getDispatchResult();
+                    if (dispatchResult != null) {
+                        numFailed += dispatchResult.getNumFailed();
+                        numDuplicates += dispatchResult.getNumDuplicates();
+                    }
+                }
+            }
+        } finally {
+            System.setOut(originalOut);
+            DateTimeUtils.setCurrentMillisSystem();
+            if (sendExecutor != null) {
+                sendExecutor.shutdown();
+            }
+        }
+
+        // Report.
+        long numMessages = messageSink.getNumMessages();
+        double totalSeconds = (double) runHistogram.getTotalNanos() / (1000 * NANOS_PER_MILLI);
+        System.out.println("Schedules: " + numConfigs + ", runs: " + runHistogram.getCount() + " (" + numFailedRuns +
+                " failed), simulated days: " + numDays);
+        System.out.println("Messages: " + numMessages + ", failed: " + numFailed + ", duplicates skipped: " +
+                numDuplicates);
+        System.out.println(String.format("Throughput: %.0f messages/sec over %.1f sec of runs",
+                numMessages / totalSeconds, totalSeconds));
+        System.out.println("Run latency: " + formatPercentiles(runHistogram));
+        for (Map.Entry<SchedulerMetrics.Phase, LatencyHistogram> onePhaseEntry : phaseHistogramMap.entrySet()) {
+            LatencyHistogram onePhaseHistogram = onePhaseEntry.getValue();
+            if (onePhaseHistogram.getCount() > 0) {
+                System.out.println(String.format("  %-16s p99=%dms", onePhaseEntry.getKey().getMetricName(),
+                        onePhaseHistogram.getPercentileNanos(99) / NANOS_PER_MILLI));
+            }
+        }
+        System.out.println("Backend errors: config=" + configSource.getFaultInjector().getNumErrors() + ", status=" +
+                statusStore.getFaultInjector().getNumErrors() + ", sqs=" +
+                messageSink.getFaultInjector().getNumErrors());
+    }
+
+    // Adds synthetic configs, and a config metadata row so the scheduler caches configs between runs, like it does in
+    // production. The mix of cron schedules, priorities, and spreads is roughly what the real config table looks like:
+    // mostly hourly and daily schedules, and a few frequent ones.
+    private static void addConfigs(InMemoryConfigSource configSource, int numConfigs) {
+        for (int i = 0; i < numConfigs; i++) {
+            String cronSchedule;
+            switch (i % 10) {
+                case 0:
+                    cronSchedule = "0 0/15 * * * ?";
+                    break;
+                case 1:
+                case 2:
+                case 3:
+                    cronSchedule = "0 " + (i % 60) + " " + (i % 24) + " * * ?";
+                    break;
+                default:
+                    cronSchedule = "0 " + (i % 60) + " * * * ?";
+                    break;
+            }
+            Item configItem = new Item().withString("scheduleId", "schedule-" + i)
+                    .withString("cronSchedule", cronSchedule)
+                    .withString("requestTemplate", "{\"service\":\"UploadAutoCompleteWorker\",\"body\":{" +
+                            "\"studyId\":\"study-" + i + "\",\"startDateTime\":\"${startOfPreviousDay}\"," +
+                            "\"endDateTime\":\"${endOfPreviousDay}\",\"processTime\":\"${processTime}\"}}")
+                    .withString("sqsQueueUrl", "https://sqs.us-east-1.amazonaws.com/1234/queue-" +
+                            (i % NUM_QUEUES));
+            if (i % 20 == 0) {
+                configItem.withString("priority", "high");
+            } else if (i % 7 == 0) {
+                configItem.withString("priority", "low");
+                configItem.withInt("spreadSeconds", 300);
+            }
+            configSource.putConfig(configItem);
+        }
+        configSource.putConfig(new Item().withString("scheduleId", ConfigCache.METADATA_SCHEDULE_ID)
+                .withLong("configVersion", 1));
+    }
+
+    // Parses "--name value" pairs over the defaults. Throws if an option is unknown or has no value.
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> optionMap = new LinkedHashMap<>(DEFAULT_OPTIONS);
+        for (int i = 0; i < args.length; i += 2) {
+            String name = args[i].startsWith("--") ? args[i].substring(2) : null;
+            if (name == null || !optionMap.containsKey(name) || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Usage: LoadSimulator [--name value]..., where name is one of " +
+                        DEFAULT_OPTIONS.keySet());
+            }
+            optionMap.put(name, args[i + 1]);
+        }
+        return optionMap;
+    }
+
+    // Async message sink that sends with the given sink on the given executor.
+    private static class ExecutorAsyncMessageSink implements AsyncMessageSink {
+        private final MessageSink messageSink;
+        private final ExecutorService executor;
+
+        ExecutorAsyncMessageSink(MessageSink messageSink, ExecutorService executor) {
+            this.messageSink = messageSink;
+            this.executor = executor;
+        }
+
+        @Override
+        public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+            return messageSink.sendMessageBatch(request);
+        }
+
+        @Override
+        public void sendMessageBatchAsync(SendMessageBatchRequest request,
+                AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult> handler) {
+            executor.execute(() -> {
+                SendMessageBatchResult result;
+                try {
+                    result = messageSink.sendMessageBatch(request);
+                } catch (RuntimeException ex) {
+                    handler.onError(ex);
+                    return;
+                }
+                handler.onSuccess(request, result);
+            });
+        }
+    }
+
+    // Formats the p50, p99, and max of the histogram, in milliseconds.
+    private static String formatPercentiles(LatencyHistogram histogram) {
+        return "p50=" + histogram.getPercentileNanos(50) / NANOS_PER_MILLI + "ms, p99=" +
+                histogram.getPercentileNanos(99) / NANOS_PER_MILLI + "ms, max=" +
+                histogram.getMaxNanos() / NANOS_PER_MILLI + "ms";
+    }
+}
@@ -0,0 +1,143 @@
+package org.sagebionetworks.bridge.scheduler.benchmark;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.sagebionetworks.bridge.scheduler.BridgeMasterScheduler;
+import org.sagebionetworks.bridge.scheduler.DdbConfigSource;
+import org.sagebionetworks.bridge.scheduler.DdbStatusStore;
+import org.sagebionetworks.bridge.scheduler.SqsMessageSink;
+
+/**
+ * <p>
+ * Benchmarks a full scheduler run over N synthetic configs, against in-memory DynamoDB and SQS. Each operation is one
+ * hourly run. The clock moves forward an hour before each run, and every config fires once an hour, so each
+ * operation sends N messages. The "messages" counter reports messages per second. Run with "-prof gc" and divide
+ * gc.alloc.rate.norm by N to get the allocation per message.
+ * </p>
+ * <p>
+ * The scheduler's log lines go to a stream that discards them. Building the log strings is still measured. Writing
+ * them isn't, since that depends on where the logs go.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class ScheduleBenchmark {
+    private static final String CONFIG_TABLE_NAME = "benchmark-config";
+    private static final String STATUS_TABLE_NAME = "benchmark-status";
+    private static final long MILLIS_PER_HOUR = 60 * 60 * 1000;
+
+    // 5 minutes after the hour, same as the Lambda trigger.
+    private static final long START_MILLIS = DateTime.parse("2018-03-27T19:05:00.000Z").getMillis();
+
+    /** Number of synthetic configs. */
+    @Param({ "100", "1000", "10000" })
+    public int numConfigs;
+
+    /** Scheduler concurrency. 1 is the default serial mode. */
+    @Param({ "1" })
+    public int concurrency;
+
+    /** Number of parallel config scan segments. 1 is the default sequential scan. */
+    @Param({ "1" })
+    public int configScanSegments;
+
+    private BridgeMasterScheduler scheduler;
+    private InMemorySqs sqsClient;
+    private PrintStream originalOut;
+    private long nowMillis;
+
+    /** Messages sent, reported by JMH as a rate alongside the operation rate. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class MessageCounter {
+        public long messages;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            messages = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // Synthetic configs, each firing hourly to one of 10 queues, with a typical request template.
+        InMemoryDynamoDB ddbClient = new InMemoryDynamoDB();
+        ddbClient.createTable(CONFIG_TABLE_NAME, "scheduleId");
+        ddbClient.createTable(STATUS_TABLE_NAME, "hashKey");
+        DynamoDB ddb = new DynamoDB(ddbClient);
+        Table configTable = ddb.getTable(CONFIG_TABLE_NAME);
+        Table statusTable = ddb.getTable(STATUS_TABLE_NAME);
+        for (int i = 0; i < numConfigs; i++) {
+            configTable.putItem(new Item().withString("scheduleId", "schedule-" + i)
+                    .withString("cronSchedule", "0 " + (i % 60) + " * * * ?")
+                    .withString("requestTemplate", "{\"service\":\"UploadAutoCompleteWorker\",\"body\":{" +
+                            "\"studyId\":\"study-" + i + "\",\"startDateTime\":\"${startOfPreviousDay}\"," +
+                            "\"endDateTime\":\"${endOfPreviousDay}\",\"processTime\":\"${processTime}\"}}")
+                    .withString("sqsQueueUrl", "https://sqs.us-east-1.amazonaws.com/1234/queue-" + (i % 10)));
+        }
+        statusTable.putItem(new Item().withString("hashKey", "BridgeMasterScheduler")
+                .withLong("lastProcessedTime", START_MILLIS - MILLIS_PER_HOUR));
+
+        sqsClient = new InMemorySqs();
+        scheduler = new BridgeMasterScheduler();
+        scheduler.setConcurrency(concurrency);
+        scheduler.setConfigScanSegments(configScanSegments);
+        scheduler.setConfigSource(new DdbConfigSource(configTable));
+        scheduler.setStatusStore(new DdbStatusStore(ddb, statusTable));
+        scheduler.setMessageSink(new SqsMessageSink(sqsClient));
+
+        nowMillis = START_MILLIS - MILLIS_PER_HOUR;
+        originalOut = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                // Discard.
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                // Discard.
+            }
+        }));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(originalOut);
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Benchmark
+    public void schedule(MessageCounter counter) {
+        nowMillis += MILLIS_PER_HOUR;
+        DateTimeUtils.setCurrentMillisFixed(nowMillis);
+        scheduler.schedule();
+        counter.messages += sqsClient.drainMessageCount();
+    }
+}
@@ -0,0 +1,74 @@
+package org.sagebionetworks.bridge.scheduler.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.sagebionetworks.bridge.scheduler.RequestTemplate;
+import org.sagebionetworks.bridge.scheduler.TemplateVariable;
+
+/**
+ * Benchmarks request template resolution across template sizes. resolveEachVariable() is the original path, which
+ * calls {@link TemplateVariable#resolve} once per variable. renderCompiled() is the path the scheduler uses, which
+ * renders a compiled {@link RequestTemplate} in one pass.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TemplateBenchmark {
+    private static final DateTime PROCESS_TIME_UTC = DateTime.parse("2018-03-28T04:21:45.862Z");
+
+    /** Number of variable occurrences in the template. Each variable is surrounded by some literal JSON. */
+    @Param({ "1", "4", "16" })
+    public int numVars;
+
+    private String template;
+    private RequestTemplate compiledTemplate;
+    private StringBuilder buffer;
+
+    @Setup
+    public void setup() {
+        // Cycle through the variables, so that larger templates use every variable (some more than once).
+        TemplateVariable[] allVars = TemplateVariable.values();
+        StringBuilder templateBuilder = new StringBuilder("{");
+        for (int i = 0; i < numVars; i++) {
+            if (i > 0) {
+                templateBuilder.append(',');
+            }
+            templateBuilder.append("\"field").append(i).append("\":\"${")
+                    .append(allVars[i % allVars.length].getVarName()).append("}\"");
+        }
+        templateBuilder.append('}');
+        template = templateBuilder.toString();
+        compiledTemplate = RequestTemplate.compile(template);
+        buffer = new StringBuilder();
+    }
+
+    @Benchmark
+    public String resolveEachVariable() {
+        String resolved = template;
+        for (TemplateVariable oneVar : TemplateVariable.values()) {
+            resolved = oneVar.resolve(resolved, PROCESS_TIME_UTC);
+        }
+        return resolved;
+    }
+
+    @Benchmark
+    public String renderCompiled() {
+        return compiledTemplate.render(PROCESS_TIME_UTC, buffer);
+    }
+}
@@ -0,0 +1,25 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+
+/**
+ * <p>
+ * Message sink that can also send batches without blocking the caller, so that the scheduler can keep rendering
+ * requests while earlier batches are in flight. Uses the AWS SDK's async handler, so that {@link SqsAsyncMessageSink}
+ * can pass it straight through to the async SQS client.
+ * </p>
+ * <p>
+ * Implementations must be thread-safe, and must call the handler exactly once for each batch.
+ * </p>
+ */
+public interface AsyncMessageSink extends MessageSink {
+    /**
+     * Starts sending a batch of messages to a single queue, and returns right away. When the send finishes, the
+     * handler is called (usually from another thread) with the result, which has an error entry for each message that
+     * wasn't accepted, or with the error that failed the whole call.
+     */
+    void sendMessageBatchAsync(SendMessageBatchRequest request,
+            AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult> handler);
+}
@@ -1,52 +1,290 @@
 package org.sagebionetworks.bridge.scheduler;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.amazonaws.services.dynamodbv2.document.Item;
-import com.amazonaws.services.dynamodbv2.document.Table;
-import com.amazonaws.services.sqs.AmazonSQS;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
 import org.joda.time.DateTimeZone;
-import org.quartz.CronScheduleBuilder;
-import org.quartz.spi.MutableTrigger;
 
 /** Bridge Master Scheduler */
 public class BridgeMasterScheduler {
-    // To prevent infinite loops, specify a max number of scheduled executions per scheduler run. (60 per hour.)
+    // Max number of fire times per schedule that are processed inline with the other schedules in a scheduler run.
+    // (60 per hour.) Schedules with more fire times than this, for example after an outage, are backfilled in chunks
+    // instead.
     private static final int MAX_EXECUTIONS = 60;
 
+    static final int DEFAULT_BACKFILL_CHUNK_SIZE = MAX_EXECUTIONS;
+
     // Config keys - Package scoped for unit tests.
     static final String CONFIG_KEY_CRON_SCHEDULE = "cronSchedule";
     static final String CONFIG_KEY_HASH_KEY = "hashKey";
     static final String CONFIG_KEY_LAST_PROCESSED_TIME = "lastProcessedTime";
+    static final String CONFIG_KEY_PRIORITY = "priority";
     static final String CONFIG_KEY_REQUEST_TEMPLATE = "requestTemplate";
     static final String CONFIG_KEY_SCHEDULE_ID = "scheduleId";
+    static final String CONFIG_KEY_SPREAD_SECONDS = "spreadSeconds";
+    static final String CONFIG_KEY_TIME_ZONE = "timeZone";
     static final String CONFIG_KEY_QUEUE_URL = "sqsQueueUrl";
     static final String HASH_KEY_MASTER_SCHEDULER = "BridgeMasterScheduler";
 
-    private Table ddbConfigTable;
-    private Table ddbStatusTable;
-    private AmazonSQS sqsClient;
+    // How many times to retry unprocessed checkpoint writes. Package-scoped for unit tests.
+    static final int MAX_BATCH_WRITE_ATTEMPTS = 5;
+    private static final long BATCH_WRITE_RETRY_DELAY_MILLIS = 50;
+
+    /** Run budget that means the run has no deadline. */
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    // Time kept back from the run budget, to flush sends and write checkpoints and status after new work stops.
+    // Package-scoped for unit tests.
+    static final long DEFAULT_DEADLINE_RESERVE_MILLIS = 10 * 1000;
+
+    // Outcome of processing a single schedule in the main pass.
+    private enum ScheduleResult {
+        SUCCEEDED,
+        FAILED,
+        // Too many fire times to process inline. The schedule needs to be backfilled.
+        BACKLOGGED,
+        // Not processed, because the run's deadline was reached. Retried from its checkpoint in the next run.
+        DEFERRED,
+    }
+
+    // Orders schedules by priority lane, highest first. The sort is stable, so the index order is kept within a lane.
+    private static final Comparator<FireTimeIndex.Entry> PRIORITY_ORDER = Comparator.comparing(
+            entry -> entry.getConfig().getPriority());
+
+    // Scratch space for process times, one per thread, so we don't allocate per schedule.
+    private static final ThreadLocal<long[]> PROCESS_TIME_BUFFER = ThreadLocal.withInitial(
+            () -> new long[MAX_EXECUTIONS + 1]);
+
+    // Parsed cron expressions are kept across scheduler runs (and across warm Lambda invocations).
+    private final CronCache cronCache = new CronCache();
+
+    // Template variable values by time zone and process time, shared by every schedule that fires at the same time.
+    // Kept across runs, like the cron cache, and bounded.
+    private final TemplateValueMemo templateValueMemo = new TemplateValueMemo();
+
+    // Per-queue concurrency limits and circuit breakers, kept across runs so a bad queue stays throttled.
+    private final DispatchController dispatchController = new DispatchController();
+
+    // Dedup IDs of recently sent messages, kept across runs, so that re-processing a window (for example, after a run
+    // crashed before writing its checkpoints) doesn't send the same messages again.
+    private final RecentlySentStore recentlySentStore = new RecentlySentStore();
+
+    // Schedules ordered by next fire time. Kept across scheduler runs (and across warm Lambda invocations), so that
+    // unchanged configs don't need to be re-parsed, and schedules that aren't due don't need to be evaluated.
+    private FireTimeIndex fireTimeIndex;
+
+    // Config items, with a version stamp, kept across scheduler runs (and across warm Lambda invocations). Most loads
+    // only need to read the config metadata row. Guarded by itself, so that only one load is in progress at a time.
+    private final ConfigCache configCache = new ConfigCache();
+
+    // Local config snapshot, for fast cold starts. Null if disabled. preparsedConfigsByScheduleId holds configs that
+    // were already parsed (loaded from the snapshot, or parsed to write it), so the next index sync doesn't parse them
+    // again. It's consumed by the next index sync.
+    private volatile ConfigSnapshotFile configSnapshotFile;
+    private volatile Map<String, ScheduleConfig> preparsedConfigsByScheduleId;
+
+    // Local outbox log, so that a run that dies between sending and checkpointing can be recovered without resolving
+    // and sending its whole window again. Null if disabled.
+    private volatile OutboxLog outboxLog;
+
+    // Config items loaded by refreshConfigs(), for example by the daemon's background refresh. If null, each run loads
+    // configs itself. syncedConfigSnapshot is the config list that was last synced into the fire time index, so we
+    // only re-sync when the configs change.
+    private volatile List<Item> configSnapshot;
+    private List<Item> syncedConfigSnapshot;
+
+    // Per-schedule watermarks. Loaded from the status table when the fire time index is created or rebased (cold
+    // starts, or when the status table doesn't match where we left off), and kept in memory after that.
+    private final ScheduleCheckpoints checkpoints = new ScheduleCheckpoints();
+
+    // Shard leases, when schedules are split across several scheduler instances. indexedWatermarksByShard holds the
+    // shards in the fire time index, and the watermark each one was advanced to at the end of the last run. If the
+    // status table doesn't match it, we don't know where we left off, and the index is rebased.
+    private final ShardLeases shardLeases = new ShardLeases();
+    private Map<Integer, Long> indexedWatermarksByShard = Collections.emptyMap();
+
+    // Metrics from the most recent run. Package-scoped getter for unit tests.
+    private volatile SchedulerMetrics lastRunMetrics;
+
+    // Volatile, since the runtime may swap clients (for example, after a DDB failure) while the daemon's config
+    // refresh thread is running.
+    private volatile int concurrency = 1;
+    private volatile int asyncSendWindow = 0;
+    private volatile int configScanSegments = 1;
+    private volatile int backfillChunkSize = DEFAULT_BACKFILL_CHUNK_SIZE;
+    private volatile int backfillMaxMessagesPerSecond = 0;
+    private volatile long deadlineReserveMillis = DEFAULT_DEADLINE_RESERVE_MILLIS;
+    private volatile String schedulerName = HASH_KEY_MASTER_SCHEDULER;
+    private volatile ConfigSource configSource;
+    private volatile StatusStore statusStore;
+    private volatile MessageSink messageSink;
+
+    /**
+     * Number of schedules to process in parallel, and number of queues to send to in parallel. Defaults to 1, which
+     * processes schedules serially on the calling thread.
+     */
+    public final void setConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1");
+        }
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Number of SQS batches to keep in flight at once with async sends. Sending starts as soon as a queue has a full
+     * batch, while the run is still rendering requests, and the run waits for every send before writing checkpoints.
+     * The message sink must be an {@link AsyncMessageSink}. Defaults to 0, which sends synchronously when the run
+     * flushes, using the run's concurrency.
+     */
+    public final void setAsyncSendWindow(int asyncSendWindow) {
+        if (asyncSendWindow < 0) {
+            throw new IllegalArgumentException("asyncSendWindow can't be negative");
+        }
+        this.asyncSendWindow = asyncSendWindow;
+    }
+
+    /**
+     * Max age of the last full config scan. After this, the config table is fully re-scanned, even if the config
+     * metadata row says nothing changed. Defaults to 24 hours.
+     */
+    public final void setConfigFullScanTtlMillis(long configFullScanTtlMillis) {
+        configCache.setFullScanTtlMillis(configFullScanTtlMillis);
+    }
+
+    /**
+     * Local file for the config snapshot, for example in Lambda's /tmp. On a cold start, configs are loaded from the
+     * snapshot (with pre-parsed cron expressions and templates) instead of scanning the config table, as long as the
+     * snapshot's version matches the config metadata row. The snapshot is re-written whenever configs change. Null
+     * (the default) disables snapshots.
+     */
+    public final void setConfigSnapshotFile(File configSnapshotFile) {
+        this.configSnapshotFile = configSnapshotFile != null ? new ConfigSnapshotFile(configSnapshotFile) : null;
+    }
+
+    /**
+     * Local file for the outbox log (see {@link OutboxLog}), on a disk that survives the scheduler process. Resolved
+     * requests are written to the outbox before they're sent, and marked as sent as SQS accepts them. The outbox is
+     * cleared once the run's checkpoints and status are written. If a run dies before that, the next run sends what
+     * wasn't sent, and checkpoints the schedules the dead run resolved, instead of resolving and sending them again.
+     * Null (the default) disables the outbox.
+     */
+    public final void setOutboxFile(File outboxFile) {
+        this.outboxLog = outboxFile != null ? new OutboxLog(outboxFile) : null;
+    }
 
     /**
-     * DDB table for Scheduler configs. Storing configs in DDB allows us to change them dynamically without
-     * re-deploying the scheduler.
+     * Number of segments to scan the config table in, in parallel. When a run does a full scan, configs are synced
+     * into the fire time index as they come in, so the config scan overlaps with parsing. Defaults to 1, which scans
+     * the table sequentially on the calling thread.
      */
-    public final void setDdbConfigTable(Table ddbConfigTable) {
-        this.ddbConfigTable = ddbConfigTable;
+    public final void setConfigScanSegments(int configScanSegments) {
+        if (configScanSegments < 1) {
+            throw new IllegalArgumentException("configScanSegments must be at least 1");
+        }
+        this.configScanSegments = configScanSegments;
     }
 
-    /** DDB table for scheduler status. Tracks the last time the scheduler ran. */
-    public final void setDdbStatusTable(Table ddbStatusTable) {
-        this.ddbStatusTable = ddbStatusTable;
+    /**
+     * Number of fire times to send per chunk when backfilling a schedule. The schedule's checkpoint is written after
+     * each chunk, so a backfill that's interrupted resumes from the last chunk. Defaults to 60.
+     */
+    public final void setBackfillChunkSize(int backfillChunkSize) {
+        if (backfillChunkSize < 1) {
+            throw new IllegalArgumentException("backfillChunkSize must be at least 1");
+        }
+        this.backfillChunkSize = backfillChunkSize;
     }
 
-    /** SQS client, used to send the request. */
-    public final void setSqsClient(AmazonSQS sqsClient) {
-        this.sqsClient = sqsClient;
+    /**
+     * Max rate at which backfilled requests are sent, so that catching up after an outage doesn't flood the workers.
+     * 0 means no limit, which is the default.
+     */
+    public final void setBackfillMaxMessagesPerSecond(int backfillMaxMessagesPerSecond) {
+        if (backfillMaxMessagesPerSecond < 0) {
+            throw new IllegalArgumentException("backfillMaxMessagesPerSecond can't be negative");
+        }
+        this.backfillMaxMessagesPerSecond = backfillMaxMessagesPerSecond;
+    }
+
+    /**
+     * Time kept back from the run budget passed to {@link #schedule(long)}. Once less than this is left, the run stops
+     * starting new work, and uses the rest to flush sends and write checkpoints and status. Defaults to 10 seconds.
+     */
+    public final void setDeadlineReserveMillis(long deadlineReserveMillis) {
+        if (deadlineReserveMillis < 0) {
+            throw new IllegalArgumentException("deadlineReserveMillis can't be negative");
+        }
+        this.deadlineReserveMillis = deadlineReserveMillis;
+    }
+
+    /**
+     * Number of shards to split schedules into, by a consistent hash of the schedule ID, so that several scheduler
+     * instances can share the work. Each instance claims shards through lease rows in the status table, and each shard
+     * has its own last processed time. Every instance must use the same number. Defaults to 1, which means no sharding
+     * and no leases, with the last processed time in the singleton status row.
+     */
+    public final synchronized void setNumShards(int numShards) {
+        shardLeases.setNumShards(numShards);
+    }
+
+    /** Max number of shards this instance claims, so that other instances get the rest. Defaults to all of them. */
+    public final synchronized void setMaxShardsPerInstance(int maxShardsPerInstance) {
+        shardLeases.setMaxShards(maxShardsPerInstance);
+    }
+
+    /**
+     * How long a shard lease lasts. Runs stop starting new work before their leases expire, and a dead instance's
+     * shards are taken over after this. Defaults to 15 minutes.
+     */
+    public final synchronized void setShardLeaseMillis(long shardLeaseMillis) {
+        shardLeases.setLeaseMillis(shardLeaseMillis);
+    }
+
+    /** Shard lease owner ID for this instance. Must be unique across instances. Defaults to a random UUID. */
+    public final synchronized void setInstanceId(String instanceId) {
+        shardLeases.setOwnerId(instanceId);
+    }
+
+    /** Scheduler name, used as the SchedulerName dimension in metrics. Defaults to "BridgeMasterScheduler". */
+    public final void setSchedulerName(String schedulerName) {
+        this.schedulerName = schedulerName;
+    }
+
+    /** Where scheduler configs are read from. Usually the DDB config table (see {@link DdbConfigSource}). */
+    public final void setConfigSource(ConfigSource configSource) {
+        this.configSource = configSource;
+    }
+
+    /**
+     * Where scheduler status is kept: the last time the scheduler ran, per-schedule checkpoints, and shard leases.
+     * Usually the DDB status table (see {@link DdbStatusStore}).
+     */
+    public final void setStatusStore(StatusStore statusStore) {
+        this.statusStore = statusStore;
+    }
+
+    /** Where resolved requests are sent. Usually SQS (see {@link SqsMessageSink}). */
+    public final void setMessageSink(MessageSink messageSink) {
+        this.messageSink = messageSink;
     }
 
     /**
@@ -55,94 +293,986 @@ public class BridgeMasterScheduler {
      * kicks off all scheduled events that have occurred since then.
      */
     public void schedule() {
+        schedule(NO_DEADLINE);
+    }
+
+    /**
+     * Same as {@link #schedule()}, but the run must finish within the given budget, for example the Lambda's remaining
+     * time. Once the budget is down to the deadline reserve, the run stops starting new work. Schedules that weren't
+     * processed (or were only partly backfilled) keep their checkpoints, sends that are already queued are flushed,
+     * and the next run resumes each schedule where this one left off. Pass {@link #NO_DEADLINE} for no deadline.
+     */
+    public synchronized void schedule(long budgetMillis) {
         // Fix the current processed time, so that we have consistent scheduling.
         DateTime nowUtc = DateTime.now(DateTimeZone.UTC);
+        SchedulerMetrics metrics = new SchedulerMetrics();
 
-        // Get last processed time from the status table. Hash key is "hashKey" with arbitrary value
-        // "BridgeMasterScheduler" since this is a singleton row in the config table.
-        DateTime lastProcessedTimeUtc;
-        Item statusItem = ddbStatusTable.getItem(CONFIG_KEY_HASH_KEY, HASH_KEY_MASTER_SCHEDULER);
-        if (statusItem == null || !statusItem.hasAttribute(CONFIG_KEY_LAST_PROCESSED_TIME)) {
-            // Scheduler has not been bootstrapped. Default to an hour ago.
-            lastProcessedTimeUtc = nowUtc.minusHours(1);
-        } else {
-            long lastProcessedTimeMillis = statusItem.getLong(CONFIG_KEY_LAST_PROCESSED_TIME);
-            lastProcessedTimeUtc = new DateTime(lastProcessedTimeMillis, DateTimeZone.UTC);
+        // The run's budget starts now, on the monotonic clock.
+        long runStartMillis = DispatchController.nowMillis();
+
+        // Get the last processed time of each shard this run processes. Without sharding, this is a single shard.
+        long statusReadStartNanos = System.nanoTime();
+        Map<Integer, Long> watermarksByShard = readWatermarks(nowUtc);
+        metrics.recordSince(SchedulerMetrics.Phase.STATUS_READ, statusReadStartNanos);
+        int numShards = shardLeases.getNumShards();
+        metrics.setNumOwnedShards(watermarksByShard.size());
+        if (watermarksByShard.isEmpty()) {
+            System.out.println("No shards claimed, all " + numShards + " shards are owned by other instances");
+            lastRunMetrics = metrics;
+            System.out.println(metrics.toEmfJson(schedulerName, nowUtc.getMillis()));
+            return;
         }
+        long deadlineMillis = getDeadlineMillis(runStartMillis, budgetMillis);
 
-        // Log times, to help with debugging.
-        System.out.println("Last processed time: " + lastProcessedTimeUtc.toString());
+        // Log times, to help with debugging. The index starts at the earliest watermark. Each schedule starts from its
+        // own shard's watermark (or its own checkpoint).
+        long lastProcessedTimeMillis = Collections.min(watermarksByShard.values());
+        System.out.println("Last processed time: " + new DateTime(lastProcessedTimeMillis, DateTimeZone.UTC));
+        if (numShards > 1) {
+            System.out.println("Claimed shards " + watermarksByShard.keySet() + " of " + numShards + " as " +
+                    shardLeases.getOwnerId());
+        }
         System.out.println("Now: " + nowUtc.toString());
 
-        // Get scheduler configs from DDB.
-        Iterable<Item> configIter = scanDdbTable(ddbConfigTable);
+        // Resolved requests are collected in the dispatcher and sent in batches once all schedules are processed.
+        SqsDispatcher dispatcher = createRunDispatcher(metrics);
+
+        // Get scheduler configs (from the config cache, or from the latest refreshed snapshot) and sync them into the
+        // fire time index. Only schedules with a fire time in the window need to be processed.
+        long configScanStartNanos = System.nanoTime();
+        if (moveIndexCursor(watermarksByShard)) {
+            // We don't know where each schedule left off. Load the per-schedule checkpoints.
+            checkpoints.load(statusStore.scan(), scheduleId -> getWatermark(watermarksByShard,
+                    scheduleId));
+        }
+
+        // If the last run left an outbox, finish it now, so this run doesn't resolve and send it again. This has to
+        // come after the checkpoints are loaded, since loading replaces them, including the ones recovered from the
+        // outbox. Recovery isn't counted as config scan time.
+        long recoveryStartNanos = System.nanoTime();
+        DispatchResult recoveryResult = recoverOutbox(metrics, deadlineMillis);
+        configScanStartNanos += System.nanoTime() - recoveryStartNanos;
+        if (configSnapshot == null) {
+            syncConfigs(loadConfigs(true));
+        } else {
+            syncConfigs(configSnapshot);
+        }
+        List<FireTimeIndex.Entry> dueList = getDueAndLagging(nowUtc.getMillis());
+        dueList.sort(PRIORITY_ORDER);
+        metrics.recordSince(SchedulerMetrics.Phase.CONFIG_SCAN, configScanStartNanos);
+        metrics.setScheduleCounts(fireTimeIndex.size(), dueList.size());
+        System.out.println(dueList.size() + " of " + fireTimeIndex.size() + " schedules are due or lagging");
+
+        // Process due schedules, each from its own checkpoint, and send all requests. Schedules are processed in
+        // priority order, so if the deadline is reached, it's the lowest priority schedules that are deferred.
+        // Backlogged schedules are backfilled in the same order. Failures are logged per schedule by the dispatcher.
+        Map<String, Long> startMillisByScheduleId = new LinkedHashMap<>();
+        for (FireTimeIndex.Entry oneEntry : dueList) {
+            startMillisByScheduleId.put(oneEntry.getScheduleId(), checkpoints.getStartMillis(
+                    oneEntry.getScheduleId(), getWatermark(watermarksByShard, oneEntry.getScheduleId())));
+        }
+        Set<String> failedScheduleIdSet = new HashSet<>();
+        Set<String> deferredScheduleIdSet = new HashSet<>();
+        Map<String, FireTimeIndex.Entry> backlogByScheduleId = new LinkedHashMap<>();
+        DispatchResult dispatchResult;
+        if (concurrency <= 1) {
+            for (FireTimeIndex.Entry oneEntry : dueList) {
+                ScheduleResult result = processSchedule(dispatcher, oneEntry, startMillisByScheduleId.get(
+                        oneEntry.getScheduleId()), nowUtc, deadlineMillis, metrics);
+                collectResult(oneEntry, result, failedScheduleIdSet, deferredScheduleIdSet, backlogByScheduleId);
+            }
+            writeOutboxResolved(dispatcher, startMillisByScheduleId.keySet(), failedScheduleIdSet,
+                    deferredScheduleIdSet, backlogByScheduleId.keySet(), nowUtc.getMillis());
+            dispatcher.setMaxFlushMillis(getFlushBudgetMillis(deadlineMillis));
+            dispatchResult = dispatcher.flush();
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+            try {
+                List<Future<ScheduleResult>> futureList = new ArrayList<>();
+                for (FireTimeIndex.Entry oneEntry : dueList) {
+                    long startMillis = startMillisByScheduleId.get(oneEntry.getScheduleId());
+                    futureList.add(executor.submit(() -> processSchedule(dispatcher, oneEntry, startMillis, nowUtc,
+                            deadlineMillis, metrics)));
+                }
+
+                // Wait for all schedules to finish before sending, so that the dispatcher sees every request.
+                for (int i = 0; i < futureList.size(); i++) {
+                    collectResult(dueList.get(i), waitFor(futureList.get(i)), failedScheduleIdSet,
+                            deferredScheduleIdSet, backlogByScheduleId);
+                }
+                writeOutboxResolved(dispatcher, startMillisByScheduleId.keySet(), failedScheduleIdSet,
+                        deferredScheduleIdSet, backlogByScheduleId.keySet(), nowUtc.getMillis());
+                dispatcher.setMaxFlushMillis(getFlushBudgetMillis(deadlineMillis));
+                dispatchResult = dispatcher.flush(executor);
+            } finally {
+                executor.shutdown();
+            }
+        }
+        failedScheduleIdSet.addAll(dispatchResult.getFailuresByScheduleId().keySet());
+
+        // Update per-schedule checkpoints. Schedules that failed keep their old checkpoint, so the next run retries
+        // only what they missed. Deferred schedules are handled the same way. Backlogged schedules are checkpointed
+        // as they're backfilled.
+        for (Map.Entry<String, Long> startEntry : startMillisByScheduleId.entrySet()) {
+            if (failedScheduleIdSet.contains(startEntry.getKey()) ||
+                    deferredScheduleIdSet.contains(startEntry.getKey())) {
+                checkpoints.markFailed(startEntry.getKey(), startEntry.getValue());
+            } else if (!backlogByScheduleId.containsKey(startEntry.getKey())) {
+                checkpoints.markSucceeded(startEntry.getKey(), nowUtc.getMillis());
+            }
+        }
+        dispatchResult.merge(recoveryResult);
+
+        // Backfill schedules that have too many fire times to process inline.
+        if (!backlogByScheduleId.isEmpty()) {
+            System.out.println(backlogByScheduleId.size() + " schedules are backlogged, backfilling in chunks of " +
+                    backfillChunkSize);
+            dispatchResult.merge(backfill(backlogByScheduleId.values(), startMillisByScheduleId, nowUtc,
+                    deadlineMillis, metrics));
+        }
+        if (!deferredScheduleIdSet.isEmpty()) {
+            System.out.println("Run deadline reached, deferred " + deferredScheduleIdSet.size() +
+                    " schedules to the next run");
+        }
+        metrics.setNumDeferredSchedules(deferredScheduleIdSet.size());
+        System.out.println("Sent " + dispatchResult.getNumSent() + " requests in " +
+                dispatchResult.getNumSqsCalls() + " SQS calls, " + dispatchResult.getNumFailed() + " failed, " +
+                dispatchResult.getNumDuplicates() + " duplicates skipped");
+        for (String oneQueueUrl : dispatchController.getUnhealthyQueueUrls()) {
+            System.out.println("Circuit breaker open: sqsQueueUrl=" + oneQueueUrl + ", errorRate=" +
+                    dispatchController.getErrorRate(oneQueueUrl) + ", avgLatencyMillis=" +
+                    dispatchController.getAverageLatencyMillis(oneQueueUrl));
+        }
+        System.out.println("Cron cache: size=" + cronCache.size() + ", hits=" + cronCache.getNumHits() +
+                ", misses=" + cronCache.getNumMisses() + ", negativeHits=" + cronCache.getNumNegativeHits());
+        System.out.println("Template value memo: size=" + templateValueMemo.size() + ", hits=" +
+                templateValueMemo.getNumHits() + ", misses=" + templateValueMemo.getNumMisses());
+
+        // Move the index forward, so that due schedules get their next fire times.
+        fireTimeIndex.advanceTo(nowUtc.getMillis());
+        Map<Integer, Long> advancedWatermarksByShard = new TreeMap<>();
+        for (int oneShard : watermarksByShard.keySet()) {
+            advancedWatermarksByShard.put(oneShard, nowUtc.getMillis());
+        }
+        indexedWatermarksByShard = advancedWatermarksByShard;
+
+        // Write checkpoints, then the last processed time in the status table. If some checkpoints couldn't be written,
+        // the last processed time stays where it is, since failed schedules are only lagging relative to it. The next
+        // run then sees that the status doesn't match the index, rebases, and resumes each schedule from what's in
+        // the status table. Once the checkpoints are written, the outbox isn't needed anymore. If the status write
+        // throws, the outbox is kept, and recovered by the next run.
+        long statusWriteStartNanos = System.nanoTime();
+        if (writeCheckpoints()) {
+            if (numShards == 1) {
+                statusStore.putItem(new Item().withString(CONFIG_KEY_HASH_KEY, HASH_KEY_MASTER_SCHEDULER)
+                        .withLong(CONFIG_KEY_LAST_PROCESSED_TIME, nowUtc.getMillis()));
+            } else {
+                // A shard whose watermark couldn't be written is rebased next run, or was taken over by another
+                // instance.
+                for (int oneShard : watermarksByShard.keySet()) {
+                    shardLeases.writeWatermark(statusStore, oneShard, nowUtc.getMillis());
+                }
+            }
+            clearOutbox();
+        } else {
+            System.err.println("Not advancing last processed time, since some schedule checkpoints weren't written");
+        }
+        metrics.recordSince(SchedulerMetrics.Phase.STATUS_WRITE, statusWriteStartNanos);
+
+        // Emit the run's metrics as a single Embedded Metric Format record. CloudWatch extracts the metrics from the
+        // Lambda logs.
+        metrics.setDispatchResult(dispatchResult);
+        lastRunMetrics = metrics;
+        System.out.println(metrics.toEmfJson(schedulerName, nowUtc.getMillis()));
+    }
+
+    /**
+     * Loads configs (through the config cache) and keeps the result as the config snapshot. Once this has been called,
+     * scheduler runs use the latest snapshot instead of loading configs every time. This is used by the
+     * {@link SchedulerDaemon}, which refreshes configs in the background. This doesn't block scheduler runs, and may
+     * be called from any thread.
+     */
+    public void refreshConfigs() {
+        configSnapshot = loadConfigs(false);
+    }
+
+    /**
+     * Earliest next fire time (epoch millis) of any schedule, after the end of the last scheduler run. Returns
+     * {@link FireTimeIndex#NEVER} if there are no schedules, or if the scheduler hasn't run yet. If there's a newer
+     * config snapshot, this syncs it first, so that new schedules are taken into account.
+     */
+    public synchronized long getNextFireTime() {
+        // With sharding, the next run also renews leases, and tries to claim shards that other instances gave up.
+        long nextClaimMillis = shardLeases.getNumShards() > 1 ? shardLeases.getNextClaimMillis() : FireTimeIndex.NEVER;
+        if (fireTimeIndex == null) {
+            return nextClaimMillis;
+        }
+        List<Item> snapshot = configSnapshot;
+        if (snapshot != null) {
+            syncConfigs(snapshot);
+        }
+        return Math.min(fireTimeIndex.getNextFireTime(), nextClaimMillis);
+    }
+
+    /**
+     * Releases this instance's shard leases, so other instances can take over its shards right away. Called when a
+     * daemon stops. Does nothing without sharding. Errors are logged.
+     */
+    public synchronized void releaseShardLeases() {
+        if (shardLeases.getNumShards() > 1) {
+            shardLeases.releaseAll(statusStore);
+        }
+    }
+
+    // Helper method to get the last processed time (watermark) of each shard this run processes, keyed by shard.
+    // Without sharding, there's a single shard, whose watermark is in the singleton status row, with hash key
+    // "BridgeMasterScheduler". With sharding, this claims (or renews) shard leases, and each claimed shard has its own
+    // watermark in its lease row. A shard without a watermark (for example, right after sharding is turned on) starts
+    // from the singleton row. If that isn't there either, the scheduler hasn't been bootstrapped, and we default to an
+    // hour ago.
+    private Map<Integer, Long> readWatermarks(DateTime nowUtc) {
+        Map<Integer, Long> watermarksByShard = new TreeMap<>();
+        if (shardLeases.getNumShards() == 1) {
+            watermarksByShard.put(0, null);
+        } else {
+            watermarksByShard.putAll(shardLeases.claim(statusStore, nowUtc.getMillis()));
+        }
+
+        Long defaultWatermarkMillis = null;
+        for (Map.Entry<Integer, Long> watermarkEntry : watermarksByShard.entrySet()) {
+            if (watermarkEntry.getValue() == null) {
+                if (defaultWatermarkMillis == null) {
+                    Item statusItem = statusStore.getItem(HASH_KEY_MASTER_SCHEDULER);
+                    if (statusItem == null || !statusItem.hasAttribute(CONFIG_KEY_LAST_PROCESSED_TIME)) {
+                        defaultWatermarkMillis = nowUtc.minusHours(1).getMillis();
+                    } else {
+                        defaultWatermarkMillis = statusItem.getLong(CONFIG_KEY_LAST_PROCESSED_TIME);
+                    }
+                }
+                watermarkEntry.setValue(defaultWatermarkMillis);
+            }
+        }
+        return watermarksByShard;
+    }
+
+    // Helper method to get the deadline for starting new work, from the monotonic clock. With sharding, the deadline is
+    // also before the shard leases expire, so another instance can't take over a shard while we're still processing it.
+    private long getDeadlineMillis(long runStartMillis, long budgetMillis) {
+        long remainingMillis = budgetMillis;
+        if (shardLeases.getNumShards() > 1) {
+            remainingMillis = Math.min(remainingMillis, shardLeases.getLeaseExpiresAtMillis() -
+                    DateTimeUtils.currentTimeMillis());
+        }
+        return remainingMillis == NO_DEADLINE ? NO_DEADLINE : runStartMillis + remainingMillis - deadlineReserveMillis;
+    }
+
+    // Helper method to get the watermark of the given schedule's shard.
+    private long getWatermark(Map<Integer, Long> watermarksByShard, String scheduleId) {
+        int numShards = shardLeases.getNumShards();
+        int shard = numShards == 1 ? 0 : ShardLeases.getShard(scheduleId, numShards);
+        Long watermarkMillis = watermarksByShard.get(shard);
+        return watermarkMillis != null ? watermarkMillis : Collections.min(watermarksByShard.values());
+    }
+
+    // Helper method to make sure the fire time index exists, holds the schedules of the given shards, and that its
+    // cursor is the earliest of their watermarks. Returns true if the index was created or rebased, meaning we didn't
+    // know where the last run left off.
+    private boolean moveIndexCursor(Map<Integer, Long> watermarksByShard) {
+        long lastProcessedTimeMillis = Collections.min(watermarksByShard.values());
+        boolean rebased = false;
+        if (fireTimeIndex == null) {
+            fireTimeIndex = new FireTimeIndex(lastProcessedTimeMillis);
+            rebased = true;
+        } else if (!watermarksByShard.equals(indexedWatermarksByShard)) {
+            // The status table doesn't match where we left off (for example, the last run failed to write the status,
+            // this is the first run after bootstrapping, or we claimed a shard that another instance processed).
+            // Recompute all fire times from the last processed time.
+            fireTimeIndex.rebase(lastProcessedTimeMillis);
+            rebased = true;
+        }
+        if (!watermarksByShard.keySet().equals(indexedWatermarksByShard.keySet())) {
+            // Different shards. Force a re-sync, so the index picks up the new shards' schedules and drops the rest.
+            syncedConfigSnapshot = null;
+        }
+        indexedWatermarksByShard = new TreeMap<>(watermarksByShard);
+        return rebased;
+    }
+
+    // Helper method to get the schedules that are due, plus the schedules that are lagging behind from a previous
+    // failure (even if they aren't due). Lagging schedules that no longer exist are dropped.
+    private List<FireTimeIndex.Entry> getDueAndLagging(long nowMillis) {
+        List<FireTimeIndex.Entry> dueList = fireTimeIndex.getDue(nowMillis);
+        Set<String> laggingScheduleIdSet = checkpoints.getLaggingScheduleIds();
+        if (laggingScheduleIdSet.isEmpty()) {
+            return dueList;
+        }
+
+        for (FireTimeIndex.Entry oneEntry : dueList) {
+            laggingScheduleIdSet.remove(oneEntry.getScheduleId());
+        }
+        for (String oneScheduleId : laggingScheduleIdSet) {
+            FireTimeIndex.Entry laggingEntry = fireTimeIndex.get(oneScheduleId);
+            if (laggingEntry != null) {
+                dueList.add(laggingEntry);
+            } else {
+                checkpoints.remove(oneScheduleId);
+            }
+        }
+        return dueList;
+    }
+
+    // Helper method to write changed checkpoints to the status store, in batches. Unprocessed items are retried with
+    // backoff. Checkpoints that still can't be written are kept, and written in the next run. This
+    // doesn't throw, since the checkpoints are still correct in memory. Returns true if every checkpoint was written.
+    //
+    // Checkpoint rows aren't conditional on the shard lease, so with sharding, the leases are checked right before
+    // the write. Checkpoints of schedules in shards that were lost during the run are dropped (and forgotten), since
+    // the new owner writes those rows now.
+    private boolean writeCheckpoints() {
+        Map<String, Long> dirtyCheckpoints = checkpoints.drainDirty();
+        if (!dirtyCheckpoints.isEmpty() && shardLeases.getNumShards() > 1) {
+            dropLostCheckpoints(dirtyCheckpoints);
+        }
+        if (dirtyCheckpoints.isEmpty()) {
+            return true;
+        }
+
+        List<Item> checkpointItemList = new ArrayList<>();
+        for (Map.Entry<String, Long> checkpointEntry : dirtyCheckpoints.entrySet()) {
+            checkpointItemList.add(new Item()
+                    .withString(CONFIG_KEY_HASH_KEY, ScheduleCheckpoints.HASH_KEY_SCHEDULE_PREFIX +
+                            checkpointEntry.getKey())
+                    .withLong(CONFIG_KEY_LAST_PROCESSED_TIME, checkpointEntry.getValue()));
+        }
+
+        boolean success = true;
+        for (int i = 0; i < checkpointItemList.size(); i += StatusStore.MAX_BATCH_PUT_ITEMS) {
+            List<Item> unprocessed = new ArrayList<>(checkpointItemList.subList(i, Math.min(
+                    i + StatusStore.MAX_BATCH_PUT_ITEMS, checkpointItemList.size())));
+            for (int attempt = 1; attempt <= MAX_BATCH_WRITE_ATTEMPTS && !unprocessed.isEmpty(); attempt++) {
+                if (attempt > 1) {
+                    sleepMillis(BATCH_WRITE_RETRY_DELAY_MILLIS << (attempt - 2));
+                }
+                try {
+                    unprocessed = statusStore.batchPutItems(unprocessed);
+                } catch (RuntimeException ex) {
+                    // Write error to stderr, and retry the same items.
+                    ex.printStackTrace();
+                }
+            }
+            if (!unprocessed.isEmpty()) {
+                success = false;
+            }
+        }
+
+        if (!success) {
+            // We don't know exactly which ones were written. Writing them again is harmless, so keep all of them.
+            System.err.println("Failed to write some of " + dirtyCheckpoints.size() +
+                    " schedule checkpoints. Will retry next run.");
+            checkpoints.restoreDirty(dirtyCheckpoints);
+        }
+        return success;
+    }
+
+    // Helper method to remove checkpoints of schedules in shards this instance no longer owns from the given dirty
+    // checkpoints, and from the in-memory checkpoints.
+    private void dropLostCheckpoints(Map<String, Long> dirtyCheckpoints) {
+        int numShards = shardLeases.getNumShards();
+        Set<Integer> shardSet = new HashSet<>();
+        for (String oneScheduleId : dirtyCheckpoints.keySet()) {
+            shardSet.add(ShardLeases.getShard(oneScheduleId, numShards));
+        }
+        Set<Integer> lostShardSet = shardLeases.getLostShards(statusStore, shardSet,
+                DateTimeUtils.currentTimeMillis());
+        if (lostShardSet.isEmpty()) {
+            return;
+        }
+
+        Iterator<String> scheduleIdIterator = dirtyCheckpoints.keySet().iterator();
+        int numDropped = 0;
+        while (scheduleIdIterator.hasNext()) {
+            String scheduleId = scheduleIdIterator.next();
+            if (lostShardSet.contains(ShardLeases.getShard(scheduleId, numShards))) {
+                scheduleIdIterator.remove();
+                checkpoints.remove(scheduleId);
+                numDropped++;
+            }
+        }
+        System.err.println("Dropped " + numDropped + " schedule checkpoints in lost shards " + lostShardSet);
+    }
+
+    // Helper method to recover the outbox left by a run that didn't finish. Requests that weren't marked as sent are
+    // sent, and the schedules the run resolved are checkpointed, so this run doesn't resolve and send them again (a
+    // schedule whose recovered requests fail isn't checkpointed). Sent requests go into the recently sent store, so
+    // that schedules that are resolved again skip them. The outbox is cleared once its checkpoints are written. Errors
+    // are logged. An outbox that can't be read is cleared, and its schedules resume from their checkpoints.
+    private DispatchResult recoverOutbox(SchedulerMetrics metrics, long deadlineMillis) {
+        OutboxLog log = outboxLog;
+        if (log == null || !log.exists()) {
+            return new DispatchResult();
+        }
+
+        OutboxLog.Contents contents;
+        try {
+            contents = log.read();
+        } catch (IOException ex) {
+            // Write error to stderr.
+            ex.printStackTrace();
+            clearOutbox();
+            return new DispatchResult();
+        }
+        System.out.println("Recovering outbox: unsent=" + contents.getUnsentRequests().size() + ", sent=" +
+                contents.getSentDedupIds().size() + ", resolvedSchedules=" +
+                contents.getResolvedMillisByScheduleId().size() + ", discardedBytes=" +
+                contents.getNumDiscardedBytes());
+        for (String oneDedupId : contents.getSentDedupIds()) {
+            recentlySentStore.add(oneDedupId);
+        }
+
+        DispatchResult result = new DispatchResult();
+        if (!contents.getUnsentRequests().isEmpty()) {
+            SqsDispatcher dispatcher = createRunDispatcher(metrics);
+            for (DispatchRequest oneRequest : contents.getUnsentRequests()) {
+                dispatcher.addLogged(oneRequest);
+            }
+            dispatcher.setMaxFlushMillis(getFlushBudgetMillis(deadlineMillis));
+            result = dispatcher.flush();
+        }
+
+        Set<String> failedScheduleIdSet = result.getFailuresByScheduleId().keySet();
+        for (Map.Entry<String, Long> resolvedEntry : contents.getResolvedMillisByScheduleId().entrySet()) {
+            if (!failedScheduleIdSet.contains(resolvedEntry.getKey())) {
+                checkpoints.markSucceeded(resolvedEntry.getKey(), resolvedEntry.getValue());
+            }
+        }
+        if (writeCheckpoints()) {
+            clearOutbox();
+        }
+        return result;
+    }
+
+    // Helper method to mark the schedules that were resolved in the main pass (the ones that didn't fail, and weren't
+    // deferred or backlogged) in the outbox, once all of their requests are written to it. If any request couldn't be
+    // written, nothing is marked, and recovery falls back to the schedules' checkpoints. Errors are logged.
+    private void writeOutboxResolved(SqsDispatcher dispatcher, Collection<String> scheduleIds,
+            Set<String> failedScheduleIdSet, Set<String> deferredScheduleIdSet, Set<String> backlogScheduleIdSet,
+            long endMillis) {
+        OutboxLog log = outboxLog;
+        if (log == null || !dispatcher.writeOutbox()) {
+            return;
+        }
+        List<String> resolvedScheduleIdList = new ArrayList<>();
+        for (String oneScheduleId : scheduleIds) {
+            if (!failedScheduleIdSet.contains(oneScheduleId) && !deferredScheduleIdSet.contains(oneScheduleId) &&
+                    !backlogScheduleIdSet.contains(oneScheduleId)) {
+                resolvedScheduleIdList.add(oneScheduleId);
+            }
+        }
+        if (resolvedScheduleIdList.isEmpty()) {
+            return;
+        }
+        try {
+            log.appendResolved(endMillis, resolvedScheduleIdList);
+        } catch (IOException ex) {
+            // Write error to stderr.
+            ex.printStackTrace();
+        }
+    }
+
+    // Helper method to delete the outbox. Errors are logged. An outbox that's left behind is recovered by the next
+    // run, which only re-sends what wasn't marked as sent.
+    private void clearOutbox() {
+        OutboxLog log = outboxLog;
+        if (log == null) {
+            return;
+        }
+        try {
+            log.clear();
+        } catch (IOException ex) {
+            // Write error to stderr.
+            ex.printStackTrace();
+        }
+    }
+
+    // Helper method to sync the given config list into the fire time index, if it hasn't been synced already. Config
+    // lists from the cache (and snapshots) are immutable, and are the same instance until the configs change.
+    private void syncConfigs(List<Item> configList) {
+        if (configList != syncedConfigSnapshot) {
+            updateIndex(configList);
+            syncedConfigSnapshot = configList;
+        }
+    }
+
+    // Helper method to load configs through the config cache. Reads the config metadata row. If nothing changed, the
+    // cached configs are returned. If some schedules changed, only those are re-read. Otherwise, this falls back to a
+    // full scan. If syncIndex is true, a full scan is synced into the fire time index as the items come in, so that
+    // parsing overlaps with the scan. The items are also collected, and the config cache is only replaced once the
+    // scan finishes.
+    private List<Item> loadConfigs(boolean syncIndex) {
+        ConfigSource source = configSource;
+        synchronized (configCache) {
+            long nowMillis = DateTimeUtils.currentTimeMillis();
+            Item metadataItem = source.getMetadata();
+            if (configCache.getConfigs() == null) {
+                // Cold start. Seed the cache from the local snapshot, if there is one. The version check below
+                // decides whether the snapshot is current, can be brought up to date, or needs a full scan.
+                loadConfigSnapshot();
+            }
+
+            Set<String> changedScheduleIdSet = configCache.getChangedScheduleIds(metadataItem, nowMillis);
+            if (changedScheduleIdSet == null) {
+                System.out.println("Config cache: full scan");
+                List<Item> configList;
+                Map<String, ScheduleConfig> indexedConfigsByScheduleId = Collections.emptyMap();
+                if (syncIndex) {
+                    List<Item> scannedList = new ArrayList<>();
+                    indexedConfigsByScheduleId = syncFullScan(collecting(scanConfigs(source), scannedList));
+                    configList = configCache.applyFullScan(scannedList, metadataItem, nowMillis);
+                    syncedConfigSnapshot = configList;
+                } else {
+                    configList = configCache.applyFullScan(scanConfigs(source), metadataItem, nowMillis);
+                }
+                writeConfigSnapshot(configList, indexedConfigsByScheduleId);
+                return configList;
+            } else if (changedScheduleIdSet.isEmpty()) {
+                return configCache.getConfigs();
+            }
+
+            System.out.println("Config cache: re-reading " + changedScheduleIdSet.size() + " changed configs");
+            Map<String, Item> changedConfigsByScheduleId = new LinkedHashMap<>();
+            for (String oneScheduleId : changedScheduleIdSet) {
+                // Null if the config was deleted.
+                changedConfigsByScheduleId.put(oneScheduleId, source.getConfig(oneScheduleId));
+            }
+            List<Item> configList = configCache.applyChanges(changedConfigsByScheduleId, metadataItem);
+            writeConfigSnapshot(configList, Collections.emptyMap());
+            return configList;
+        }
+    }
+
+    // Helper method to seed the config cache, the cron cache, and the pre-parsed configs from the local config
+    // snapshot. Errors are logged, and we fall back to loading configs from DDB.
+    private void loadConfigSnapshot() {
+        ConfigSnapshotFile snapshotFile = configSnapshotFile;
+        if (snapshotFile == null || !snapshotFile.exists()) {
+            return;
+        }
+
+        ConfigSnapshotFile.Contents contents;
+        try {
+            contents = snapshotFile.read();
+        } catch (IOException ex) {
+            // Write error to stderr.
+            ex.printStackTrace();
+            return;
+        }
+        for (Map.Entry<String, CronEvaluator> evaluatorEntry : contents.getCronEvaluators().entrySet()) {
+            cronCache.put(evaluatorEntry.getKey(), evaluatorEntry.getValue());
+        }
+        preparsedConfigsByScheduleId = contents.getParsedConfigs();
+        configCache.applySnapshot(contents.getConfigItems(), contents.getConfigVersion(),
+                contents.getLastFullScanMillis());
+        System.out.println("Loaded config snapshot: version=" + contents.getConfigVersion() + ", configs=" +
+                contents.getConfigItems().size());
+    }
+
+    // Helper method to write the local config snapshot after configs change. Configs are parsed here, and kept as
+    // pre-parsed configs so the index sync doesn't parse them again. Configs that were already parsed (for example, by
+    // the index sync) are reused if they haven't changed. Configs without a version stamp aren't written, since the
+    // snapshot couldn't be validated. Errors are logged, and don't fail the load.
+    private void writeConfigSnapshot(List<Item> configList, Map<String, ScheduleConfig> parsedConfigsByScheduleId) {
+        ConfigSnapshotFile snapshotFile = configSnapshotFile;
+        Long version = configCache.getVersion();
+        if (snapshotFile == null || version == null) {
+            return;
+        }
+
+        Map<String, ScheduleConfig> snapshotConfigsByScheduleId = new LinkedHashMap<>();
+        Map<String, CronEvaluator> cronEvaluatorsByScheduleId = new LinkedHashMap<>();
+        for (Item oneConfig : configList) {
+            try {
+                ScheduleConfig parsedConfig = parsedConfigsByScheduleId.get(oneConfig.getString(
+                        CONFIG_KEY_SCHEDULE_ID));
+                ScheduleConfig scheduleConfig = parsedConfig != null && parsedConfig.isSameAs(oneConfig) ?
+                        parsedConfig : ScheduleConfig.fromItem(oneConfig);
+                String scheduleId = scheduleConfig.getScheduleId();
+                cronEvaluatorsByScheduleId.put(scheduleId, cronCache.get(scheduleId,
+                        scheduleConfig.getCronSchedule()));
+                snapshotConfigsByScheduleId.put(scheduleId, scheduleConfig);
+            } catch (RuntimeException ex) {
+                // Bad configs are stored unparsed. They're logged when they're synced into the index.
+            }
+        }
+        preparsedConfigsByScheduleId = snapshotConfigsByScheduleId;
+
+        try {
+            snapshotFile.write(new ConfigSnapshotFile.Contents(version, configCache.getLastFullScanMillis(),
+                    configList, snapshotConfigsByScheduleId, cronEvaluatorsByScheduleId));
+        } catch (IOException | RuntimeException ex) {
+            // Write error to stderr.
+            ex.printStackTrace();
+        }
+    }
+
+    // Helper method to sync a full config scan into the fire time index as the configs come in. Returns the index's
+    // parsed configs, keyed by schedule ID, so they don't have to be parsed again for the config snapshot. Only called
+    // from scheduler runs, which already hold this lock. It's synchronized so the index is only used under this lock.
+    private synchronized Map<String, ScheduleConfig> syncFullScan(Iterable<Item> configIter) {
+        updateIndex(configIter);
+        Map<String, ScheduleConfig> indexedConfigsByScheduleId = new HashMap<>();
+        for (String oneScheduleId : fireTimeIndex.getScheduleIds()) {
+            indexedConfigsByScheduleId.put(oneScheduleId, fireTimeIndex.get(oneScheduleId).getConfig());
+        }
+        return indexedConfigsByScheduleId;
+    }
+
+    // Helper method to sync the fire time index with the given configs. Configs that haven't changed since the last
+    // sync are not re-parsed. New and changed configs are parsed (which also compiles the request template and cron
+    // expression) and put into the index. Configs that are no longer present are removed from the index. Bad configs
+    // are logged and skipped, and don't affect other schedules.
+    private void updateIndex(Iterable<Item> configIter) {
+        Map<String, ScheduleConfig> preparsedConfigs = preparsedConfigsByScheduleId;
+        preparsedConfigsByScheduleId = null;
+
+        // Only schedules in this instance's shards go into the index.
+        int numShards = shardLeases.getNumShards();
+        Set<Integer> indexedShardSet = indexedWatermarksByShard.keySet();
+
+        Set<String> seenScheduleIdSet = new HashSet<>();
         for (Item oneConfig : configIter) {
             try {
-                List<DateTime> processTimeList = getProcessingTimes(oneConfig, lastProcessedTimeUtc, nowUtc);
-                for (DateTime oneProcessTime : processTimeList) {
-                    process(oneConfig, oneProcessTime);
+                String scheduleId = oneConfig.getString(CONFIG_KEY_SCHEDULE_ID);
+                if (ConfigCache.METADATA_SCHEDULE_ID.equals(scheduleId)) {
+                    // Full scans include the config metadata row.
+                    continue;
+                }
+                if (numShards > 1 && scheduleId != null && !indexedShardSet.contains(ShardLeases.getShard(scheduleId,
+                        numShards))) {
+                    continue;
+                }
+                FireTimeIndex.Entry existingEntry = scheduleId != null ? fireTimeIndex.get(scheduleId) : null;
+                if (existingEntry == null || !existingEntry.getConfig().isSameAs(oneConfig)) {
+                    ScheduleConfig preparsedConfig = preparsedConfigs != null && scheduleId != null ?
+                            preparsedConfigs.get(scheduleId) : null;
+                    ScheduleConfig scheduleConfig = preparsedConfig != null && preparsedConfig.isSameAs(oneConfig) ?
+                            preparsedConfig : ScheduleConfig.fromItem(oneConfig);
+                    CronEvaluator cronEvaluator = cronCache.get(scheduleId, scheduleConfig.getCronSchedule());
+                    fireTimeIndex.put(scheduleConfig, cronEvaluator);
                 }
+                seenScheduleIdSet.add(scheduleId);
             } catch (Exception ex) {
                 // Write error to stderr. Lambda takes care of saving these to the logs.
                 ex.printStackTrace();
             }
         }
 
-        // Update last processed time in the status table.
-        ddbStatusTable.putItem(new Item().withString(CONFIG_KEY_HASH_KEY, HASH_KEY_MASTER_SCHEDULER)
-                .withLong(CONFIG_KEY_LAST_PROCESSED_TIME, nowUtc.getMillis()));
+        // Remove schedules that were deleted, or that are now invalid.
+        for (String oneScheduleId : fireTimeIndex.getScheduleIds()) {
+            if (!seenScheduleIdSet.contains(oneScheduleId)) {
+                fireTimeIndex.remove(oneScheduleId);
+            }
+        }
     }
 
-    // Helper method to get the process times for the given schedule and bounds. Start time is exclusive. End time is
-    // inclusive.
-    private List<DateTime> getProcessingTimes(Item scheduleConfig, DateTime startTimeUtc, DateTime endTimeUtc) {
-        String scheduleId = scheduleConfig.getString(CONFIG_KEY_SCHEDULE_ID);
+    // Helper method to process a single schedule, computing its fire times after the given start time and resolving
+    // its requests. Errors are logged and don't affect other schedules. If the schedule has more than MAX_EXECUTIONS
+    // fire times, nothing is queued, and the schedule is returned as backlogged, to be backfilled later. If the run's
+    // deadline has passed, nothing is queued, and the schedule is returned as deferred. This may be called from
+    // multiple threads in parallel mode.
+    private ScheduleResult processSchedule(SqsDispatcher dispatcher, FireTimeIndex.Entry indexEntry, long startMillis,
+            DateTime nowUtc, long deadlineMillis, SchedulerMetrics metrics) {
+        if (isPastDeadline(deadlineMillis)) {
+            return ScheduleResult.DEFERRED;
+        }
+        try {
+            ScheduleConfig scheduleConfig = indexEntry.getConfig();
 
-        // Use quartz to parse and fire cron triggers.
-        String cronSchedule = scheduleConfig.getString(CONFIG_KEY_CRON_SCHEDULE);
-        MutableTrigger mutableTrigger = CronScheduleBuilder.cronSchedule(cronSchedule)
-                .inTimeZone(DateTimeZone.UTC.toTimeZone()).build();
-        mutableTrigger.setStartTime(startTimeUtc.toDate());
-        mutableTrigger.setEndTime(endTimeUtc.toDate());
+            // Get processing times. The buffer has room for one more than the max, so we can tell if we've exceeded
+            // it.
+            long[] processTimeBuffer = PROCESS_TIME_BUFFER.get();
+            long fireTimesStartNanos = System.nanoTime();
+            int numProcessTimes = indexEntry.getEvaluator().getFireTimes(startMillis, nowUtc.getMillis(),
+                    processTimeBuffer);
+            metrics.recordSince(SchedulerMetrics.Phase.FIRE_TIMES, fireTimesStartNanos);
+            if (numProcessTimes > MAX_EXECUTIONS) {
+                return ScheduleResult.BACKLOGGED;
+            }
 
-        // Get processing times.
-        List<DateTime> processTimeList = new ArrayList<>();
-        int numExecutions = 0;
-        Date lastProcessDate = startTimeUtc.toDate();
-        while ((lastProcessDate = mutableTrigger.getFireTimeAfter(lastProcessDate)) != null) {
-            numExecutions++;
-            if (numExecutions > MAX_EXECUTIONS) {
-                throw new IllegalArgumentException("Max executions exceeded for schedule " + scheduleId);
+            StringBuilder templateBuffer = new StringBuilder();
+            LatencyHistogram renderHistogram = metrics.getHistogram(SchedulerMetrics.Phase.TEMPLATE_RENDER);
+            for (int i = 0; i < numProcessTimes; i++) {
+                process(dispatcher, scheduleConfig, new DateTime(processTimeBuffer[i], DateTimeZone.UTC),
+                        templateBuffer, renderHistogram);
             }
+            return ScheduleResult.SUCCEEDED;
+        } catch (Exception ex) {
+            // Write error to stderr. Lambda takes care of saving these to the logs.
+            ex.printStackTrace();
+            return ScheduleResult.FAILED;
+        }
+    }
 
-            processTimeList.add(new DateTime(lastProcessDate, DateTimeZone.UTC));
+    // Helper method to sort a schedule's result into failed, deferred, or backlogged schedules.
+    private static void collectResult(FireTimeIndex.Entry indexEntry, ScheduleResult result,
+            Set<String> failedScheduleIdSet, Set<String> deferredScheduleIdSet,
+            Map<String, FireTimeIndex.Entry> backlogByScheduleId) {
+        if (result == ScheduleResult.FAILED) {
+            failedScheduleIdSet.add(indexEntry.getScheduleId());
+        } else if (result == ScheduleResult.DEFERRED) {
+            deferredScheduleIdSet.add(indexEntry.getScheduleId());
+        } else if (result == ScheduleResult.BACKLOGGED) {
+            backlogByScheduleId.put(indexEntry.getScheduleId(), indexEntry);
         }
+    }
+
+    // Helper method to backfill schedules that have too many fire times to process inline. Each schedule's fire
+    // times are streamed from its start time to now in chunks. Each chunk is resolved, sent, and checkpointed before
+    // the next one is computed, so memory use doesn't depend on how long the window is, and a backfill that's
+    // interrupted resumes from its last chunk. Schedules are backfilled serially, and sends are rate limited across
+    // all of them. A schedule whose chunk fails stops there, and is retried from its checkpoint in the next run. Once
+    // the run's deadline passes, no new chunks are started, and the rest is left for the next run.
+    private DispatchResult backfill(Collection<FireTimeIndex.Entry> backlogList,
+            Map<String, Long> startMillisByScheduleId, DateTime nowUtc, long deadlineMillis,
+            SchedulerMetrics metrics) {
+        DispatchResult totalResult = new DispatchResult();
+        long[] chunkBuffer = new long[backfillChunkSize];
+        StringBuilder templateBuffer = new StringBuilder();
+        LatencyHistogram renderHistogram = metrics.getHistogram(SchedulerMetrics.Phase.TEMPLATE_RENDER);
+        long backfillStartNanos = System.nanoTime();
+        long numBackfilled = 0;
+        for (FireTimeIndex.Entry oneEntry : backlogList) {
+            ScheduleConfig scheduleConfig = oneEntry.getConfig();
+            String scheduleId = oneEntry.getScheduleId();
+            long startMillis = startMillisByScheduleId.get(scheduleId);
+            System.out.println("Backfilling schedule " + scheduleId + " from " + new DateTime(startMillis,
+                    DateTimeZone.UTC));
+
+            long cursorMillis = startMillis;
+            boolean failed = false;
+            int numInChunk;
+            do {
+                if (isPastDeadline(deadlineMillis)) {
+                    System.out.println("Run deadline reached, backfill of schedule " + scheduleId + " stopped at " +
+                            new DateTime(cursorMillis, DateTimeZone.UTC));
+                    failed = true;
+                    break;
+                }
+
+                DispatchResult chunkResult;
+                try {
+                    long fireTimesStartNanos = System.nanoTime();
+                    numInChunk = oneEntry.getEvaluator().getFireTimes(cursorMillis, nowUtc.getMillis(),
+                            chunkBuffer);
+                    metrics.recordSince(SchedulerMetrics.Phase.FIRE_TIMES, fireTimesStartNanos);
+                    SqsDispatcher dispatcher = createRunDispatcher(metrics);
+                    for (int i = 0; i < numInChunk; i++) {
+                        process(dispatcher, scheduleConfig, new DateTime(chunkBuffer[i], DateTimeZone.UTC),
+                                templateBuffer, renderHistogram);
+                    }
+                    dispatcher.setMaxFlushMillis(getFlushBudgetMillis(deadlineMillis));
+                    chunkResult = dispatcher.flush();
+                } catch (RuntimeException ex) {
+                    // Write error to stderr. Lambda takes care of saving these to the logs.
+                    ex.printStackTrace();
+                    failed = true;
+                    break;
+                }
+                totalResult.merge(chunkResult);
+                if (chunkResult.getNumFailed() > 0) {
+                    failed = true;
+                    break;
+                }
+
+                // Checkpoint the chunk. Start time is exclusive, so the next chunk starts after the last fire time.
+                if (numInChunk == chunkBuffer.length) {
+                    cursorMillis = chunkBuffer[numInChunk - 1];
+                    checkpoints.markSucceeded(scheduleId, cursorMillis);
+                    writeCheckpoints();
+                }
+                numBackfilled += numInChunk;
+                throttleBackfill(backfillStartNanos, numBackfilled, deadlineMillis);
+            } while (numInChunk == chunkBuffer.length);
+
+            if (failed) {
+                checkpoints.markFailed(scheduleId, startMillis);
+            } else {
+                checkpoints.markSucceeded(scheduleId, nowUtc.getMillis());
+            }
+            writeCheckpoints();
+        }
+        return totalResult;
+    }
+
+    // Helper method to sleep long enough that the backfill doesn't exceed its max rate, given the number of requests
+    // sent since the backfill started. Doesn't sleep past the run's deadline.
+    private void throttleBackfill(long backfillStartNanos, long numBackfilled, long deadlineMillis) {
+        int maxMessagesPerSecond = backfillMaxMessagesPerSecond;
+        if (maxMessagesPerSecond <= 0) {
+            return;
+        }
+        long minElapsedMillis = numBackfilled * 1000 / maxMessagesPerSecond;
+        long elapsedMillis = (System.nanoTime() - backfillStartNanos) / 1000000;
+        if (minElapsedMillis > elapsedMillis) {
+            long delayMillis = minElapsedMillis - elapsedMillis;
+            if (deadlineMillis != NO_DEADLINE) {
+                delayMillis = Math.min(delayMillis, Math.max(0, deadlineMillis - DispatchController.nowMillis()));
+            }
+            sleepMillis(delayMillis);
+        }
+    }
 
-        return processTimeList;
+    // True if the run has a deadline, and it has passed.
+    private static boolean isPastDeadline(long deadlineMillis) {
+        return deadlineMillis != NO_DEADLINE && DispatchController.nowMillis() >= deadlineMillis;
     }
 
-    // Helper method to process a single schedule and event.
-    private void process(Item scheduleConfig, DateTime processTimeUtc) throws IOException {
+    // Max time a flush may wait on parked sends. Sends are parked until the run's deadline at the latest, or for the
+    // dispatcher's default if the run has no deadline.
+    private static long getFlushBudgetMillis(long deadlineMillis) {
+        if (deadlineMillis == NO_DEADLINE) {
+            return SqsDispatcher.DEFAULT_MAX_FLUSH_MILLIS;
+        }
+        return Math.max(0, deadlineMillis - DispatchController.nowMillis());
+    }
+
+    // Helper method to wait for a task in parallel mode. Schedule errors are already handled by processSchedule(), so
+    // anything that comes out of here is unexpected, and we fail the run rather than advance the last processed time.
+    static <T> T waitFor(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for parallel task", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Unexpected error in parallel task", ex.getCause());
+        }
+    }
+
+    // Helper method to process a single schedule and event. The template buffer is scratch space for rendering the
+    // request template, reused across fire times of the same schedule. Render time is recorded in the given
+    // histogram. The resolved request is added to the dispatcher, to be sent in a batch later, delayed within the
+    // schedule's spread window.
+    private void process(SqsDispatcher dispatcher, ScheduleConfig scheduleConfig, DateTime processTimeUtc,
+            StringBuilder templateBuffer, LatencyHistogram renderHistogram) {
         // Get schedule config.
-        String scheduleId = scheduleConfig.getString(CONFIG_KEY_SCHEDULE_ID);
-        String sqsQueueUrl = scheduleConfig.getString(CONFIG_KEY_QUEUE_URL);
+        String scheduleId = scheduleConfig.getScheduleId();
+        String sqsQueueUrl = scheduleConfig.getSqsQueueUrl();
+        int delaySeconds = scheduleConfig.getDelaySeconds(processTimeUtc.getMillis());
+
+        // Resolve template vars in a single pass over the compiled template, in the schedule's time zone. Values shared
+        // with other schedules firing at the same time come from the memo table.
+        long renderStartNanos = System.nanoTime();
+        String resolvedTemplate = scheduleConfig.getRequestTemplate().render(processTimeUtc,
+                scheduleConfig.getTimeZone(), templateValueMemo, templateBuffer);
+        renderHistogram.recordSince(renderStartNanos);
+
+        // Queue request for SQS. Requests aren't logged one by one, since that costs more than rendering them. Counts
+        // per queue are in the run's metrics, and failures are logged per schedule.
+        dispatcher.add(new DispatchRequest(scheduleId, sqsQueueUrl, processTimeUtc, resolvedTemplate, delaySeconds,
+                scheduleConfig.getPriority()));
+    }
+
+    // Helper method to create a dispatcher for the run, recording send latency and per-lane dispatch latency in the
+    // run's metrics. Lane reservations are a share of the run's concurrency, which is also the number of send threads,
+    // or of the async send window, if there is one.
+    private SqsDispatcher createRunDispatcher(SchedulerMetrics metrics) {
+        SqsDispatcher dispatcher = createDispatcher();
+        dispatcher.setSendLatencyHistogram(metrics.getHistogram(SchedulerMetrics.Phase.SQS_SEND));
+        dispatcher.setMaxInFlight(concurrency);
+        if (asyncSendWindow > 0) {
+            dispatcher.setAsyncWindow(asyncSendWindow);
+        }
+        dispatcher.setRecentlySentStore(recentlySentStore);
+        dispatcher.setOutboxLog(outboxLog);
+        for (Priority oneLane : Priority.values()) {
+            dispatcher.setLaneLatencyHistogram(oneLane, metrics.getLaneHistogram(oneLane));
+        }
+        return dispatcher;
+    }
+
+    // Helper method to create the dispatcher for a single scheduler run. Package-scoped so unit tests can tune retry
+    // settings.
+    SqsDispatcher createDispatcher() {
+        return new SqsDispatcher(messageSink, dispatchController);
+    }
+
+    /** Per-queue concurrency limits and circuit breakers. Settings can be tuned through the returned controller. */
+    public DispatchController getDispatchController() {
+        return dispatchController;
+    }
+
+    /** Dedup IDs of recently sent messages. The TTL and max size can be tuned through the returned store. */
+    public RecentlySentStore getRecentlySentStore() {
+        return recentlySentStore;
+    }
+
+    // Package-scoped for unit tests.
+    ConfigSnapshotFile getConfigSnapshotFile() {
+        return configSnapshotFile;
+    }
+
+    // Package-scoped for unit tests.
+    OutboxLog getOutboxLog() {
+        return outboxLog;
+    }
+
+    // Package-scoped for unit tests.
+    CronCache getCronCache() {
+        return cronCache;
+    }
+
+    // Package-scoped for unit tests.
+    TemplateValueMemo getTemplateValueMemo() {
+        return templateValueMemo;
+    }
 
-        // Resolve template vars.
-        String resolvedTemplate = scheduleConfig.getString(CONFIG_KEY_REQUEST_TEMPLATE);
-        for (TemplateVariable oneTemplateVar : TemplateVariable.values()) {
-            resolvedTemplate = oneTemplateVar.resolve(resolvedTemplate, processTimeUtc);
+    // Package-scoped for unit tests.
+    FireTimeIndex getFireTimeIndex() {
+        return fireTimeIndex;
+    }
+
+    /** Metrics from the most recent run, or null if the scheduler hasn't run yet. */
+    public SchedulerMetrics getLastRunMetrics() {
+        return lastRunMetrics;
+    }
+
+    // Helper method to scan the config source, in parallel segments if configured. Items are streamed as they come
+    // in.
+    private Iterable<Item> scanConfigs(ConfigSource source) {
+        int totalSegments = configScanSegments;
+        if (totalSegments == 1) {
+            return source.scan(0, 1);
         }
+        return new ParallelScan(totalSegments, segment -> source.scan(segment, totalSegments));
+    }
 
-        // Write request to SQS
-        System.out.println("Sending request: scheduleId=" + scheduleId + ", sqsQueueUrl=" + sqsQueueUrl +
-                ", processTime=" + processTimeUtc.toString() + ", request=" + resolvedTemplate);
-        sqsClient.sendMessage(sqsQueueUrl, resolvedTemplate);
+    // Helper method to wrap the given configs, so that each config is also added to the given list as it's iterated.
+    private static Iterable<Item> collecting(Iterable<Item> configIter, List<Item> collectedList) {
+        return () -> {
+            Iterator<Item> iterator = configIter.iterator();
+            return new Iterator<Item>() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public Item next() {
+                    Item config = iterator.next();
+                    collectedList.add(config);
+                    return config;
+                }
+            };
+        };
     }
 
-    // Helper method, because DDB scan returns an ItemCollection, which overrides iterator() to return an
-    // IteratorSupport, which is not publicly exposed. THis makes it nearly impossible to mock. So we abstract it away
-    // into a method that we can mock.
-    Iterable<Item> scanDdbTable(Table table) {
-        return table.scan();
+    // Helper method to sleep, used for retry backoff and for rate limiting. Package-scoped so unit tests can skip the
+    // sleep.
+    void sleepMillis(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
@@ -0,0 +1,185 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+
+/**
+ * <p>
+ * Config items cached across scheduler runs (and across warm Lambda invocations), with a version stamp, so that most
+ * runs don't need to scan the config table. Parsed configs (compiled templates and cron evaluators) are kept by the
+ * fire time index, which is only re-synced when this cache returns a new config list.
+ * </p>
+ * <p>
+ * Changes are detected with a metadata row in the config table, with schedule ID {@link #METADATA_SCHEDULE_ID}.
+ * Whoever changes a config is expected to also update the metadata row:
+ * </p>
+ * <ul>
+ * <li>configVersion - Number, incremented on every config change.</li>
+ * <li>changeLog - Map of schedule ID to the configVersion at which that schedule last changed (including deletes).
+ * Entries may be pruned.</li>
+ * <li>changeLogStartVersion - Number, optional. The change log has every change after this version. If entries are
+ * pruned, this must be raised to the highest pruned version. Defaults to 0.</li>
+ * </ul>
+ * <p>
+ * If the version hasn't changed, the cached configs are used as is. If it has, only the schedules in the change log
+ * since the cached version are re-read. A full scan is done if there's no metadata row, if the change log doesn't go
+ * back far enough, or if the last full scan is older than the full scan TTL. So if the metadata row isn't maintained,
+ * the scheduler scans the config table every run, as before.
+ * </p>
+ * <p>
+ * This class is thread-safe, but callers should make sure that only one load (check and apply) is in progress at a
+ * time.
+ * </p>
+ */
+public class ConfigCache {
+    /** Schedule ID of the metadata row in the config table. */
+    public static final String METADATA_SCHEDULE_ID = "_configMetadata";
+
+    // Metadata row keys. Package-scoped for unit tests.
+    static final String KEY_CHANGE_LOG = "changeLog";
+    static final String KEY_CHANGE_LOG_START_VERSION = "changeLogStartVersion";
+    static final String KEY_CONFIG_VERSION = "configVersion";
+
+    static final long DEFAULT_FULL_SCAN_TTL_MILLIS = 24 * 60 * 60 * 1000;
+
+    private Map<String, Item> configsByScheduleId = new LinkedHashMap<>();
+    private long fullScanTtlMillis = DEFAULT_FULL_SCAN_TTL_MILLIS;
+
+    // Null if configs haven't been loaded yet.
+    private List<Item> configList;
+
+    // Null if the last load didn't have a metadata row.
+    private Long version;
+    private long lastFullScanMillis;
+
+    /** Max age of the last full scan. After this, configs are fully re-scanned even if the version hasn't changed. */
+    public synchronized void setFullScanTtlMillis(long fullScanTtlMillis) {
+        if (fullScanTtlMillis < 0) {
+            throw new IllegalArgumentException("fullScanTtlMillis can't be negative");
+        }
+        this.fullScanTtlMillis = fullScanTtlMillis;
+    }
+
+    /** Cached config version, or null if unknown. */
+    public synchronized Long getVersion() {
+        return version;
+    }
+
+    /** Time of the last full scan, in epoch millis. */
+    public synchronized long getLastFullScanMillis() {
+        return lastFullScanMillis;
+    }
+
+    /**
+     * Compares the given metadata row with the cache. Returns the IDs of schedules that need to be re-read, which is
+     * empty if nothing changed. Returns null if a full scan is needed.
+     */
+    public synchronized Set<String> getChangedScheduleIds(Item metadataItem, long nowMillis) {
+        if (configList == null || version == null || metadataItem == null ||
+                !metadataItem.hasAttribute(KEY_CONFIG_VERSION) || nowMillis - lastFullScanMillis >= fullScanTtlMillis) {
+            return null;
+        }
+
+        long newVersion = metadataItem.getLong(KEY_CONFIG_VERSION);
+        if (newVersion == version) {
+            return Collections.emptySet();
+        } else if (newVersion < version) {
+            // Version went backwards. The metadata row was probably reset.
+            return null;
+        }
+
+        long changeLogStartVersion = metadataItem.hasAttribute(KEY_CHANGE_LOG_START_VERSION) ?
+                metadataItem.getLong(KEY_CHANGE_LOG_START_VERSION) : 0;
+        if (changeLogStartVersion > version || !metadataItem.hasAttribute(KEY_CHANGE_LOG)) {
+            // Change log doesn't have everything since our version.
+            return null;
+        }
+        Map<String, Number> changeLog = metadataItem.getMap(KEY_CHANGE_LOG);
+        Set<String> changedScheduleIdSet = new LinkedHashSet<>();
+        for (Map.Entry<String, Number> changeEntry : changeLog.entrySet()) {
+            if (changeEntry.getValue().longValue() > version) {
+                changedScheduleIdSet.add(changeEntry.getKey());
+            }
+        }
+        return changedScheduleIdSet;
+    }
+
+    /** The cached configs. Returns the same list instance until the configs change. Null if not loaded yet. */
+    public synchronized List<Item> getConfigs() {
+        return configList;
+    }
+
+    /**
+     * Replaces the cache with the result of a full scan. The metadata row (which may be null) should be read before
+     * the scan, so that changes made during the scan are picked up next time. The metadata row is left out of the
+     * configs, if the scan returned it. Returns the new config list.
+     */
+    public synchronized List<Item> applyFullScan(Iterable<Item> configItems, Item metadataItem, long nowMillis) {
+        return replaceAll(configItems, getVersion(metadataItem), nowMillis);
+    }
+
+    /**
+     * Replaces the cache with configs from a {@link ConfigSnapshotFile}, at the snapshot's version and full scan time.
+     * The next call to {@link #getChangedScheduleIds} validates the snapshot against the metadata row. Returns the new
+     * config list.
+     */
+    public synchronized List<Item> applySnapshot(Iterable<Item> configItems, long snapshotVersion,
+            long snapshotFullScanMillis) {
+        return replaceAll(configItems, snapshotVersion, snapshotFullScanMillis);
+    }
+
+    // Helper method to replace all configs. The metadata row is left out. The new configs are collected before anything
+    // is replaced, so if the iterable throws partway (for example, a streaming scan fails), the cache is unchanged.
+    private List<Item> replaceAll(Iterable<Item> configItems, Long newVersion, long fullScanMillis) {
+        Map<String, Item> newConfigsByScheduleId = new LinkedHashMap<>();
+        for (Item oneConfig : configItems) {
+            String scheduleId = oneConfig.getString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID);
+            if (!METADATA_SCHEDULE_ID.equals(scheduleId)) {
+                // Configs without a schedule ID are kept, so that they're logged as bad configs.
+                newConfigsByScheduleId.put(scheduleId != null ? scheduleId : "null-" + newConfigsByScheduleId.size(),
+                        oneConfig);
+            }
+        }
+        configsByScheduleId = newConfigsByScheduleId;
+        version = newVersion;
+        lastFullScanMillis = fullScanMillis;
+        return snapshot();
+    }
+
+    /**
+     * Applies re-read configs, keyed by schedule ID. A null value means the schedule was deleted. Returns the new
+     * config list.
+     */
+    public synchronized List<Item> applyChanges(Map<String, Item> changedConfigsByScheduleId, Item metadataItem) {
+        for (Map.Entry<String, Item> changeEntry : changedConfigsByScheduleId.entrySet()) {
+            if (changeEntry.getValue() != null) {
+                configsByScheduleId.put(changeEntry.getKey(), changeEntry.getValue());
+            } else {
+                configsByScheduleId.remove(changeEntry.getKey());
+            }
+        }
+        version = getVersion(metadataItem);
+        return snapshot();
+    }
+
+    // Helper method to get the version from the metadata row, or null if there isn't one.
+    private static Long getVersion(Item metadataItem) {
+        if (metadataItem == null || !metadataItem.hasAttribute(KEY_CONFIG_VERSION)) {
+            return null;
+        }
+        return metadataItem.getLong(KEY_CONFIG_VERSION);
+    }
+
+    // Helper method to make a new immutable config list.
+    private List<Item> snapshot() {
+        configList = Collections.unmodifiableList(new ArrayList<>(configsByScheduleId.values()));
+        return configList;
+    }
+}
@@ -0,0 +1,399 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+
+/**
+ * <p>
+ * Compact binary snapshot of the loaded configs, stored in a local file, so that a cold start can skip the config
+ * table scan and skip re-parsing every cron expression and request template. The snapshot has the config version it
+ * was loaded at, which is validated against the config metadata row by the {@link ConfigCache}. A stale snapshot is
+ * brought up to date from the change log, or replaced by a full scan.
+ * </p>
+ * <p>
+ * Format (big-endian):
+ * </p>
+ * <ul>
+ * <li>Header - magic, format version, config version, and the time of the last full scan.</li>
+ * <li>String table - every distinct string (schedule IDs, cron expressions, templates, template literals, queue
+ * URLs, priorities, time zones, template variable names, and number attributes in their string form), each stored once.
+ * Everything else refers to strings by index, and strings are decoded once per file, so repeated strings (like queue
+ * URLs) share a single instance after loading.</li>
+ * <li>Configs - the raw config attributes, plus the pre-parsed cron bitsets (for expressions that use the bitset
+ * engine) and the pre-tokenized request template (for valid configs).</li>
+ * <li>CRC32 of everything before it.</li>
+ * </ul>
+ * <p>
+ * Snapshots are read through a memory-mapped file, and written to a temp file that's atomically moved into place, so
+ * that a reader never sees a partially written snapshot.
+ * </p>
+ */
+public class ConfigSnapshotFile {
+    // Package-scoped for unit tests.
+    static final int MAGIC = 0x424d5343; // "BMSC"
+    static final int FORMAT_VERSION = 4;
+
+    // Reference to a null string.
+    private static final int NULL_REF = -1;
+
+    private final File file;
+
+    /** Constructs a snapshot file at the given path. The file doesn't need to exist yet. */
+    public ConfigSnapshotFile(File file) {
+        this.file = file;
+    }
+
+    /** The snapshot file's path. */
+    public File getFile() {
+        return file;
+    }
+
+    /** True if the snapshot file exists. */
+    public boolean exists() {
+        return file.isFile();
+    }
+
+    /**
+     * Reads the snapshot through a memory-mapped file.
+     *
+     * @throws IOException
+     *         if the file can't be read, is corrupt, or was written in a different format version
+     */
+    public Contents read() throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return parse(buffer);
+        }
+    }
+
+    // Helper method to parse a snapshot from the given buffer.
+    private static Contents parse(ByteBuffer buffer) throws IOException {
+        // Validate the checksum first, so that we don't parse garbage.
+        if (buffer.remaining() < 8) {
+            throw new IOException("Config snapshot is truncated");
+        }
+        int contentLength = buffer.remaining() - 4;
+        CRC32 crc = new CRC32();
+        ByteBuffer contentBuffer = buffer.duplicate();
+        contentBuffer.limit(contentBuffer.position() + contentLength);
+        crc.update(contentBuffer);
+        if ((int) crc.getValue() != buffer.getInt(buffer.position() + contentLength)) {
+            throw new IOException("Config snapshot checksum mismatch");
+        }
+
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a config snapshot");
+            }
+            int formatVersion = buffer.getInt();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported config snapshot format version " + formatVersion);
+            }
+            long configVersion = buffer.getLong();
+            long lastFullScanMillis = buffer.getLong();
+
+            // String table.
+            String[] strings = new String[readCount(buffer)];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[readCount(buffer)];
+                buffer.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            // Configs.
+            int numConfigs = readCount(buffer);
+            List<Item> configItemList = new ArrayList<>(numConfigs);
+            Map<String, ScheduleConfig> parsedConfigsByScheduleId = new LinkedHashMap<>();
+            Map<String, CronEvaluator> cronEvaluatorsByScheduleId = new LinkedHashMap<>();
+            for (int i = 0; i < numConfigs; i++) {
+                String scheduleId = readString(buffer, strings);
+                String cronSchedule = readString(buffer, strings);
+                String requestTemplate = readString(buffer, strings);
+                String sqsQueueUrl = readString(buffer, strings);
+                String spreadSeconds = readString(buffer, strings);
+                String priority = readString(buffer, strings);
+                String timeZone = readString(buffer, strings);
+                Item configItem = makeConfigItem(scheduleId, cronSchedule, requestTemplate, sqsQueueUrl,
+                        spreadSeconds, priority, timeZone);
+                configItemList.add(configItem);
+
+                if (buffer.get() != 0) {
+                    long[] fieldBits = new long[6];
+                    for (int j = 0; j < fieldBits.length; j++) {
+                        fieldBits[j] = buffer.getLong();
+                    }
+                    boolean matchDayOfMonth = buffer.get() != 0;
+                    cronEvaluatorsByScheduleId.put(scheduleId, CronEvaluator.fromFieldBits(cronSchedule, fieldBits,
+                            matchDayOfMonth));
+                }
+
+                if (buffer.get() != 0) {
+                    String[] literals = new String[readCount(buffer)];
+                    for (int j = 0; j < literals.length; j++) {
+                        literals[j] = readString(buffer, strings);
+                    }
+                    int[] segmentVarIndices = new int[readCount(buffer)];
+                    for (int j = 0; j < segmentVarIndices.length; j++) {
+                        segmentVarIndices[j] = buffer.getInt();
+                    }
+                    TemplateVariable[] distinctVars = new TemplateVariable[readCount(buffer)];
+                    for (int j = 0; j < distinctVars.length; j++) {
+                        String varName = readString(buffer, strings);
+                        distinctVars[j] = TemplateVariable.fromVarName(varName);
+                        if (distinctVars[j] == null) {
+                            throw new IOException("Unknown template variable " + varName);
+                        }
+                    }
+                    parsedConfigsByScheduleId.put(scheduleId, ScheduleConfig.fromItem(configItem,
+                            RequestTemplate.fromSegments(requestTemplate, literals, segmentVarIndices, distinctVars)));
+                }
+            }
+            return new Contents(configVersion, lastFullScanMillis, configItemList, parsedConfigsByScheduleId,
+                    cronEvaluatorsByScheduleId);
+        } catch (BufferUnderflowException | IllegalArgumentException ex) {
+            throw new IOException("Config snapshot is corrupt", ex);
+        }
+    }
+
+    // Helper method to read a non-negative count.
+    private static int readCount(ByteBuffer buffer) throws IOException {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IOException("Config snapshot is corrupt: invalid count " + count);
+        }
+        return count;
+    }
+
+    // Helper method to read a string reference and look it up in the string table.
+    private static String readString(ByteBuffer buffer, String[] strings) throws IOException {
+        int ref = buffer.getInt();
+        if (ref == NULL_REF) {
+            return null;
+        } else if (ref < 0 || ref >= strings.length) {
+            throw new IOException("Config snapshot is corrupt: invalid string reference " + ref);
+        }
+        return strings[ref];
+    }
+
+    /**
+     * Writes the snapshot. The snapshot is written to a temp file in the same directory, then moved into place, so
+     * readers see either the old snapshot or the new one.
+     */
+    public void write(Contents contents) throws IOException {
+        // Build the string table.
+        Map<String, Integer> stringRefs = new LinkedHashMap<>();
+        for (Item oneConfig : contents.getConfigItems()) {
+            addString(stringRefs, oneConfig.getString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID));
+            addString(stringRefs, oneConfig.getString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE));
+            addString(stringRefs, oneConfig.getString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE));
+            addString(stringRefs, oneConfig.getString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL));
+            addString(stringRefs, getNumberString(oneConfig, BridgeMasterScheduler.CONFIG_KEY_SPREAD_SECONDS));
+            addString(stringRefs, oneConfig.getString(BridgeMasterScheduler.CONFIG_KEY_PRIORITY));
+            addString(stringRefs, oneConfig.getString(BridgeMasterScheduler.CONFIG_KEY_TIME_ZONE));
+        }
+        for (ScheduleConfig oneConfig : contents.getParsedConfigs().values()) {
+            RequestTemplate requestTemplate = oneConfig.getRequestTemplate();
+            for (String oneLiteral : requestTemplate.getLiterals()) {
+                addString(stringRefs, oneLiteral);
+            }
+            for (TemplateVariable oneVar : requestTemplate.getDistinctVars()) {
+                addString(stringRefs, oneVar.getVarName());
+            }
+        }
+
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(byteStream)) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(contents.getConfigVersion());
+            out.writeLong(contents.getLastFullScanMillis());
+
+            out.writeInt(stringRefs.size());
+            for (String oneString : stringRefs.keySet()) {
+                byte[] bytes = oneString.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            out.writeInt(contents.getConfigItems().size());
+            for (Item oneConfig : contents.getConfigItems()) {
+                String scheduleId = oneConfig.getString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID);
+                writeString(out, stringRefs, scheduleId);
+                writeString(out, stringRefs, oneConfig.getString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE));
+                writeString(out, stringRefs, oneConfig.getString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE));
+                writeString(out, stringRefs, oneConfig.getString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL));
+                writeString(out, stringRefs, getNumberString(oneConfig,
+                        BridgeMasterScheduler.CONFIG_KEY_SPREAD_SECONDS));
+                writeString(out, stringRefs, oneConfig.getString(BridgeMasterScheduler.CONFIG_KEY_PRIORITY));
+                writeString(out, stringRefs, oneConfig.getString(BridgeMasterScheduler.CONFIG_KEY_TIME_ZONE));
+
+                // Only bitset evaluators are stored. Quartz fallbacks are re-parsed on load.
+                CronEvaluator cronEvaluator = scheduleId != null ? contents.getCronEvaluators().get(scheduleId) :
+                        null;
+                if (cronEvaluator != null && cronEvaluator.isBitsetEngine()) {
+                    out.writeBoolean(true);
+                    for (long oneFieldBits : cronEvaluator.getFieldBits()) {
+                        out.writeLong(oneFieldBits);
+                    }
+                    out.writeBoolean(cronEvaluator.isMatchDayOfMonth());
+                } else {
+                    out.writeBoolean(false);
+                }
+
+                ScheduleConfig parsedConfig = scheduleId != null ? contents.getParsedConfigs().get(scheduleId) :
+                        null;
+                if (parsedConfig != null) {
+                    RequestTemplate requestTemplate = parsedConfig.getRequestTemplate();
+                    out.writeBoolean(true);
+                    String[] literals = requestTemplate.getLiterals();
+                    out.writeInt(literals.length);
+                    for (String oneLiteral : literals) {
+                        writeString(out, stringRefs, oneLiteral);
+                    }
+                    int[] segmentVarIndices = requestTemplate.getSegmentVarIndices();
+                    out.writeInt(segmentVarIndices.length);
+                    for (int oneVarIndex : segmentVarIndices) {
+                        out.writeInt(oneVarIndex);
+                    }
+                    TemplateVariable[] distinctVars = requestTemplate.getDistinctVars();
+                    out.writeInt(distinctVars.length);
+                    for (TemplateVariable oneVar : distinctVars) {
+                        writeString(out, stringRefs, oneVar.getVarName());
+                    }
+                } else {
+                    out.writeBoolean(false);
+                }
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(byteStream.toByteArray());
+            out.writeInt((int) crc.getValue());
+        }
+
+        // Force the temp file to disk before the rename, so that a crash can't leave a renamed file whose contents
+        // were never written.
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(byteStream.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void addString(Map<String, Integer> stringRefs, String string) {
+        if (string != null) {
+            stringRefs.putIfAbsent(string, stringRefs.size());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, Map<String, Integer> stringRefs, String string)
+            throws IOException {
+        out.writeInt(string != null ? stringRefs.get(string) : NULL_REF);
+    }
+
+    // Helper method to get a number attribute in its string form, so it can go in the string table. Null if the item
+    // doesn't have the attribute.
+    private static String getNumberString(Item item, String key) {
+        return item.hasAttribute(key) ? item.getNumber(key).toString() : null;
+    }
+
+    // Helper method to make a config item with the attributes the scheduler reads.
+    private static Item makeConfigItem(String scheduleId, String cronSchedule, String requestTemplate,
+            String sqsQueueUrl, String spreadSeconds, String priority, String timeZone) {
+        Item item = new Item();
+        if (scheduleId != null) {
+            item.withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, scheduleId);
+        }
+        if (cronSchedule != null) {
+            item.withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, cronSchedule);
+        }
+        if (requestTemplate != null) {
+            item.withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, requestTemplate);
+        }
+        if (sqsQueueUrl != null) {
+            item.withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, sqsQueueUrl);
+        }
+        if (spreadSeconds != null) {
+            item.withNumber(BridgeMasterScheduler.CONFIG_KEY_SPREAD_SECONDS, new BigDecimal(spreadSeconds));
+        }
+        if (priority != null) {
+            item.withString(BridgeMasterScheduler.CONFIG_KEY_PRIORITY, priority);
+        }
+        if (timeZone != null) {
+            item.withString(BridgeMasterScheduler.CONFIG_KEY_TIME_ZONE, timeZone);
+        }
+        return item;
+    }
+
+    /** Contents of a config snapshot. */
+    public static class Contents {
+        private final long configVersion;
+        private final long lastFullScanMillis;
+        private final List<Item> configItemList;
+        private final Map<String, ScheduleConfig> parsedConfigsByScheduleId;
+        private final Map<String, CronEvaluator> cronEvaluatorsByScheduleId;
+
+        /**
+         * Constructs snapshot contents. Parsed configs and cron evaluators are keyed by schedule ID, and may leave out
+         * configs that couldn't be parsed.
+         */
+        public Contents(long configVersion, long lastFullScanMillis, List<Item> configItemList,
+                Map<String, ScheduleConfig> parsedConfigsByScheduleId,
+                Map<String, CronEvaluator> cronEvaluatorsByScheduleId) {
+            this.configVersion = configVersion;
+            this.lastFullScanMillis = lastFullScanMillis;
+            this.configItemList = Collections.unmodifiableList(configItemList);
+            this.parsedConfigsByScheduleId = Collections.unmodifiableMap(parsedConfigsByScheduleId);
+            this.cronEvaluatorsByScheduleId = Collections.unmodifiableMap(cronEvaluatorsByScheduleId);
+        }
+
+        /** Config version the snapshot was loaded at. */
+        public long getConfigVersion() {
+            return configVersion;
+        }
+
+        /** Time of the last full config scan before the snapshot was written, in epoch millis. */
+        public long getLastFullScanMillis() {
+            return lastFullScanMillis;
+        }
+
+        /** Raw config items, with only the attributes the scheduler reads. */
+        public List<Item> getConfigItems() {
+            return configItemList;
+        }
+
+        /** Parsed configs, with compiled request templates, keyed by schedule ID. */
+        public Map<String, ScheduleConfig> getParsedConfigs() {
+            return parsedConfigsByScheduleId;
+        }
+
+        /** Parsed cron expressions, keyed by schedule ID. */
+        public Map<String, CronEvaluator> getCronEvaluators() {
+            return cronEvaluatorsByScheduleId;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+
+/**
+ * <p>
+ * Where the scheduler reads its configs from. Configs are items keyed by schedule ID, with the attributes in
+ * {@link BridgeMasterScheduler} (cronSchedule, requestTemplate, sqsQueueUrl, etc). The source may also hold the
+ * config metadata row that the {@link ConfigCache} uses to detect changes.
+ * </p>
+ * <p>
+ * {@link DdbConfigSource} reads the DDB config table. {@link InMemoryConfigSource} is for tests and load simulation.
+ * Implementations must be thread-safe, since segments may be scanned in parallel.
+ * </p>
+ */
+public interface ConfigSource {
+    /** Returns the config metadata row, or null if there isn't one. */
+    Item getMetadata();
+
+    /** Returns the config with the given schedule ID, or null if it doesn't exist (for example, it was deleted). */
+    Item getConfig(String scheduleId);
+
+    /**
+     * Returns the configs in the given segment, out of the given total number of segments. Every config is in exactly
+     * one segment. The metadata row may be included, and callers are expected to skip it. Items may be streamed, so
+     * errors can be thrown while iterating.
+     */
+    Iterable<Item> scan(int segment, int totalSegments);
+}
@@ -0,0 +1,141 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * <p>
+ * Cache of parsed cron expressions, keyed by schedule ID and cron expression. If a schedule's cron expression
+ * changes, the old entry is replaced. The cache is bounded, and evicts the least recently used entry when full.
+ * </p>
+ * <p>
+ * Invalid cron expressions are cached as negative entries, so that a bad config doesn't get re-parsed (and throw a
+ * parse exception) on every scheduler run. The error is re-thrown from the cached entry instead.
+ * </p>
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ */
+public class CronCache {
+    /** Default max number of entries. */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private final Map<String, Entry> entriesByScheduleId;
+    private long numHits = 0;
+    private long numMisses = 0;
+    private long numNegativeHits = 0;
+
+    /** Constructs a cache with the default max size. */
+    public CronCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /** Constructs a cache with the given max size. */
+    public CronCache(int maxSize) {
+        this.entriesByScheduleId = new LruMap<>(maxSize);
+    }
+
+    /**
+     * Gets the parsed cron expression for the given schedule.
+     *
+     * @throws IllegalArgumentException
+     *         if the cron expression is invalid, whether it was just parsed or cached as a negative entry
+     */
+    public CronEvaluator get(String scheduleId, String cronSchedule) {
+        Entry entry;
+        synchronized (this) {
+            entry = entriesByScheduleId.get(scheduleId);
+            if (entry != null && Objects.equals(entry.cronSchedule, cronSchedule)) {
+                numHits++;
+                if (entry.error != null) {
+                    numNegativeHits++;
+                }
+            } else {
+                // Missing, or the expression changed. Parse it and replace whatever was there.
+                numMisses++;
+                entry = parseEntry(cronSchedule);
+                entriesByScheduleId.put(scheduleId, entry);
+            }
+        }
+
+        if (entry.error != null) {
+            throw new IllegalArgumentException("Schedule " + scheduleId + " has invalid cron expression: " +
+                    entry.error);
+        }
+        return entry.evaluator;
+    }
+
+    /**
+     * Puts an already parsed cron expression for the given schedule, for example one loaded from a config snapshot.
+     * This replaces whatever was there, and doesn't count as a hit or a miss.
+     */
+    public synchronized void put(String scheduleId, CronEvaluator evaluator) {
+        entriesByScheduleId.put(scheduleId, new Entry(evaluator.getCronSchedule(), evaluator, null));
+    }
+
+    /** Removes the entry for the given schedule, if there is one. */
+    public synchronized void invalidate(String scheduleId) {
+        entriesByScheduleId.remove(scheduleId);
+    }
+
+    /** Number of entries currently in the cache, including negative entries. */
+    public synchronized int size() {
+        return entriesByScheduleId.size();
+    }
+
+    /** Number of lookups that were served from the cache, including negative entries. */
+    public synchronized long getNumHits() {
+        return numHits;
+    }
+
+    /** Number of lookups that had to parse the cron expression. */
+    public synchronized long getNumMisses() {
+        return numMisses;
+    }
+
+    /** Number of lookups that were served from a negative (invalid expression) entry. */
+    public synchronized long getNumNegativeHits() {
+        return numNegativeHits;
+    }
+
+    // Parses the cron expression into a cache entry. Null cron expressions are treated like any other invalid
+    // expression.
+    private static Entry parseEntry(String cronSchedule) {
+        try {
+            return new Entry(cronSchedule, CronEvaluator.parse(cronSchedule), null);
+        } catch (IllegalArgumentException ex) {
+            return new Entry(cronSchedule, null, ex.getMessage());
+        }
+    }
+
+    // Access-ordered LinkedHashMap gives us LRU eviction.
+    private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        LruMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    // Cache entry. Exactly one of evaluator and error is non-null.
+    private static class Entry {
+        final String cronSchedule;
+        final CronEvaluator evaluator;
+        final String error;
+
+        Entry(String cronSchedule, CronEvaluator evaluator, String error) {
+            this.cronSchedule = cronSchedule;
+            this.evaluator = evaluator;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.Locale;
+
+import org.joda.time.DateTimeZone;
+import org.quartz.CronExpression;
+
+/**
+ * <p>
+ * A parsed cron expression, evaluated in UTC. This is parsed once and can be reused across scheduler runs. Instances
+ * are safe to share across threads.
+ * </p>
+ * <p>
+ * Fire times are computed with precomputed bitsets for each cron field, stepping through days, hours, minutes, and
+ * seconds as primitive epoch millis. This doesn't allocate any Date, Calendar, or DateTime objects per step. Fire
+ * times are written into a caller-provided long[] buffer, which can be reused across calls.
+ * </p>
+ * <p>
+ * Expressions are always validated by Quartz first, so that we accept and reject exactly what Quartz does. Expressions
+ * using features the bitset engine doesn't support (L, W, #, specific years, and wrap-around ranges) fall back to
+ * Quartz for evaluation.
+ * </p>
+ */
+public class CronEvaluator {
+    // How far ahead getNextFireTimeAfter() will search before concluding the expression never fires again. Quartz has
+    // a similar limit (current year + 100).
+    private static final long MAX_SEARCH_MILLIS = 100L * 366 * 24 * 60 * 60 * 1000;
+
+    private static final long MILLIS_PER_SECOND = 1000;
+    private static final long MILLIS_PER_MINUTE = 60 * MILLIS_PER_SECOND;
+    private static final long MILLIS_PER_HOUR = 60 * MILLIS_PER_MINUTE;
+    private static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+
+    // Names, in Quartz numbering. Months are 1-12, days of week are 1-7 starting at Sunday.
+    private static final String[] MONTH_NAMES = { "JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP",
+            "OCT", "NOV", "DEC" };
+    private static final String[] DAY_NAMES = { "SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT" };
+
+    // Scratch space for getNextFireTimeAfter(), so it doesn't need to allocate.
+    private static final ThreadLocal<long[]> NEXT_FIRE_TIME_BUFFER = ThreadLocal.withInitial(() -> new long[1]);
+
+    private final String cronSchedule;
+
+    // Bitsets, one bit per allowed value. Bit i is set if value i is allowed. Only used if quartzExpression is null.
+    private final long secondBits;
+    private final long minuteBits;
+    private final long hourBits;
+    private final long dayOfMonthBits;
+    private final long monthBits;
+    private final long dayOfWeekBits;
+
+    // True if days are matched by day of month. False if days are matched by day of week. Quartz requires exactly
+    // one of them to be "?".
+    private final boolean matchDayOfMonth;
+
+    // Non-null if this expression isn't supported by the bitset engine and needs to be evaluated by Quartz.
+    private final CronExpression quartzExpression;
+
+    private CronEvaluator(String cronSchedule, long[] fieldBits, boolean matchDayOfMonth,
+            CronExpression quartzExpression) {
+        this.cronSchedule = cronSchedule;
+        this.secondBits = fieldBits[0];
+        this.minuteBits = fieldBits[1];
+        this.hourBits = fieldBits[2];
+        this.dayOfMonthBits = fieldBits[3];
+        this.monthBits = fieldBits[4];
+        this.dayOfWeekBits = fieldBits[5];
+        this.matchDayOfMonth = matchDayOfMonth;
+        this.quartzExpression = quartzExpression;
+    }
+
+    /**
+     * Parses the given Quartz cron expression.
+     *
+     * @throws IllegalArgumentException
+     *         if the cron expression is invalid
+     */
+    public static CronEvaluator parse(String cronSchedule) {
+        if (cronSchedule == null) {
+            throw new IllegalArgumentException("cron expression must be specified");
+        }
+
+        // Validate with Quartz, so invalid expressions are rejected with Quartz's error message.
+        CronExpression quartzExpression;
+        try {
+            quartzExpression = new CronExpression(cronSchedule);
+        } catch (ParseException ex) {
+            throw new IllegalArgumentException("Invalid cron expression " + cronSchedule + ": " + ex.getMessage(),
+                    ex);
+        }
+        quartzExpression.setTimeZone(DateTimeZone.UTC.toTimeZone());
+
+        // Try to compile into bitsets. If we can't, fall back to Quartz.
+        String[] fieldStrs = cronSchedule.trim().toUpperCase(Locale.US).split("\\s+");
+        long[] fieldBits = new long[6];
+        boolean matchDayOfMonth = !"?".equals(fieldStrs[3]);
+        boolean supported = (fieldStrs.length == 6 || (fieldStrs.length == 7 && "*".equals(fieldStrs[6])))
+                && (fieldBits[0] = parseField(fieldStrs[0], 0, 59, null)) != 0
+                && (fieldBits[1] = parseField(fieldStrs[1], 0, 59, null)) != 0
+                && (fieldBits[2] = parseField(fieldStrs[2], 0, 23, null)) != 0
+                && (fieldBits[4] = parseField(fieldStrs[4], 1, 12, MONTH_NAMES)) != 0;
+        if (supported && matchDayOfMonth) {
+            supported = (fieldBits[3] = parseField(fieldStrs[3], 1, 31, null)) != 0 && "?".equals(fieldStrs[5]);
+        } else if (supported) {
+            supported = (fieldBits[5] = parseField(fieldStrs[5], 1, 7, DAY_NAMES)) != 0;
+        }
+
+        if (supported) {
+            return new CronEvaluator(cronSchedule, fieldBits, matchDayOfMonth, null);
+        } else {
+            return new CronEvaluator(cronSchedule, new long[6], false, quartzExpression);
+        }
+    }
+
+    // Parses a single cron field into a bitset. Returns 0 if the field uses syntax we don't support, in which case we
+    // fall back to Quartz. Since Quartz already validated the expression, we don't need to produce error messages.
+    private static long parseField(String fieldStr, int min, int max, String[] names) {
+        long bits = 0;
+        for (String oneItem : fieldStr.split(",")) {
+            // Split into range and increment.
+            int incr = 1;
+            String rangeStr = oneItem;
+            int slashIdx = oneItem.indexOf('/');
+            if (slashIdx >= 0) {
+                incr = parseValue(oneItem.substring(slashIdx + 1), null, 0);
+                rangeStr = oneItem.substring(0, slashIdx);
+            }
+            if (incr <= 0) {
+                return 0;
+            }
+
+            int start;
+            int end;
+            if ("*".equals(rangeStr)) {
+                start = min;
+                end = max;
+            } else {
+                int dashIdx = rangeStr.indexOf('-');
+                if (dashIdx >= 0) {
+                    start = parseValue(rangeStr.substring(0, dashIdx), names, min);
+                    end = parseValue(rangeStr.substring(dashIdx + 1), names, min);
+                } else {
+                    start = parseValue(rangeStr, names, min);
+                    // "5/15" means "starting at 5, every 15". Plain "5" is just 5.
+                    end = slashIdx >= 0 ? max : start;
+                }
+            }
+
+            // Wrap-around ranges (like FRI-MON) have special handling in Quartz. Let Quartz deal with them.
+            if (start < min || end > max || start > end) {
+                return 0;
+            }
+            for (int i = start; i <= end; i += incr) {
+                bits |= 1L << i;
+            }
+        }
+        return bits;
+    }
+
+    // Parses a single value, which may be a name (like JAN or MON). Returns -1 if it can't be parsed.
+    private static int parseValue(String valueStr, String[] names, int min) {
+        if (names != null) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(valueStr)) {
+                    return min + i;
+                }
+            }
+        }
+        if (valueStr.isEmpty() || valueStr.length() > 4) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < valueStr.length(); i++) {
+            char c = valueStr.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /** The original cron expression. */
+    public String getCronSchedule() {
+        return cronSchedule;
+    }
+
+    /** True if this expression is evaluated by the bitset engine. False if it falls back to Quartz. */
+    public boolean isBitsetEngine() {
+        return quartzExpression == null;
+    }
+
+    // Bitsets for seconds, minutes, hours, day of month, month, and day of week, in that order. Only meaningful for
+    // the bitset engine. Package-scoped for config snapshots.
+    long[] getFieldBits() {
+        return new long[] { secondBits, minuteBits, hourBits, dayOfMonthBits, monthBits, dayOfWeekBits };
+    }
+
+    // Package-scoped for config snapshots.
+    boolean isMatchDayOfMonth() {
+        return matchDayOfMonth;
+    }
+
+    // Rebuilds a bitset evaluator from the output of getFieldBits() and isMatchDayOfMonth(), without re-parsing or
+    // re-validating the cron expression. Package-scoped for config snapshots, which only store expressions that were
+    // already parsed.
+    static CronEvaluator fromFieldBits(String cronSchedule, long[] fieldBits, boolean matchDayOfMonth) {
+        if (fieldBits.length != 6) {
+            throw new IllegalArgumentException("Expected 6 fields, got " + fieldBits.length);
+        }
+        return new CronEvaluator(cronSchedule, fieldBits.clone(), matchDayOfMonth, null);
+    }
+
+    /**
+     * Returns the first fire time strictly after the given time, in epoch milliseconds, or -1 if the cron expression
+     * never fires again.
+     */
+    public long getNextFireTimeAfter(long afterMillis) {
+        long[] buffer = NEXT_FIRE_TIME_BUFFER.get();
+        long endMillis = afterMillis + MAX_SEARCH_MILLIS;
+        if (endMillis < afterMillis) {
+            // Overflow.
+            endMillis = Long.MAX_VALUE;
+        }
+        int count = getFireTimes(afterMillis, endMillis, buffer);
+        return count > 0 ? buffer[0] : -1;
+    }
+
+    /**
+     * Writes fire times in the window (startMillis, endMillis] into the buffer, in increasing order. Start is
+     * exclusive and end is inclusive. Writes at most buffer.length fire times. If this returns buffer.length, there
+     * may be more fire times in the window. Call again with startMillis set to the last returned fire time to get the
+     * next chunk.
+     *
+     * @return the number of fire times written to the buffer
+     */
+    public int getFireTimes(long startMillis, long endMillis, long[] buffer) {
+        if (buffer.length == 0 || endMillis <= startMillis) {
+            return 0;
+        }
+        if (quartzExpression != null) {
+            return getFireTimesFromQuartz(startMillis, endMillis, buffer);
+        }
+
+        // Cron only fires on whole seconds. The first candidate is the first whole second strictly after start.
+        long firstCandidate = Math.floorDiv(startMillis, MILLIS_PER_SECOND) * MILLIS_PER_SECOND + MILLIS_PER_SECOND;
+        long epochDay = Math.floorDiv(firstCandidate, MILLIS_PER_DAY);
+        long lastEpochDay = Math.floorDiv(endMillis, MILLIS_PER_DAY);
+
+        // Convert the first day to year/month/day once. After that, we step forward incrementally.
+        int[] ymd = civilFromDays(epochDay);
+        int year = ymd[0];
+        int month = ymd[1];
+        int dayOfMonth = ymd[2];
+        int count = 0;
+        while (epochDay <= lastEpochDay) {
+            int daysInMonth = daysInMonth(year, month);
+            if ((monthBits & (1L << month)) == 0) {
+                // Skip the rest of the month.
+                epochDay += daysInMonth - dayOfMonth + 1;
+                dayOfMonth = 1;
+                month++;
+                if (month > 12) {
+                    month = 1;
+                    year++;
+                }
+                continue;
+            }
+
+            if (matchesDay(epochDay, dayOfMonth)) {
+                long dayStartMillis = epochDay * MILLIS_PER_DAY;
+                count = fillDay(dayStartMillis, firstCandidate, endMillis, buffer, count);
+                if (count < 0) {
+                    // Buffer is full or we've passed the end of the window.
+                    return -count - 1;
+                }
+            }
+
+            // Next day.
+            epochDay++;
+            dayOfMonth++;
+            if (dayOfMonth > daysInMonth) {
+                dayOfMonth = 1;
+                month++;
+                if (month > 12) {
+                    month = 1;
+                    year++;
+                }
+            }
+        }
+        return count;
+    }
+
+    // Writes fire times within a single day into the buffer, starting at the given count. Returns the new count, or
+    // (-count - 1) if the buffer is full or we've passed the end of the window, meaning we should stop.
+    private int fillDay(long dayStartMillis, long firstCandidate, long endMillis, long[] buffer, int count) {
+        for (long hourIter = hourBits; hourIter != 0; hourIter &= hourIter - 1) {
+            long hourStartMillis = dayStartMillis + Long.numberOfTrailingZeros(hourIter) * MILLIS_PER_HOUR;
+            if (hourStartMillis + MILLIS_PER_HOUR <= firstCandidate) {
+                continue;
+            }
+
+            for (long minuteIter = minuteBits; minuteIter != 0; minuteIter &= minuteIter - 1) {
+                long minuteStartMillis = hourStartMillis + Long.numberOfTrailingZeros(minuteIter) *
+                        MILLIS_PER_MINUTE;
+                if (minuteStartMillis + MILLIS_PER_MINUTE <= firstCandidate) {
+                    continue;
+                }
+
+                for (long secondIter = secondBits; secondIter != 0; secondIter &= secondIter - 1) {
+                    long fireTime = minuteStartMillis + Long.numberOfTrailingZeros(secondIter) * MILLIS_PER_SECOND;
+                    if (fireTime < firstCandidate) {
+                        continue;
+                    }
+                    if (fireTime > endMillis) {
+                        return -count - 1;
+                    }
+                    buffer[count++] = fireTime;
+                    if (count == buffer.length) {
+                        return -count - 1;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    // Checks the day of month or day of week, whichever this expression uses.
+    private boolean matchesDay(long epochDay, int dayOfMonth) {
+        if (matchDayOfMonth) {
+            return (dayOfMonthBits & (1L << dayOfMonth)) != 0;
+        } else {
+            // 1970-01-01 was a Thursday. Quartz numbers days of week 1-7 starting at Sunday, so Thursday is 5.
+            int dayOfWeek = (int) Math.floorMod(epochDay + 4, 7) + 1;
+            return (dayOfWeekBits & (1L << dayOfWeek)) != 0;
+        }
+    }
+
+    // Fallback for expressions the bitset engine doesn't support. This has the same semantics as stepping a Quartz
+    // trigger through getFireTimeAfter().
+    private int getFireTimesFromQuartz(long startMillis, long endMillis, long[] buffer) {
+        int count = 0;
+        Date lastDate = new Date(startMillis);
+        while (count < buffer.length) {
+            // Quartz doesn't document CronExpression as thread-safe, so we serialize access to it.
+            synchronized (quartzExpression) {
+                lastDate = quartzExpression.getTimeAfter(lastDate);
+            }
+            if (lastDate == null || lastDate.getTime() > endMillis) {
+                break;
+            }
+            buffer[count++] = lastDate.getTime();
+        }
+        return count;
+    }
+
+    // Converts days since epoch to proleptic Gregorian year, month (1-12), and day (1-31). Based on Howard Hinnant's
+    // civil_from_days algorithm. Package-scoped for unit tests.
+    static int[] civilFromDays(long epochDay) {
+        long z = epochDay + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+        return new int[] { year, month, day };
+    }
+
+    // Number of days in the given month (1-12) of the given year.
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                boolean isLeapYear = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+                return isLeapYear ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+
+/**
+ * Config source backed by the DDB config table, with hash key "scheduleId". Storing configs in DDB allows us to change
+ * them dynamically without re-deploying the scheduler. Config scans and reads only fetch the attributes the scheduler
+ * reads, so that extra attributes don't cost read capacity.
+ */
+public class DdbConfigSource implements ConfigSource {
+    // Config attributes the scheduler reads. Package-scoped for unit tests.
+    static final List<String> CONFIG_PROJECTION_ATTRIBUTES = Collections.unmodifiableList(Arrays.asList(
+            BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE,
+            BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL,
+            BridgeMasterScheduler.CONFIG_KEY_SPREAD_SECONDS, BridgeMasterScheduler.CONFIG_KEY_PRIORITY,
+            BridgeMasterScheduler.CONFIG_KEY_TIME_ZONE));
+    private static final Map<String, String> CONFIG_PROJECTION_NAME_MAP;
+    static {
+        Map<String, String> nameMap = new LinkedHashMap<>();
+        for (String oneAttribute : CONFIG_PROJECTION_ATTRIBUTES) {
+            nameMap.put("#" + oneAttribute, oneAttribute);
+        }
+        CONFIG_PROJECTION_NAME_MAP = Collections.unmodifiableMap(nameMap);
+    }
+    private static final String CONFIG_PROJECTION_EXPRESSION = String.join(",", CONFIG_PROJECTION_NAME_MAP.keySet());
+
+    private final Table configTable;
+
+    /** Constructs a config source that reads the given DDB table. */
+    public DdbConfigSource(Table configTable) {
+        this.configTable = configTable;
+    }
+
+    @Override
+    public Item getMetadata() {
+        // Not projected, since the metadata attributes aren't config attributes.
+        return configTable.getItem(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, ConfigCache.METADATA_SCHEDULE_ID);
+    }
+
+    @Override
+    public Item getConfig(String scheduleId) {
+        return configTable.getItem(new GetItemSpec()
+                .withPrimaryKey(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, scheduleId)
+                .withProjectionExpression(CONFIG_PROJECTION_EXPRESSION)
+                .withNameMap(CONFIG_PROJECTION_NAME_MAP));
+    }
+
+    @Override
+    public Iterable<Item> scan(int segment, int totalSegments) {
+        ScanSpec scanSpec = new ScanSpec().withProjectionExpression(CONFIG_PROJECTION_EXPRESSION)
+                .withNameMap(CONFIG_PROJECTION_NAME_MAP).withSegment(segment).withTotalSegments(totalSegments);
+        return configTable.scan(scanSpec);
+    }
+}
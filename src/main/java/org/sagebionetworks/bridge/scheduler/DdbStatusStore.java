@@ -0,0 +1,138 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+/**
+ * Status store backed by the DDB status table, with hash key "hashKey". Batch writes use BatchWriteItem. Lease
+ * operations are conditional updates, so they're atomic across scheduler instances.
+ */
+public class DdbStatusStore implements StatusStore {
+    // Claims the lease if it's free, expired, or already ours.
+    private static final String CLAIM_UPDATE_EXPRESSION = "SET #owner = :owner, #expiresAt = :expiresAt";
+    private static final String CLAIM_CONDITION_EXPRESSION =
+            "attribute_not_exists(#owner) OR #owner = :owner OR #expiresAt < :now";
+
+    // Writes the watermark, and releases the lease, only if the lease is still ours.
+    private static final String WATERMARK_UPDATE_EXPRESSION = "SET #lastProcessedTime = :lastProcessedTime";
+    private static final String RELEASE_UPDATE_EXPRESSION = "REMOVE #owner, #expiresAt";
+    private static final String OWNER_CONDITION_EXPRESSION = "#owner = :owner";
+
+    private final DynamoDB ddbClient;
+    private final Table statusTable;
+
+    /** Constructs a status store for the given DDB table. The DDB client is used for batch writes. */
+    public DdbStatusStore(DynamoDB ddbClient, Table statusTable) {
+        this.ddbClient = ddbClient;
+        this.statusTable = statusTable;
+    }
+
+    @Override
+    public Item getItem(String hashKey) {
+        return statusTable.getItem(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY, hashKey);
+    }
+
+    @Override
+    public void putItem(Item item) {
+        statusTable.putItem(item);
+    }
+
+    @Override
+    public Iterable<Item> scan() {
+        return statusTable.scan();
+    }
+
+    @Override
+    public List<Item> batchPutItems(List<Item> itemList) {
+        List<WriteRequest> writeRequestList = new ArrayList<>(itemList.size());
+        for (Item oneItem : itemList) {
+            writeRequestList.add(new WriteRequest(new PutRequest(ItemUtils.toAttributeValues(oneItem))));
+        }
+        Map<String, List<WriteRequest>> unprocessed = batchWriteDdbItems(Collections.singletonMap(
+                statusTable.getTableName(), writeRequestList));
+
+        List<Item> unprocessedItemList = new ArrayList<>();
+        if (unprocessed != null) {
+            for (List<WriteRequest> oneWriteRequestList : unprocessed.values()) {
+                for (WriteRequest oneWriteRequest : oneWriteRequestList) {
+                    unprocessedItemList.add(ItemUtils.toItem(oneWriteRequest.getPutRequest().getItem()));
+                }
+            }
+        }
+        return unprocessedItemList;
+    }
+
+    @Override
+    public Item claimLease(String hashKey, String ownerId, long expiresAtMillis, long nowMillis) {
+        UpdateItemSpec claimSpec = new UpdateItemSpec()
+                .withPrimaryKey(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY, hashKey)
+                .withUpdateExpression(CLAIM_UPDATE_EXPRESSION)
+                .withConditionExpression(CLAIM_CONDITION_EXPRESSION)
+                .withNameMap(new NameMap().with("#owner", ShardLeases.KEY_LEASE_OWNER)
+                        .with("#expiresAt", ShardLeases.KEY_LEASE_EXPIRES_AT))
+                .withValueMap(new ValueMap().withString(":owner", ownerId)
+                        .withLong(":expiresAt", expiresAtMillis).withLong(":now", nowMillis))
+                .withReturnValues(ReturnValue.ALL_NEW);
+        try {
+            return statusTable.updateItem(claimSpec).getItem();
+        } catch (ConditionalCheckFailedException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean writeLeasedWatermark(String hashKey, String ownerId, long watermarkMillis) {
+        UpdateItemSpec watermarkSpec = new UpdateItemSpec()
+                .withPrimaryKey(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY, hashKey)
+                .withUpdateExpression(WATERMARK_UPDATE_EXPRESSION)
+                .withConditionExpression(OWNER_CONDITION_EXPRESSION)
+                .withNameMap(new NameMap().with("#owner", ShardLeases.KEY_LEASE_OWNER)
+                        .with("#lastProcessedTime", BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME))
+                .withValueMap(new ValueMap().withString(":owner", ownerId)
+                        .withLong(":lastProcessedTime", watermarkMillis));
+        try {
+            statusTable.updateItem(watermarkSpec);
+            return true;
+        } catch (ConditionalCheckFailedException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean releaseLease(String hashKey, String ownerId) {
+        UpdateItemSpec releaseSpec = new UpdateItemSpec()
+                .withPrimaryKey(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY, hashKey)
+                .withUpdateExpression(RELEASE_UPDATE_EXPRESSION)
+                .withConditionExpression(OWNER_CONDITION_EXPRESSION)
+                .withNameMap(new NameMap().with("#owner", ShardLeases.KEY_LEASE_OWNER)
+                        .with("#expiresAt", ShardLeases.KEY_LEASE_EXPIRES_AT))
+                .withValueMap(new ValueMap().withString(":owner", ownerId));
+        try {
+            statusTable.updateItem(releaseSpec);
+            return true;
+        } catch (ConditionalCheckFailedException ex) {
+            return false;
+        }
+    }
+
+    // Helper method to write a single BatchWriteItem request. Returns the unprocessed items, keyed by table name.
+    // Package-scoped so unit tests can mock it, since DynamoDB.batchWriteItemUnprocessed() returns an outcome that's
+    // awkward to build.
+    Map<String, List<WriteRequest>> batchWriteDdbItems(Map<String, List<WriteRequest>> requestItems) {
+        return ddbClient.batchWriteItemUnprocessed(requestItems).getUnprocessedItems();
+    }
+}
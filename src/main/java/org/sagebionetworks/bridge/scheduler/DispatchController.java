@@ -0,0 +1,240 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * <p>
+ * Per-queue flow control for SQS sends. For each queue URL, this tracks send latency and error rate, and limits the
+ * number of batches in flight with AIMD (additive increase, multiplicative decrease). The limit grows by about one
+ * batch per round of sends while sends succeed within the latency target, and is halved whenever a send fails or is
+ * slower than the target. A slow or throttled queue ends up with a small limit, so it can't tie up the threads that
+ * healthy queues need.
+ * </p>
+ * <p>
+ * Each queue also has a circuit breaker. After {@link #setFailureThreshold} consecutive failed sends, the breaker
+ * opens, and the queue gets no sends until the open period ends. Then a single probe batch is allowed (half-open). If
+ * the probe succeeds, the breaker closes. If it fails, the breaker opens again for twice as long, up to the max open
+ * period. Sends that only fail with sender faults (bad messages) don't count as queue failures.
+ * </p>
+ * <p>
+ * The controller is meant to outlive a single flush, so that a queue that's known to be bad stays throttled across
+ * scheduler runs and warm Lambda invocations. Times are in millis from a monotonic clock (see {@link #nowMillis}).
+ * This class is thread-safe.
+ * </p>
+ */
+public class DispatchController {
+    static final int DEFAULT_INITIAL_LIMIT = 2;
+    static final int DEFAULT_MAX_LIMIT = 16;
+    static final long DEFAULT_LATENCY_TARGET_MILLIS = 1000;
+    static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    static final long DEFAULT_OPEN_MILLIS = 1000;
+    static final long DEFAULT_MAX_OPEN_MILLIS = 60 * 1000;
+
+    // Weight of the newest sample in the latency and error rate moving averages.
+    private static final double EWMA_WEIGHT = 0.2;
+
+    private enum BreakerState {
+        CLOSED,
+        OPEN,
+        HALF_OPEN,
+    }
+
+    private final Map<String, QueueState> statesByQueueUrl = new HashMap<>();
+    private int initialLimit = DEFAULT_INITIAL_LIMIT;
+    private int maxLimit = DEFAULT_MAX_LIMIT;
+    private long latencyTargetMillis = DEFAULT_LATENCY_TARGET_MILLIS;
+    private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private long openMillis = DEFAULT_OPEN_MILLIS;
+    private long maxOpenMillis = DEFAULT_MAX_OPEN_MILLIS;
+
+    /** Number of batches a queue may have in flight before it has any history. Defaults to 2. */
+    public final synchronized void setInitialLimit(int initialLimit) {
+        if (initialLimit < 1) {
+            throw new IllegalArgumentException("initialLimit must be at least 1");
+        }
+        this.initialLimit = initialLimit;
+    }
+
+    /** Max number of batches a queue may have in flight, no matter how healthy it is. Defaults to 16. */
+    public final synchronized void setMaxLimit(int maxLimit) {
+        if (maxLimit < 1) {
+            throw new IllegalArgumentException("maxLimit must be at least 1");
+        }
+        this.maxLimit = maxLimit;
+    }
+
+    /** Sends slower than this are treated as congestion, and halve the queue's limit. Defaults to 1 second. */
+    public final synchronized void setLatencyTargetMillis(long latencyTargetMillis) {
+        if (latencyTargetMillis < 1) {
+            throw new IllegalArgumentException("latencyTargetMillis must be positive");
+        }
+        this.latencyTargetMillis = latencyTargetMillis;
+    }
+
+    /** Number of consecutive failed sends that opens a queue's circuit breaker. Defaults to 5. */
+    public final synchronized void setFailureThreshold(int failureThreshold) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold must be at least 1");
+        }
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * How long a circuit breaker stays open the first time it opens. Doubles each time a probe fails, up to the max.
+     * Defaults to 1 second.
+     */
+    public final synchronized void setOpenMillis(long openMillis) {
+        if (openMillis < 0) {
+            throw new IllegalArgumentException("openMillis can't be negative");
+        }
+        this.openMillis = openMillis;
+    }
+
+    /** Max time a circuit breaker stays open before the next probe. Defaults to 1 minute. */
+    public final synchronized void setMaxOpenMillis(long maxOpenMillis) {
+        if (maxOpenMillis < 0) {
+            throw new IllegalArgumentException("maxOpenMillis can't be negative");
+        }
+        this.maxOpenMillis = maxOpenMillis;
+    }
+
+    /** Current time from the monotonic clock used for breaker timing. */
+    public static long nowMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Tries to reserve a send slot for the given queue. Returns false if the queue is at its concurrency limit, or if
+     * its circuit breaker is open (or half-open with a probe in flight). If this returns true, the caller must call
+     * {@link #release} when the send finishes.
+     */
+    public synchronized boolean tryAcquire(String sqsQueueUrl) {
+        QueueState state = getState(sqsQueueUrl);
+        if (state.breakerState == BreakerState.OPEN) {
+            if (nowMillis() < state.openUntilMillis) {
+                return false;
+            }
+            state.breakerState = BreakerState.HALF_OPEN;
+        }
+
+        int limit = state.breakerState == BreakerState.HALF_OPEN ? 1 : (int) state.limit;
+        if (state.numInFlight >= limit) {
+            return false;
+        }
+        state.numInFlight++;
+        return true;
+    }
+
+    /**
+     * Releases a send slot, and records the outcome. A send succeeded if SQS accepted the call and didn't report any
+     * retryable failures.
+     */
+    public synchronized void release(String sqsQueueUrl, long latencyMillis, boolean succeeded) {
+        QueueState state = getState(sqsQueueUrl);
+        state.numInFlight = Math.max(0, state.numInFlight - 1);
+        state.avgLatencyMillis = state.numSamples == 0 ? latencyMillis :
+                state.avgLatencyMillis + EWMA_WEIGHT * (latencyMillis - state.avgLatencyMillis);
+        state.errorRate += EWMA_WEIGHT * ((succeeded ? 0.0 : 1.0) - state.errorRate);
+        state.numSamples++;
+
+        if (succeeded) {
+            state.consecutiveFailures = 0;
+            if (state.breakerState == BreakerState.HALF_OPEN) {
+                state.breakerState = BreakerState.CLOSED;
+                state.nextOpenMillis = openMillis;
+            }
+            if (latencyMillis <= latencyTargetMillis) {
+                state.limit = Math.min(maxLimit, state.limit + 1.0 / state.limit);
+            } else {
+                state.limit = Math.max(1.0, state.limit / 2);
+            }
+        } else {
+            state.consecutiveFailures++;
+            state.limit = Math.max(1.0, state.limit / 2);
+            if (state.breakerState == BreakerState.HALF_OPEN) {
+                // Probe failed. Back off for longer.
+                state.nextOpenMillis = Math.min(maxOpenMillis, state.nextOpenMillis * 2);
+                open(state);
+            } else if (state.breakerState == BreakerState.CLOSED && state.consecutiveFailures >= failureThreshold) {
+                open(state);
+            }
+        }
+    }
+
+    private void open(QueueState state) {
+        state.breakerState = BreakerState.OPEN;
+        state.openUntilMillis = nowMillis() + state.nextOpenMillis;
+        state.numTimesOpened++;
+    }
+
+    /** Time when the queue's circuit breaker allows the next send, or 0 if the breaker isn't open. */
+    public synchronized long getBlockedUntilMillis(String sqsQueueUrl) {
+        QueueState state = statesByQueueUrl.get(sqsQueueUrl);
+        return state != null && state.breakerState == BreakerState.OPEN ? state.openUntilMillis : 0;
+    }
+
+    /** Current number of batches the queue may have in flight. */
+    public synchronized int getConcurrencyLimit(String sqsQueueUrl) {
+        return (int) getState(sqsQueueUrl).limit;
+    }
+
+    /** Moving average of send latency for the queue, in millis. 0 if there haven't been any sends. */
+    public synchronized double getAverageLatencyMillis(String sqsQueueUrl) {
+        QueueState state = statesByQueueUrl.get(sqsQueueUrl);
+        return state != null ? state.avgLatencyMillis : 0.0;
+    }
+
+    /** Moving average of the fraction of sends that failed, from 0 to 1. */
+    public synchronized double getErrorRate(String sqsQueueUrl) {
+        QueueState state = statesByQueueUrl.get(sqsQueueUrl);
+        return state != null ? state.errorRate : 0.0;
+    }
+
+    /** Number of times the queue's circuit breaker has opened. */
+    public synchronized int getNumTimesOpened(String sqsQueueUrl) {
+        QueueState state = statesByQueueUrl.get(sqsQueueUrl);
+        return state != null ? state.numTimesOpened : 0;
+    }
+
+    /** Queues whose circuit breaker is open or half-open, in sorted order. */
+    public synchronized Set<String> getUnhealthyQueueUrls() {
+        Set<String> queueUrlSet = new TreeSet<>();
+        for (Map.Entry<String, QueueState> stateEntry : statesByQueueUrl.entrySet()) {
+            if (stateEntry.getValue().breakerState != BreakerState.CLOSED) {
+                queueUrlSet.add(stateEntry.getKey());
+            }
+        }
+        return queueUrlSet;
+    }
+
+    private QueueState getState(String sqsQueueUrl) {
+        QueueState state = statesByQueueUrl.get(sqsQueueUrl);
+        if (state == null) {
+            state = new QueueState(Math.min(initialLimit, maxLimit), openMillis);
+            statesByQueueUrl.put(sqsQueueUrl, state);
+        }
+        return state;
+    }
+
+    // Flow control and breaker state for a single queue. Guarded by the controller's lock.
+    private static class QueueState {
+        double limit;
+        int numInFlight = 0;
+        double avgLatencyMillis = 0.0;
+        double errorRate = 0.0;
+        long numSamples = 0;
+        int consecutiveFailures = 0;
+        BreakerState breakerState = BreakerState.CLOSED;
+        long openUntilMillis = 0;
+        long nextOpenMillis;
+        int numTimesOpened = 0;
+
+        QueueState(int initialLimit, long openMillis) {
+            this.limit = initialLimit;
+            this.nextOpenMillis = openMillis;
+        }
+    }
+}
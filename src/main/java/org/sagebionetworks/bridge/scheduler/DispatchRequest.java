@@ -0,0 +1,138 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.joda.time.DateTime;
+
+/**
+ * <p>
+ * A resolved request, ready to be sent to SQS.
+ * </p>
+ * <p>
+ * Each request has a dedup ID, derived from the schedule ID and the fire time, so a request that's generated again
+ * (for example, when a failed run is retried) has the same dedup ID as the first time. It's used as the
+ * MessageDeduplicationId for FIFO queues, and as the key in the {@link RecentlySentStore} for all queues.
+ * </p>
+ */
+public class DispatchRequest {
+    // SQS limit, and allowed characters, for MessageGroupId.
+    private static final int MAX_GROUP_ID_LENGTH = 128;
+    private static final String GROUP_ID_PUNCTUATION = "!\"#$%&'()*+,-./:;<=>?@[\\]^_`{|}~";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // SHA-256 digest, one per thread, since MessageDigest isn't thread-safe.
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every JVM is required to support SHA-256.
+            throw new IllegalStateException(ex);
+        }
+    });
+
+    private final String scheduleId;
+    private final String sqsQueueUrl;
+    private final DateTime processTime;
+    private final String body;
+    private final int delaySeconds;
+    private final Priority priority;
+    private final String dedupId;
+
+    /** Constructs a normal priority dispatch request that's delivered without a delay. */
+    public DispatchRequest(String scheduleId, String sqsQueueUrl, DateTime processTime, String body) {
+        this(scheduleId, sqsQueueUrl, processTime, body, 0, Priority.NORMAL);
+    }
+
+    /** Constructs a dispatch request that's sent in the given priority lane, and delivered after the given delay. */
+    public DispatchRequest(String scheduleId, String sqsQueueUrl, DateTime processTime, String body,
+            int delaySeconds, Priority priority) {
+        this.scheduleId = scheduleId;
+        this.sqsQueueUrl = sqsQueueUrl;
+        this.processTime = processTime;
+        this.body = body;
+        this.delaySeconds = delaySeconds;
+        this.priority = priority;
+        this.dedupId = makeDedupId(scheduleId, processTime.getMillis());
+    }
+
+    /**
+     * Returns the dedup ID for the given schedule and fire time: the SHA-256 of the two, as 64 hex digits. This fits
+     * the SQS limits for MessageDeduplicationId no matter what characters the schedule ID has.
+     */
+    public static String makeDedupId(String scheduleId, long processTimeMillis) {
+        return sha256Hex(scheduleId + "@" + processTimeMillis);
+    }
+
+    // Helper method which returns the SHA-256 of the string's UTF-8 bytes, as hex digits.
+    private static String sha256Hex(String value) {
+        byte[] hash = SHA_256.get().digest(value.getBytes(StandardCharsets.UTF_8));
+        char[] hexChars = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hexChars[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            hexChars[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xf];
+        }
+        return new String(hexChars);
+    }
+
+    /** Schedule that generated this request. Used to report failures. */
+    public String getScheduleId() {
+        return scheduleId;
+    }
+
+    /** SQS queue to send the request to. */
+    public String getSqsQueueUrl() {
+        return sqsQueueUrl;
+    }
+
+    /** Fire time of the schedule that generated this request. */
+    public DateTime getProcessTime() {
+        return processTime;
+    }
+
+    /** Resolved request template, sent as the SQS message body. */
+    public String getBody() {
+        return body;
+    }
+
+    /** SQS message delay, in seconds. 0 means the queue's default delay. */
+    public int getDelaySeconds() {
+        return delaySeconds;
+    }
+
+    /** Priority lane the request is sent in. */
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /** Dedup ID, which is the same every time this schedule's request for this fire time is generated. */
+    public String getDedupId() {
+        return dedupId;
+    }
+
+    /**
+     * Message group for FIFO queues. Each schedule is its own group, so a schedule's messages are delivered in order,
+     * without holding up other schedules. This is the schedule ID, unless the schedule ID isn't a valid group ID, in
+     * which case it's the SHA-256 of the schedule ID.
+     */
+    public String getMessageGroupId() {
+        return isValidGroupId(scheduleId) ? scheduleId : sha256Hex(scheduleId);
+    }
+
+    // True if SQS accepts the value as a MessageGroupId: 1 to 128 alphanumeric or punctuation characters.
+    private static boolean isValidGroupId(String value) {
+        if (value.isEmpty() || value.length() > MAX_GROUP_ID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            boolean isAlphanumeric = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+            if (!isAlphanumeric && GROUP_ID_PUNCTUATION.indexOf(c) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
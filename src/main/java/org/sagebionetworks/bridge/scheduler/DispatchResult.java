@@ -0,0 +1,88 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Result of flushing the dispatcher. Tracks the number of messages sent and every failure, grouped by schedule. */
+public class DispatchResult {
+    private int numSent = 0;
+    private int numSqsCalls = 0;
+    private int numDuplicates = 0;
+    private final Map<String, Integer> numSentByQueueUrl = new LinkedHashMap<>();
+    private final Map<String, List<String>> failuresByScheduleId = new LinkedHashMap<>();
+
+    /** Number of messages successfully sent to SQS. */
+    public int getNumSent() {
+        return numSent;
+    }
+
+    /** Number of messages successfully sent to SQS, keyed by queue URL. Queues with no messages sent are left out. */
+    public Map<String, Integer> getNumSentByQueueUrl() {
+        return Collections.unmodifiableMap(numSentByQueueUrl);
+    }
+
+    /** Number of messages that weren't sent, because the same message was sent recently. */
+    public int getNumDuplicates() {
+        return numDuplicates;
+    }
+
+    /** Number of calls made to SQS, including retries. */
+    public int getNumSqsCalls() {
+        return numSqsCalls;
+    }
+
+    /** Total number of messages that could not be sent. */
+    public int getNumFailed() {
+        int numFailed = 0;
+        for (List<String> failureList : failuresByScheduleId.values()) {
+            numFailed += failureList.size();
+        }
+        return numFailed;
+    }
+
+    /**
+     * Failures, keyed by schedule ID. Each failure is a human-readable description of the request that failed and
+     * why.
+     */
+    public Map<String, List<String>> getFailuresByScheduleId() {
+        return Collections.unmodifiableMap(failuresByScheduleId);
+    }
+
+    void addSent(String sqsQueueUrl, int count) {
+        if (count > 0) {
+            numSent += count;
+            numSentByQueueUrl.merge(sqsQueueUrl, count, Integer::sum);
+        }
+    }
+
+    void addSqsCall() {
+        numSqsCalls++;
+    }
+
+    void addDuplicate() {
+        numDuplicates++;
+    }
+
+    // Adds the counts and failures from the other result into this one. Used to combine per-queue results.
+    void merge(DispatchResult other) {
+        numSent += other.numSent;
+        numSqsCalls += other.numSqsCalls;
+        numDuplicates += other.numDuplicates;
+        for (Map.Entry<String, Integer> sentEntry : other.numSentByQueueUrl.entrySet()) {
+            numSentByQueueUrl.merge(sentEntry.getKey(), sentEntry.getValue(), Integer::sum);
+        }
+        for (Map.Entry<String, List<String>> failureEntry : other.failuresByScheduleId.entrySet()) {
+            failuresByScheduleId.computeIfAbsent(failureEntry.getKey(), k -> new ArrayList<>()).addAll(
+                    failureEntry.getValue());
+        }
+    }
+
+    void addFailure(DispatchRequest request, String error) {
+        failuresByScheduleId.computeIfAbsent(request.getScheduleId(), k -> new ArrayList<>()).add(
+                "processTime=" + request.getProcessTime() + ", sqsQueueUrl=" + request.getSqsQueueUrl() +
+                        ", error=" + error);
+    }
+}
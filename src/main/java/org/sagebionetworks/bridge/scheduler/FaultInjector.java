@@ -0,0 +1,84 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Latency and errors for the in-memory backends, to see how the scheduler behaves when its dependencies are slow or
+ * flaky. Each call waits the base latency plus a random jitter (up to the max jitter), and then fails with the given
+ * error rate. Defaults to no latency and no errors.
+ * </p>
+ * <p>
+ * Latency is real time (the calling thread sleeps), so it shows up in the scheduler's metrics. Settings may be
+ * changed while calls are in flight. This class is thread-safe.
+ * </p>
+ */
+public class FaultInjector {
+    private final AtomicLong numCalls = new AtomicLong();
+    private final AtomicLong numErrors = new AtomicLong();
+    private volatile long latencyMillis = 0;
+    private volatile long maxJitterMillis = 0;
+    private volatile double errorRate = 0.0;
+
+    /** Base latency of each call. */
+    public final void setLatencyMillis(long latencyMillis) {
+        if (latencyMillis < 0) {
+            throw new IllegalArgumentException("latencyMillis can't be negative");
+        }
+        this.latencyMillis = latencyMillis;
+    }
+
+    /** Max random latency added to the base latency of each call. Jitter is uniform from 0 to this. */
+    public final void setMaxJitterMillis(long maxJitterMillis) {
+        if (maxJitterMillis < 0) {
+            throw new IllegalArgumentException("maxJitterMillis can't be negative");
+        }
+        this.maxJitterMillis = maxJitterMillis;
+    }
+
+    /** Fraction of calls that fail, from 0 (none) to 1 (all). */
+    public final void setErrorRate(double errorRate) {
+        if (errorRate < 0.0 || errorRate > 1.0) {
+            throw new IllegalArgumentException("errorRate must be between 0 and 1");
+        }
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Called at the start of each call to the backend. Waits the injected latency, then throws an
+     * IllegalStateException if the call should fail.
+     */
+    public void beforeCall(String operation) {
+        numCalls.incrementAndGet();
+        long jitterMillis = maxJitterMillis;
+        long sleepMillis = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) :
+                0);
+        if (sleepMillis > 0) {
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (shouldFail(errorRate)) {
+            numErrors.incrementAndGet();
+            throw new IllegalStateException("Injected error in " + operation);
+        }
+    }
+
+    /** Number of calls so far. */
+    public long getNumCalls() {
+        return numCalls.get();
+    }
+
+    /** Number of calls that failed with an injected error. */
+    public long getNumErrors() {
+        return numErrors.get();
+    }
+
+    /** Returns true with the given probability. Used for partial failures, like single entries in a batch. */
+    public static boolean shouldFail(double errorRate) {
+        return errorRate > 0.0 && ThreadLocalRandom.current().nextDouble() < errorRate;
+    }
+}
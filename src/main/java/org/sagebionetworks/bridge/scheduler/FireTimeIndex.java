@@ -0,0 +1,180 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * <p>
+ * Index of schedules, ordered by next fire time. This lets a scheduler run find the schedules that are due without
+ * evaluating every schedule's cron expression, and answer "what fires in window [a, b]" in logarithmic time (plus the
+ * number of results).
+ * </p>
+ * <p>
+ * Each entry's next fire time is computed relative to the index's cursor, which is the end of the last processed
+ * window. Schedules are added, replaced, and removed incrementally with {@link #put} and {@link #remove}. After a run
+ * processes the due schedules, {@link #advanceTo} moves the cursor and reinserts them with their next fire times.
+ * </p>
+ * <p>
+ * This class is not thread-safe. Callers must synchronize access.
+ * </p>
+ */
+public class FireTimeIndex {
+    /** Next fire time for schedules that never fire again. These sort after everything else. */
+    public static final long NEVER = Long.MAX_VALUE;
+
+    // Order by next fire time, then by schedule ID, so that entries with the same fire time are distinct.
+    private static final Comparator<Entry> ENTRY_COMPARATOR = Comparator.comparingLong(Entry::getNextFireTime)
+            .thenComparing(Entry::getScheduleId);
+
+    private final NavigableSet<Entry> entriesByFireTime = new TreeSet<>(ENTRY_COMPARATOR);
+    private final Map<String, Entry> entriesByScheduleId = new HashMap<>();
+    private long cursorMillis;
+
+    /** Constructs an empty index with the given cursor. */
+    public FireTimeIndex(long cursorMillis) {
+        this.cursorMillis = cursorMillis;
+    }
+
+    /** End of the last processed window. Next fire times are strictly after this. */
+    public long getCursorMillis() {
+        return cursorMillis;
+    }
+
+    /** Number of schedules in the index. */
+    public int size() {
+        return entriesByScheduleId.size();
+    }
+
+    /** Gets the entry for the given schedule, or null if the schedule isn't in the index. */
+    public Entry get(String scheduleId) {
+        return entriesByScheduleId.get(scheduleId);
+    }
+
+    /** Adds the schedule to the index, replacing any existing entry for the same schedule ID. */
+    public void put(ScheduleConfig config, CronEvaluator evaluator) {
+        remove(config.getScheduleId());
+        insert(new Entry(config.getScheduleId(), config, evaluator, computeNextFireTime(evaluator, cursorMillis)));
+    }
+
+    /** Removes the schedule from the index. Does nothing if the schedule isn't in the index. */
+    public void remove(String scheduleId) {
+        Entry entry = entriesByScheduleId.remove(scheduleId);
+        if (entry != null) {
+            entriesByFireTime.remove(entry);
+        }
+    }
+
+    /** Schedule IDs in the index. */
+    public Collection<String> getScheduleIds() {
+        return new ArrayList<>(entriesByScheduleId.keySet());
+    }
+
+    /** Earliest next fire time of any schedule, or {@link #NEVER} if no schedule fires again. */
+    public long getNextFireTime() {
+        return entriesByFireTime.isEmpty() ? NEVER : entriesByFireTime.first().getNextFireTime();
+    }
+
+    /**
+     * Returns the schedules whose next fire time is within [startMillis, endMillis], inclusive on both ends, in fire
+     * time order. Since the index only knows each schedule's next fire time, the start should be at or after the
+     * cursor.
+     */
+    public List<Entry> getFiringBetween(long startMillis, long endMillis) {
+        // Seek to the start with a tail set (log time), then iterate in order until we pass the end. The probe entry
+        // has the smallest possible schedule ID, so it sorts before any real entry with the same fire time.
+        List<Entry> resultList = new ArrayList<>();
+        Entry probe = new Entry("", null, null, startMillis);
+        for (Entry oneEntry : entriesByFireTime.tailSet(probe, true)) {
+            if (oneEntry.getNextFireTime() > endMillis) {
+                break;
+            }
+            resultList.add(oneEntry);
+        }
+        return resultList;
+    }
+
+    /** Returns the schedules that are due, meaning their next fire time is at or before the given time. */
+    public List<Entry> getDue(long nowMillis) {
+        return getFiringBetween(Long.MIN_VALUE, nowMillis);
+    }
+
+    /**
+     * Moves the cursor to the given time, and reinserts every due schedule with its next fire time after the new
+     * cursor. Schedules that weren't due keep their fire times, since their next fire time after the old cursor is
+     * also their next fire time after the new cursor.
+     */
+    public void advanceTo(long newCursorMillis) {
+        List<Entry> dueList = getDue(newCursorMillis);
+        for (Entry oneEntry : dueList) {
+            entriesByFireTime.remove(oneEntry);
+            oneEntry.nextFireTime = computeNextFireTime(oneEntry.getEvaluator(), newCursorMillis);
+            entriesByFireTime.add(oneEntry);
+        }
+        cursorMillis = newCursorMillis;
+    }
+
+    /**
+     * Moves the cursor to an arbitrary time (for example, if another scheduler instance updated the last processed
+     * time), and recomputes every schedule's next fire time. This is O(n), unlike {@link #advanceTo}.
+     */
+    public void rebase(long newCursorMillis) {
+        List<Entry> entryList = new ArrayList<>(entriesByFireTime);
+        entriesByFireTime.clear();
+        for (Entry oneEntry : entryList) {
+            oneEntry.nextFireTime = computeNextFireTime(oneEntry.getEvaluator(), newCursorMillis);
+            entriesByFireTime.add(oneEntry);
+        }
+        cursorMillis = newCursorMillis;
+    }
+
+    private void insert(Entry entry) {
+        entriesByScheduleId.put(entry.getScheduleId(), entry);
+        entriesByFireTime.add(entry);
+    }
+
+    private static long computeNextFireTime(CronEvaluator evaluator, long afterMillis) {
+        long nextFireTime = evaluator.getNextFireTimeAfter(afterMillis);
+        return nextFireTime >= 0 ? nextFireTime : NEVER;
+    }
+
+    /** A single schedule in the index. */
+    public static class Entry {
+        private final String scheduleId;
+        private final ScheduleConfig config;
+        private final CronEvaluator evaluator;
+        private long nextFireTime;
+
+        private Entry(String scheduleId, ScheduleConfig config, CronEvaluator evaluator, long nextFireTime) {
+            this.scheduleId = scheduleId;
+            this.config = config;
+            this.evaluator = evaluator;
+            this.nextFireTime = nextFireTime;
+        }
+
+        /** The schedule ID. */
+        public String getScheduleId() {
+            return scheduleId;
+        }
+
+        /** The schedule config. */
+        public ScheduleConfig getConfig() {
+            return config;
+        }
+
+        /** The schedule's parsed cron expression. */
+        public CronEvaluator getEvaluator() {
+            return evaluator;
+        }
+
+        /** Next fire time after the index's cursor, or {@link #NEVER}. */
+        public long getNextFireTime() {
+            return nextFireTime;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+
+/**
+ * <p>
+ * Config source that keeps configs in memory, for tests and load simulation. Configs are keyed by their scheduleId
+ * attribute, including the config metadata row (schedule ID {@link ConfigCache#METADATA_SCHEDULE_ID}). Scan segments
+ * are assigned round-robin, in the order configs were first added. Items are copied in and out, so callers can't
+ * change what's stored.
+ * </p>
+ * <p>
+ * Every call goes through the {@link FaultInjector}. This class is thread-safe.
+ * </p>
+ */
+public class InMemoryConfigSource implements ConfigSource {
+    private final FaultInjector faultInjector = new FaultInjector();
+    private final Map<String, Item> configsByScheduleId = new LinkedHashMap<>();
+
+    /** Latency and errors for calls from the scheduler. putConfig() and deleteConfig() don't go through it. */
+    public FaultInjector getFaultInjector() {
+        return faultInjector;
+    }
+
+    /** Adds or replaces the given config (or the metadata row). */
+    public synchronized void putConfig(Item configItem) {
+        configsByScheduleId.put(configItem.getString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID), copy(configItem));
+    }
+
+    /** Deletes the config with the given schedule ID, if there is one. */
+    public synchronized void deleteConfig(String scheduleId) {
+        configsByScheduleId.remove(scheduleId);
+    }
+
+    /** Number of configs, including the metadata row, if there is one. */
+    public synchronized int size() {
+        return configsByScheduleId.size();
+    }
+
+    @Override
+    public Item getMetadata() {
+        return getConfig(ConfigCache.METADATA_SCHEDULE_ID);
+    }
+
+    @Override
+    public Item getConfig(String scheduleId) {
+        faultInjector.beforeCall("getConfig");
+        synchronized (this) {
+            Item configItem = configsByScheduleId.get(scheduleId);
+            return configItem != null ? copy(configItem) : null;
+        }
+    }
+
+    @Override
+    public Iterable<Item> scan(int segment, int totalSegments) {
+        faultInjector.beforeCall("scan");
+        List<Item> segmentList = new ArrayList<>();
+        synchronized (this) {
+            int i = 0;
+            for (Item oneItem : configsByScheduleId.values()) {
+                if (i % totalSegments == segment) {
+                    segmentList.add(copy(oneItem));
+                }
+                i++;
+            }
+        }
+        return segmentList;
+    }
+
+    // Items are mutable. Copy them, so the caller and the store don't share an instance.
+    private static Item copy(Item item) {
+        return Item.fromMap(item.asMap());
+    }
+}
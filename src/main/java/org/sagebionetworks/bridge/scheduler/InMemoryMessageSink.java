@@ -0,0 +1,77 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+
+/**
+ * <p>
+ * Message sink that counts messages instead of sending them, for tests and load simulation. Messages aren't kept, so
+ * memory doesn't grow over a long simulation.
+ * </p>
+ * <p>
+ * Each call goes through the {@link FaultInjector}, which can fail the whole batch. Single entries can also fail, with
+ * the entry error rate, as a retryable ServiceUnavailable error, the same way SQS reports partial failures. This class
+ * is thread-safe.
+ * </p>
+ */
+public class InMemoryMessageSink implements MessageSink {
+    // Error code for injected entry failures. SQS uses this for throttling and transient errors.
+    static final String ENTRY_ERROR_CODE = "ServiceUnavailable";
+
+    private final FaultInjector faultInjector = new FaultInjector();
+    private final Map<String, Long> numMessagesByQueueUrl = new HashMap<>();
+    private long numMessages = 0;
+    private volatile double entryErrorRate = 0.0;
+
+    /** Latency and errors for each SendMessageBatch call. */
+    public FaultInjector getFaultInjector() {
+        return faultInjector;
+    }
+
+    /** Fraction of entries that fail in batches that don't fail as a whole, from 0 (none) to 1 (all). */
+    public final void setEntryErrorRate(double entryErrorRate) {
+        if (entryErrorRate < 0.0 || entryErrorRate > 1.0) {
+            throw new IllegalArgumentException("entryErrorRate must be between 0 and 1");
+        }
+        this.entryErrorRate = entryErrorRate;
+    }
+
+    /** Total number of messages accepted. */
+    public synchronized long getNumMessages() {
+        return numMessages;
+    }
+
+    /** Number of messages accepted by each queue. */
+    public synchronized Map<String, Long> getNumMessagesByQueueUrl() {
+        return new HashMap<>(numMessagesByQueueUrl);
+    }
+
+    @Override
+    public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+        faultInjector.beforeCall("sendMessageBatch");
+        List<SendMessageBatchResultEntry> successList = new ArrayList<>();
+        List<BatchResultErrorEntry> failedList = new ArrayList<>();
+        for (SendMessageBatchRequestEntry oneEntry : request.getEntries()) {
+            if (FaultInjector.shouldFail(entryErrorRate)) {
+                failedList.add(new BatchResultErrorEntry().withId(oneEntry.getId()).withCode(ENTRY_ERROR_CODE)
+                        .withMessage("Injected error").withSenderFault(false));
+            } else {
+                successList.add(new SendMessageBatchResultEntry().withId(oneEntry.getId()));
+            }
+        }
+
+        synchronized (this) {
+            numMessages += successList.size();
+            numMessagesByQueueUrl.merge(request.getQueueUrl(), (long) successList.size(), Long::sum);
+        }
+        return new SendMessageBatchResult().withSuccessful(successList).withFailed(failedList);
+    }
+}
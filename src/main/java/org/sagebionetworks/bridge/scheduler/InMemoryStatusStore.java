@@ -0,0 +1,140 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+
+/**
+ * <p>
+ * Status store that keeps rows in memory, for tests and load simulation. Can be shared by several schedulers, to
+ * simulate several instances sharing a status table. Lease operations are atomic, like the conditional updates in
+ * {@link DdbStatusStore}. Items are copied in and out, so callers can't change what's stored.
+ * </p>
+ * <p>
+ * Every call goes through the {@link FaultInjector}. Errors are injected before anything is written, so a failed
+ * call never has a partial effect. This class is thread-safe.
+ * </p>
+ */
+public class InMemoryStatusStore implements StatusStore {
+    private final FaultInjector faultInjector = new FaultInjector();
+    private final Map<String, Item> rowsByHashKey = new LinkedHashMap<>();
+
+    /** Latency and errors for every call. */
+    public FaultInjector getFaultInjector() {
+        return faultInjector;
+    }
+
+    /** Number of rows. */
+    public synchronized int size() {
+        return rowsByHashKey.size();
+    }
+
+    @Override
+    public Item getItem(String hashKey) {
+        faultInjector.beforeCall("getItem");
+        synchronized (this) {
+            Item row = rowsByHashKey.get(hashKey);
+            return row != null ? copy(row) : null;
+        }
+    }
+
+    @Override
+    public void putItem(Item item) {
+        faultInjector.beforeCall("putItem");
+        synchronized (this) {
+            put(item);
+        }
+    }
+
+    @Override
+    public Iterable<Item> scan() {
+        faultInjector.beforeCall("scan");
+        List<Item> rowList = new ArrayList<>();
+        synchronized (this) {
+            for (Item oneRow : rowsByHashKey.values()) {
+                rowList.add(copy(oneRow));
+            }
+        }
+        return rowList;
+    }
+
+    @Override
+    public List<Item> batchPutItems(List<Item> itemList) {
+        if (itemList.size() > MAX_BATCH_PUT_ITEMS) {
+            throw new IllegalArgumentException("Can't put more than " + MAX_BATCH_PUT_ITEMS + " items in a batch");
+        }
+        faultInjector.beforeCall("batchPutItems");
+        synchronized (this) {
+            for (Item oneItem : itemList) {
+                put(oneItem);
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Item claimLease(String hashKey, String ownerId, long expiresAtMillis, long nowMillis) {
+        faultInjector.beforeCall("claimLease");
+        synchronized (this) {
+            Item row = rowsByHashKey.get(hashKey);
+            if (row == null) {
+                row = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY, hashKey);
+                rowsByHashKey.put(hashKey, row);
+            } else if (row.hasAttribute(ShardLeases.KEY_LEASE_OWNER) &&
+                    !ownerId.equals(row.getString(ShardLeases.KEY_LEASE_OWNER)) &&
+                    row.getLong(ShardLeases.KEY_LEASE_EXPIRES_AT) >= nowMillis) {
+                return null;
+            }
+            row.withString(ShardLeases.KEY_LEASE_OWNER, ownerId).withLong(ShardLeases.KEY_LEASE_EXPIRES_AT,
+                    expiresAtMillis);
+            return copy(row);
+        }
+    }
+
+    @Override
+    public boolean writeLeasedWatermark(String hashKey, String ownerId, long watermarkMillis) {
+        faultInjector.beforeCall("writeLeasedWatermark");
+        synchronized (this) {
+            Item row = getLeasedRow(hashKey, ownerId);
+            if (row == null) {
+                return false;
+            }
+            row.withLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME, watermarkMillis);
+            return true;
+        }
+    }
+
+    @Override
+    public boolean releaseLease(String hashKey, String ownerId) {
+        faultInjector.beforeCall("releaseLease");
+        synchronized (this) {
+            Item row = getLeasedRow(hashKey, ownerId);
+            if (row == null) {
+                return false;
+            }
+            row.removeAttribute(ShardLeases.KEY_LEASE_OWNER);
+            row.removeAttribute(ShardLeases.KEY_LEASE_EXPIRES_AT);
+            return true;
+        }
+    }
+
+    // Returns the stored row, if it's leased to the given owner. Otherwise, returns null. Caller must hold the lock.
+    private Item getLeasedRow(String hashKey, String ownerId) {
+        Item row = rowsByHashKey.get(hashKey);
+        return row != null && ownerId.equals(row.getString(ShardLeases.KEY_LEASE_OWNER)) ? row : null;
+    }
+
+    // Stores a copy of the item. Caller must hold the lock.
+    private void put(Item item) {
+        rowsByHashKey.put(item.getString(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY), copy(item));
+    }
+
+    // Items are mutable. Copy them, so the caller and the store don't share an instance.
+    private static Item copy(Item item) {
+        return Item.fromMap(item.asMap());
+    }
+}
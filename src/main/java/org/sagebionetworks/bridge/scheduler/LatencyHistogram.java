@@ -0,0 +1,99 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Latency histogram with power-of-2 microsecond buckets. Bucket 0 holds latencies under 1 microsecond, and bucket i
+ * holds latencies in [2^(i-1), 2^i) microseconds. Recording is a few atomic increments, with no allocation, so this
+ * can be used on the per-message path.
+ * </p>
+ * <p>
+ * Percentiles are reported as the upper bound of the bucket they fall in, so they're accurate to within a factor of
+ * 2. That's good enough to tell whether a phase takes microseconds, milliseconds, or seconds.
+ * </p>
+ * <p>
+ * Safe to record from multiple threads.
+ * </p>
+ */
+public class LatencyHistogram {
+    // 2^40 microseconds is about 12 days. Anything longer goes in the last bucket.
+    static final int NUM_BUCKETS = 41;
+
+    private static final long NANOS_PER_MICRO = 1000;
+
+    private final AtomicLongArray bucketCounts = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /** Records a single latency, in nanoseconds. Negative latencies (from clock adjustments) are recorded as 0. */
+    public void record(long nanos) {
+        long safeNanos = Math.max(nanos, 0);
+        bucketCounts.incrementAndGet(getBucket(safeNanos));
+        count.incrementAndGet();
+        totalNanos.addAndGet(safeNanos);
+        maxNanos.accumulateAndGet(safeNanos, Math::max);
+    }
+
+    /** Records the time since the given start time, from {@link System#nanoTime}. */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /** Number of recorded latencies. */
+    public long getCount() {
+        return count.get();
+    }
+
+    /** Sum of all recorded latencies, in nanoseconds. */
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    /** Largest recorded latency, in nanoseconds. */
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * Returns the latency (in nanoseconds) at the given percentile (0 to 100), as the upper bound of the bucket it
+     * falls in, capped at the max recorded latency. Returns 0 if nothing has been recorded.
+     */
+    public long getPercentileNanos(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+
+        // Rank of the value we're looking for, 1-based. For example, p50 of 10 values is the 5th value.
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += bucketCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(getBucketUpperNanos(i), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    /** Number of latencies recorded in the given bucket. */
+    public long getBucketCount(int bucket) {
+        return bucketCounts.get(bucket);
+    }
+
+    /** Exclusive upper bound of the given bucket, in nanoseconds. */
+    public static long getBucketUpperNanos(int bucket) {
+        return (1L << bucket) * NANOS_PER_MICRO;
+    }
+
+    // Bucket 0 is under 1 microsecond. Bucket i is [2^(i-1), 2^i) microseconds, which is the number of bits needed to
+    // represent the latency in microseconds.
+    static int getBucket(long nanos) {
+        long micros = nanos / NANOS_PER_MICRO;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, NUM_BUCKETS - 1);
+    }
+}
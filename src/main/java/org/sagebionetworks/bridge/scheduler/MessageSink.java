@@ -0,0 +1,22 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+
+/**
+ * <p>
+ * Where resolved requests are sent. Uses the SQS batch model, so that per-entry failures (and whether they're the
+ * sender's fault) are reported the same way for every implementation.
+ * </p>
+ * <p>
+ * {@link SqsMessageSink} sends to SQS. {@link InMemoryMessageSink} is for tests and load simulation. Implementations
+ * must be thread-safe, since batches may be sent in parallel.
+ * </p>
+ */
+public interface MessageSink {
+    /**
+     * Sends a batch of messages to a single queue. Returns the result, with an error entry for each message that
+     * wasn't accepted. Throws if the whole call failed.
+     */
+    SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request);
+}
@@ -0,0 +1,359 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * <p>
+ * Local append-only log of resolved requests (the outbox), so that sending requests and checkpointing the schedules
+ * that made them don't have to happen atomically. Requests are written to the log before they're sent. As SQS accepts
+ * them, they're marked as sent. Once the run's requests are all in the log, the run writes a resolved record with the
+ * schedules it fully resolved, and the time it resolved them through. After the run's checkpoints and status are
+ * written, the log is cleared.
+ * </p>
+ * <p>
+ * If a run dies before the log is cleared, the next run recovers from the log: it sends only the requests that
+ * weren't marked as sent, and checkpoints the resolved schedules, so they aren't resolved and sent again. Recovery
+ * work and duplicates scale with what was in flight when the run died, not with the size of the run's window.
+ * </p>
+ * <p>
+ * Format (big-endian): a header with magic and format version, then records. Each record is its payload length, its
+ * type, the payload, and the CRC32 of the type and payload. Records with requests and resolved schedules are forced to
+ * disk before the write returns. Sent records aren't, since losing one only means re-sending its requests. A record
+ * that's cut short or fails its checksum (for example, from a crash in the middle of a write) ends the log. It's
+ * discarded on read, along with anything after it.
+ * </p>
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ */
+public class OutboxLog {
+    // Package-scoped for unit tests.
+    static final int MAGIC = 0x424d4f42; // "BMOB"
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_LENGTH = 8;
+
+    // Record types.
+    static final byte RECORD_REQUESTS = 1;
+    static final byte RECORD_SENT = 2;
+    static final byte RECORD_RESOLVED = 3;
+
+    // Length, type, and checksum around each record's payload.
+    private static final int RECORD_OVERHEAD = 9;
+
+    private final File file;
+
+    /** Constructs an outbox log at the given path. The file doesn't need to exist yet. */
+    public OutboxLog(File file) {
+        this.file = file;
+    }
+
+    /** The log file's path. */
+    public File getFile() {
+        return file;
+    }
+
+    /** True if the log file exists, meaning the last run that wrote to it didn't finish. */
+    public synchronized boolean exists() {
+        return file.isFile();
+    }
+
+    /** Writes requests to the log, and forces them to disk. They must not be sent until this returns. */
+    public synchronized void appendRequests(List<DispatchRequest> requestList) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(byteStream)) {
+            out.writeInt(requestList.size());
+            for (DispatchRequest oneRequest : requestList) {
+                writeString(out, oneRequest.getScheduleId());
+                writeString(out, oneRequest.getSqsQueueUrl());
+                out.writeLong(oneRequest.getProcessTime().getMillis());
+                writeString(out, oneRequest.getBody());
+                out.writeInt(oneRequest.getDelaySeconds());
+                writeString(out, oneRequest.getPriority().name());
+            }
+        }
+        append(RECORD_REQUESTS, byteStream.toByteArray(), true);
+    }
+
+    /** Marks requests as sent, by dedup ID. This isn't forced to disk. */
+    public synchronized void appendSent(List<String> dedupIdList) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(byteStream)) {
+            out.writeInt(dedupIdList.size());
+            for (String oneDedupId : dedupIdList) {
+                writeString(out, oneDedupId);
+            }
+        }
+        append(RECORD_SENT, byteStream.toByteArray(), false);
+    }
+
+    /**
+     * Records that every request of the given schedules, through the given time, is already in the log, and forces it
+     * to disk. Must only be called after those requests were written.
+     */
+    public synchronized void appendResolved(long endMillis, Collection<String> scheduleIds) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(byteStream)) {
+            out.writeLong(endMillis);
+            out.writeInt(scheduleIds.size());
+            for (String oneScheduleId : scheduleIds) {
+                writeString(out, oneScheduleId);
+            }
+        }
+        append(RECORD_RESOLVED, byteStream.toByteArray(), true);
+    }
+
+    // Helper method to append a single record. A new file gets the header first.
+    private void append(byte type, byte[] payload, boolean force) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + RECORD_OVERHEAD + payload.length);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            if (channel.size() == 0) {
+                buffer.putInt(MAGIC);
+                buffer.putInt(FORMAT_VERSION);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            crc.update(payload);
+            buffer.putInt(payload.length);
+            buffer.put(type);
+            buffer.put(payload);
+            buffer.putInt((int) crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (force) {
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Reads the log. If the log ends in a record that's cut short or fails its checksum, that record and anything
+     * after it are discarded, and the file is truncated to the last good record, so that new records can be appended.
+     * Returns empty contents if the file doesn't exist.
+     *
+     * @throws IOException
+     *         if the file can't be read, or isn't an outbox log in this format version
+     */
+    public synchronized Contents read() throws IOException {
+        if (!file.isFile()) {
+            return new Contents(Collections.emptyList(), Collections.emptySet(), Collections.emptyMap(), 0);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading until the buffer is full.
+            }
+            buffer.flip();
+            if (buffer.remaining() < HEADER_LENGTH) {
+                // The first write was cut short, so nothing was written yet.
+                int numDiscardedBytes = buffer.remaining();
+                channel.truncate(0);
+                return new Contents(Collections.emptyList(), Collections.emptySet(), Collections.emptyMap(),
+                        numDiscardedBytes);
+            }
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not an outbox log");
+            }
+            int formatVersion = buffer.getInt();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported outbox log format version " + formatVersion);
+            }
+
+            // Requests are keyed by dedup ID, so that a request that was written twice (for example, by a run that
+            // re-resolved it after a failed recovery) is only sent once.
+            Map<String, DispatchRequest> requestsByDedupId = new LinkedHashMap<>();
+            Set<String> sentDedupIdSet = new HashSet<>();
+            Map<String, Long> resolvedMillisByScheduleId = new HashMap<>();
+            int goodLength = buffer.position();
+            while (buffer.hasRemaining()) {
+                int recordStart = buffer.position();
+                ByteBuffer payload = readRecordPayload(buffer);
+                if (payload == null) {
+                    break;
+                }
+                byte type = buffer.get(recordStart + 4);
+                try {
+                    parseRecord(type, payload, requestsByDedupId, sentDedupIdSet, resolvedMillisByScheduleId);
+                } catch (BufferUnderflowException | IllegalArgumentException ex) {
+                    // The checksum matched, so this was written by a different version of this class.
+                    throw new IOException("Outbox log record is corrupt", ex);
+                }
+                goodLength = buffer.position();
+            }
+
+            int numDiscardedBytes = (int) channel.size() - goodLength;
+            if (numDiscardedBytes > 0) {
+                channel.truncate(goodLength);
+                channel.force(false);
+            }
+
+            List<DispatchRequest> unsentRequestList = new ArrayList<>();
+            for (DispatchRequest oneRequest : requestsByDedupId.values()) {
+                if (!sentDedupIdSet.contains(oneRequest.getDedupId())) {
+                    unsentRequestList.add(oneRequest);
+                }
+            }
+            return new Contents(unsentRequestList, sentDedupIdSet, resolvedMillisByScheduleId, numDiscardedBytes);
+        }
+    }
+
+    // Helper method to read the next record, and return its payload, or null if the record is cut short or fails its
+    // checksum. On success, the buffer is positioned after the record.
+    private static ByteBuffer readRecordPayload(ByteBuffer buffer) {
+        if (buffer.remaining() < RECORD_OVERHEAD) {
+            return null;
+        }
+        int recordStart = buffer.position();
+        int payloadLength = buffer.getInt(recordStart);
+        if (payloadLength < 0 || payloadLength > buffer.remaining() - RECORD_OVERHEAD) {
+            return null;
+        }
+        ByteBuffer checkedBuffer = buffer.duplicate();
+        checkedBuffer.position(recordStart + 4);
+        checkedBuffer.limit(recordStart + 5 + payloadLength);
+        CRC32 crc = new CRC32();
+        crc.update(checkedBuffer);
+        if ((int) crc.getValue() != buffer.getInt(recordStart + 5 + payloadLength)) {
+            return null;
+        }
+
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(recordStart + 5);
+        payload.limit(recordStart + 5 + payloadLength);
+        buffer.position(recordStart + RECORD_OVERHEAD + payloadLength);
+        return payload;
+    }
+
+    // Helper method to parse a record's payload into the given collections.
+    private static void parseRecord(byte type, ByteBuffer payload, Map<String, DispatchRequest> requestsByDedupId,
+            Set<String> sentDedupIdSet, Map<String, Long> resolvedMillisByScheduleId) throws IOException {
+        switch (type) {
+            case RECORD_REQUESTS: {
+                int numRequests = readCount(payload);
+                for (int i = 0; i < numRequests; i++) {
+                    String scheduleId = readString(payload);
+                    String sqsQueueUrl = readString(payload);
+                    DateTime processTime = new DateTime(payload.getLong(), DateTimeZone.UTC);
+                    String body = readString(payload);
+                    int delaySeconds = payload.getInt();
+                    Priority priority = Priority.valueOf(readString(payload));
+                    DispatchRequest request = new DispatchRequest(scheduleId, sqsQueueUrl, processTime, body,
+                            delaySeconds, priority);
+                    requestsByDedupId.putIfAbsent(request.getDedupId(), request);
+                }
+                break;
+            }
+            case RECORD_SENT: {
+                int numSent = readCount(payload);
+                for (int i = 0; i < numSent; i++) {
+                    sentDedupIdSet.add(readString(payload));
+                }
+                break;
+            }
+            case RECORD_RESOLVED: {
+                long endMillis = payload.getLong();
+                int numSchedules = readCount(payload);
+                for (int i = 0; i < numSchedules; i++) {
+                    resolvedMillisByScheduleId.merge(readString(payload), endMillis, Math::max);
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown outbox log record type " + type);
+        }
+    }
+
+    /** Deletes the log. Called once everything in it is sent and checkpointed. */
+    public synchronized void clear() throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    // Helper method to read a non-negative count.
+    private static int readCount(ByteBuffer buffer) throws IOException {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IOException("Outbox log record is corrupt: invalid count " + count);
+        }
+        return count;
+    }
+
+    // Helper method to read a length-prefixed UTF-8 string.
+    private static String readString(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[readCount(buffer)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Helper method to write a length-prefixed UTF-8 string. Unlike writeUTF(), this isn't limited to 64KB, so it fits
+    // message bodies up to the SQS limit.
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Contents of an outbox log. */
+    public static class Contents {
+        private final List<DispatchRequest> unsentRequestList;
+        private final Set<String> sentDedupIdSet;
+        private final Map<String, Long> resolvedMillisByScheduleId;
+        private final int numDiscardedBytes;
+
+        /** Constructs outbox log contents. */
+        public Contents(List<DispatchRequest> unsentRequestList, Set<String> sentDedupIdSet,
+                Map<String, Long> resolvedMillisByScheduleId, int numDiscardedBytes) {
+            this.unsentRequestList = Collections.unmodifiableList(unsentRequestList);
+            this.sentDedupIdSet = Collections.unmodifiableSet(sentDedupIdSet);
+            this.resolvedMillisByScheduleId = Collections.unmodifiableMap(resolvedMillisByScheduleId);
+            this.numDiscardedBytes = numDiscardedBytes;
+        }
+
+        /** Requests that were written but not marked as sent, in the order they were written. */
+        public List<DispatchRequest> getUnsentRequests() {
+            return unsentRequestList;
+        }
+
+        /** Dedup IDs of requests that were marked as sent. */
+        public Set<String> getSentDedupIds() {
+            return sentDedupIdSet;
+        }
+
+        /**
+         * Schedules whose requests are all in the log, keyed by schedule ID, with the time they were resolved through
+         * (epoch millis).
+         */
+        public Map<String, Long> getResolvedMillisByScheduleId() {
+            return resolvedMillisByScheduleId;
+        }
+
+        /** Bytes at the end of the log that were discarded, because the last record was cut short or corrupt. */
+        public int getNumDiscardedBytes() {
+            return numDiscardedBytes;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+
+/**
+ * <p>
+ * Parallel segmented DDB scan, handed off to the caller as a single stream of items. Each segment is scanned on its
+ * own thread. Items are passed to the caller through a bounded queue as each page comes in, so the caller can start
+ * processing before the scan finishes, and memory use doesn't depend on the size of the table.
+ * </p>
+ * <p>
+ * Segments are scanned when {@link #iterator} is called. The iterator must be consumed to the end, or the scan
+ * threads will block on the full queue. If a segment fails, the iterator throws the segment's error, and the other
+ * segments are cancelled, so their threads exit instead of waiting on the queue. Items from different segments are
+ * interleaved in no particular order.
+ * </p>
+ */
+public class ParallelScan implements Iterable<Item> {
+    // Max number of items waiting to be consumed. Package-scoped for unit tests.
+    static final int QUEUE_CAPACITY = 1000;
+
+    // Put in the queue by each segment when it's done, whether it succeeded or failed.
+    private static final Object SEGMENT_DONE = new Object();
+
+    // How long a segment waits for space in the queue before checking whether the scan was cancelled. Cancelling also
+    // interrupts the segment threads, so this only matters if the interrupt was swallowed (for example, by the DDB
+    // client). Package-scoped for unit tests.
+    static final long PUT_RETRY_MILLIS = 100;
+
+    private final int totalSegments;
+    private final IntFunction<Iterable<Item>> segmentScanner;
+
+    /**
+     * Constructs a parallel scan with the given number of segments. The segment scanner is called once for each
+     * segment number, from 0 to totalSegments - 1, and returns the items in that segment.
+     */
+    public ParallelScan(int totalSegments, IntFunction<Iterable<Item>> segmentScanner) {
+        if (totalSegments < 1) {
+            throw new IllegalArgumentException("totalSegments must be at least 1");
+        }
+        this.totalSegments = totalSegments;
+        this.segmentScanner = segmentScanner;
+    }
+
+    /** Starts scanning all segments, and returns an iterator over the combined items. */
+    @Override
+    public Iterator<Item> iterator() {
+        BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        ExecutorService executor = Executors.newFixedThreadPool(totalSegments, runnable -> {
+            // Daemon threads, so a scan that's abandoned after an error doesn't keep the JVM alive.
+            Thread thread = new Thread(runnable, "ParallelScan-segment");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (int i = 0; i < totalSegments; i++) {
+                int segment = i;
+                executor.execute(() -> scanSegment(segment, queue, cancelled));
+            }
+        } finally {
+            // Threads exit once their segment is done, or the scan is cancelled.
+            executor.shutdown();
+        }
+        return new QueueIterator(queue, executor, cancelled);
+    }
+
+    // Helper method to scan a single segment into the queue. Errors are passed through the queue to the caller. Stops
+    // early if the scan is cancelled.
+    private void scanSegment(int segment, BlockingQueue<Object> queue, AtomicBoolean cancelled) {
+        try {
+            try {
+                for (Item oneItem : segmentScanner.apply(segment)) {
+                    if (!put(queue, oneItem, cancelled)) {
+                        return;
+                    }
+                }
+            } catch (RuntimeException ex) {
+                if (!put(queue, ex, cancelled)) {
+                    return;
+                }
+            }
+            put(queue, SEGMENT_DONE, cancelled);
+        } catch (InterruptedException ex) {
+            // The scan was cancelled.
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Helper method to put an element in the queue, waiting for space. Returns false without putting it if the scan is
+    // cancelled.
+    private static boolean put(BlockingQueue<Object> queue, Object element, AtomicBoolean cancelled)
+            throws InterruptedException {
+        while (!cancelled.get()) {
+            if (queue.offer(element, PUT_RETRY_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Iterates over the queue until every segment is done.
+    private class QueueIterator implements Iterator<Item> {
+        private final BlockingQueue<Object> queue;
+        private final ExecutorService executor;
+        private final AtomicBoolean cancelled;
+        private int numSegmentsDone = 0;
+        private Item next;
+
+        QueueIterator(BlockingQueue<Object> queue, ExecutorService executor, AtomicBoolean cancelled) {
+            this.queue = queue;
+            this.executor = executor;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && numSegmentsDone < totalSegments) {
+                Object element;
+                try {
+                    element = queue.take();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    cancel();
+                    throw new IllegalStateException("Interrupted while waiting for scan", ex);
+                }
+
+                if (element == SEGMENT_DONE) {
+                    numSegmentsDone++;
+                } else if (element instanceof RuntimeException) {
+                    cancel();
+                    throw new IllegalStateException("Error scanning segment", (RuntimeException) element);
+                } else {
+                    next = (Item) element;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Item next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Item item = next;
+            next = null;
+            return item;
+        }
+
+        // Stops the remaining segments. Threads blocked on the queue (or in the segment scanner) are interrupted, and
+        // threads that miss the interrupt see the cancelled flag the next time they wait for the queue.
+        private void cancel() {
+            cancelled.set(true);
+            executor.shutdownNow();
+        }
+    }
+}
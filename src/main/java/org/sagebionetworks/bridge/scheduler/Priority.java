@@ -0,0 +1,63 @@
+package org.sagebionetworks.bridge.scheduler;
+
+/**
+ * <p>
+ * Priority lane of a schedule, from the optional priority attribute in the config table ("high", "normal", or "low").
+ * Schedules without a priority are normal priority.
+ * </p>
+ * <p>
+ * Due schedules are processed in priority order, so if a run is cut short by its deadline, it's the low priority
+ * schedules that are deferred. The {@link SqsDispatcher} keeps each lane's requests in their own batches, and starts
+ * higher priority batches first. Each lane also has a reserved share of the dispatcher's in-flight sends, which
+ * other lanes can't use while that lane has work, so a flood of high priority sends can't starve the lower lanes
+ * entirely.
+ * </p>
+ */
+public enum Priority {
+    HIGH("high", "High", 0.5),
+    NORMAL("normal", "Normal", 0.25),
+    LOW("low", "Low", 0.125);
+
+    private final String configValue;
+    private final String metricName;
+    private final double reservedShare;
+
+    Priority(String configValue, String metricName, double reservedShare) {
+        this.configValue = configValue;
+        this.metricName = metricName;
+        this.reservedShare = reservedShare;
+    }
+
+    /**
+     * Parses the priority attribute from the config table. Case-insensitive. Null means normal priority.
+     *
+     * @throws IllegalArgumentException
+     *         if the value isn't a known priority
+     */
+    public static Priority fromConfigValue(String configValue) {
+        if (configValue == null) {
+            return NORMAL;
+        }
+        for (Priority onePriority : values()) {
+            if (onePriority.configValue.equalsIgnoreCase(configValue)) {
+                return onePriority;
+            }
+        }
+        throw new IllegalArgumentException("Unknown priority " + configValue);
+    }
+
+    /** Value of the priority attribute in the config table, for example "high". */
+    public String getConfigValue() {
+        return configValue;
+    }
+
+    /** Name used in this lane's metrics, for example "High". */
+    public String getMetricName() {
+        return metricName;
+    }
+
+    /** Fraction of the dispatcher's max in-flight sends that's reserved for this lane, rounded down. */
+    public double getReservedShare() {
+        return reservedShare;
+    }
+}
@@ -0,0 +1,82 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Dedup IDs of messages that were recently sent, so that a scheduler run that retries a window (for example, after a
+ * run crashed between sending and writing its checkpoints) doesn't send the same message twice. The dispatcher skips
+ * requests whose dedup ID is in the store, and adds the dedup ID of every message SQS accepts.
+ * </p>
+ * <p>
+ * The store is bounded by both age and size. Entries expire after the TTL, and once the store is full, the oldest
+ * entries are dropped. It only lives in memory, so it covers retries within the same JVM (warm Lambda invocations, and
+ * the daemon). FIFO queues also dedup on the SQS side, within SQS's 5 minute window.
+ * </p>
+ * <p>
+ * Times are in millis from a monotonic clock (see {@link DispatchController#nowMillis}). This class is thread-safe.
+ * </p>
+ */
+public class RecentlySentStore {
+    static final int DEFAULT_MAX_ENTRIES = 20000;
+    static final long DEFAULT_TTL_MILLIS = 2 * 60 * 60 * 1000;
+
+    // Sent time by dedup ID, oldest first. Re-adding an ID moves it to the end.
+    private final LinkedHashMap<String, Long> sentMillisByDedupId = new LinkedHashMap<>();
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private long ttlMillis = DEFAULT_TTL_MILLIS;
+
+    /** Max number of dedup IDs to keep. Defaults to 20,000. */
+    public final synchronized void setMaxEntries(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        this.maxEntries = maxEntries;
+        evict(DispatchController.nowMillis());
+    }
+
+    /**
+     * How long a sent message is remembered. This should cover the time until a failed run is retried. Defaults to 2
+     * hours, which covers the next run of an hourly scheduler.
+     */
+    public final synchronized void setTtlMillis(long ttlMillis) {
+        if (ttlMillis < 1) {
+            throw new IllegalArgumentException("ttlMillis must be positive");
+        }
+        this.ttlMillis = ttlMillis;
+    }
+
+    /** True if a message with the given dedup ID was sent within the TTL. */
+    public synchronized boolean contains(String dedupId) {
+        Long sentMillis = sentMillisByDedupId.get(dedupId);
+        return sentMillis != null && DispatchController.nowMillis() - sentMillis < ttlMillis;
+    }
+
+    /** Records that a message with the given dedup ID was sent. */
+    public synchronized void add(String dedupId) {
+        long nowMillis = DispatchController.nowMillis();
+        sentMillisByDedupId.remove(dedupId);
+        sentMillisByDedupId.put(dedupId, nowMillis);
+        evict(nowMillis);
+    }
+
+    /** Number of dedup IDs in the store, including ones that have expired but haven't been evicted yet. */
+    public synchronized int size() {
+        return sentMillisByDedupId.size();
+    }
+
+    // Drops expired entries, and the oldest entries past the max size. Entries are in sent order, so we stop at the
+    // first one that's kept.
+    private void evict(long nowMillis) {
+        Iterator<Map.Entry<String, Long>> entryIter = sentMillisByDedupId.entrySet().iterator();
+        while (entryIter.hasNext()) {
+            Map.Entry<String, Long> oneEntry = entryIter.next();
+            if (sentMillisByDedupId.size() <= maxEntries && nowMillis - oneEntry.getValue() < ttlMillis) {
+                break;
+            }
+            entryIter.remove();
+        }
+    }
+}
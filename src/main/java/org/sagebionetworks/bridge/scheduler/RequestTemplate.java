@@ -0,0 +1,197 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * <p>
+ * A request template, compiled once into literal text segments and template variable segments. Rendering walks the
+ * segments in a single pass, and only computes the variables that actually appear in the template (each at most once
+ * per render, even if the variable appears multiple times). Variables are computed in the schedule's time zone, and
+ * can be looked up in a {@link TemplateValueMemo}, so that schedules firing at the same time share the values.
+ * </p>
+ * <p>
+ * Unrecognized variables (for example "${badVar}") are left in the rendered output as is, which matches the behavior
+ * of {@link TemplateVariable#resolve}.
+ * </p>
+ * <p>
+ * Instances are immutable and safe to share across threads.
+ * </p>
+ */
+public class RequestTemplate {
+    private static final String VAR_PREFIX = "${";
+    private static final String VAR_SUFFIX = "}";
+
+    private final String template;
+
+    // literals[i] is rendered before variable segment i. There is always one more literal than there are variable
+    // segments, so literals[literals.length - 1] is the trailing text. Literals may be empty strings.
+    private final String[] literals;
+
+    // For each variable segment, the index into distinctVars. This lets us compute each variable once per render.
+    private final int[] segmentVarIndices;
+
+    // The distinct template variables used in this template, in order of first appearance.
+    private final TemplateVariable[] distinctVars;
+
+    // Size of the rendered output for a typical render. Used to pre-size builders.
+    private final int estimatedLength;
+
+    private RequestTemplate(String template, String[] literals, int[] segmentVarIndices,
+            TemplateVariable[] distinctVars) {
+        this.template = template;
+        this.literals = literals;
+        this.segmentVarIndices = segmentVarIndices;
+        this.distinctVars = distinctVars;
+
+        // Template variables render to at most ~29 chars (full ISO timestamp with offset).
+        this.estimatedLength = template.length() + segmentVarIndices.length * 16;
+    }
+
+    /** Parses the given request template into literal and variable segments. */
+    public static RequestTemplate compile(String template) {
+        if (template == null) {
+            throw new IllegalArgumentException("template must be specified");
+        }
+
+        List<String> literalList = new ArrayList<>();
+        List<TemplateVariable> segmentVarList = new ArrayList<>();
+        List<TemplateVariable> distinctVarList = new ArrayList<>();
+
+        StringBuilder literalBuilder = new StringBuilder();
+        int pos = 0;
+        while (pos < template.length()) {
+            int varStart = template.indexOf(VAR_PREFIX, pos);
+            if (varStart < 0) {
+                break;
+            }
+            int varEnd = template.indexOf(VAR_SUFFIX, varStart + VAR_PREFIX.length());
+            if (varEnd < 0) {
+                break;
+            }
+
+            String varName = template.substring(varStart + VAR_PREFIX.length(), varEnd);
+            TemplateVariable templateVar = TemplateVariable.fromVarName(varName);
+            if (templateVar == null) {
+                // Not one of ours. Keep the prefix as literal text and keep scanning right after it, so that we
+                // don't swallow a real variable nested inside something like "${${processTime}".
+                literalBuilder.append(template, pos, varStart + VAR_PREFIX.length());
+                pos = varStart + VAR_PREFIX.length();
+                continue;
+            }
+
+            literalBuilder.append(template, pos, varStart);
+            literalList.add(literalBuilder.toString());
+            literalBuilder.setLength(0);
+
+            segmentVarList.add(templateVar);
+            if (!distinctVarList.contains(templateVar)) {
+                distinctVarList.add(templateVar);
+            }
+            pos = varEnd + VAR_SUFFIX.length();
+        }
+        literalBuilder.append(template, pos, template.length());
+        literalList.add(literalBuilder.toString());
+
+        int[] segmentVarIndices = new int[segmentVarList.size()];
+        for (int i = 0; i < segmentVarIndices.length; i++) {
+            segmentVarIndices[i] = distinctVarList.indexOf(segmentVarList.get(i));
+        }
+
+        return new RequestTemplate(template, literalList.toArray(new String[literalList.size()]),
+                segmentVarIndices, distinctVarList.toArray(new TemplateVariable[distinctVarList.size()]));
+    }
+
+    // Rebuilds a compiled template from its segments, without re-scanning the template. Package-scoped for config
+    // snapshots. Segments must come from a template that was compiled by compile().
+    static RequestTemplate fromSegments(String template, String[] literals, int[] segmentVarIndices,
+            TemplateVariable[] distinctVars) {
+        if (literals.length != segmentVarIndices.length + 1) {
+            throw new IllegalArgumentException("Expected " + (segmentVarIndices.length + 1) + " literals, got " +
+                    literals.length);
+        }
+        for (int oneVarIndex : segmentVarIndices) {
+            if (oneVarIndex < 0 || oneVarIndex >= distinctVars.length) {
+                throw new IllegalArgumentException("Variable index out of range: " + oneVarIndex);
+            }
+        }
+        return new RequestTemplate(template, literals.clone(), segmentVarIndices.clone(), distinctVars.clone());
+    }
+
+    /** The original, uncompiled template string. */
+    public String getTemplate() {
+        return template;
+    }
+
+    /** True if the template contains at least one template variable. */
+    public boolean hasVariables() {
+        return distinctVars.length > 0;
+    }
+
+    /** Renders the template for the given process time (in UTC), in the default (Seattle) time zone. */
+    public String render(DateTime processTimeUtc) {
+        return render(processTimeUtc, new StringBuilder(estimatedLength));
+    }
+
+    /**
+     * Renders the template for the given process time (in UTC), in the default (Seattle) time zone, using the given
+     * builder as scratch space. The builder is cleared before use. Callers rendering many fire times for the same
+     * schedule should pass in the same builder each time to avoid re-allocating it.
+     */
+    public String render(DateTime processTimeUtc, StringBuilder buffer) {
+        return render(processTimeUtc, TemplateVariable.LOCAL_TIME_ZONE, null, buffer);
+    }
+
+    /**
+     * Renders the template for the given process time (in UTC), with dates computed in the given time zone. If a memo
+     * table is given, variable values are looked up there (and added to it), instead of being computed for every
+     * render. The builder is scratch space, as above.
+     */
+    public String render(DateTime processTimeUtc, DateTimeZone timeZone, TemplateValueMemo memo,
+            StringBuilder buffer) {
+        if (distinctVars.length == 0) {
+            // Nothing to resolve. Don't even bother with the builder.
+            return template;
+        }
+
+        String[] values = new String[distinctVars.length];
+        if (memo != null) {
+            long processTimeMillis = processTimeUtc.getMillis();
+            for (int i = 0; i < distinctVars.length; i++) {
+                values[i] = memo.getValue(distinctVars[i], timeZone, processTimeMillis);
+            }
+        } else {
+            // Convert process time to the schedule's zone once, since all of the date calculations are based on it.
+            DateTime processTimeLocal = processTimeUtc.withZone(timeZone);
+            for (int i = 0; i < distinctVars.length; i++) {
+                values[i] = distinctVars[i].getReplacementValue(processTimeLocal);
+            }
+        }
+
+        buffer.setLength(0);
+        buffer.ensureCapacity(estimatedLength);
+        for (int i = 0; i < segmentVarIndices.length; i++) {
+            buffer.append(literals[i]).append(values[segmentVarIndices[i]]);
+        }
+        buffer.append(literals[literals.length - 1]);
+        return buffer.toString();
+    }
+
+    // Package-scoped for config snapshots.
+    String[] getLiterals() {
+        return literals.clone();
+    }
+
+    // Package-scoped for config snapshots.
+    int[] getSegmentVarIndices() {
+        return segmentVarIndices.clone();
+    }
+
+    // Package-scoped for config snapshots.
+    TemplateVariable[] getDistinctVars() {
+        return distinctVars.clone();
+    }
+}
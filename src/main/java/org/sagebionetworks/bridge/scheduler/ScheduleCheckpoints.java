@@ -0,0 +1,137 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToLongFunction;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+
+/**
+ * <p>
+ * Per-schedule watermarks. Each schedule's checkpoint is the end of the last window it was fully processed for. The
+ * global last processed time in the status table still marks the end of the last run. A schedule without a
+ * checkpoint starts from the global last processed time.
+ * </p>
+ * <p>
+ * A schedule that fails (in processing or in sending) keeps its old checkpoint and is marked as lagging. Lagging
+ * schedules are processed in every run until they succeed, from their own checkpoint, so they retry only the fire
+ * times they missed. Schedules that succeed get a new checkpoint. If a run crashes after sending, the next run resumes
+ * each schedule from its own checkpoint instead of re-sending the whole window.
+ * </p>
+ * <p>
+ * Checkpoints are stored in the status table, one row per schedule, with hash key
+ * {@link #HASH_KEY_SCHEDULE_PREFIX} + scheduleId. Changed checkpoints are collected with {@link #drainDirty} and
+ * written in batches by the scheduler.
+ * </p>
+ * <p>
+ * This class is not thread-safe. Callers must synchronize access.
+ * </p>
+ */
+public class ScheduleCheckpoints {
+    /** Status table hash key prefix for per-schedule checkpoint rows. */
+    public static final String HASH_KEY_SCHEDULE_PREFIX = "schedule:";
+
+    private final Map<String, Long> checkpointMillisByScheduleId = new HashMap<>();
+    private final Set<String> laggingScheduleIdSet = new LinkedHashSet<>();
+    private final Map<String, Long> dirtyCheckpointsByScheduleId = new LinkedHashMap<>();
+
+    /**
+     * Loads checkpoints from the status table rows, replacing anything that was loaded before. Rows that aren't
+     * checkpoint rows (like the global last processed time, or shard leases) are ignored. Schedules whose checkpoint
+     * is before the global last processed time are marked as lagging.
+     */
+    public void load(Iterable<Item> statusItems, long lastProcessedTimeMillis) {
+        load(statusItems, scheduleId -> lastProcessedTimeMillis);
+    }
+
+    /**
+     * Same as {@link #load(Iterable, long)}, but each schedule is compared to its own last processed time, for example
+     * its shard's watermark.
+     */
+    public void load(Iterable<Item> statusItems, ToLongFunction<String> lastProcessedTimeFunction) {
+        checkpointMillisByScheduleId.clear();
+        laggingScheduleIdSet.clear();
+        dirtyCheckpointsByScheduleId.clear();
+        for (Item oneItem : statusItems) {
+            String hashKey = oneItem.getString(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY);
+            if (hashKey == null || !hashKey.startsWith(HASH_KEY_SCHEDULE_PREFIX) ||
+                    !oneItem.hasAttribute(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME)) {
+                continue;
+            }
+            String scheduleId = hashKey.substring(HASH_KEY_SCHEDULE_PREFIX.length());
+            long checkpointMillis = oneItem.getLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME);
+            checkpointMillisByScheduleId.put(scheduleId, checkpointMillis);
+            if (checkpointMillis < lastProcessedTimeFunction.applyAsLong(scheduleId)) {
+                laggingScheduleIdSet.add(scheduleId);
+            }
+        }
+    }
+
+    /** Number of schedules with a checkpoint. */
+    public int size() {
+        return checkpointMillisByScheduleId.size();
+    }
+
+    /**
+     * Start of the next window (exclusive) for the given schedule. This is the schedule's checkpoint, or the global
+     * last processed time if the schedule doesn't have one.
+     */
+    public long getStartMillis(String scheduleId, long lastProcessedTimeMillis) {
+        Long checkpointMillis = checkpointMillisByScheduleId.get(scheduleId);
+        return checkpointMillis != null ? checkpointMillis : lastProcessedTimeMillis;
+    }
+
+    /** Schedules that are behind the global last processed time, and need to be processed even if they aren't due. */
+    public Set<String> getLaggingScheduleIds() {
+        return new LinkedHashSet<>(laggingScheduleIdSet);
+    }
+
+    /** Marks the schedule as processed through the given time. */
+    public void markSucceeded(String scheduleId, long endMillis) {
+        Long checkpointMillis = checkpointMillisByScheduleId.get(scheduleId);
+        if (checkpointMillis == null || checkpointMillis < endMillis) {
+            checkpointMillisByScheduleId.put(scheduleId, endMillis);
+            dirtyCheckpointsByScheduleId.put(scheduleId, endMillis);
+        }
+        laggingScheduleIdSet.remove(scheduleId);
+    }
+
+    /**
+     * Marks the schedule as failed. It keeps its start time, and is lagging until it succeeds. If the schedule didn't
+     * have a checkpoint, its start time is written as its checkpoint, so a cold start knows it's lagging.
+     */
+    public void markFailed(String scheduleId, long startMillis) {
+        if (!checkpointMillisByScheduleId.containsKey(scheduleId)) {
+            checkpointMillisByScheduleId.put(scheduleId, startMillis);
+            dirtyCheckpointsByScheduleId.put(scheduleId, startMillis);
+        }
+        laggingScheduleIdSet.add(scheduleId);
+    }
+
+    /** Removes a schedule, for example if its config was deleted. Its row in the status table is left as is. */
+    public void remove(String scheduleId) {
+        checkpointMillisByScheduleId.remove(scheduleId);
+        laggingScheduleIdSet.remove(scheduleId);
+        dirtyCheckpointsByScheduleId.remove(scheduleId);
+    }
+
+    /** Returns the checkpoints that changed since the last call, keyed by schedule ID, and clears them. */
+    public Map<String, Long> drainDirty() {
+        Map<String, Long> dirty = new LinkedHashMap<>(dirtyCheckpointsByScheduleId);
+        dirtyCheckpointsByScheduleId.clear();
+        return dirty;
+    }
+
+    /**
+     * Puts the given checkpoints back into the dirty set, so they're written next time. Used when a write fails. A
+     * newer checkpoint for the same schedule takes precedence.
+     */
+    public void restoreDirty(Map<String, Long> checkpointsByScheduleId) {
+        for (Map.Entry<String, Long> oneEntry : checkpointsByScheduleId.entrySet()) {
+            dirtyCheckpointsByScheduleId.putIfAbsent(oneEntry.getKey(), oneEntry.getValue());
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.util.Locale;
+import java.util.Objects;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import org.joda.time.DateTimeZone;
+
+/**
+ * <p>
+ * A single schedule config, parsed from a row in the config table. The request template is compiled once when the
+ * config is parsed, so that rendering each fire time doesn't need to re-scan the template.
+ * </p>
+ * <p>
+ * A schedule may have a spread window (the optional spreadSeconds attribute). Each request is then delivered with an
+ * SQS message delay between 0 and the spread window, so that schedules that fire at the same time don't all reach the
+ * workers at once. The delay is a hash of the schedule ID and the fire time, so a retried or re-sent request gets the
+ * same delay, and different schedules that fire at the same time get different delays.
+ * </p>
+ * <p>
+ * A schedule may also have a time zone (the optional timeZone attribute, an IANA zone ID like "Europe/London"), which
+ * is used for the dates in its request template. It defaults to America/Los_Angeles. Cron expressions are always
+ * evaluated in UTC.
+ * </p>
+ */
+public class ScheduleConfig {
+    /** Max spread window. This is the longest message delay SQS supports. */
+    public static final int MAX_SPREAD_SECONDS = 15 * 60;
+
+    private final String scheduleId;
+    private final String cronSchedule;
+    private final RequestTemplate requestTemplate;
+    private final String sqsQueueUrl;
+    private final int spreadSeconds;
+    private final Priority priority;
+    private final String timeZoneId;
+    private final DateTimeZone timeZone;
+
+    /** Constructs a normal priority schedule config with no spread window, in the default time zone. */
+    public ScheduleConfig(String scheduleId, String cronSchedule, RequestTemplate requestTemplate,
+            String sqsQueueUrl) {
+        this(scheduleId, cronSchedule, requestTemplate, sqsQueueUrl, 0, Priority.NORMAL, null);
+    }
+
+    /**
+     * Constructs a schedule config. Generally called through {@link #fromItem}. The time zone ID is kept as given, so
+     * that changes to it can be detected. Null means the default time zone.
+     *
+     * @throws IllegalArgumentException
+     *         if the spread window is out of range, or if the time zone ID isn't a known zone
+     */
+    public ScheduleConfig(String scheduleId, String cronSchedule, RequestTemplate requestTemplate,
+            String sqsQueueUrl, int spreadSeconds, Priority priority, String timeZoneId) {
+        if (spreadSeconds < 0 || spreadSeconds > MAX_SPREAD_SECONDS) {
+            throw new IllegalArgumentException(BridgeMasterScheduler.CONFIG_KEY_SPREAD_SECONDS +
+                    " must be between 0 and " + MAX_SPREAD_SECONDS + ", was " + spreadSeconds);
+        }
+        this.scheduleId = scheduleId;
+        this.cronSchedule = cronSchedule;
+        this.requestTemplate = requestTemplate;
+        this.sqsQueueUrl = sqsQueueUrl;
+        this.spreadSeconds = spreadSeconds;
+        this.priority = priority;
+        this.timeZoneId = timeZoneId;
+        this.timeZone = timeZoneId != null ? DateTimeZone.forID(timeZoneId) : TemplateVariable.LOCAL_TIME_ZONE;
+    }
+
+    /**
+     * Parses a schedule config from a DDB config table item.
+     *
+     * @throws IllegalArgumentException
+     *         if the item has no schedule ID or no request template, if the spread window is out of range, or if the
+     *         priority or time zone is unknown
+     */
+    public static ScheduleConfig fromItem(Item item) {
+        return fromItem(item, RequestTemplate.compile(item.getString(
+                BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE)));
+    }
+
+    // Same as above, but with a request template that was already compiled from the item's template. Package-scoped
+    // so the config snapshot can use its pre-tokenized templates.
+    static ScheduleConfig fromItem(Item item, RequestTemplate requestTemplate) {
+        String scheduleId = item.getString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID);
+        if (scheduleId == null) {
+            throw new IllegalArgumentException("Config has no " + BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID);
+        }
+        return new ScheduleConfig(scheduleId,
+                item.getString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE),
+                requestTemplate,
+                item.getString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL),
+                getSpreadSeconds(item),
+                Priority.fromConfigValue(item.getString(BridgeMasterScheduler.CONFIG_KEY_PRIORITY)),
+                item.getString(BridgeMasterScheduler.CONFIG_KEY_TIME_ZONE));
+    }
+
+    // Helper method to get the spread window from a config item. 0 if the item doesn't have one.
+    private static int getSpreadSeconds(Item item) {
+        return item.hasAttribute(BridgeMasterScheduler.CONFIG_KEY_SPREAD_SECONDS) ?
+                item.getInt(BridgeMasterScheduler.CONFIG_KEY_SPREAD_SECONDS) : 0;
+    }
+
+    /**
+     * True if this config was parsed from an item with the same attributes as the given item. Used to skip re-parsing
+     * configs that haven't changed.
+     */
+    public boolean isSameAs(Item item) {
+        return Objects.equals(scheduleId, item.getString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID))
+                && Objects.equals(cronSchedule, item.getString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE))
+                && Objects.equals(requestTemplate.getTemplate(),
+                        item.getString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE))
+                && Objects.equals(sqsQueueUrl, item.getString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL))
+                && spreadSeconds == getSpreadSeconds(item)
+                && Objects.equals(priority.getConfigValue(), normalizePriority(item.getString(
+                        BridgeMasterScheduler.CONFIG_KEY_PRIORITY)))
+                && Objects.equals(timeZoneId, item.getString(BridgeMasterScheduler.CONFIG_KEY_TIME_ZONE));
+    }
+
+    /** Schedule ID, used for logging and for identifying the schedule. */
+    public String getScheduleId() {
+        return scheduleId;
+    }
+
+    /** Quartz cron expression, evaluated in UTC. */
+    public String getCronSchedule() {
+        return cronSchedule;
+    }
+
+    /** Compiled request template, rendered once per fire time. */
+    public RequestTemplate getRequestTemplate() {
+        return requestTemplate;
+    }
+
+    /** SQS queue URL that requests are sent to. */
+    public String getSqsQueueUrl() {
+        return sqsQueueUrl;
+    }
+
+    // Helper method to compare a priority attribute without parsing it. Missing means normal, and case doesn't matter.
+    private static String normalizePriority(String configValue) {
+        return configValue != null ? configValue.toLowerCase(Locale.ROOT) : Priority.NORMAL.getConfigValue();
+    }
+
+    /** Time zone for the dates in the request template. Defaults to America/Los_Angeles. */
+    public DateTimeZone getTimeZone() {
+        return timeZone;
+    }
+
+    /** Priority lane. Defaults to normal. */
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /** Spread window in seconds. 0 if requests are delivered without a delay. */
+    public int getSpreadSeconds() {
+        return spreadSeconds;
+    }
+
+    /**
+     * SQS message delay for the request at the given fire time, between 0 and the spread window (inclusive). Always
+     * returns the same delay for the same schedule and fire time.
+     */
+    public int getDelaySeconds(long processTimeMillis) {
+        if (spreadSeconds == 0) {
+            return 0;
+        }
+
+        // String.hashCode() is specified, so this is stable across JVMs. The finalizer from SplitMix64 mixes the bits,
+        // so that fire times a fixed interval apart don't all land on the same delay.
+        long hash = scheduleId.hashCode() * 0x9e3779b97f4a7c15L + processTimeMillis;
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        hash ^= hash >>> 31;
+        return (int) Math.floorMod(hash, (long) spreadSeconds + 1);
+    }
+}
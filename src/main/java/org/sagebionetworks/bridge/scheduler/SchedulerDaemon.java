@@ -0,0 +1,196 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.DateTimeUtils;
+
+/**
+ * <p>
+ * Long-running scheduler mode. Instead of running once an hour, the daemon keeps the schedule set in memory, sleeps
+ * until the next fire time, and runs the scheduler within milliseconds of each cron instant. This allows schedules
+ * that fire every minute (or more often) without invoking a Lambda for each one.
+ * </p>
+ * <p>
+ * Configs are refreshed on a background thread. New configs are picked up the next time the daemon wakes up, and a
+ * refresh wakes the daemon, so a new schedule doesn't wait for the previous sleep to end. Each scheduler run reads and
+ * writes the same last processed time in the status table as the Lambda, so if the daemon crashes, the next run
+ * (daemon or Lambda) picks up where it left off.
+ * </p>
+ * <p>
+ * With sharding, several daemons can run against the same tables. Each run renews the daemon's shard leases, and the
+ * daemon wakes up in time to renew them even if nothing is due. When the daemon stops, it releases its leases, so
+ * other instances take over its shards right away.
+ * </p>
+ */
+public class SchedulerDaemon implements Runnable {
+    // Environment variable for the number of seconds between config refreshes.
+    static final String ENV_CONFIG_REFRESH_SECONDS = "SCHEDULER_CONFIG_REFRESH_SECONDS";
+
+    static final long DEFAULT_CONFIG_REFRESH_MILLIS = 60 * 1000;
+    static final long DEFAULT_MAX_SLEEP_MILLIS = 60 * 1000;
+    static final long DEFAULT_ERROR_DELAY_MILLIS = 10 * 1000;
+
+    private final BridgeMasterScheduler scheduler;
+    private final Object wakeLock = new Object();
+
+    // Set by wake(), so that a wake-up that comes in just before we sleep isn't lost. Guarded by wakeLock.
+    private boolean wakeRequested = false;
+    private long configRefreshMillis = DEFAULT_CONFIG_REFRESH_MILLIS;
+    private long maxSleepMillis = DEFAULT_MAX_SLEEP_MILLIS;
+    private long errorDelayMillis = DEFAULT_ERROR_DELAY_MILLIS;
+    private Runnable scheduleErrorHandler;
+    private volatile boolean stopped = false;
+    private final AtomicInteger numRuns = new AtomicInteger();
+
+    /** Constructs a daemon for the given scheduler. */
+    public SchedulerDaemon(BridgeMasterScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /** How often to refresh configs in the background. Defaults to 1 minute. */
+    public final void setConfigRefreshMillis(long configRefreshMillis) {
+        if (configRefreshMillis < 1) {
+            throw new IllegalArgumentException("configRefreshMillis must be positive");
+        }
+        this.configRefreshMillis = configRefreshMillis;
+    }
+
+    /**
+     * Max time to sleep before checking for due schedules again, even if nothing is due. This bounds the effect of
+     * clock jumps. Defaults to 1 minute.
+     */
+    public final void setMaxSleepMillis(long maxSleepMillis) {
+        if (maxSleepMillis < 1) {
+            throw new IllegalArgumentException("maxSleepMillis must be positive");
+        }
+        this.maxSleepMillis = maxSleepMillis;
+    }
+
+    /** Time to wait before retrying a scheduler run that failed. Defaults to 10 seconds. */
+    public final void setErrorDelayMillis(long errorDelayMillis) {
+        this.errorDelayMillis = errorDelayMillis;
+    }
+
+    /**
+     * Called when a scheduler run throws, before the run is retried. The launcher uses this to rebuild the DDB client.
+     */
+    public final void setScheduleErrorHandler(Runnable scheduleErrorHandler) {
+        this.scheduleErrorHandler = scheduleErrorHandler;
+    }
+
+    /** Number of scheduler runs so far, including failed runs. */
+    public int getNumRuns() {
+        return numRuns.get();
+    }
+
+    /** Stops the daemon. The current scheduler run (if any) finishes, then {@link #run} returns. */
+    public void stop() {
+        stopped = true;
+        wake();
+    }
+
+    /** Runs the daemon on the calling thread. Blocks until {@link #stop} is called. */
+    @Override
+    public void run() {
+        ScheduledExecutorService refreshExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SchedulerDaemon-config-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            // Load configs before the first run, so that the first run doesn't need to scan the config table itself.
+            refreshConfigs();
+            refreshExecutor.scheduleWithFixedDelay(() -> {
+                refreshConfigs();
+                wake();
+            }, configRefreshMillis, configRefreshMillis, TimeUnit.MILLISECONDS);
+
+            // The first run catches up on anything that fired since the last processed time. After that, the
+            // scheduler knows when the next schedule fires.
+            boolean needsRun = true;
+            while (!stopped) {
+                if (needsRun || scheduler.getNextFireTime() <= DateTimeUtils.currentTimeMillis()) {
+                    needsRun = !runScheduler();
+                    if (needsRun) {
+                        sleepFor(errorDelayMillis);
+                    }
+                } else {
+                    sleepUntil(scheduler.getNextFireTime());
+                }
+            }
+        } finally {
+            refreshExecutor.shutdownNow();
+            releaseShardLeases();
+        }
+    }
+
+    // Helper method to refresh configs. Errors are logged, and we keep using the previous configs.
+    private void refreshConfigs() {
+        try {
+            scheduler.refreshConfigs();
+        } catch (RuntimeException ex) {
+            // Write error to stderr.
+            ex.printStackTrace();
+        }
+    }
+
+    // Helper method to release shard leases when the daemon stops. Errors are logged, and the leases expire on their
+    // own.
+    private void releaseShardLeases() {
+        try {
+            scheduler.releaseShardLeases();
+        } catch (RuntimeException ex) {
+            // Write error to stderr.
+            ex.printStackTrace();
+        }
+    }
+
+    // Helper method to run the scheduler once. Returns true if the run succeeded.
+    private boolean runScheduler() {
+        numRuns.incrementAndGet();
+        try {
+            scheduler.schedule();
+            return true;
+        } catch (RuntimeException ex) {
+            // Write error to stderr. Since the last processed time wasn't written, the next run retries this window.
+            ex.printStackTrace();
+            if (scheduleErrorHandler != null) {
+                scheduleErrorHandler.run();
+            }
+            return false;
+        }
+    }
+
+    // Sleeps until the given time (capped at the max sleep), or until woken up by a config refresh or stop().
+    private void sleepUntil(long wakeTimeMillis) {
+        long nowMillis = DateTimeUtils.currentTimeMillis();
+        sleepFor(Math.min(wakeTimeMillis - nowMillis, maxSleepMillis));
+    }
+
+    private void sleepFor(long sleepMillis) {
+        if (sleepMillis <= 0) {
+            return;
+        }
+        synchronized (wakeLock) {
+            if (!stopped && !wakeRequested) {
+                try {
+                    wakeLock.wait(sleepMillis);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    stopped = true;
+                }
+            }
+            wakeRequested = false;
+        }
+    }
+
+    private void wake() {
+        synchronized (wakeLock) {
+            wakeRequested = true;
+            wakeLock.notifyAll();
+        }
+    }
+}
@@ -2,18 +2,14 @@ package org.sagebionetworks.bridge.scheduler;
 
 import java.io.IOException;
 
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
-import com.amazonaws.services.dynamodbv2.document.DynamoDB;
-import com.amazonaws.services.dynamodbv2.document.Table;
 import com.amazonaws.services.lambda.runtime.Context;
-import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
 
 /**
  * <p>
- * Scheduler launcher. Main function is used for local testing during development. The public launch() method is called
- * by AWS Lambda. The launcher initializes the DDB and SQS clients, creates the scheduler, launches the scheduler,
- * then cleans up afterwards.
+ * Scheduler launcher. Main function is used for local testing during development, or to run the scheduler as a
+ * long-running {@link SchedulerDaemon} (pass "--daemon" after the scheduler name). The public launch() method is called
+ * by AWS Lambda. The launcher gets the DDB and SQS clients and the scheduler from the {@link SchedulerRuntime}, which
+ * keeps them across warm Lambda invocations, then launches the scheduler.
  * </p>
  * <p>
  * We don't use Spring here because the scheduler is very simple and Lambda apps are intended to be very lightweight.
@@ -22,9 +18,21 @@ import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
  * </p>
  */
 public class SchedulerLauncher {
+    // Command line flag for daemon mode.
+    private static final String DAEMON_FLAG = "--daemon";
+
     /** Main method, used for local testing during development. See README for more instructions on how to invoke. */
     public static void main(String[] args) throws IOException {
-        launch(args[0]);
+        try {
+            if (args.length > 1 && DAEMON_FLAG.equals(args[1])) {
+                runDaemon(args[0]);
+            } else {
+                launch(args[0], BridgeMasterScheduler.NO_DEADLINE);
+            }
+        } finally {
+            // shut down AWS clients
+            SchedulerRuntime.shutdownAll();
+        }
     }
 
     /**
@@ -33,13 +41,14 @@ public class SchedulerLauncher {
      * @param input
      *         required by AWS Lambda, but ignored because it doesn't include any useful information
      * @param context
-     *         AWS Lambda context, primarily needed for the function name (scheduler name)
+     *         AWS Lambda context, for the function name (scheduler name) and the time left before the Lambda times out
      */
     @SuppressWarnings("unused")
     public static void launch(Object input, Context context) {
-        // Lambda function name is scheduler name
+        // Lambda function name is scheduler name. The run has to finish before the Lambda times out, or its progress
+        // is lost.
         String schedulerName = context.getFunctionName();
-        launch(schedulerName);
+        launch(schedulerName, context.getRemainingTimeInMillis());
     }
 
     /**
@@ -47,32 +56,74 @@ public class SchedulerLauncher {
      *
      * @param schedulerName
      *         scheduler name, used as a config key
+     * @param budgetMillis
+     *         time the run has to finish in, or {@link BridgeMasterScheduler#NO_DEADLINE}
      */
-    private static void launch(String schedulerName) {
-        System.out.println("Initializing " + schedulerName + "...");
-
-        // Set up DDB client and tables. Table names are "[schedulerName]-config" and "[schedulerName]-status".
-        DynamoDB ddbClient = new DynamoDB(AmazonDynamoDBClientBuilder.defaultClient());
-        Table ddbConfigTable = ddbClient.getTable(schedulerName + "-config");
-        Table ddbStatusTable = ddbClient.getTable(schedulerName + "-status");
-
-        // set up SQS client
-        AmazonSQS sqsClient = AmazonSQSClientBuilder.defaultClient();
-
-        // set up scheduler
-        BridgeMasterScheduler scheduler = new BridgeMasterScheduler();
-        scheduler.setDdbConfigTable(ddbConfigTable);
-        scheduler.setDdbStatusTable(ddbStatusTable);
-        scheduler.setSqsClient(sqsClient);
+    private static void launch(String schedulerName, long budgetMillis) {
+        // AWS clients and the scheduler are kept in the runtime across warm invocations. Time the initialization
+        // separately for cold and warm starts, since they have very different costs.
+        long initStartNanos = System.nanoTime();
+        SchedulerRuntime runtime = SchedulerRuntime.forScheduler(schedulerName);
+        boolean isWarmStart = runtime.isInitialized();
+        System.out.println("Initializing " + schedulerName + " (" + (isWarmStart ? "warm" : "cold") + " start)...");
+        BridgeMasterScheduler scheduler = runtime.getScheduler();
+        long initMillis = (System.nanoTime() - initStartNanos) / 1000000;
+        System.out.println((isWarmStart ? "Warm" : "Cold") + " start initialized " + schedulerName + " in " +
+                initMillis + "ms (invocation " + runtime.getNumInvocations() + ")");
 
         // launch scheduler
         System.out.println("Launching " + schedulerName + "...");
         try {
-            scheduler.schedule();
-        } finally {
-            // shut down AWS clients
-            ddbClient.shutdown();
-            sqsClient.shutdown();
+            scheduler.schedule(budgetMillis);
+        } catch (RuntimeException ex) {
+            // The scheduler handles per-schedule and per-message errors itself, so anything that gets here is most
+            // likely a DDB failure. Rebuild the DDB client, so the next invocation doesn't reuse a bad client.
+            runtime.resetDdbClient();
+            throw ex;
         }
     }
+
+    /**
+     * Runs the scheduler as a long-running daemon, which dispatches within seconds of each cron instant instead of
+     * once an hour. Blocks until the JVM shuts down.
+     *
+     * @param schedulerName
+     *         scheduler name, used as a config key
+     */
+    public static void runDaemon(String schedulerName) {
+        SchedulerRuntime runtime = SchedulerRuntime.forScheduler(schedulerName);
+        SchedulerDaemon daemon = new SchedulerDaemon(runtime.getScheduler());
+        String configRefreshSecondsStr = System.getenv(SchedulerDaemon.ENV_CONFIG_REFRESH_SECONDS);
+        if (configRefreshSecondsStr != null && !configRefreshSecondsStr.isEmpty()) {
+            daemon.setConfigRefreshMillis(Long.parseLong(configRefreshSecondsStr) * 1000);
+        }
+
+        // Same as the Lambda, rebuild the DDB client if the scheduler fails, so that we don't keep reusing a bad
+        // client.
+        daemon.setScheduleErrorHandler(runtime::resetDdbClient);
+
+        // Stop the daemon cleanly on shutdown, so we don't interrupt a run halfway through. The runtime's own hook
+        // could shut down the AWS clients while the run is still in progress, so it's replaced by this one, which
+        // shuts them down after the daemon stops.
+        SchedulerRuntime.removeShutdownHook();
+        Runtime.getRuntime().addShutdownHook(makeDaemonShutdownHook(daemon, Thread.currentThread(),
+                SchedulerRuntime::shutdownAll));
+
+        System.out.println("Running " + schedulerName + " in daemon mode...");
+        daemon.run();
+    }
+
+    // Makes the daemon's shutdown hook. It stops the daemon, waits for the daemon thread to finish the run in progress
+    // (and release its shard leases), then shuts down the clients. Package-scoped for unit tests.
+    static Thread makeDaemonShutdownHook(SchedulerDaemon daemon, Thread daemonThread, Runnable clientShutdown) {
+        return new Thread(() -> {
+            daemon.stop();
+            try {
+                daemonThread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            clientShutdown.run();
+        }, "SchedulerDaemon-shutdown");
+    }
 }
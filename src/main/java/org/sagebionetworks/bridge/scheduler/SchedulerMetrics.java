@@ -0,0 +1,227 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * <p>
+ * Timing and throughput metrics for a single scheduler run. Each phase of the run has its own latency histogram.
+ * Phases that happen once per run (like the status read) have a single sample. Phases that happen per schedule, per
+ * message, or per SQS call have one sample each time. Each {@link Priority} lane also has a dispatch latency
+ * histogram, with the time from the start of a flush until each of the lane's batches is sent.
+ * </p>
+ * <p>
+ * At the end of the run, {@link #toEmfJson} formats the metrics as a single CloudWatch Embedded Metric Format record.
+ * Lambda sends stdout to CloudWatch Logs, which extracts the metrics from the record. Recording is just atomic
+ * increments, and nothing is formatted until the end of the run.
+ * </p>
+ * <p>
+ * Safe to record from multiple threads.
+ * </p>
+ */
+public class SchedulerMetrics {
+    /** CloudWatch namespace for the scheduler's metrics. */
+    public static final String NAMESPACE = "BridgeMasterScheduler";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    /** Phases of a scheduler run. */
+    public enum Phase {
+        /** Reading the last processed time from the status table. One sample per run. */
+        STATUS_READ("StatusRead"),
+
+        /** Scanning configs and syncing them into the fire time index. One sample per run. */
+        CONFIG_SCAN("ConfigScan"),
+
+        /** Computing the fire times of a schedule in the window. One sample per due schedule. */
+        FIRE_TIMES("FireTimes"),
+
+        /** Rendering the request template for a fire time. One sample per message. */
+        TEMPLATE_RENDER("TemplateRender"),
+
+        /** A single SendMessageBatch call to SQS, including failed calls. One sample per SQS call. */
+        SQS_SEND("SqsSend"),
+
+        /** Writing the last processed time to the status table. One sample per run. */
+        STATUS_WRITE("StatusWrite");
+
+        private final String metricName;
+
+        Phase(String metricName) {
+            this.metricName = metricName;
+        }
+
+        /** Name used as the prefix for this phase's metrics, for example "StatusRead". */
+        public String getMetricName() {
+            return metricName;
+        }
+    }
+
+    private final Map<Phase, LatencyHistogram> histogramsByPhase = new EnumMap<>(Phase.class);
+    private final Map<Priority, LatencyHistogram> histogramsByLane = new EnumMap<>(Priority.class);
+    private volatile int numSchedules = 0;
+    private volatile int numDueSchedules = 0;
+    private volatile int numDeferredSchedules = 0;
+    private volatile int numOwnedShards = 0;
+    private volatile DispatchResult dispatchResult;
+
+    /** Constructs empty metrics for a new run. */
+    public SchedulerMetrics() {
+        for (Phase onePhase : Phase.values()) {
+            histogramsByPhase.put(onePhase, new LatencyHistogram());
+        }
+        for (Priority oneLane : Priority.values()) {
+            histogramsByLane.put(oneLane, new LatencyHistogram());
+        }
+    }
+
+    /** Latency histogram for the given phase. */
+    public LatencyHistogram getHistogram(Phase phase) {
+        return histogramsByPhase.get(phase);
+    }
+
+    /** Dispatch latency histogram for the given priority lane. */
+    public LatencyHistogram getLaneHistogram(Priority lane) {
+        return histogramsByLane.get(lane);
+    }
+
+    /** Records the time since the given start time (from {@link System#nanoTime}) for the given phase. */
+    public void recordSince(Phase phase, long startNanos) {
+        histogramsByPhase.get(phase).recordSince(startNanos);
+    }
+
+    /** Records the number of schedules in the index, and the number that were due this run. */
+    public void setScheduleCounts(int numSchedules, int numDueSchedules) {
+        this.numSchedules = numSchedules;
+        this.numDueSchedules = numDueSchedules;
+    }
+
+    /** Records the number of due schedules that weren't processed because the run's deadline was reached. */
+    public void setNumDeferredSchedules(int numDeferredSchedules) {
+        this.numDeferredSchedules = numDeferredSchedules;
+    }
+
+    /** Records the number of shards this run processed. Without sharding, this is always 1. */
+    public void setNumOwnedShards(int numOwnedShards) {
+        this.numOwnedShards = numOwnedShards;
+    }
+
+    /** Records the result of sending the run's messages, for per-queue and per-schedule counts. */
+    public void setDispatchResult(DispatchResult dispatchResult) {
+        this.dispatchResult = dispatchResult;
+    }
+
+    /** Result of sending the run's messages, or null if the run didn't get that far. */
+    public DispatchResult getDispatchResult() {
+        return dispatchResult;
+    }
+
+    /**
+     * Formats the metrics as a single-line CloudWatch Embedded Metric Format record. Each phase gets Count, P50, P99,
+     * Max, and Total metrics (in milliseconds), dimensioned by scheduler name. So does each lane's dispatch latency,
+     * prefixed with "Dispatch" and the lane, for example "DispatchHighP99". Bucket counts for each histogram, messages
+     * sent per queue, and failures per schedule are included as properties, which are searchable in CloudWatch Logs
+     * Insights but aren't metrics.
+     */
+    public String toEmfJson(String schedulerName, long timestampMillis) {
+        ObjectNode root = JsonNodeFactory.instance.objectNode();
+
+        // Metadata directive. All metrics share the scheduler name dimension.
+        ObjectNode metricDirective = JsonNodeFactory.instance.objectNode();
+        metricDirective.put("Namespace", NAMESPACE);
+        metricDirective.putArray("Dimensions").addArray().add("SchedulerName");
+        ArrayNode metricDefinitions = metricDirective.putArray("Metrics");
+        ObjectNode awsNode = root.putObject("_aws");
+        awsNode.put("Timestamp", timestampMillis);
+        awsNode.putArray("CloudWatchMetrics").add(metricDirective);
+        root.put("SchedulerName", schedulerName);
+
+        // Per-phase latencies.
+        ObjectNode histogramsNode = JsonNodeFactory.instance.objectNode();
+        for (Map.Entry<Phase, LatencyHistogram> phaseEntry : histogramsByPhase.entrySet()) {
+            putHistogram(root, metricDefinitions, histogramsNode, phaseEntry.getKey().getMetricName(),
+                    phaseEntry.getValue());
+        }
+
+        // Per-lane dispatch latencies.
+        for (Map.Entry<Priority, LatencyHistogram> laneEntry : histogramsByLane.entrySet()) {
+            putHistogram(root, metricDefinitions, histogramsNode, "Dispatch" + laneEntry.getKey().getMetricName(),
+                    laneEntry.getValue());
+        }
+        root.set("LatencyHistograms", histogramsNode);
+
+        // Schedule and message counts.
+        putMetric(root, metricDefinitions, "Schedules", numSchedules, "Count");
+        putMetric(root, metricDefinitions, "DueSchedules", numDueSchedules, "Count");
+        putMetric(root, metricDefinitions, "DeferredSchedules", numDeferredSchedules, "Count");
+        putMetric(root, metricDefinitions, "OwnedShards", numOwnedShards, "Count");
+        DispatchResult result = dispatchResult;
+        if (result != null) {
+            putMetric(root, metricDefinitions, "MessagesSent", result.getNumSent(), "Count");
+            putMetric(root, metricDefinitions, "MessagesFailed", result.getNumFailed(), "Count");
+            putMetric(root, metricDefinitions, "SqsCalls", result.getNumSqsCalls(), "Count");
+            putMetric(root, metricDefinitions, "DuplicatesSkipped", result.getNumDuplicates(), "Count");
+
+            ObjectNode sentByQueueNode = root.putObject("MessagesSentByQueue");
+            for (Map.Entry<String, Integer> queueEntry : result.getNumSentByQueueUrl().entrySet()) {
+                sentByQueueNode.put(queueEntry.getKey(), queueEntry.getValue());
+            }
+            ObjectNode failuresByScheduleNode = root.putObject("FailuresByScheduleId");
+            for (Map.Entry<String, List<String>> failureEntry : result.getFailuresByScheduleId().entrySet()) {
+                failuresByScheduleNode.put(failureEntry.getKey(), failureEntry.getValue().size());
+            }
+        }
+
+        try {
+            return MAPPER.writeValueAsString(root);
+        } catch (JsonProcessingException ex) {
+            // Tree nodes are always serializable, so this should never happen.
+            throw new IllegalStateException("Error serializing metrics", ex);
+        }
+    }
+
+    // Helper method which adds a histogram's latency metrics to the root, and its bucket counts to the histograms node.
+    private static void putHistogram(ObjectNode root, ArrayNode metricDefinitions, ObjectNode histogramsNode,
+            String prefix, LatencyHistogram histogram) {
+        putMetric(root, metricDefinitions, prefix + "Count", histogram.getCount(), "Count");
+        putMetric(root, metricDefinitions, prefix + "P50", toMillis(histogram.getPercentileNanos(50)), "Milliseconds");
+        putMetric(root, metricDefinitions, prefix + "P99", toMillis(histogram.getPercentileNanos(99)), "Milliseconds");
+        putMetric(root, metricDefinitions, prefix + "Max", toMillis(histogram.getMaxNanos()), "Milliseconds");
+        putMetric(root, metricDefinitions, prefix + "Total", toMillis(histogram.getTotalNanos()), "Milliseconds");
+
+        // Bucket counts, as [upper bound in millis, count] pairs. Empty buckets are left out.
+        ArrayNode bucketsNode = histogramsNode.putArray(prefix);
+        for (int i = 0; i < LatencyHistogram.NUM_BUCKETS; i++) {
+            long bucketCount = histogram.getBucketCount(i);
+            if (bucketCount > 0) {
+                bucketsNode.addArray().add(toMillis(LatencyHistogram.getBucketUpperNanos(i))).add(bucketCount);
+            }
+        }
+    }
+
+    // Helper method which adds the metric value to the root, and the metric definition to the directive.
+    private static void putMetric(ObjectNode root, ArrayNode metricDefinitions, String name, double value,
+            String unit) {
+        metricDefinitions.addObject().put("Name", name).put("Unit", unit);
+        root.put(name, value);
+    }
+
+    // Same as above, for counts, so they're formatted as integers.
+    private static void putMetric(ObjectNode root, ArrayNode metricDefinitions, String name, long value,
+            String unit) {
+        metricDefinitions.addObject().put("Name", name).put("Unit", unit);
+        root.put(name, value);
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / NANOS_PER_MILLI;
+    }
+}
@@ -0,0 +1,286 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.AmazonSQSAsyncClientBuilder;
+import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
+
+/**
+ * <p>
+ * Long-lived holder for a scheduler's AWS clients, table handles, and the scheduler itself. Lambda keeps the JVM
+ * around between warm invocations, so we keep one runtime per scheduler name in a static map. This way, warm
+ * invocations skip client construction, credential resolution, and the TLS handshake.
+ * </p>
+ * <p>
+ * Clients are created lazily on the first call to {@link #getScheduler}. If a client ends up in a bad state, call
+ * {@link #resetDdbClient} or {@link #resetSqsClient} to rebuild it. Runtimes are shut down by a JVM shutdown hook
+ * (unless it's removed with {@link #removeShutdownHook}), or explicitly by {@link #shutdown} and {@link #shutdownAll}.
+ * </p>
+ */
+public class SchedulerRuntime {
+    // Environment variable for the number of schedules to process in parallel. If not set, schedules are processed
+    // serially.
+    static final String ENV_CONCURRENCY = "SCHEDULER_CONCURRENCY";
+
+    // Environment variable for the number of SQS batches to keep in flight with async sends. If set, the runtime uses
+    // the async SQS client. If not set, batches are sent synchronously when the run flushes.
+    static final String ENV_ASYNC_SEND_WINDOW = "SCHEDULER_ASYNC_SEND_WINDOW";
+
+    // Environment variable for the number of parallel segments to scan the config table in. If not set, the table is
+    // scanned sequentially.
+    static final String ENV_CONFIG_SCAN_SEGMENTS = "SCHEDULER_CONFIG_SCAN_SEGMENTS";
+
+    // Environment variable for the max age, in seconds, of the last full config scan. If not set, the scheduler's
+    // default is used.
+    static final String ENV_CONFIG_FULL_SCAN_TTL_SECONDS = "SCHEDULER_CONFIG_FULL_SCAN_TTL_SECONDS";
+
+    // Environment variables for backfill chunk size and max backfill send rate (messages per second). If not set, the
+    // scheduler's defaults are used.
+    static final String ENV_BACKFILL_CHUNK_SIZE = "SCHEDULER_BACKFILL_CHUNK_SIZE";
+    static final String ENV_BACKFILL_MAX_MESSAGES_PER_SECOND = "SCHEDULER_BACKFILL_MAX_MESSAGES_PER_SECOND";
+
+    // Environment variable for the number of seconds to keep back from the Lambda's remaining time, to flush sends and
+    // write status after new work stops. If not set, the scheduler's default is used.
+    static final String ENV_DEADLINE_RESERVE_SECONDS = "SCHEDULER_DEADLINE_RESERVE_SECONDS";
+
+    // Environment variables for sharding: the number of shards, the max number of shards this instance claims, the
+    // shard lease duration in seconds, and this instance's lease owner ID. If not set, the scheduler's defaults are
+    // used (no sharding, and a random instance ID).
+    static final String ENV_NUM_SHARDS = "SCHEDULER_NUM_SHARDS";
+    static final String ENV_MAX_SHARDS_PER_INSTANCE = "SCHEDULER_MAX_SHARDS_PER_INSTANCE";
+    static final String ENV_SHARD_LEASE_SECONDS = "SCHEDULER_SHARD_LEASE_SECONDS";
+    static final String ENV_INSTANCE_ID = "SCHEDULER_INSTANCE_ID";
+
+    // Environment variables for how long, in seconds, to remember sent messages, and how many to remember, to skip
+    // duplicates when a window is re-processed. If not set, the store's defaults are used.
+    static final String ENV_DEDUP_TTL_SECONDS = "SCHEDULER_DEDUP_TTL_SECONDS";
+    static final String ENV_DEDUP_MAX_ENTRIES = "SCHEDULER_DEDUP_MAX_ENTRIES";
+
+    // Environment variable for the directory to keep the local config snapshot in (for example, /tmp in Lambda, which
+    // survives across warm invocations of the same container). If not set, there's no config snapshot.
+    static final String ENV_SNAPSHOT_DIR = "SCHEDULER_SNAPSHOT_DIR";
+
+    // Environment variable for the directory to keep the outbox log in. It should be on a disk that survives restarts.
+    // If not set, there's no outbox.
+    static final String ENV_OUTBOX_DIR = "SCHEDULER_OUTBOX_DIR";
+
+    private static final Map<String, SchedulerRuntime> RUNTIMES_BY_NAME = new ConcurrentHashMap<>();
+    private static final Thread SHUTDOWN_HOOK = new Thread(SchedulerRuntime::shutdownAll, "SchedulerRuntime-shutdown");
+    static {
+        Runtime.getRuntime().addShutdownHook(SHUTDOWN_HOOK);
+    }
+
+    private final String schedulerName;
+    private final Supplier<AmazonDynamoDB> ddbClientSupplier;
+    private final Supplier<AmazonSQS> sqsClientSupplier;
+    private final Map<String, String> env;
+
+    private DynamoDB ddbClient;
+    private AmazonSQS sqsClient;
+    private BridgeMasterScheduler scheduler;
+    private int numInvocations = 0;
+
+    /**
+     * Gets the runtime for the given scheduler name, creating it if it doesn't exist. The returned runtime is not yet
+     * initialized. Call {@link #getScheduler} to initialize it.
+     */
+    public static SchedulerRuntime forScheduler(String schedulerName) {
+        Map<String, String> env = System.getenv();
+        Supplier<AmazonSQS> sqsClientSupplier = env.containsKey(ENV_ASYNC_SEND_WINDOW) ?
+                AmazonSQSAsyncClientBuilder::defaultClient : AmazonSQSClientBuilder::defaultClient;
+        return RUNTIMES_BY_NAME.computeIfAbsent(schedulerName, name -> new SchedulerRuntime(name,
+                AmazonDynamoDBClientBuilder::defaultClient, sqsClientSupplier, env));
+    }
+
+    /**
+     * Removes the JVM shutdown hook that calls {@link #shutdownAll}. Shutdown hooks run concurrently, in no particular
+     * order, so callers that need to finish work on shutdown (like the {@link SchedulerDaemon}) remove this hook, and
+     * call {@link #shutdownAll} from their own hook once they're done.
+     */
+    public static void removeShutdownHook() {
+        Runtime.getRuntime().removeShutdownHook(SHUTDOWN_HOOK);
+    }
+
+    /** Shuts down and removes all runtimes. Called by the JVM shutdown hook. */
+    public static void shutdownAll() {
+        for (String oneSchedulerName : RUNTIMES_BY_NAME.keySet()) {
+            SchedulerRuntime runtime = RUNTIMES_BY_NAME.remove(oneSchedulerName);
+            if (runtime != null) {
+                runtime.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Package-scoped constructor, so unit tests can inject client suppliers and environment variables. Use
+     * {@link #forScheduler} instead.
+     */
+    SchedulerRuntime(String schedulerName, Supplier<AmazonDynamoDB> ddbClientSupplier,
+            Supplier<AmazonSQS> sqsClientSupplier, Map<String, String> env) {
+        this.schedulerName = schedulerName;
+        this.ddbClientSupplier = ddbClientSupplier;
+        this.sqsClientSupplier = sqsClientSupplier;
+        this.env = env;
+    }
+
+    /** Scheduler name, used as a config key. */
+    public String getSchedulerName() {
+        return schedulerName;
+    }
+
+    /** True if the runtime has already been initialized, meaning the next invocation is a warm start. */
+    public synchronized boolean isInitialized() {
+        return scheduler != null;
+    }
+
+    /** Number of times {@link #getScheduler} has been called since the runtime was created. */
+    public synchronized int getNumInvocations() {
+        return numInvocations;
+    }
+
+    /** Returns the scheduler, initializing clients and tables if needed. */
+    public synchronized BridgeMasterScheduler getScheduler() {
+        numInvocations++;
+        if (scheduler == null) {
+            // Set up scheduler
+            scheduler = new BridgeMasterScheduler();
+            scheduler.setSchedulerName(schedulerName);
+            Integer concurrency = getIntEnv(ENV_CONCURRENCY);
+            if (concurrency != null) {
+                scheduler.setConcurrency(concurrency);
+            }
+            Integer asyncSendWindow = getIntEnv(ENV_ASYNC_SEND_WINDOW);
+            if (asyncSendWindow != null) {
+                scheduler.setAsyncSendWindow(asyncSendWindow);
+            }
+            Integer configScanSegments = getIntEnv(ENV_CONFIG_SCAN_SEGMENTS);
+            if (configScanSegments != null) {
+                scheduler.setConfigScanSegments(configScanSegments);
+            }
+            Integer configFullScanTtlSeconds = getIntEnv(ENV_CONFIG_FULL_SCAN_TTL_SECONDS);
+            if (configFullScanTtlSeconds != null) {
+                scheduler.setConfigFullScanTtlMillis(configFullScanTtlSeconds * 1000L);
+            }
+            Integer backfillChunkSize = getIntEnv(ENV_BACKFILL_CHUNK_SIZE);
+            if (backfillChunkSize != null) {
+                scheduler.setBackfillChunkSize(backfillChunkSize);
+            }
+            Integer backfillMaxMessagesPerSecond = getIntEnv(ENV_BACKFILL_MAX_MESSAGES_PER_SECOND);
+            if (backfillMaxMessagesPerSecond != null) {
+                scheduler.setBackfillMaxMessagesPerSecond(backfillMaxMessagesPerSecond);
+            }
+            Integer deadlineReserveSeconds = getIntEnv(ENV_DEADLINE_RESERVE_SECONDS);
+            if (deadlineReserveSeconds != null) {
+                scheduler.setDeadlineReserveMillis(deadlineReserveSeconds * 1000L);
+            }
+            Integer numShards = getIntEnv(ENV_NUM_SHARDS);
+            if (numShards != null) {
+                scheduler.setNumShards(numShards);
+            }
+            Integer maxShardsPerInstance = getIntEnv(ENV_MAX_SHARDS_PER_INSTANCE);
+            if (maxShardsPerInstance != null) {
+                scheduler.setMaxShardsPerInstance(maxShardsPerInstance);
+            }
+            Integer shardLeaseSeconds = getIntEnv(ENV_SHARD_LEASE_SECONDS);
+            if (shardLeaseSeconds != null) {
+                scheduler.setShardLeaseMillis(shardLeaseSeconds * 1000L);
+            }
+            String instanceId = env.get(ENV_INSTANCE_ID);
+            if (instanceId != null && !instanceId.isEmpty()) {
+                scheduler.setInstanceId(instanceId);
+            }
+            Integer dedupTtlSeconds = getIntEnv(ENV_DEDUP_TTL_SECONDS);
+            if (dedupTtlSeconds != null) {
+                scheduler.getRecentlySentStore().setTtlMillis(dedupTtlSeconds * 1000L);
+            }
+            Integer dedupMaxEntries = getIntEnv(ENV_DEDUP_MAX_ENTRIES);
+            if (dedupMaxEntries != null) {
+                scheduler.getRecentlySentStore().setMaxEntries(dedupMaxEntries);
+            }
+            String snapshotDir = env.get(ENV_SNAPSHOT_DIR);
+            if (snapshotDir != null && !snapshotDir.isEmpty()) {
+                scheduler.setConfigSnapshotFile(new File(snapshotDir, schedulerName + "-config.snapshot"));
+            }
+            String outboxDir = env.get(ENV_OUTBOX_DIR);
+            if (outboxDir != null && !outboxDir.isEmpty()) {
+                scheduler.setOutboxFile(new File(outboxDir, schedulerName + "-outbox.log"));
+            }
+        }
+        if (ddbClient == null) {
+            initDdb();
+        }
+        if (sqsClient == null) {
+            initSqs();
+        }
+        return scheduler;
+    }
+
+    /** Shuts down and rebuilds the DDB client and table handles. Call this after a DDB failure. */
+    public synchronized void resetDdbClient() {
+        if (ddbClient != null) {
+            ddbClient.shutdown();
+            ddbClient = null;
+        }
+        if (scheduler != null) {
+            initDdb();
+        }
+    }
+
+    /** Shuts down and rebuilds the SQS client. Call this after an SQS failure. */
+    public synchronized void resetSqsClient() {
+        if (sqsClient != null) {
+            sqsClient.shutdown();
+            sqsClient = null;
+        }
+        if (scheduler != null) {
+            initSqs();
+        }
+    }
+
+    /** Shuts down AWS clients. The next call to {@link #getScheduler} will re-initialize the runtime. */
+    public synchronized void shutdown() {
+        if (ddbClient != null) {
+            ddbClient.shutdown();
+            ddbClient = null;
+        }
+        if (sqsClient != null) {
+            sqsClient.shutdown();
+            sqsClient = null;
+        }
+        scheduler = null;
+    }
+
+    // Helper method to get an integer environment variable. Returns null if it's not set.
+    private Integer getIntEnv(String name) {
+        String value = env.get(name);
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        return Integer.parseInt(value);
+    }
+
+    // Set up DDB client and tables. Table names are "[schedulerName]-config" and "[schedulerName]-status".
+    private void initDdb() {
+        ddbClient = new DynamoDB(ddbClientSupplier.get());
+        Table ddbConfigTable = ddbClient.getTable(schedulerName + "-config");
+        Table ddbStatusTable = ddbClient.getTable(schedulerName + "-status");
+        scheduler.setConfigSource(new DdbConfigSource(ddbConfigTable));
+        scheduler.setStatusStore(new DdbStatusStore(ddbClient, ddbStatusTable));
+    }
+
+    // Set up SQS client. The async client also sends async, if the scheduler has an async send window.
+    private void initSqs() {
+        sqsClient = sqsClientSupplier.get();
+        scheduler.setMessageSink(sqsClient instanceof AmazonSQSAsync ? new SqsAsyncMessageSink(
+                (AmazonSQSAsync) sqsClient) : new SqsMessageSink(sqsClient));
+    }
+}
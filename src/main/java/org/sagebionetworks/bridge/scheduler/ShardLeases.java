@@ -0,0 +1,285 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+
+/**
+ * <p>
+ * Shard ownership, so that several scheduler instances (concurrent Lambda invocations, or daemons on different hosts)
+ * can share the schedules in the same config table. Schedules are split into shards by a consistent hash of their
+ * schedule ID (see {@link #getShard}). Each shard has a lease row in the status table, with hash key
+ * {@link #HASH_KEY_SHARD_PREFIX} + shard number, which holds the lease owner, the lease expiry, and the shard's own
+ * last processed time (its watermark).
+ * </p>
+ * <p>
+ * An instance claims a shard with a conditional write (see {@link StatusStore#claimLease}), which only succeeds if the
+ * shard has no owner, if its lease has expired, or if the instance already owns it (which renews the lease). Shards the
+ * instance already owns are renewed first, so an instance keeps its shards (and its warm fire time index) across runs.
+ * Watermarks are written with a condition on the owner, so an instance that lost its lease can't move the shard's
+ * watermark. If an instance dies, its shards are taken over once their leases expire, and resume from the shard's
+ * watermark and the per-schedule checkpoints.
+ * </p>
+ * <p>
+ * Lease times are wall clock times, since they're compared across hosts. Lease rows live next to the per-schedule
+ * checkpoint rows, which ignore them. This class is not thread-safe. Callers must synchronize access.
+ * </p>
+ */
+public class ShardLeases {
+    /** Status table hash key prefix for shard lease rows. */
+    public static final String HASH_KEY_SHARD_PREFIX = "shard:";
+
+    // Lease row attributes. The watermark uses the same attribute as the other status rows. Package-scoped for unit
+    // tests.
+    static final String KEY_LEASE_OWNER = "leaseOwner";
+    static final String KEY_LEASE_EXPIRES_AT = "leaseExpiresAt";
+
+    static final long DEFAULT_LEASE_MILLIS = 15 * 60 * 1000;
+
+    private final Set<Integer> ownedShardSet = new TreeSet<>();
+    private String ownerId = UUID.randomUUID().toString();
+    private int numShards = 1;
+    private int maxShards = Integer.MAX_VALUE;
+    private long leaseMillis = DEFAULT_LEASE_MILLIS;
+    private long leaseExpiresAtMillis = 0;
+
+    /**
+     * Returns the shard of the given schedule, from 0 to numShards - 1. This uses jump consistent hash (Lamping and
+     * Veach), so going from N to N + 1 shards only moves about 1 / (N + 1) of the schedules to another shard.
+     */
+    public static int getShard(String scheduleId, int numShards) {
+        // String.hashCode() is specified, so this is stable across JVMs. The finalizer from SplitMix64 spreads it over
+        // 64 bits, since jump hash draws its buckets from the high bits.
+        long key = scheduleId.hashCode() * 0x9e3779b97f4a7c15L;
+        key = (key ^ (key >>> 30)) * 0xbf58476d1ce4e5b9L;
+        key = (key ^ (key >>> 27)) * 0x94d049bb133111ebL;
+        key ^= key >>> 31;
+
+        long shard = -1;
+        long nextShard = 0;
+        while (nextShard < numShards) {
+            shard = nextShard;
+            key = key * 2862933555777941757L + 1;
+            nextShard = (long) ((shard + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) shard;
+    }
+
+    /** Lease owner ID for this instance. Must be unique across instances. Defaults to a random UUID. */
+    public final void setOwnerId(String ownerId) {
+        if (ownerId == null || ownerId.isEmpty()) {
+            throw new IllegalArgumentException("ownerId must be specified");
+        }
+        if (!ownerId.equals(this.ownerId)) {
+            ownedShardSet.clear();
+        }
+        this.ownerId = ownerId;
+    }
+
+    /**
+     * Number of shards to split schedules into. Every instance must use the same number. Defaults to 1, which means
+     * no sharding.
+     */
+    public final void setNumShards(int numShards) {
+        if (numShards < 1) {
+            throw new IllegalArgumentException("numShards must be at least 1");
+        }
+        if (numShards != this.numShards) {
+            ownedShardSet.clear();
+        }
+        this.numShards = numShards;
+    }
+
+    /** Max number of shards this instance claims, so that other instances get the rest. Defaults to all of them. */
+    public final void setMaxShards(int maxShards) {
+        if (maxShards < 1) {
+            throw new IllegalArgumentException("maxShards must be at least 1");
+        }
+        this.maxShards = maxShards;
+    }
+
+    /**
+     * How long a claimed lease lasts. A run must finish within this, and a dead instance's shards are taken over after
+     * this. Defaults to 15 minutes, the max Lambda timeout.
+     */
+    public final void setLeaseMillis(long leaseMillis) {
+        if (leaseMillis < 1) {
+            throw new IllegalArgumentException("leaseMillis must be positive");
+        }
+        this.leaseMillis = leaseMillis;
+    }
+
+    /** Lease owner ID for this instance. */
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    /** Number of shards schedules are split into. */
+    public int getNumShards() {
+        return numShards;
+    }
+
+    /** Shards this instance owns, as of the last claim, in order. */
+    public Set<Integer> getOwnedShards() {
+        return new TreeSet<>(ownedShardSet);
+    }
+
+    /** Wall clock time when the leases from the last claim expire, or 0 if nothing was claimed yet. */
+    public long getLeaseExpiresAtMillis() {
+        return leaseExpiresAtMillis;
+    }
+
+    /**
+     * Wall clock time when leases should be claimed again: halfway through the current leases, so they're renewed
+     * well before they expire, and shards that other instances gave up are picked up. 0 if nothing was claimed yet.
+     */
+    public long getNextClaimMillis() {
+        return leaseExpiresAtMillis == 0 ? 0 : leaseExpiresAtMillis - leaseMillis / 2;
+    }
+
+    /**
+     * Claims (or renews) up to the max number of shards, and returns the watermark of each claimed shard, keyed and
+     * ordered by shard. The watermark is null if the shard has never been processed. Shards this instance already
+     * owns are renewed first. Other shards are tried starting from a position derived from the owner ID, so that
+     * instances don't all compete for the same shards. Shards owned by live instances are skipped. DDB errors are
+     * logged, and the shard is skipped for this run.
+     */
+    public Map<Integer, Long> claim(StatusStore statusStore, long nowMillis) {
+        // Renew our shards first, then the rest.
+        Set<Integer> candidateShardSet = new LinkedHashSet<>();
+        for (int oneShard : ownedShardSet) {
+            if (oneShard < numShards) {
+                candidateShardSet.add(oneShard);
+            }
+        }
+        int firstShard = Math.floorMod(ownerId.hashCode(), numShards);
+        for (int i = 0; i < numShards; i++) {
+            candidateShardSet.add((firstShard + i) % numShards);
+        }
+
+        long expiresAtMillis = nowMillis + leaseMillis;
+        Map<Integer, Long> watermarksByShard = new TreeMap<>();
+        List<Integer> lostShardList = new ArrayList<>();
+        for (int oneShard : candidateShardSet) {
+            if (watermarksByShard.size() >= maxShards) {
+                break;
+            }
+
+            Item leaseItem;
+            try {
+                leaseItem = statusStore.claimLease(getHashKey(oneShard), ownerId, expiresAtMillis, nowMillis);
+            } catch (RuntimeException ex) {
+                // Write error to stderr. We don't know whether we own the shard, so we leave it alone this run.
+                ex.printStackTrace();
+                continue;
+            }
+            if (leaseItem == null) {
+                // Owned by a live instance.
+                if (ownedShardSet.contains(oneShard)) {
+                    lostShardList.add(oneShard);
+                }
+                continue;
+            }
+
+            Long watermarkMillis = null;
+            if (leaseItem.hasAttribute(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME)) {
+                watermarkMillis = leaseItem.getLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME);
+            }
+            watermarksByShard.put(oneShard, watermarkMillis);
+        }
+
+        if (!lostShardList.isEmpty()) {
+            System.out.println("Lost shard leases to other instances: " + lostShardList);
+        }
+        ownedShardSet.clear();
+        ownedShardSet.addAll(watermarksByShard.keySet());
+        leaseExpiresAtMillis = expiresAtMillis;
+        return watermarksByShard;
+    }
+
+    /**
+     * Writes the shard's watermark, if this instance still owns the shard. Returns false if the shard was taken over
+     * (in which case it's no longer owned) or if the write failed. Errors are logged.
+     */
+    public boolean writeWatermark(StatusStore statusStore, int shard, long watermarkMillis) {
+        boolean written;
+        try {
+            written = statusStore.writeLeasedWatermark(getHashKey(shard), ownerId, watermarkMillis);
+        } catch (RuntimeException ex) {
+            // Write error to stderr.
+            ex.printStackTrace();
+            return false;
+        }
+        if (!written) {
+            System.err.println("Lost lease on shard " + shard + ", watermark not written");
+            ownedShardSet.remove(shard);
+        }
+        return written;
+    }
+
+    /**
+     * Checks the given shards right before writing rows that belong to them (like per-schedule checkpoints), which
+     * aren't conditional on the lease. Returns the shards that this instance no longer owns: shards it didn't claim,
+     * shards whose lease has expired by the given wall clock time (so another instance may have taken them over), and
+     * shards whose lease row now has another owner. Lost shards are no longer owned. The lease row check is a
+     * conditional write with the current lease expiry, so it doesn't extend the lease. DDB errors are logged, and the
+     * shard is assumed to still be owned, since its lease hasn't expired yet.
+     */
+    public Set<Integer> getLostShards(StatusStore statusStore, Set<Integer> shardSet, long nowMillis) {
+        Set<Integer> lostShardSet = new TreeSet<>();
+        for (int oneShard : shardSet) {
+            if (!ownedShardSet.contains(oneShard) || nowMillis >= leaseExpiresAtMillis) {
+                lostShardSet.add(oneShard);
+                continue;
+            }
+
+            Item leaseItem;
+            try {
+                leaseItem = statusStore.claimLease(getHashKey(oneShard), ownerId, leaseExpiresAtMillis, nowMillis);
+            } catch (RuntimeException ex) {
+                // Write error to stderr.
+                ex.printStackTrace();
+                continue;
+            }
+            if (leaseItem == null) {
+                lostShardSet.add(oneShard);
+            }
+        }
+
+        if (!lostShardSet.isEmpty()) {
+            System.err.println("Lost shard leases during run: " + lostShardSet);
+            ownedShardSet.removeAll(lostShardSet);
+        }
+        return lostShardSet;
+    }
+
+    /**
+     * Releases all leases this instance owns, so other instances can take over right away instead of waiting for the
+     * leases to expire. Watermarks are kept. Errors are logged.
+     */
+    public void releaseAll(StatusStore statusStore) {
+        for (int oneShard : ownedShardSet) {
+            try {
+                // Returns false if the shard was already taken over. Then there's nothing to release.
+                statusStore.releaseLease(getHashKey(oneShard), ownerId);
+            } catch (RuntimeException ex) {
+                // Write error to stderr. The lease expires on its own.
+                ex.printStackTrace();
+            }
+        }
+        ownedShardSet.clear();
+        leaseExpiresAtMillis = 0;
+    }
+
+    // Status table hash key of the shard's lease row.
+    static String getHashKey(int shard) {
+        return HASH_KEY_SHARD_PREFIX + shard;
+    }
+}
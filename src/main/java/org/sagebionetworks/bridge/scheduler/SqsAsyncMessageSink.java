@@ -0,0 +1,30 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+
+/**
+ * Message sink that sends to SQS with the async SQS client. Async sends run on the client's executor, so the client's
+ * thread pool (50 threads by default) should be at least as big as the dispatcher's async window.
+ */
+public class SqsAsyncMessageSink implements AsyncMessageSink {
+    private final AmazonSQSAsync sqsClient;
+
+    /** Constructs a message sink that sends using the given async SQS client. */
+    public SqsAsyncMessageSink(AmazonSQSAsync sqsClient) {
+        this.sqsClient = sqsClient;
+    }
+
+    @Override
+    public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+        return sqsClient.sendMessageBatch(request);
+    }
+
+    @Override
+    public void sendMessageBatchAsync(SendMessageBatchRequest request,
+            AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult> handler) {
+        sqsClient.sendMessageBatchAsync(request, handler);
+    }
+}
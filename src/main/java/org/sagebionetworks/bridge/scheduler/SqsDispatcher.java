@@ -0,0 +1,826 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+
+/**
+ * <p>
+ * Collects resolved requests for a scheduler run, and sends them to SQS using SendMessageBatch. Requests are grouped
+ * by queue URL, and each batch holds at most 10 entries and at most 256 KB of message bodies (SQS limits).
+ * </p>
+ * <p>
+ * Entries that fail are retried with backoff (up to a max number of attempts), without re-sending the entries in the
+ * same batch that succeeded. Entries that SQS reports as a sender fault (for example, a malformed message) are not
+ * retried. Every failure is reported in the {@link DispatchResult}, keyed by schedule ID.
+ * </p>
+ * <p>
+ * Sends go through a {@link DispatchController}, which limits the batches in flight to each queue, and has a circuit
+ * breaker for each queue. Batches for a queue whose breaker is open are parked until the breaker lets a probe
+ * through, or until the flush deadline, after which they fail. Each queue is paced on its own, so a single bad queue
+ * doesn't hold up the others.
+ * </p>
+ * <p>
+ * Requests are also grouped by {@link Priority} lane. Lanes never share a batch, and batches in higher priority lanes
+ * are started first, so they get first call on each queue's concurrency. If there's a max number of batches in
+ * flight, each lane that has work gets its reserved share of it, and the rest is handed out in priority order. The
+ * time from the start of the flush until each batch is done can be recorded per lane.
+ * </p>
+ * <p>
+ * If there's a {@link RecentlySentStore}, requests whose dedup ID was sent recently are dropped before sending, and
+ * counted as duplicates. Messages that SQS accepts are added to the store. For FIFO queues (queue URLs ending in
+ * ".fifo"), the dedup ID is also sent as the MessageDeduplicationId, and each schedule is its own message group. FIFO
+ * queues don't support per-message delays, so delays are ignored for them.
+ * </p>
+ * <p>
+ * With an async window (see {@link #setAsyncWindow}), batches are sent with an {@link AsyncMessageSink}, and sending
+ * starts while requests are still being added. As soon as a queue has a full batch pending, it's sent, so rendering
+ * the next requests overlaps with the sends in flight. The window bounds the number of batches in flight. If it's
+ * full, full batches stay pending, and are sent by a later add to the same queue once a send finishes, or by the
+ * flush. Adding never waits for a send. {@link #flush} sends what's left, and waits for every batch in flight, so
+ * that when it returns, the result covers every request. Retries, circuit breakers, and failure reporting are the same
+ * as for synchronous sends. Batches sent early don't wait for higher priority lanes, since requests are usually added
+ * in priority order anyway.
+ * </p>
+ * <p>
+ * If there's an {@link OutboxLog}, requests are written to it in groups of {@link #OUTBOX_BATCH_SIZE} before they're
+ * sent, and messages that SQS accepts are marked as sent in it. A request that can't be written fails without being
+ * sent.
+ * </p>
+ * <p>
+ * Requests may be added from multiple threads.
+ * </p>
+ */
+public class SqsDispatcher {
+    // SQS limits for SendMessageBatch. Package-scoped for unit tests.
+    static final int MAX_BATCH_ENTRIES = 10;
+    static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    static final int DEFAULT_MAX_ATTEMPTS = 3;
+    static final long DEFAULT_RETRY_DELAY_MILLIS = 100;
+    static final long DEFAULT_MAX_FLUSH_MILLIS = 30 * 1000;
+
+    // Number of requests written to the outbox at a time. Each write is forced to disk, so this trades the number of
+    // disk syncs against how long requests wait before they can be sent.
+    static final int OUTBOX_BATCH_SIZE = 100;
+
+    // Queue URL suffix for FIFO queues.
+    private static final String FIFO_QUEUE_SUFFIX = ".fifo";
+
+    // How often to re-check a queue that's at its concurrency limit because of sends from another dispatcher.
+    private static final long LIMIT_POLL_MILLIS = 10;
+
+    private final MessageSink messageSink;
+    private final DispatchController controller;
+    private final Map<Priority, Map<String, List<DispatchRequest>>> pendingByLane = new EnumMap<>(Priority.class);
+    private final Map<Priority, LatencyHistogram> laneLatencyHistograms = new EnumMap<>(Priority.class);
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private int maxInFlight = Integer.MAX_VALUE;
+    private long retryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+    private long maxFlushMillis = DEFAULT_MAX_FLUSH_MILLIS;
+    private LatencyHistogram sendLatencyHistogram;
+    private RecentlySentStore recentlySentStore;
+
+    // Async mode. Batches in flight hold a permit from the window. Outcomes of async sends are queued until the flush
+    // handles them. earlyResult holds results of requests that were checked as they were added (duplicates and
+    // oversized messages), and numEarlySendsByLane counts batches started before the flush. Both are guarded by this.
+    private volatile int asyncWindow = 0;
+    private volatile Semaphore asyncWindowSemaphore;
+    private final BlockingQueue<BatchOutcome> asyncOutcomeQueue = new LinkedBlockingQueue<>();
+    private DispatchResult earlyResult = new DispatchResult();
+    private final int[] numEarlySendsByLane = new int[Priority.values().length];
+
+    // Outbox. Requests that haven't been written to it yet are held in unloggedList. If writing them fails, they're
+    // failed in the early result. unloggedList and outboxWriteFailed are guarded by this.
+    private volatile OutboxLog outboxLog;
+    private List<DispatchRequest> unloggedList = new ArrayList<>();
+    private boolean outboxWriteFailed = false;
+
+    /** Constructs a dispatcher that sends using the given SQS client, with its own dispatch controller. */
+    public SqsDispatcher(AmazonSQS sqsClient) {
+        this(new SqsMessageSink(sqsClient), new DispatchController());
+    }
+
+    /**
+     * Constructs a dispatcher that sends to the given message sink, using the given dispatch controller. The
+     * controller may be shared with other dispatchers, so that queue health carries over from one flush to the next.
+     */
+    public SqsDispatcher(MessageSink messageSink, DispatchController controller) {
+        this.messageSink = messageSink;
+        this.controller = controller;
+    }
+
+    /** Max number of times to attempt each entry, including the first attempt. Defaults to 3. */
+    public final void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /** Base delay before retrying failed entries. Doubles with each attempt. Defaults to 100ms. */
+    public final void setRetryDelayMillis(long retryDelayMillis) {
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * Max time a flush waits on parked batches (retry backoff and open circuit breakers), from the start of the flush.
+     * Batches that are still parked after this fail. Defaults to 30 seconds.
+     */
+    public final void setMaxFlushMillis(long maxFlushMillis) {
+        if (maxFlushMillis < 0) {
+            throw new IllegalArgumentException("maxFlushMillis can't be negative");
+        }
+        this.maxFlushMillis = maxFlushMillis;
+    }
+
+    /**
+     * Max number of batches in flight at once when flushing with an executor, across all queues and lanes. This is
+     * what each lane's reserved share is a share of. Usually the number of threads in the executor. Defaults to no
+     * limit, in which case lanes don't reserve anything and are only ordered by priority.
+     */
+    public final void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Turns on async mode, with at most the given number of batches in flight at once, across all queues and lanes.
+     * This replaces the max in flight. The message sink must be an {@link AsyncMessageSink}. Must be set before any
+     * requests are added.
+     */
+    public final void setAsyncWindow(int asyncWindow) {
+        if (asyncWindow < 1) {
+            throw new IllegalArgumentException("asyncWindow must be at least 1");
+        }
+        if (!(messageSink instanceof AsyncMessageSink)) {
+            throw new IllegalStateException("Async mode needs an AsyncMessageSink");
+        }
+        this.asyncWindow = asyncWindow;
+        this.asyncWindowSemaphore = new Semaphore(asyncWindow);
+    }
+
+    /**
+     * If set, the time from the start of each flush until a batch in the given lane is sent (or fails for good) is
+     * recorded here, once per batch.
+     */
+    public final void setLaneLatencyHistogram(Priority priority, LatencyHistogram laneLatencyHistogram) {
+        laneLatencyHistograms.put(priority, laneLatencyHistogram);
+    }
+
+    /** If set, the latency of every SendMessageBatch call (including failed calls) is recorded here. */
+    public final void setSendLatencyHistogram(LatencyHistogram sendLatencyHistogram) {
+        this.sendLatencyHistogram = sendLatencyHistogram;
+    }
+
+    /**
+     * If set, requests that were sent recently (according to their dedup IDs) are skipped, and sent messages are added
+     * here. The store may be shared with other dispatchers, so that it carries over from one run to the next.
+     */
+    public final void setRecentlySentStore(RecentlySentStore recentlySentStore) {
+        this.recentlySentStore = recentlySentStore;
+    }
+
+    /**
+     * If set, requests are written to the outbox log before they're sent, and marked as sent once SQS accepts them.
+     * Must be set before any requests are added.
+     */
+    public final void setOutboxLog(OutboxLog outboxLog) {
+        this.outboxLog = outboxLog;
+    }
+
+    /**
+     * Adds a request to be sent on the next {@link #flush}. In async mode, this may start sending it right away, if
+     * the async window has room. With an outbox, the request isn't sent until it's
+     * written to the outbox.
+     */
+    public synchronized void add(DispatchRequest request) {
+        if (asyncWindow > 0 && getSendable(Collections.singletonList(request), earlyResult).isEmpty()) {
+            // Failed or skipped. It's already in the early result.
+            return;
+        }
+        if (outboxLog != null) {
+            unloggedList.add(request);
+            if (unloggedList.size() >= OUTBOX_BATCH_SIZE) {
+                writeUnlogged();
+            }
+            return;
+        }
+        addPending(request);
+    }
+
+    /**
+     * Adds a request that's already in the outbox (for example, one that's being recovered from it), to be sent on
+     * the next {@link #flush}. It isn't written to the outbox again.
+     */
+    public synchronized void addLogged(DispatchRequest request) {
+        if (asyncWindow > 0 && getSendable(Collections.singletonList(request), earlyResult).isEmpty()) {
+            return;
+        }
+        addPending(request);
+    }
+
+    /**
+     * Writes every request added so far to the outbox, without waiting for the flush. Returns true if all of them
+     * were written, and false if any couldn't be (those fail when the dispatcher is flushed). Returns true if there's
+     * no outbox.
+     */
+    public synchronized boolean writeOutbox() {
+        if (outboxLog != null) {
+            writeUnlogged();
+        }
+        return !outboxWriteFailed;
+    }
+
+    // Writes the requests that aren't in the outbox yet, then queues them to be sent. If the write fails, they fail
+    // without being sent, since the outbox couldn't recover them. Caller must hold the lock.
+    private void writeUnlogged() {
+        if (unloggedList.isEmpty()) {
+            return;
+        }
+        List<DispatchRequest> requestList = unloggedList;
+        unloggedList = new ArrayList<>();
+        try {
+            outboxLog.appendRequests(requestList);
+        } catch (IOException ex) {
+            // Write error to stderr.
+            ex.printStackTrace();
+            outboxWriteFailed = true;
+            for (DispatchRequest oneRequest : requestList) {
+                earlyResult.addFailure(oneRequest, "couldn't write to outbox: " + ex);
+            }
+            return;
+        }
+        for (DispatchRequest oneRequest : requestList) {
+            addPending(oneRequest);
+        }
+    }
+
+    // Queues a request to be sent. In async mode, this starts sending full batches. Caller must hold the lock.
+    private void addPending(DispatchRequest request) {
+        List<DispatchRequest> requestList = pendingByLane.computeIfAbsent(request.getPriority(),
+                k -> new LinkedHashMap<>()).computeIfAbsent(request.getSqsQueueUrl(), k -> new ArrayList<>());
+        requestList.add(request);
+        if (asyncWindow > 0) {
+            startFullBatches(request.getPriority(), request.getSqsQueueUrl(), requestList);
+        }
+    }
+
+    // Async mode. Starts sending full batches from the front of the given queue's pending requests, as long as the
+    // queue's controller allows it. Once a queue has a full batch's worth of requests, the first batch is full, whether
+    // it's limited by entries or by bytes. Doesn't wait for a window permit, since that would block other threads that
+    // add requests (and the flush) on the lock until a send finishes. Caller must hold the lock.
+    private void startFullBatches(Priority lane, String sqsQueueUrl, List<DispatchRequest> requestList) {
+        while (requestList.size() >= MAX_BATCH_ENTRIES) {
+            if (controller.getBlockedUntilMillis(sqsQueueUrl) > DispatchController.nowMillis()) {
+                // Parked. The flush sends it once the queue is unblocked.
+                return;
+            }
+            if (!asyncWindowSemaphore.tryAcquire()) {
+                // The window is full. The next add to this queue or the flush sends it.
+                return;
+            }
+            if (!controller.tryAcquire(sqsQueueUrl)) {
+                // At the queue's concurrency limit. The flush sends it.
+                asyncWindowSemaphore.release();
+                return;
+            }
+
+            List<DispatchRequest> batchRequestList = partition(requestList.subList(0, MAX_BATCH_ENTRIES)).get(0);
+            Batch batch = new Batch(lane, sqsQueueUrl, new ArrayList<>(batchRequestList), 1, 0, null);
+            requestList.subList(0, batch.requestList.size()).clear();
+            numEarlySendsByLane[lane.ordinal()]++;
+            startAsyncBatch(batch);
+        }
+    }
+
+    /** Number of requests waiting to be sent. */
+    public synchronized int getNumPending() {
+        int numPending = unloggedList.size();
+        for (Map<String, List<DispatchRequest>> pendingByQueueUrl : pendingByLane.values()) {
+            for (List<DispatchRequest> requestList : pendingByQueueUrl.values()) {
+                numPending += requestList.size();
+            }
+        }
+        return numPending;
+    }
+
+    /**
+     * Sends all pending requests on the calling thread, one batch at a time, and returns the result. Pending requests
+     * are cleared, whether or not they succeed.
+     */
+    public DispatchResult flush() {
+        return flush(null);
+    }
+
+    /**
+     * Sends all pending requests and returns the result, like {@link #flush()}, except that batches are sent on tasks
+     * in the given executor, up to each queue's concurrency limit and the max in flight. This call blocks until all
+     * batches are sent or failed.
+     */
+    public DispatchResult flush(ExecutorService executor) {
+        DispatchResult result = new DispatchResult();
+        long flushStartNanos = System.nanoTime();
+        boolean isAsync = asyncWindow > 0;
+
+        // In async mode, batches that were started as requests were added are already in flight.
+        int[] numInFlightByLane = new int[Priority.values().length];
+        int numInFlight = 0;
+        synchronized (this) {
+            if (outboxLog != null) {
+                writeUnlogged();
+            }
+            result.merge(earlyResult);
+            earlyResult = new DispatchResult();
+            for (int i = 0; i < numInFlightByLane.length; i++) {
+                numInFlightByLane[i] = numEarlySendsByLane[i];
+                numInFlight += numEarlySendsByLane[i];
+                numEarlySendsByLane[i] = 0;
+            }
+        }
+        long deadlineMillis = DispatchController.nowMillis() + maxFlushMillis;
+
+        // Batches waiting to be sent, in order, by lane and queue. Lanes are in priority order. Failed entries are
+        // re-queued at the end of their queue.
+        Map<Priority, Map<String, Deque<Batch>>> batchesByLane = new EnumMap<>(Priority.class);
+        for (Map.Entry<Priority, Map<String, List<DispatchRequest>>> laneEntry : drainPending().entrySet()) {
+            Map<String, Deque<Batch>> batchesByQueueUrl = new LinkedHashMap<>();
+            for (Map.Entry<String, List<DispatchRequest>> queueEntry : laneEntry.getValue().entrySet()) {
+                // In async mode, requests were already checked as they were added.
+                List<DispatchRequest> sendableList = isAsync ? queueEntry.getValue() : getSendable(
+                        queueEntry.getValue(), result);
+                Deque<Batch> batchQueue = new ArrayDeque<>();
+                for (List<DispatchRequest> oneBatch : partition(sendableList)) {
+                    batchQueue.add(new Batch(laneEntry.getKey(), queueEntry.getKey(), oneBatch, 1, 0, null));
+                }
+                if (!batchQueue.isEmpty()) {
+                    batchesByQueueUrl.put(queueEntry.getKey(), batchQueue);
+                }
+            }
+            if (!batchesByQueueUrl.isEmpty()) {
+                batchesByLane.put(laneEntry.getKey(), batchesByQueueUrl);
+            }
+        }
+
+        CompletionService<BatchOutcome> completionService = executor != null && !isAsync ?
+                new ExecutorCompletionService<>(executor) : null;
+        while (!batchesByLane.isEmpty() || numInFlight > 0) {
+            // Start every batch that its lane and queue allow, highest priority lane first, and find the next time a
+            // parked batch might be sendable.
+            long nowMillis = DispatchController.nowMillis();
+            long wakeMillis = Long.MAX_VALUE;
+            int numSharedSlots = getNumSharedSlots(batchesByLane.keySet(), numInFlightByLane);
+            for (Map.Entry<Priority, Map<String, Deque<Batch>>> laneEntry : batchesByLane.entrySet()) {
+                Priority lane = laneEntry.getKey();
+                Iterator<Deque<Batch>> queueIter = laneEntry.getValue().values().iterator();
+                while (queueIter.hasNext()) {
+                    Deque<Batch> batchQueue = queueIter.next();
+                    while (!batchQueue.isEmpty()) {
+                        Batch batch = batchQueue.peekFirst();
+                        long blockedUntilMillis = Math.max(batch.notBeforeMillis, controller.getBlockedUntilMillis(
+                                batch.sqsQueueUrl));
+                        if (blockedUntilMillis <= nowMillis && (isAsync || completionService != null) &&
+                                !hasSlot(lane, numInFlightByLane, numInFlight, numSharedSlots)) {
+                            // The lane is out of slots. Wait for a send to finish.
+                            break;
+                        }
+                        if (blockedUntilMillis <= nowMillis && controller.tryAcquire(batch.sqsQueueUrl)) {
+                            batchQueue.pollFirst();
+                            if (isAsync) {
+                                asyncWindowSemaphore.acquireUninterruptibly();
+                                startAsyncBatch(batch);
+                                numInFlightByLane[lane.ordinal()]++;
+                                numInFlight++;
+                            } else if (completionService != null) {
+                                completionService.submit(() -> sendBatch(batch));
+                                numInFlightByLane[lane.ordinal()]++;
+                                numInFlight++;
+                            } else {
+                                handleOutcome(sendBatch(batch), batchesByLane, flushStartNanos, result);
+                            }
+                            continue;
+                        }
+
+                        if (blockedUntilMillis <= nowMillis) {
+                            // At the concurrency limit. Wait for a send to finish.
+                            wakeMillis = Math.min(wakeMillis, nowMillis + LIMIT_POLL_MILLIS);
+                        } else if (nowMillis >= deadlineMillis) {
+                            // Out of time. Everything still parked for this queue fails.
+                            for (Batch parkedBatch : batchQueue) {
+                                failBatch(parkedBatch, "flush deadline exceeded" + (parkedBatch.lastError != null ?
+                                        ", last error: " + parkedBatch.lastError : ""), result);
+                                recordLaneLatency(lane, flushStartNanos);
+                            }
+                            batchQueue.clear();
+                        } else {
+                            wakeMillis = Math.min(wakeMillis, blockedUntilMillis);
+                        }
+                        break;
+                    }
+                    if (batchQueue.isEmpty()) {
+                        queueIter.remove();
+                    }
+                }
+            }
+            batchesByLane.values().removeIf(Map::isEmpty);
+
+            // Wait for a send to finish, or for the next parked batch, whichever comes first.
+            if (!batchesByLane.isEmpty()) {
+                wakeMillis = Math.min(wakeMillis, deadlineMillis);
+            }
+            long waitMillis = wakeMillis == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(0, wakeMillis -
+                    DispatchController.nowMillis());
+            try {
+                if (numInFlight > 0) {
+                    BatchOutcome outcome = pollOutcome(completionService, waitMillis);
+                    while (outcome != null) {
+                        numInFlightByLane[outcome.batch.priority.ordinal()]--;
+                        numInFlight--;
+                        handleOutcome(outcome, batchesByLane, flushStartNanos, result);
+                        outcome = pollOutcome(completionService, 0);
+                    }
+                } else if (!batchesByLane.isEmpty() && waitMillis > 0) {
+                    Thread.sleep(waitMillis);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while sending to SQS", ex);
+            }
+        }
+        logFailures(result);
+        return result;
+    }
+
+    // Waits up to the given time for a batch in flight to finish, and returns its outcome, or null if none finished in
+    // time. Long.MAX_VALUE waits until one finishes. Without a completion service, batches are sent async.
+    private BatchOutcome pollOutcome(CompletionService<BatchOutcome> completionService, long waitMillis)
+            throws InterruptedException {
+        if (completionService == null) {
+            return waitMillis == Long.MAX_VALUE ? asyncOutcomeQueue.take() : asyncOutcomeQueue.poll(waitMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+        Future<BatchOutcome> completed = waitMillis == Long.MAX_VALUE ? completionService.take() :
+                completionService.poll(waitMillis, TimeUnit.MILLISECONDS);
+        return completed != null ? BridgeMasterScheduler.waitFor(completed) : null;
+    }
+
+    // Removes and returns all pending requests, so that sending happens outside of the lock.
+    private synchronized Map<Priority, Map<String, List<DispatchRequest>>> drainPending() {
+        Map<Priority, Map<String, List<DispatchRequest>>> drained = new EnumMap<>(pendingByLane);
+        pendingByLane.clear();
+        return drained;
+    }
+
+    // Max number of batches in flight. In async mode, that's the async window.
+    private int getMaxInFlight() {
+        return asyncWindow > 0 ? asyncWindow : maxInFlight;
+    }
+
+    // Number of in-flight slots reserved for the given lane. Nothing is reserved if there's no max in flight.
+    private int getNumReservedSlots(Priority lane) {
+        int maxInFlight = getMaxInFlight();
+        return maxInFlight == Integer.MAX_VALUE ? 0 : (int) (maxInFlight * lane.getReservedShare());
+    }
+
+    // Number of in-flight slots that aren't reserved for a lane with work. Lanes with nothing to send (and nothing in
+    // flight) don't hold on to their reservation.
+    private int getNumSharedSlots(Set<Priority> pendingLaneSet, int[] numInFlightByLane) {
+        int maxInFlight = getMaxInFlight();
+        if (maxInFlight == Integer.MAX_VALUE) {
+            return Integer.MAX_VALUE;
+        }
+        int numSharedSlots = maxInFlight;
+        for (Priority oneLane : Priority.values()) {
+            if (pendingLaneSet.contains(oneLane) || numInFlightByLane[oneLane.ordinal()] > 0) {
+                numSharedSlots -= getNumReservedSlots(oneLane);
+            }
+        }
+        return numSharedSlots;
+    }
+
+    // True if the lane may start another batch: either it has an unused reserved slot, or a shared slot is free.
+    private boolean hasSlot(Priority lane, int[] numInFlightByLane, int numInFlight, int numSharedSlots) {
+        if (numInFlight >= getMaxInFlight()) {
+            return false;
+        }
+        if (numInFlightByLane[lane.ordinal()] < getNumReservedSlots(lane)) {
+            return true;
+        }
+        int numSharedInUse = 0;
+        for (Priority oneLane : Priority.values()) {
+            numSharedInUse += Math.max(0, numInFlightByLane[oneLane.ordinal()] - getNumReservedSlots(oneLane));
+        }
+        return numSharedInUse < numSharedSlots;
+    }
+
+    // Records the time since the start of the flush in the lane's latency histogram, if there is one.
+    private void recordLaneLatency(Priority lane, long flushStartNanos) {
+        LatencyHistogram laneLatencyHistogram = laneLatencyHistograms.get(lane);
+        if (laneLatencyHistogram != null) {
+            laneLatencyHistogram.recordSince(flushStartNanos);
+        }
+    }
+
+    private static void logFailures(DispatchResult result) {
+        // Write failures to stderr. Lambda takes care of saving these to the logs.
+        for (Map.Entry<String, List<String>> failureEntry : result.getFailuresByScheduleId().entrySet()) {
+            for (String oneFailure : failureEntry.getValue()) {
+                System.err.println("Failed to send request: scheduleId=" + failureEntry.getKey() + ", " + oneFailure);
+            }
+        }
+    }
+
+    // Helper method which returns the requests that can be sent. A message that's bigger than the batch limit can
+    // never be sent, so it's failed up front. A message that was sent recently is a duplicate, and is dropped.
+    private List<DispatchRequest> getSendable(List<DispatchRequest> requestList, DispatchResult result) {
+        List<DispatchRequest> sendableList = new ArrayList<>();
+        for (DispatchRequest oneRequest : requestList) {
+            if (getBodySize(oneRequest) > MAX_BATCH_BYTES) {
+                result.addFailure(oneRequest, "message size exceeds " + MAX_BATCH_BYTES + " bytes");
+            } else if (recentlySentStore != null && recentlySentStore.contains(oneRequest.getDedupId())) {
+                result.addDuplicate();
+            } else {
+                sendableList.add(oneRequest);
+            }
+        }
+        return sendableList;
+    }
+
+    // Helper method which merges a finished batch into the result. Entries that should be retried are re-queued in
+    // the same lane with backoff. Attempt 2 waits the base delay, attempt 3 waits twice that, etc. A batch with
+    // nothing left to retry is done, and its lane latency is recorded.
+    private void handleOutcome(BatchOutcome outcome, Map<Priority, Map<String, Deque<Batch>>> batchesByLane,
+            long flushStartNanos, DispatchResult result) {
+        result.merge(outcome.result);
+        Batch batch = outcome.batch;
+        if (outcome.retryList.isEmpty()) {
+            recordLaneLatency(batch.priority, flushStartNanos);
+            return;
+        }
+
+        int nextAttempt = batch.attempt + 1;
+        long notBeforeMillis = DispatchController.nowMillis() + (retryDelayMillis << (nextAttempt - 2));
+        Deque<Batch> batchQueue = batchesByLane.computeIfAbsent(batch.priority, k -> new LinkedHashMap<>())
+                .computeIfAbsent(batch.sqsQueueUrl, k -> new ArrayDeque<>());
+        for (List<DispatchRequest> oneBatch : partition(outcome.retryList)) {
+            batchQueue.add(new Batch(batch.priority, batch.sqsQueueUrl, oneBatch, nextAttempt, notBeforeMillis,
+                    outcome.lastError));
+        }
+    }
+
+    private static void failBatch(Batch batch, String error, DispatchResult result) {
+        for (DispatchRequest oneRequest : batch.requestList) {
+            result.addFailure(oneRequest, error);
+        }
+    }
+
+    // Helper method which sends a single batch, and reports the outcome to the controller. The caller must have
+    // acquired a send slot for the batch's queue. May be called from any thread.
+    private BatchOutcome sendBatch(Batch batch) {
+        SendMessageBatchRequest request = makeBatchRequest(batch);
+        long sendStartNanos = System.nanoTime();
+        SendMessageBatchResult batchResult;
+        try {
+            batchResult = messageSink.sendMessageBatch(request);
+        } catch (RuntimeException ex) {
+            return handleSendError(batch, ex, sendStartNanos);
+        }
+        return handleSendResult(batch, batchResult, sendStartNanos);
+    }
+
+    // Helper method which starts sending a single batch with the async message sink. The caller must have acquired a
+    // send slot for the batch's queue, and a permit from the async window. When the send finishes, the permit is
+    // released, and the outcome is queued for the flush.
+    private void startAsyncBatch(Batch batch) {
+        SendMessageBatchRequest request = makeBatchRequest(batch);
+        long sendStartNanos = System.nanoTime();
+        AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult> handler = new AsyncHandler<
+                SendMessageBatchRequest, SendMessageBatchResult>() {
+            @Override
+            public void onError(Exception ex) {
+                finishAsyncBatch(handleSendError(batch, ex, sendStartNanos));
+            }
+
+            @Override
+            public void onSuccess(SendMessageBatchRequest request, SendMessageBatchResult batchResult) {
+                BatchOutcome outcome;
+                try {
+                    outcome = handleSendResult(batch, batchResult, sendStartNanos);
+                } catch (RuntimeException ex) {
+                    // Don't leave the flush waiting for an outcome that never comes.
+                    ex.printStackTrace();
+                    outcome = new BatchOutcome(batch);
+                    failBatch(batch, "couldn't handle send result: " + ex, outcome.result);
+                }
+                finishAsyncBatch(outcome);
+            }
+        };
+        try {
+            ((AsyncMessageSink) messageSink).sendMessageBatchAsync(request, handler);
+        } catch (RuntimeException ex) {
+            // Couldn't even start the send, for example because the client's executor is shut down.
+            handler.onError(ex);
+        }
+    }
+
+    // Releases the window permit before queueing the outcome, so that the flush never sees more batches in flight than
+    // there are permits in use.
+    private void finishAsyncBatch(BatchOutcome outcome) {
+        asyncWindowSemaphore.release();
+        asyncOutcomeQueue.add(outcome);
+    }
+
+    // Builds the SendMessageBatch request for a batch. Entry IDs are indexes into the batch's request list.
+    private static SendMessageBatchRequest makeBatchRequest(Batch batch) {
+        boolean isFifoQueue = batch.sqsQueueUrl.endsWith(FIFO_QUEUE_SUFFIX);
+        List<SendMessageBatchRequestEntry> entryList = new ArrayList<>(batch.requestList.size());
+        for (int i = 0; i < batch.requestList.size(); i++) {
+            // Entry IDs only need to be unique within a batch. Use the index so we can map errors back to requests.
+            DispatchRequest request = batch.requestList.get(i);
+            SendMessageBatchRequestEntry entry = new SendMessageBatchRequestEntry(String.valueOf(i), request.getBody());
+            if (isFifoQueue) {
+                entry.setMessageDeduplicationId(request.getDedupId());
+                entry.setMessageGroupId(request.getMessageGroupId());
+            } else if (request.getDelaySeconds() > 0) {
+                entry.setDelaySeconds(request.getDelaySeconds());
+            }
+            entryList.add(entry);
+        }
+        return new SendMessageBatchRequest(batch.sqsQueueUrl, entryList);
+    }
+
+    // Helper method which handles a send call that failed as a whole. Every entry in the batch is a candidate for
+    // retry.
+    private BatchOutcome handleSendError(Batch batch, Exception ex, long sendStartNanos) {
+        BatchOutcome outcome = new BatchOutcome(batch);
+        outcome.result.addSqsCall();
+        controller.release(batch.sqsQueueUrl, recordSendLatency(sendStartNanos), false);
+        outcome.lastError = ex.toString();
+        for (DispatchRequest oneRequest : batch.requestList) {
+            if (batch.attempt >= maxAttempts) {
+                outcome.result.addFailure(oneRequest, outcome.lastError);
+            } else {
+                outcome.retryList.add(oneRequest);
+            }
+        }
+        return outcome;
+    }
+
+    // Helper method which handles the result of a send call. Failed entries are retried, unless they're the sender's
+    // fault, or this was the last attempt.
+    private BatchOutcome handleSendResult(Batch batch, SendMessageBatchResult batchResult, long sendStartNanos) {
+        BatchOutcome outcome = new BatchOutcome(batch);
+        outcome.result.addSqsCall();
+        long latencyMillis = recordSendLatency(sendStartNanos);
+        boolean isLastAttempt = batch.attempt >= maxAttempts;
+
+        int numFailed = 0;
+        boolean hasRetryableFailure = false;
+        boolean[] isFailedByIndex = new boolean[batch.requestList.size()];
+        for (BatchResultErrorEntry oneError : batchResult.getFailed()) {
+            numFailed++;
+            int failedIndex = Integer.parseInt(oneError.getId());
+            isFailedByIndex[failedIndex] = true;
+            DispatchRequest failedRequest = batch.requestList.get(failedIndex);
+            boolean isSenderFault = oneError.getSenderFault() != null && oneError.getSenderFault();
+            String error = oneError.getCode() + ": " + oneError.getMessage();
+            hasRetryableFailure |= !isSenderFault;
+            if (isLastAttempt || isSenderFault) {
+                outcome.result.addFailure(failedRequest, error);
+            } else {
+                outcome.lastError = error;
+                outcome.retryList.add(failedRequest);
+            }
+        }
+        outcome.result.addSent(batch.sqsQueueUrl, batch.requestList.size() - numFailed);
+        List<String> sentDedupIdList = new ArrayList<>(batch.requestList.size() - numFailed);
+        for (int i = 0; i < isFailedByIndex.length; i++) {
+            if (!isFailedByIndex[i]) {
+                sentDedupIdList.add(batch.requestList.get(i).getDedupId());
+            }
+        }
+        if (recentlySentStore != null) {
+            for (String oneDedupId : sentDedupIdList) {
+                recentlySentStore.add(oneDedupId);
+            }
+        }
+        if (outboxLog != null && !sentDedupIdList.isEmpty()) {
+            try {
+                outboxLog.appendSent(sentDedupIdList);
+            } catch (IOException ex) {
+                // Write error to stderr. If the outbox is recovered, these are sent again.
+                ex.printStackTrace();
+            }
+        }
+
+        // Sender faults are the message's fault, not the queue's.
+        controller.release(batch.sqsQueueUrl, latencyMillis, !hasRetryableFailure);
+        return outcome;
+    }
+
+    // Records the send latency, and returns it in millis.
+    private long recordSendLatency(long startNanos) {
+        if (sendLatencyHistogram != null) {
+            sendLatencyHistogram.recordSince(startNanos);
+        }
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    // Splits the requests into batches that fit within the SQS batch limits. Package-scoped for unit tests.
+    static List<List<DispatchRequest>> partition(List<DispatchRequest> requestList) {
+        List<List<DispatchRequest>> batchList = new ArrayList<>();
+        List<DispatchRequest> curBatch = new ArrayList<>();
+        int curBatchBytes = 0;
+        for (DispatchRequest oneRequest : requestList) {
+            int bodySize = getBodySize(oneRequest);
+            if (!curBatch.isEmpty() && (curBatch.size() >= MAX_BATCH_ENTRIES ||
+                    curBatchBytes + bodySize > MAX_BATCH_BYTES)) {
+                batchList.add(curBatch);
+                curBatch = new ArrayList<>();
+                curBatchBytes = 0;
+            }
+            curBatch.add(oneRequest);
+            curBatchBytes += bodySize;
+        }
+        if (!curBatch.isEmpty()) {
+            batchList.add(curBatch);
+        }
+        return batchList;
+    }
+
+    // SQS measures message size in UTF-8 bytes, not chars. Count them without encoding the whole body.
+    private static int getBodySize(DispatchRequest request) {
+        String body = request.getBody();
+        int numBytes = 0;
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (c < 0x80) {
+                numBytes++;
+            } else if (c < 0x800) {
+                numBytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < body.length() &&
+                    Character.isLowSurrogate(body.charAt(i + 1))) {
+                // Surrogate pair is a single 4-byte code point.
+                numBytes += 4;
+                i++;
+            } else {
+                numBytes += 3;
+            }
+        }
+        return numBytes;
+    }
+
+    // A batch of requests for a single lane and queue, and when it may be sent.
+    private static class Batch {
+        final Priority priority;
+        final String sqsQueueUrl;
+        final List<DispatchRequest> requestList;
+        final int attempt;
+        final long notBeforeMillis;
+        final String lastError;
+
+        Batch(Priority priority, String sqsQueueUrl, List<DispatchRequest> requestList, int attempt,
+                long notBeforeMillis, String lastError) {
+            this.priority = priority;
+            this.sqsQueueUrl = sqsQueueUrl;
+            this.requestList = requestList;
+            this.attempt = attempt;
+            this.notBeforeMillis = notBeforeMillis;
+            this.lastError = lastError;
+        }
+    }
+
+    // Result of sending a single batch, with the entries that should be retried.
+    private static class BatchOutcome {
+        final Batch batch;
+        final DispatchResult result = new DispatchResult();
+        final List<DispatchRequest> retryList = new ArrayList<>();
+        String lastError;
+
+        BatchOutcome(Batch batch) {
+            this.batch = batch;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+
+/** Message sink that sends to SQS. */
+public class SqsMessageSink implements MessageSink {
+    private final AmazonSQS sqsClient;
+
+    /** Constructs a message sink that sends using the given SQS client. */
+    public SqsMessageSink(AmazonSQS sqsClient) {
+        this.sqsClient = sqsClient;
+    }
+
+    @Override
+    public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+        return sqsClient.sendMessageBatch(request);
+    }
+}
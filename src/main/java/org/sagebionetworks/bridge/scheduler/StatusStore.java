@@ -0,0 +1,57 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.util.List;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+
+/**
+ * <p>
+ * Where the scheduler keeps its progress: the singleton status row (last processed time), the per-schedule
+ * checkpoint rows (see {@link ScheduleCheckpoints}), and the shard lease rows (see {@link ShardLeases}). Rows are
+ * items keyed by the "hashKey" attribute.
+ * </p>
+ * <p>
+ * Lease operations are conditional on the lease owner, and must be atomic, since several scheduler instances may
+ * share the same store. {@link DdbStatusStore} uses the DDB status table, with conditional updates.
+ * {@link InMemoryStatusStore} is for tests and load simulation. Implementations must be thread-safe.
+ * </p>
+ */
+public interface StatusStore {
+    /** Max number of items in a single {@link #batchPutItems} call. This is the DDB limit for BatchWriteItem. */
+    int MAX_BATCH_PUT_ITEMS = 25;
+
+    /** Returns the row with the given hash key, or null if there isn't one. */
+    Item getItem(String hashKey);
+
+    /** Writes the given row, replacing any row with the same hash key. */
+    void putItem(Item item);
+
+    /** Returns every row. Items may be streamed, so errors can be thrown while iterating. */
+    Iterable<Item> scan();
+
+    /**
+     * Writes the given rows, up to {@link #MAX_BATCH_PUT_ITEMS}. The store may not get to all of them (for example,
+     * if it's throttled). Returns the rows that weren't written, which the caller should retry, or an empty list if
+     * they were all written.
+     */
+    List<Item> batchPutItems(List<Item> itemList);
+
+    /**
+     * Sets the lease on the given row to the given owner and expiry, if the row has no lease owner, if its lease
+     * expired before the given time, or if it's already owned by the given owner. Returns the whole row after the
+     * update, or null if the row is leased to another owner.
+     */
+    Item claimLease(String hashKey, String ownerId, long expiresAtMillis, long nowMillis);
+
+    /**
+     * Sets the last processed time on the given row, if it's leased to the given owner. Returns false (and writes
+     * nothing) if it isn't.
+     */
+    boolean writeLeasedWatermark(String hashKey, String ownerId, long watermarkMillis);
+
+    /**
+     * Removes the lease from the given row, if it's leased to the given owner. The rest of the row is kept. Returns
+     * false (and writes nothing) if it isn't leased to the given owner.
+     */
+    boolean releaseLease(String hashKey, String ownerId);
+}
@@ -0,0 +1,135 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * <p>
+ * Memo table for template variable values, keyed by time zone and process time. Many schedules fire at the same
+ * instant (on the hour, at midnight), and most of them use the same few variables, so each date boundary is computed
+ * once per zone and fire time and shared by every schedule that renders it. Values are computed lazily, one variable
+ * at a time, so a fire time that only needs ${processTime} doesn't pay for the day boundaries.
+ * </p>
+ * <p>
+ * The table is bounded. Once it's full, it's cleared, which is cheap and keeps the memory bounded during long
+ * backfills, where most fire times are only rendered once anyway.
+ * </p>
+ * <p>
+ * This class is thread-safe. Two threads may occasionally compute the same value, but they always get the same
+ * result.
+ * </p>
+ */
+public class TemplateValueMemo {
+    static final int DEFAULT_MAX_ENTRIES = 4096;
+
+    private static final int NUM_VARS = TemplateVariable.values().length;
+
+    private final Map<Key, Entry> entriesByKey = new ConcurrentHashMap<>();
+    private final int maxEntries;
+    private final AtomicLong numHits = new AtomicLong();
+    private final AtomicLong numMisses = new AtomicLong();
+
+    /** Constructs a memo table with the default max size. */
+    public TemplateValueMemo() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /** Constructs a memo table that holds at most the given number of (zone, process time) entries. */
+    public TemplateValueMemo(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    /** Gets the value of the template variable for the given process time (epoch millis) in the given zone. */
+    public String getValue(TemplateVariable templateVar, DateTimeZone timeZone, long processTimeMillis) {
+        Entry entry = getEntry(timeZone, processTimeMillis);
+        String value = entry.values.get(templateVar.ordinal());
+        if (value != null) {
+            numHits.incrementAndGet();
+            return value;
+        }
+
+        numMisses.incrementAndGet();
+        value = templateVar.getReplacementValue(entry.processTimeLocal);
+        entry.values.set(templateVar.ordinal(), value);
+        return value;
+    }
+
+    // Helper method to get the entry for the zone and process time, creating it if needed.
+    private Entry getEntry(DateTimeZone timeZone, long processTimeMillis) {
+        Key key = new Key(timeZone, processTimeMillis);
+        Entry entry = entriesByKey.get(key);
+        if (entry == null) {
+            if (entriesByKey.size() >= maxEntries) {
+                entriesByKey.clear();
+            }
+            entry = new Entry(new DateTime(processTimeMillis, timeZone));
+            Entry existing = entriesByKey.putIfAbsent(key, entry);
+            if (existing != null) {
+                entry = existing;
+            }
+        }
+        return entry;
+    }
+
+    /** Number of (zone, process time) entries in the table. */
+    public int size() {
+        return entriesByKey.size();
+    }
+
+    /** Number of variable values that were already in the table. */
+    public long getNumHits() {
+        return numHits.get();
+    }
+
+    /** Number of variable values that had to be computed. */
+    public long getNumMisses() {
+        return numMisses.get();
+    }
+
+    // Memo table key. Zones are compared with equals(), since the same zone may have more than one instance.
+    private static final class Key {
+        private final DateTimeZone timeZone;
+        private final long processTimeMillis;
+
+        Key(DateTimeZone timeZone, long processTimeMillis) {
+            this.timeZone = timeZone;
+            this.processTimeMillis = processTimeMillis;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return processTimeMillis == other.processTimeMillis && timeZone.equals(other.timeZone);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(timeZone, processTimeMillis);
+        }
+    }
+
+    // The process time in the entry's zone, and the variable values computed so far, indexed by ordinal.
+    private static final class Entry {
+        final DateTime processTimeLocal;
+        final AtomicReferenceArray<String> values = new AtomicReferenceArray<>(NUM_VARS);
+
+        Entry(DateTime processTimeLocal) {
+            this.processTimeLocal = processTimeLocal;
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package org.sagebionetworks.bridge.scheduler;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 
@@ -81,20 +84,47 @@ public enum TemplateVariable {
         }
     };
 
-    // For now, scheduler will assume Seattle time for calculating date.
-    private static final DateTimeZone LOCAL_TIME_ZONE = DateTimeZone.forID("America/Los_Angeles");
+    // Schedules without a time zone use Seattle time for calculating dates. Package-scoped so that configs without a
+    // time zone can default to it.
+    static final DateTimeZone LOCAL_TIME_ZONE = DateTimeZone.forID("America/Los_Angeles");
+
+    // Lookup table from variable name (without the "${" and "}") to template variable. Used by RequestTemplate.
+    private static final Map<String, TemplateVariable> VARS_BY_NAME = new HashMap<>();
+    static {
+        for (TemplateVariable oneVar : values()) {
+            VARS_BY_NAME.put(oneVar.varName, oneVar);
+        }
+    }
 
-    private String varPattern;
+    private final String varName;
+    private final String varPattern;
 
     /**
      * Private constructor. Takes in the template variables display name (camelCased) and generates the replacement
      * pattern used in request templates. For example, "${startOfDay}" or "{$yesterdaysDate}".
      */
     TemplateVariable(String varName) {
+        this.varName = varName;
         varPattern = "${" + varName + "}";
     }
 
-    /** Get the replacement value of the template variable, using the schedule's process time in the local timezone. */
+    /**
+     * Returns the template variable with the given display name (without the "${" and "}"), or null if there is no
+     * such variable.
+     */
+    public static TemplateVariable fromVarName(String varName) {
+        return VARS_BY_NAME.get(varName);
+    }
+
+    /** The template variable's display name (camelCased), for example "startOfDay". */
+    public String getVarName() {
+        return varName;
+    }
+
+    /**
+     * Get the replacement value of the template variable, using the schedule's process time in the schedule's time
+     * zone.
+     */
     protected abstract String getReplacementValue(DateTime processTimeLocal);
 
     /**
@@ -1,22 +1,55 @@
 package org.sagebionetworks.bridge.scheduler;
 
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
-import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.handlers.AsyncHandler;
 import com.amazonaws.services.dynamodbv2.document.Item;
-import com.amazonaws.services.dynamodbv2.document.Table;
 import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeUtils;
+import org.joda.time.DateTimeZone;
 import org.mockito.ArgumentCaptor;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
@@ -29,8 +62,8 @@ public class BridgeMasterSchedulerTest {
 
     private AmazonSQS mockSqsClient;
     private BridgeMasterScheduler scheduler;
-    private Table mockConfigTable;
-    private Table mockStatusTable;
+    private ConfigSource mockConfigSource;
+    private StatusStore mockStatusStore;
 
     @BeforeClass
     public void mockNow() {
@@ -40,13 +73,18 @@ public class BridgeMasterSchedulerTest {
     @BeforeMethod
     public void before() {
         mockSqsClient = mock(AmazonSQS.class);
-        mockConfigTable = mock(Table.class);
-        mockStatusTable = mock(Table.class);
+        mockConfigSource = mock(ConfigSource.class);
+        mockStatusStore = mock(StatusStore.class);
+
+        // By default, there are no schedule checkpoints. (Checkpoint writes succeed, since the mock returns no
+        // unprocessed items.)
+        doReturn(ImmutableList.of()).when(mockStatusStore).scan();
 
-        scheduler = spy(new BridgeMasterScheduler());
-        scheduler.setDdbConfigTable(mockConfigTable);
-        scheduler.setDdbStatusTable(mockStatusTable);
-        scheduler.setSqsClient(mockSqsClient);
+        scheduler = makeScheduler();
+
+        // By default, SQS accepts everything.
+        when(mockSqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(
+                new SendMessageBatchResult());
     }
 
     @AfterClass
@@ -65,24 +103,29 @@ public class BridgeMasterSchedulerTest {
                 .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0,30 * * * ?")
                 .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, requestTemplate)
                 .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
-        doReturn(ImmutableList.of(configItem)).when(scheduler).scanDdbTable(mockConfigTable);
+        doReturn(ImmutableList.of(configItem)).when(mockConfigSource).scan(0, 1);
 
         // Execute
         scheduler.schedule();
 
-        // Verify 1 call to SQS.
-        verify(mockSqsClient).sendMessage("dummy-q-url-1",
-                "2018-03-26T00:00:00.000-07:00-2018-03-26T23:59:59.999-07:00");
-        verifyNoMoreInteractions(mockSqsClient);
+        // Verify 1 message to SQS.
+        verifySentMessages(ImmutableMap.of("dummy-q-url-1", ImmutableList.of(
+                "2018-03-26T00:00:00.000-07:00-2018-03-26T23:59:59.999-07:00")));
 
         // Verify we wrote process time back to the status table.
         ArgumentCaptor<Item> statusItemCaptor = ArgumentCaptor.forClass(Item.class);
-        verify(mockStatusTable).putItem(statusItemCaptor.capture());
+        verify(mockStatusStore).putItem(statusItemCaptor.capture());
 
         Item statusItem = statusItemCaptor.getValue();
         assertEquals(statusItem.getString(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY),
                 BridgeMasterScheduler.HASH_KEY_MASTER_SCHEDULER);
         assertEquals(statusItem.getLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME), MOCK_NOW_MILLIS);
+
+        // Verify metrics. Every phase ran once.
+        SchedulerMetrics metrics = scheduler.getLastRunMetrics();
+        for (SchedulerMetrics.Phase onePhase : SchedulerMetrics.Phase.values()) {
+            assertEquals(metrics.getHistogram(onePhase).getCount(), 1, onePhase.name());
+        }
     }
 
     @Test
@@ -93,14 +136,14 @@ public class BridgeMasterSchedulerTest {
                 .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 15 * * * ?")
                 .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, requestTemplate)
                 .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
-        doReturn(ImmutableList.of(configItem)).when(scheduler).scanDdbTable(mockConfigTable);
+        doReturn(ImmutableList.of(configItem)).when(mockConfigSource).scan(0, 1);
 
         // Execute
         scheduler.schedule();
 
-        // Verify 1 call to SQS.
-        verify(mockSqsClient).sendMessage("dummy-q-url-1", "request-1 2018-03-27T18:15:00.000-07:00");
-        verifyNoMoreInteractions(mockSqsClient);
+        // Verify 1 message to SQS.
+        verifySentMessages(ImmutableMap.of("dummy-q-url-1", ImmutableList.of(
+                "request-1 2018-03-27T18:15:00.000-07:00")));
     }
 
     @Test
@@ -121,15 +164,15 @@ public class BridgeMasterSchedulerTest {
                 .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, requestTemplate2)
                 .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-2");
 
-        doReturn(ImmutableList.of(configItem1, configItem2)).when(scheduler).scanDdbTable(mockConfigTable);
+        doReturn(ImmutableList.of(configItem1, configItem2)).when(mockConfigSource).scan(0, 1);
 
         // Execute
         scheduler.schedule();
 
-        // Verify 2 calls to SQS.
-        verify(mockSqsClient).sendMessage("dummy-q-url-1", "request-1 2018-03-27T19:00:00.000-07:00");
-        verify(mockSqsClient).sendMessage("dummy-q-url-2", "request-2 2018-03-27T18:45:00.000-07:00");
-        verifyNoMoreInteractions(mockSqsClient);
+        // Verify 2 messages to SQS, one batch per queue.
+        verifySentMessages(ImmutableMap.of(
+                "dummy-q-url-1", ImmutableList.of("request-1 2018-03-27T19:00:00.000-07:00"),
+                "dummy-q-url-2", ImmutableList.of("request-2 2018-03-27T18:45:00.000-07:00")));
     }
 
     @Test
@@ -143,15 +186,94 @@ public class BridgeMasterSchedulerTest {
                 .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0,15,30,45 * * * ?")
                 .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, requestTemplate1)
                 .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
-        doReturn(ImmutableList.of(configItem1)).when(scheduler).scanDdbTable(mockConfigTable);
+        doReturn(ImmutableList.of(configItem1)).when(mockConfigSource).scan(0, 1);
+
+        // Execute
+        scheduler.schedule();
+
+        // Verify 2 messages to SQS, in a single batch.
+        verifySentMessages(ImmutableMap.of("dummy-q-url-1", ImmutableList.of(
+                "request-1 2018-03-27T18:45:00.000-07:00", "request-1 2018-03-27T19:00:00.000-07:00")));
+    }
+
+    @Test
+    public void spreadScheduleDelaysMessages() {
+        // Mock status table.
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+
+        // Mock config table. Schedule 1 is spread over 10 minutes. Schedule 2 isn't spread.
+        Item configItem1 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0,15,30,45 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-1 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1")
+                .withInt(BridgeMasterScheduler.CONFIG_KEY_SPREAD_SECONDS, 600);
+        Item configItem2 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-2")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-2 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-2");
+        doReturn(ImmutableList.of(configItem1, configItem2)).when(mockConfigSource).scan(0, 1);
+
+        // Execute
+        scheduler.schedule();
+
+        // Verify each message has the delay for its schedule and fire time.
+        ScheduleConfig scheduleConfig1 = ScheduleConfig.fromItem(configItem1);
+        Map<String, Integer> expectedDelaysByMessage = new HashMap<>();
+        expectedDelaysByMessage.put("request-1 2018-03-27T18:45:00.000-07:00", scheduleConfig1.getDelaySeconds(
+                DateTime.parse("2018-03-27T18:45:00.000-07:00").getMillis()));
+        expectedDelaysByMessage.put("request-1 2018-03-27T19:00:00.000-07:00", scheduleConfig1.getDelaySeconds(
+                MOCK_NOW_MILLIS));
+        expectedDelaysByMessage.put("request-2 2018-03-27T19:00:00.000-07:00", null);
+
+        ArgumentCaptor<SendMessageBatchRequest> requestCaptor = ArgumentCaptor.forClass(
+                SendMessageBatchRequest.class);
+        verify(mockSqsClient, times(2)).sendMessageBatch(requestCaptor.capture());
+        Map<String, Integer> actualDelaysByMessage = new HashMap<>();
+        for (SendMessageBatchRequest oneRequest : requestCaptor.getAllValues()) {
+            for (SendMessageBatchRequestEntry oneEntry : oneRequest.getEntries()) {
+                actualDelaysByMessage.put(oneEntry.getMessageBody(), oneEntry.getDelaySeconds());
+            }
+        }
+        assertEquals(actualDelaysByMessage, expectedDelaysByMessage);
+    }
+
+    @Test
+    public void scheduleTimeZones() {
+        // Mock status table.
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+
+        // Mock config table. Three schedules fire at 19:00 Seattle time, which is already the next day in Tokyo.
+        // Schedules 1 and 2 use the default zone, so they share the memoized date.
+        String requestTemplate = "${todaysDate} ${startOfDay}";
+        Item configItem1 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, requestTemplate)
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
+        Item configItem2 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-2")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, requestTemplate)
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-2");
+        Item configItem3 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-3")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, requestTemplate)
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-3")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_TIME_ZONE, "Asia/Tokyo");
+        doReturn(ImmutableList.of(configItem1, configItem2, configItem3)).when(mockConfigSource).scan(0, 1);
 
         // Execute
         scheduler.schedule();
 
-        // Verify 2 calls to SQS.
-        verify(mockSqsClient).sendMessage("dummy-q-url-1", "request-1 2018-03-27T18:45:00.000-07:00");
-        verify(mockSqsClient).sendMessage("dummy-q-url-1", "request-1 2018-03-27T19:00:00.000-07:00");
-        verifyNoMoreInteractions(mockSqsClient);
+        // Verify dates are in each schedule's zone.
+        verifySentMessages(ImmutableMap.of(
+                "dummy-q-url-1", ImmutableList.of("2018-03-27 2018-03-27T00:00:00.000-07:00"),
+                "dummy-q-url-2", ImmutableList.of("2018-03-27 2018-03-27T00:00:00.000-07:00"),
+                "dummy-q-url-3", ImmutableList.of("2018-03-28 2018-03-28T00:00:00.000+09:00")));
+
+        // One memo entry per zone. Schedule 2 reuses both of schedule 1's values.
+        TemplateValueMemo memo = scheduler.getTemplateValueMemo();
+        assertEquals(memo.size(), 2);
+        assertEquals(memo.getNumMisses(), 4);
+        assertEquals(memo.getNumHits(), 2);
     }
 
     @Test
@@ -165,12 +287,12 @@ public class BridgeMasterSchedulerTest {
                 .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 15 * * * ?")
                 .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, requestTemplate1)
                 .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
-        doReturn(ImmutableList.of(configItem1)).when(scheduler).scanDdbTable(mockConfigTable);
+        doReturn(ImmutableList.of(configItem1)).when(mockConfigSource).scan(0, 1);
 
         // Execute
         scheduler.schedule();
 
-        // Verify 2 calls to SQS.
+        // Verify no calls to SQS.
         verifyZeroInteractions(mockSqsClient);
     }
 
@@ -192,25 +314,1212 @@ public class BridgeMasterSchedulerTest {
                 .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, requestTemplate2)
                 .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-2");
 
-        doReturn(ImmutableList.of(configItem1, configItem2)).when(scheduler).scanDdbTable(mockConfigTable);
+        doReturn(ImmutableList.of(configItem1, configItem2)).when(mockConfigSource).scan(0, 1);
 
         // For this test, calls to dummy-q-url-1 will throw.
-        when(mockSqsClient.sendMessage(eq("dummy-q-url-1"), any())).thenThrow(RuntimeException.class);
+        when(mockSqsClient.sendMessageBatch(argThat((SendMessageBatchRequest request) ->
+                request.getQueueUrl().equals("dummy-q-url-1")))).thenThrow(RuntimeException.class);
+
+        // Execute
+        scheduler.schedule();
+
+        // Verify both queues were attempted. dummy-q-url-1 is attempted once per retry.
+        verifySentMessages(ImmutableMap.of(
+                "dummy-q-url-1", ImmutableList.of("request-1 2018-03-27T19:00:00.000-07:00"),
+                "dummy-q-url-2", ImmutableList.of("request-2 2018-03-27T18:45:00.000-07:00")));
+        verify(mockSqsClient, times(SqsDispatcher.DEFAULT_MAX_ATTEMPTS)).sendMessageBatch(
+                argThat((SendMessageBatchRequest request) -> request.getQueueUrl().equals("dummy-q-url-1")));
+
+        // The status table is still updated.
+        verify(mockStatusStore).putItem(any(Item.class));
+    }
+
+    @Test
+    public void cronExpressionsCachedAcrossRuns() {
+        // Mock status table.
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+
+        // Mock config table. Second config is invalid.
+        Item configItem1 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0,30 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-1 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
+        Item configItem2 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-2")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "bad cron")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-2 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-2");
+        doReturn(ImmutableList.of(configItem1, configItem2)).when(mockConfigSource).scan(0, 1);
+
+        // Execute twice.
+        scheduler.schedule();
+        scheduler.schedule();
+
+        // Each expression is parsed once, including the invalid one. The valid schedule stays in the fire time index,
+        // so it doesn't even need a cache lookup the second time. The invalid one is a negative hit.
+        CronCache cronCache = scheduler.getCronCache();
+        assertEquals(cronCache.getNumMisses(), 2);
+        assertEquals(cronCache.getNumHits(), 1);
+        assertEquals(cronCache.getNumNegativeHits(), 1);
+    }
+
+    @Test
+    public void fireTimeIndexUpdatedAcrossRuns() {
+        // Mock config table with 2 schedules.
+        Item configItem1 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0,30 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-1 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
+        Item configItem2 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-2")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0 0 * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-2 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-2");
+        doReturn(ImmutableList.of(configItem1, configItem2)).when(mockConfigSource).scan(0, 1);
+
+        // First run. Only schedule 1 is due. Schedule 2 fires at midnight UTC, which is in the future.
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+        scheduler.schedule();
+        verifySentMessages(ImmutableMap.of("dummy-q-url-1", ImmutableList.of(
+                "request-1 2018-03-27T19:00:00.000-07:00")));
+
+        FireTimeIndex fireTimeIndex = scheduler.getFireTimeIndex();
+        assertEquals(fireTimeIndex.size(), 2);
+        assertEquals(fireTimeIndex.getCursorMillis(), MOCK_NOW_MILLIS);
+        assertEquals(fireTimeIndex.get("schedule-1").getNextFireTime(),
+                DateTime.parse("2018-03-27T19:30-07:00").getMillis());
+        assertEquals(fireTimeIndex.get("schedule-2").getNextFireTime(),
+                DateTime.parse("2018-03-29T00:00Z").getMillis());
+        ScheduleConfig scheduleConfig2 = fireTimeIndex.get("schedule-2").getConfig();
+
+        // Second run. Schedule 1 changed its cron expression, and schedule 3 is new. Status table now has the time we
+        // just wrote, so the index is moved forward incrementally.
+        Item changedConfigItem1 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 15 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-1 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
+        Item configItem3 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-3")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 45 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-3 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-3");
+        doReturn(ImmutableList.of(changedConfigItem1, configItem2, configItem3)).when(mockConfigSource).scan(0, 1);
+        mockStatusWithLastProcessedTime(MOCK_NOW_MILLIS);
+        scheduler.schedule();
+
+        // Unchanged schedule 2 wasn't re-parsed. Schedule 1 was updated. Schedule 3 was added.
+        assertEquals(fireTimeIndex.size(), 3);
+        assertSame(fireTimeIndex.get("schedule-2").getConfig(), scheduleConfig2);
+        assertEquals(fireTimeIndex.get("schedule-1").getConfig().getCronSchedule(), "0 15 * * * ?");
+        assertEquals(fireTimeIndex.get("schedule-1").getNextFireTime(),
+                DateTime.parse("2018-03-27T19:15-07:00").getMillis());
+        assertEquals(fireTimeIndex.get("schedule-3").getNextFireTime(),
+                DateTime.parse("2018-03-27T19:45-07:00").getMillis());
+
+        // Third run. Schedule 2 is removed.
+        doReturn(ImmutableList.of(changedConfigItem1, configItem3)).when(mockConfigSource)
+                .scan(0, 1);
+        scheduler.schedule();
+        assertEquals(fireTimeIndex.size(), 2);
+        assertNull(fireTimeIndex.get("schedule-2"));
+    }
+
+    @Test
+    public void refreshedConfigsUsedInsteadOfScan() {
+        // Scheduler hasn't run yet, so it doesn't know about any fire times.
+        assertEquals(scheduler.getNextFireTime(), FireTimeIndex.NEVER);
+
+        // Mock config table with 1 schedule, and load it as a snapshot.
+        Item configItem1 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0,30 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-1 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
+        doReturn(ImmutableList.of(configItem1)).when(mockConfigSource).scan(0, 1);
+        scheduler.refreshConfigs();
+
+        // Run twice. The config table is only scanned by the refresh.
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+        scheduler.schedule();
+        mockStatusWithLastProcessedTime(MOCK_NOW_MILLIS);
+        scheduler.schedule();
+        verify(mockConfigSource, times(1)).scan(0, 1);
+        verifySentMessages(ImmutableMap.of("dummy-q-url-1", ImmutableList.of(
+                "request-1 2018-03-27T19:00:00.000-07:00")));
+        assertEquals(scheduler.getNextFireTime(), DateTime.parse("2018-03-27T19:30-07:00").getMillis());
+
+        // Refresh with a new schedule that fires sooner. The next fire time picks it up without another run.
+        Item configItem2 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-2")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 * * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-2 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-2");
+        doReturn(ImmutableList.of(configItem1, configItem2)).when(mockConfigSource).scan(0, 1);
+        scheduler.refreshConfigs();
+        assertEquals(scheduler.getNextFireTime(), DateTime.parse("2018-03-27T19:01-07:00").getMillis());
+        assertEquals(scheduler.getFireTimeIndex().size(), 2);
+    }
+
+    @Test
+    public void failedScheduleRetriedFromCheckpoint() {
+        // Mock config table. Both schedules fire hourly, to different queues.
+        Item configItem1 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-1 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
+        Item configItem2 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-2")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-2 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-2");
+        doReturn(ImmutableList.of(configItem1, configItem2)).when(mockConfigSource).scan(0, 1);
+
+        // First run. Sends to dummy-q-url-2 fail.
+        when(mockSqsClient.sendMessageBatch(argThat((SendMessageBatchRequest request) ->
+                request.getQueueUrl().equals("dummy-q-url-2")))).thenThrow(RuntimeException.class);
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+        scheduler.schedule();
+
+        // Schedule 1 is checkpointed at now. Schedule 2 keeps its start time.
+        assertEquals(getWrittenCheckpoints(), ImmutableMap.of("schedule-1", MOCK_NOW_MILLIS, "schedule-2",
+                LAST_PROCESS_TIME_MILLIS));
+
+        // Second run, half an hour later. Nothing is due, but schedule 2 is retried from its checkpoint.
+        long secondRunMillis = DateTime.parse("2018-03-27T19:30-07:00").getMillis();
+        DateTimeUtils.setCurrentMillisFixed(secondRunMillis);
+        try {
+            reset(mockSqsClient);
+            when(mockSqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(
+                    new SendMessageBatchResult());
+            reset(mockStatusStore);
+            doReturn(ImmutableList.of()).when(mockStatusStore).scan();
+            doReturn(ImmutableList.of(configItem1, configItem2)).when(mockConfigSource)
+                    .scan(0, 1);
+            mockStatusWithLastProcessedTime(MOCK_NOW_MILLIS);
+            scheduler.schedule();
+        } finally {
+            DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+        }
+
+        verifySentMessages(ImmutableMap.of("dummy-q-url-2", ImmutableList.of(
+                "request-2 2018-03-27T19:00:00.000-07:00")));
+        assertEquals(getWrittenCheckpoints(), ImmutableMap.of("schedule-2", secondRunMillis));
+    }
+
+    @Test
+    public void coldStartResumesFromCheckpoints() {
+        // A previous run crashed after sending schedule 1 and checkpointing it. Schedule 2 failed an earlier run, and
+        // is checkpointed before the last processed time.
+        long schedule2CheckpointMillis = DateTime.parse("2018-03-27T18:00-07:00").getMillis();
+        doReturn(ImmutableList.of(
+                new Item().withString(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY,
+                        BridgeMasterScheduler.HASH_KEY_MASTER_SCHEDULER)
+                        .withLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME, LAST_PROCESS_TIME_MILLIS),
+                new Item().withString(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY, "schedule:schedule-1")
+                        .withLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME, MOCK_NOW_MILLIS),
+                new Item().withString(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY, "schedule:schedule-2")
+                        .withLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME, schedule2CheckpointMillis)))
+                .when(mockStatusStore).scan();
+
+        // Mock config table.
+        Item configItem1 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0,30 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-1 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
+        Item configItem2 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-2")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0,30 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-2 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-2");
+        doReturn(ImmutableList.of(configItem1, configItem2)).when(mockConfigSource).scan(0, 1);
+
+        // Execute
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+        scheduler.schedule();
+
+        // Schedule 1 isn't re-sent. Schedule 2 catches up from its own checkpoint.
+        verifySentMessages(ImmutableMap.of("dummy-q-url-2", ImmutableList.of(
+                "request-2 2018-03-27T18:30:00.000-07:00", "request-2 2018-03-27T19:00:00.000-07:00")));
+        assertEquals(getWrittenCheckpoints(), ImmutableMap.of("schedule-2", MOCK_NOW_MILLIS));
+    }
+
+    @Test
+    public void reprocessedWindowNotResent() {
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+        Item configItem = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-1 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
+        doReturn(ImmutableList.of(configItem)).when(mockConfigSource).scan(0, 1);
+        scheduler.schedule();
+        verifySentMessages(ImmutableMap.of("dummy-q-url-1", ImmutableList.of(
+                "request-1 2018-03-27T19:00:00.000-07:00")));
+
+        // The status and checkpoint writes were lost, so the next run processes the same window again. The message
+        // was already sent, so it's skipped.
+        scheduler.schedule();
+        verify(mockSqsClient, times(1)).sendMessageBatch(any(SendMessageBatchRequest.class));
+        assertEquals(scheduler.getLastRunMetrics().getDispatchResult().getNumDuplicates(), 1);
+        assertEquals(scheduler.getRecentlySentStore().size(), 1);
+    }
+
+    @Test
+    public void unprocessedCheckpointsRetried() {
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+        Item configItem = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
+        doReturn(ImmutableList.of(configItem)).when(mockConfigSource).scan(0, 1);
+
+        // First write comes back unprocessed. Second succeeds.
+        List<List<Item>> requestList = new ArrayList<>();
+        doAnswer(invocation -> {
+            List<Item> itemList = new ArrayList<>(invocation.getArgument(0));
+            requestList.add(itemList);
+            return requestList.size() == 1 ? itemList : ImmutableList.of();
+        }).when(mockStatusStore).batchPutItems(any());
+
+        scheduler.schedule();
+        assertEquals(requestList.size(), 2);
+        assertEquals(requestList.get(1), requestList.get(0));
+    }
+
+    @Test
+    public void statusNotAdvancedWhenCheckpointsNotWritten() {
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+        List<Item> configList = ImmutableList.of(makeConfig("schedule-1", "0 0 * * * ?", "request-1 ${processTime}",
+                "dummy-q-url-1"), makeConfig("schedule-2", "0 0 * * * ?", "request-2 ${processTime}",
+                "dummy-q-url-2"));
+        doReturn(configList).when(mockConfigSource).scan(0, 1);
+
+        // Sends to dummy-q-url-2 fail, and checkpoint writes always come back unprocessed.
+        when(mockSqsClient.sendMessageBatch(argThat((SendMessageBatchRequest request) ->
+                request.getQueueUrl().equals("dummy-q-url-2")))).thenThrow(RuntimeException.class);
+        doAnswer(invocation -> invocation.getArgument(0)).when(mockStatusStore).batchPutItems(any());
+        scheduler.schedule();
+
+        // Schedule 2's failure is only in memory, so the last processed time isn't advanced past it.
+        verify(mockStatusStore, never()).putItem(any());
+
+        // A cold start (with checkpoint writes working again) still sees the old last processed time, and retries
+        // schedule 2.
+        reset(mockSqsClient, mockStatusStore);
+        when(mockSqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(
+                new SendMessageBatchResult());
+        doReturn(ImmutableList.of()).when(mockStatusStore).scan();
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+        scheduler = makeScheduler();
+        scheduler.schedule();
+
+        assertEquals(getSentMessages().get("dummy-q-url-2"), ImmutableList.of(
+                "request-2 2018-03-27T19:00:00.000-07:00"));
+        assertEquals(getWrittenCheckpoints(), ImmutableMap.of("schedule-1", MOCK_NOW_MILLIS, "schedule-2",
+                MOCK_NOW_MILLIS));
+        verify(mockStatusStore).putItem(any());
+    }
+
+    @Test
+    public void backfillAfterOutage() {
+        // The scheduler was down for 2 hours. Schedule 1 fires every minute, which is too many fire times to process
+        // inline. Schedule 2 fires hourly.
+        long outageStartMillis = DateTime.parse("2018-03-27T17:00-07:00").getMillis();
+        mockStatusWithLastProcessedTime(outageStartMillis);
+        Item configItem1 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 * * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-1 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
+        Item configItem2 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-2")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-2 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-2");
+        doReturn(ImmutableList.of(configItem1, configItem2)).when(mockConfigSource).scan(0, 1);
+
+        // Execute
+        scheduler.setBackfillChunkSize(50);
+        scheduler.setBackfillMaxMessagesPerSecond(10);
+        scheduler.schedule();
+
+        // Every minute is sent for schedule 1, in order. Schedule 2 is processed inline.
+        verifySentMessages(ImmutableMap.of(
+                "dummy-q-url-1", getMinutelyMessages("request-1", outageStartMillis, MOCK_NOW_MILLIS),
+                "dummy-q-url-2", ImmutableList.of("request-2 2018-03-27T18:00:00.000-07:00",
+                        "request-2 2018-03-27T19:00:00.000-07:00")));
+
+        // Schedule 1 is checkpointed after each full chunk, then at now.
+        assertEquals(getWrittenCheckpointList("schedule-1"), ImmutableList.of(
+                DateTime.parse("2018-03-27T17:50-07:00").getMillis(),
+                DateTime.parse("2018-03-27T18:40-07:00").getMillis(), MOCK_NOW_MILLIS));
+        assertEquals(getWrittenCheckpointList("schedule-2"), ImmutableList.of(MOCK_NOW_MILLIS));
+
+        // Sends were rate limited, and are included in the metrics.
+        verify(scheduler, atLeastOnce()).sleepMillis(anyLong());
+        assertEquals(scheduler.getLastRunMetrics().toEmfJson("test", MOCK_NOW_MILLIS).contains(
+                "\"MessagesSent\":122"), true);
+    }
+
+    @Test
+    public void interruptedBackfillResumesFromLastChunk() {
+        long outageStartMillis = DateTime.parse("2018-03-27T17:00-07:00").getMillis();
+        mockStatusWithLastProcessedTime(outageStartMillis);
+        Item configItem = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 * * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-1 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
+        doReturn(ImmutableList.of(configItem)).when(mockConfigSource).scan(0, 1);
+
+        // The third chunk fails to send.
+        when(mockSqsClient.sendMessageBatch(argThat((SendMessageBatchRequest request) -> request.getEntries()
+                .stream().anyMatch(entry -> entry.getMessageBody().contains("17:25"))))).thenThrow(
+                RuntimeException.class);
+
+        // First run stops after the first 2 chunks.
+        scheduler.setBackfillChunkSize(10);
+        scheduler.schedule();
+        long lastChunkMillis = DateTime.parse("2018-03-27T17:20-07:00").getMillis();
+        assertEquals(getWrittenCheckpointList("schedule-1"), ImmutableList.of(
+                DateTime.parse("2018-03-27T17:10-07:00").getMillis(), lastChunkMillis));
+
+        // Second run, half an hour later, resumes after the last chunk.
+        long secondRunMillis = DateTime.parse("2018-03-27T19:30-07:00").getMillis();
+        DateTimeUtils.setCurrentMillisFixed(secondRunMillis);
+        try {
+            reset(mockSqsClient);
+            when(mockSqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(
+                    new SendMessageBatchResult());
+            reset(mockStatusStore);
+            doReturn(ImmutableList.of()).when(mockStatusStore).scan();
+            doReturn(ImmutableList.of(configItem)).when(mockConfigSource).scan(0, 1);
+            mockStatusWithLastProcessedTime(MOCK_NOW_MILLIS);
+            scheduler.schedule();
+        } finally {
+            DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+        }
+
+        verifySentMessages(ImmutableMap.of("dummy-q-url-1", getMinutelyMessages("request-1", lastChunkMillis,
+                secondRunMillis)));
+        assertEquals(getWrittenCheckpoints().get("schedule-1").longValue(), secondRunMillis);
+    }
+
+    @Test
+    public void deadlineDefersSchedules() {
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+        Item configItem = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0,30 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-1 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
+        doReturn(ImmutableList.of(configItem)).when(mockConfigSource).scan(0, 1);
+
+        // The budget is less than the reserve, so nothing is processed. The schedule is checkpointed at its start, and
+        // the status still moves forward.
+        scheduler.setDeadlineReserveMillis(10000);
+        scheduler.schedule(5000);
+        verify(mockSqsClient, never()).sendMessageBatch(any(SendMessageBatchRequest.class));
+        assertEquals(getWrittenCheckpoints(), ImmutableMap.of("schedule-1", LAST_PROCESS_TIME_MILLIS));
+        verify(mockStatusStore).putItem(argThat((Item item) -> item.getLong(
+                BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME) == MOCK_NOW_MILLIS));
+        assertEquals(scheduler.getLastRunMetrics().toEmfJson("test", MOCK_NOW_MILLIS).contains(
+                "\"DeferredSchedules\":1"), true);
+
+        // Next run has time, and catches up from the checkpoint.
+        reset(mockStatusStore);
+        doReturn(ImmutableList.of()).when(mockStatusStore).scan();
+        doReturn(ImmutableList.of(configItem)).when(mockConfigSource).scan(0, 1);
+        mockStatusWithLastProcessedTime(MOCK_NOW_MILLIS);
+        scheduler.schedule(60000);
+        verifySentMessages(ImmutableMap.of("dummy-q-url-1", ImmutableList.of(
+                "request-1 2018-03-27T19:00:00.000-07:00")));
+        assertEquals(getWrittenCheckpoints().get("schedule-1").longValue(), MOCK_NOW_MILLIS);
+    }
+
+    @Test
+    public void deadlineDefersLowPriorityFirst() {
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+        Item lowConfig = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "low-schedule")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "low ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_PRIORITY, "low");
+        Item highConfig = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "high-schedule")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "high ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_PRIORITY, "high");
+        doReturn(ImmutableList.of(lowConfig, highConfig)).when(mockConfigSource).scan(0, 1);
+
+        // Processing a schedule is slow enough that the budget runs out after the first one.
+        doAnswer(invocation -> new SqsDispatcher(mockSqsClient) {
+            @Override
+            public synchronized void add(DispatchRequest request) {
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException ex) {
+                    throw new IllegalStateException(ex);
+                }
+                super.add(request);
+            }
+        }).when(scheduler).createDispatcher();
+        scheduler.setDeadlineReserveMillis(0);
+        scheduler.schedule(200);
+
+        // The high priority schedule is processed first, even though it comes second in the table. The low priority
+        // schedule is deferred.
+        verifySentMessages(ImmutableMap.of("dummy-q-url-1", ImmutableList.of("high 2018-03-27T19:00:00.000-07:00")));
+        assertEquals(getWrittenCheckpoints(), ImmutableMap.of("high-schedule", MOCK_NOW_MILLIS, "low-schedule",
+                LAST_PROCESS_TIME_MILLIS));
+        assertEquals(scheduler.getLastRunMetrics().getLaneHistogram(Priority.HIGH).getCount(), 1);
+        assertEquals(scheduler.getLastRunMetrics().getLaneHistogram(Priority.LOW).getCount(), 0);
+    }
+
+    @Test
+    public void deadlineStopsBackfillAfterChunk() {
+        long outageStartMillis = DateTime.parse("2018-03-27T17:00-07:00").getMillis();
+        mockStatusWithLastProcessedTime(outageStartMillis);
+        Item configItem = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 * * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-1 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
+        doReturn(ImmutableList.of(configItem)).when(mockConfigSource).scan(0, 1);
+
+        // Sends are slow enough that the budget runs out during the first chunk.
+        when(mockSqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenAnswer(invocation -> {
+            Thread.sleep(300);
+            return new SendMessageBatchResult();
+        });
+
+        scheduler.setBackfillChunkSize(10);
+        scheduler.setDeadlineReserveMillis(0);
+        scheduler.schedule(200);
+
+        // The first chunk is sent and checkpointed. The rest is left for the next run.
+        verifySentMessages(ImmutableMap.of("dummy-q-url-1", getMinutelyMessages("request-1", outageStartMillis,
+                DateTime.parse("2018-03-27T17:10-07:00").getMillis())));
+        assertEquals(getWrittenCheckpointList("schedule-1"), ImmutableList.of(
+                DateTime.parse("2018-03-27T17:10-07:00").getMillis()));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidDeadlineReserve() {
+        scheduler.setDeadlineReserveMillis(-1);
+    }
+
+    @Test
+    public void configCacheRereadsOnlyChangedConfigs() {
+        Item configItem1 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0,30 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-1 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
+        Item configItem2 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-2")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0 0 * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-2 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-2");
+        doReturn(ImmutableList.of(configItem1, configItem2)).when(mockConfigSource)
+                .scan(0, 1);
+        mockConfigVersion(new Item().withLong(ConfigCache.KEY_CONFIG_VERSION, 1));
+
+        // First run does a full scan.
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+        scheduler.schedule();
+        FireTimeIndex fireTimeIndex = scheduler.getFireTimeIndex();
+        ScheduleConfig scheduleConfig2 = fireTimeIndex.get("schedule-2").getConfig();
+
+        // Second run. Version hasn't changed, so there's no scan.
+        mockStatusWithLastProcessedTime(MOCK_NOW_MILLIS);
+        scheduler.schedule();
+        verify(mockConfigSource, times(1)).scan(0, 1);
+
+        // Third run. Schedule 1 changed, and schedule 3 was deleted before we ever saw it. Only those are re-read.
+        mockConfigVersion(new Item().withLong(ConfigCache.KEY_CONFIG_VERSION, 3).withMap(ConfigCache.KEY_CHANGE_LOG,
+                ImmutableMap.of("schedule-1", 2, "schedule-3", 3)));
+        Item changedConfigItem1 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 15 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-1 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
+        when(mockConfigSource.getConfig("schedule-1")).thenReturn(changedConfigItem1);
+        scheduler.schedule();
+
+        verify(mockConfigSource, times(1)).scan(0, 1);
+        verify(mockConfigSource, times(2)).getConfig(any());
+        assertEquals(fireTimeIndex.size(), 2);
+        assertEquals(fireTimeIndex.get("schedule-1").getConfig().getCronSchedule(), "0 15 * * * ?");
+        assertSame(fireTimeIndex.get("schedule-2").getConfig(), scheduleConfig2);
+    }
+
+    @Test
+    public void coldStartFromConfigSnapshot() throws Exception {
+        File snapshotFile = new File(Files.createTempDirectory("BridgeMasterSchedulerTest").toFile(),
+                "config.snapshot");
+        Item configItem = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0,30 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
+        doReturn(ImmutableList.of(configItem)).when(mockConfigSource).scan(0, 1);
+        mockConfigVersion(new Item().withLong(ConfigCache.KEY_CONFIG_VERSION, 1));
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+
+        // First scheduler scans the config table, and writes the snapshot.
+        scheduler.setConfigSnapshotFile(snapshotFile);
+        scheduler.schedule();
+        verify(mockConfigSource).scan(0, 1);
+        assertEquals(new ConfigSnapshotFile(snapshotFile).read().getConfigVersion(), 1);
+
+        // A new scheduler (cold start) loads configs from the snapshot, without a scan.
+        reset(mockSqsClient);
+        when(mockSqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(
+                new SendMessageBatchResult());
+        BridgeMasterScheduler coldScheduler = makeScheduler();
+        coldScheduler.setConfigSnapshotFile(snapshotFile);
+        coldScheduler.schedule();
+        verify(mockConfigSource, times(1)).scan(anyInt(), anyInt());
+        verifySentMessages(ImmutableMap.of("dummy-q-url-1", ImmutableList.of("request-1")));
+
+        // If the config version changed and there's no change log, the snapshot is stale, and we scan.
+        mockConfigVersion(new Item().withLong(ConfigCache.KEY_CONFIG_VERSION, 2));
+        BridgeMasterScheduler staleScheduler = makeScheduler();
+        staleScheduler.setConfigSnapshotFile(snapshotFile);
+        staleScheduler.schedule();
+        verify(mockConfigSource, times(2)).scan(0, 1);
+        assertEquals(new ConfigSnapshotFile(snapshotFile).read().getConfigVersion(), 2);
+    }
+
+    @Test
+    public void corruptConfigSnapshotFallsBackToScan() throws Exception {
+        File snapshotFile = File.createTempFile("BridgeMasterSchedulerTest", ".snapshot");
+        Files.write(snapshotFile.toPath(), new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+
+        Item configItem = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0,30 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
+        doReturn(ImmutableList.of(configItem)).when(mockConfigSource).scan(0, 1);
+        mockConfigVersion(new Item().withLong(ConfigCache.KEY_CONFIG_VERSION, 1));
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+
+        scheduler.setConfigSnapshotFile(snapshotFile);
+        scheduler.schedule();
+        verify(mockConfigSource).scan(0, 1);
+        verifySentMessages(ImmutableMap.of("dummy-q-url-1", ImmutableList.of("request-1")));
+
+        // The corrupt snapshot was replaced.
+        assertEquals(new ConfigSnapshotFile(snapshotFile).read().getConfigItems(), ImmutableList.of(configItem));
+    }
+
+    @Test
+    public void outboxClearedAfterRun() throws Exception {
+        File outboxFile = new File(Files.createTempDirectory("BridgeMasterSchedulerTest").toFile(), "outbox.log");
+        scheduler.setOutboxFile(outboxFile);
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+        doReturn(ImmutableList.of(makeConfig("schedule-1", "0 0,30 * * * ?",
+                "request-1 ${processTime}", "dummy-q-url-1"))).when(
+                mockConfigSource).scan(0, 1);
+
+        scheduler.schedule();
+        verifySentMessages(ImmutableMap.of("dummy-q-url-1", ImmutableList.of(
+                "request-1 2018-03-27T19:00:00.000-07:00")));
+        assertFalse(outboxFile.exists());
+    }
+
+    @Test
+    public void outboxKeptWhenStatusWriteFails() throws Exception {
+        File outboxFile = new File(Files.createTempDirectory("BridgeMasterSchedulerTest").toFile(), "outbox.log");
+        scheduler.setOutboxFile(outboxFile);
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+        doReturn(ImmutableList.of(makeConfig("schedule-1", "0 0,30 * * * ?",
+                "request-1 ${processTime}", "dummy-q-url-1"))).when(
+                mockConfigSource).scan(0, 1);
+        doThrow(new RuntimeException("test exception")).when(mockStatusStore).putItem(any());
+
+        try {
+            scheduler.schedule();
+            fail("expected exception");
+        } catch (RuntimeException ex) {
+            // Expected.
+        }
+
+        // The request was sent, and the schedule was resolved through now.
+        OutboxLog.Contents contents = new OutboxLog(outboxFile).read();
+        assertTrue(contents.getUnsentRequests().isEmpty());
+        assertEquals(contents.getSentDedupIds(), ImmutableSet.of(DispatchRequest.makeDedupId("schedule-1",
+                MOCK_NOW_MILLIS)));
+        assertEquals(contents.getResolvedMillisByScheduleId(), ImmutableMap.of("schedule-1", MOCK_NOW_MILLIS));
+    }
+
+    @Test
+    public void coldStartRecoversOutbox() throws Exception {
+        // A run at the same time died while sending. It resolved both schedules, but only schedule-1's request was
+        // sent, and nothing was checkpointed.
+        File outboxFile = new File(Files.createTempDirectory("BridgeMasterSchedulerTest").toFile(), "outbox.log");
+        OutboxLog deadRunLog = new OutboxLog(outboxFile);
+        deadRunLog.appendRequests(ImmutableList.of(
+                new DispatchRequest("schedule-1", "dummy-q-url-1", new DateTime(MOCK_NOW_MILLIS, DateTimeZone.UTC),
+                        "request-1 2018-03-27T19:00:00.000-07:00"),
+                new DispatchRequest("schedule-2", "dummy-q-url-2", DateTime.parse("2018-03-27T18:45-07:00")
+                        .withZone(DateTimeZone.UTC), "request-2 2018-03-27T18:45:00.000-07:00")));
+        deadRunLog.appendSent(ImmutableList.of(DispatchRequest.makeDedupId("schedule-1", MOCK_NOW_MILLIS)));
+        deadRunLog.appendResolved(MOCK_NOW_MILLIS, ImmutableList.of("schedule-1", "schedule-2"));
+
+        InMemoryStatusStore statusStore = makeSharedStatusStore();
+        scheduler.setStatusStore(statusStore);
+        scheduler.setOutboxFile(outboxFile);
+        doReturn(ImmutableList.of(makeConfig("schedule-1", "0 0,30 * * * ?",
+                "request-1 ${processTime}", "dummy-q-url-1"),
+                makeConfig("schedule-2",
+                "0 15,45 * * * ?", "request-2 ${processTime}", "dummy-q-url-2"))).when(mockConfigSource).scan(0, 1);
+
+        scheduler.schedule();
+
+        // Only the unsent request is sent. Both schedules are checkpointed, and the outbox is cleared.
+        verifySentMessages(ImmutableMap.of("dummy-q-url-2", ImmutableList.of(
+                "request-2 2018-03-27T18:45:00.000-07:00")));
+        verify(mockSqsClient, times(1)).sendMessageBatch(any(SendMessageBatchRequest.class));
+        for (String oneScheduleId : ImmutableList.of("schedule-1", "schedule-2")) {
+            assertEquals(statusStore.getItem(ScheduleCheckpoints.HASH_KEY_SCHEDULE_PREFIX + oneScheduleId).getLong(
+                    BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME), MOCK_NOW_MILLIS);
+        }
+        assertEquals(statusStore.getItem(BridgeMasterScheduler.HASH_KEY_MASTER_SCHEDULER).getLong(
+                BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME), MOCK_NOW_MILLIS);
+        assertFalse(outboxFile.exists());
+    }
+
+    @Test
+    public void outboxRecoveredAfterCheckpointsLoaded() throws Exception {
+        // A run at the same time sent schedule-1's request and resolved it, but died before checkpointing it. The
+        // status table has schedule-1's checkpoint from the run before.
+        File outboxFile = new File(Files.createTempDirectory("BridgeMasterSchedulerTest").toFile(), "outbox.log");
+        OutboxLog deadRunLog = new OutboxLog(outboxFile);
+        deadRunLog.appendRequests(ImmutableList.of(new DispatchRequest("schedule-1", "dummy-q-url-1",
+                new DateTime(MOCK_NOW_MILLIS, DateTimeZone.UTC), "request-1 2018-03-27T19:00:00.000-07:00")));
+        deadRunLog.appendSent(ImmutableList.of(DispatchRequest.makeDedupId("schedule-1", MOCK_NOW_MILLIS)));
+        deadRunLog.appendResolved(MOCK_NOW_MILLIS, ImmutableList.of("schedule-1"));
+        scheduler.setOutboxFile(outboxFile);
+
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+        doReturn(ImmutableList.of(new Item()
+                .withString(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY, "schedule:schedule-1")
+                .withLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME, LAST_PROCESS_TIME_MILLIS)))
+                .when(mockStatusStore).scan();
+        doReturn(ImmutableList.of(makeConfig("schedule-1", "0 0,30 * * * ?", "request-1 ${processTime}",
+                "dummy-q-url-1"))).when(mockConfigSource).scan(0, 1);
+
+        // Recovery's checkpoint write fails. Later writes succeed.
+        AtomicInteger numBatchPuts = new AtomicInteger();
+        doAnswer(invocation -> numBatchPuts.incrementAndGet() <= BridgeMasterScheduler.MAX_BATCH_WRITE_ATTEMPTS ?
+                invocation.getArgument(0) : ImmutableList.of()).when(mockStatusStore).batchPutItems(any());
+
+        scheduler.schedule();
+
+        // The recovered checkpoint isn't replaced by the loaded one, so schedule-1 isn't resolved again. It's written
+        // by the run's own checkpoint write, and the outbox is cleared.
+        verifyZeroInteractions(mockSqsClient);
+        assertEquals(scheduler.getLastRunMetrics().getDispatchResult().getNumDuplicates(), 0);
+        List<Long> checkpointList = getWrittenCheckpointList("schedule-1");
+        assertEquals(checkpointList.size(), BridgeMasterScheduler.MAX_BATCH_WRITE_ATTEMPTS + 1);
+        assertEquals(checkpointList.get(checkpointList.size() - 1).longValue(), MOCK_NOW_MILLIS);
+        verify(mockStatusStore).putItem(any());
+        assertFalse(outboxFile.exists());
+    }
+
+    @Test
+    public void parallelConfigScan() {
+        // Mock status table.
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+
+        // Each segment has one config.
+        for (int i = 0; i < 3; i++) {
+            Item configItem = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-" + i)
+                    .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0 * * * ?")
+                    .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-" + i)
+                    .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-" + i);
+            doReturn(ImmutableList.of(configItem)).when(mockConfigSource).scan(i, 3);
+        }
 
         // Execute
+        scheduler.setConfigScanSegments(3);
         scheduler.schedule();
 
-        // Verify 2 calls to SQS.
-        verify(mockSqsClient).sendMessage("dummy-q-url-1", "request-1 2018-03-27T19:00:00.000-07:00");
-        verify(mockSqsClient).sendMessage("dummy-q-url-2", "request-2 2018-03-27T18:45:00.000-07:00");
-        verifyNoMoreInteractions(mockSqsClient);
+        // Configs from every segment were processed.
+        verifySentMessages(ImmutableMap.of("dummy-q-url-0", ImmutableList.of("request-0"),
+                "dummy-q-url-1", ImmutableList.of("request-1"), "dummy-q-url-2", ImmutableList.of("request-2")));
+        assertEquals(scheduler.getFireTimeIndex().size(), 3);
+    }
+
+    @Test
+    public void fullScanSyncedAsConfigsArrive() {
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+
+        // When the scan returns schedule 2, schedule 1 should already be in the index.
+        Item configItem1 = makeConfig("schedule-1", "0 0 * * * ?", "request-1", "dummy-q-url-1");
+        Item configItem2 = makeConfig("schedule-2", "0 0 * * * ?", "request-2", "dummy-q-url-2");
+        List<Boolean> indexedBeforeScanEndList = new ArrayList<>();
+        Iterable<Item> scan = () -> new Iterator<Item>() {
+            private int numReturned = 0;
+
+            @Override
+            public boolean hasNext() {
+                return numReturned < 2;
+            }
+
+            @Override
+            public Item next() {
+                if (numReturned++ == 0) {
+                    return configItem1;
+                }
+                indexedBeforeScanEndList.add(scheduler.getFireTimeIndex().get("schedule-1") != null);
+                return configItem2;
+            }
+        };
+        doReturn(scan).when(mockConfigSource).scan(0, 1);
+
+        scheduler.schedule();
+        assertEquals(indexedBeforeScanEndList, ImmutableList.of(true));
+        assertEquals(scheduler.getFireTimeIndex().size(), 2);
+        verifySentMessages(ImmutableMap.of("dummy-q-url-1", ImmutableList.of("request-1"),
+                "dummy-q-url-2", ImmutableList.of("request-2")));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidConfigScanSegments() {
+        scheduler.setConfigScanSegments(0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidBackfillChunkSize() {
+        scheduler.setBackfillChunkSize(0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidBackfillMaxMessagesPerSecond() {
+        scheduler.setBackfillMaxMessagesPerSecond(-1);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidConcurrency() {
+        scheduler.setConcurrency(0);
+    }
+
+    @Test
+    public void parallelMode() {
+        scheduler.setConcurrency(4);
+
+        // Mock status table.
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+
+        // Mock config table. 10 schedules across 2 queues. Schedule 0 is broken (bad cron expression).
+        List<Item> configItemList = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            configItemList.add(new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-" + i)
+                    .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, i == 0 ? "bad cron" :
+                            "0 0 * * * ?")
+                    .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-" + i +
+                            " ${processTime}")
+                    .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-" + (i % 2)));
+        }
+        doReturn(configItemList).when(mockConfigSource).scan(0, 1);
+
+        // Execute
+        scheduler.schedule();
+
+        // Verify messages. Order within a queue depends on thread scheduling, so sort before comparing.
+        Map<String, List<String>> sentMessagesByQueueUrl = getSentMessages();
+        assertEquals(sentMessagesByQueueUrl.keySet().size(), 2);
+        List<String> queue0MessageList = new ArrayList<>(sentMessagesByQueueUrl.get("dummy-q-url-0"));
+        List<String> queue1MessageList = new ArrayList<>(sentMessagesByQueueUrl.get("dummy-q-url-1"));
+        Collections.sort(queue0MessageList);
+        Collections.sort(queue1MessageList);
+        assertEquals(queue0MessageList, ImmutableList.of("request-2 2018-03-27T19:00:00.000-07:00",
+                "request-4 2018-03-27T19:00:00.000-07:00", "request-6 2018-03-27T19:00:00.000-07:00",
+                "request-8 2018-03-27T19:00:00.000-07:00"));
+        assertEquals(queue1MessageList, ImmutableList.of("request-1 2018-03-27T19:00:00.000-07:00",
+                "request-3 2018-03-27T19:00:00.000-07:00", "request-5 2018-03-27T19:00:00.000-07:00",
+                "request-7 2018-03-27T19:00:00.000-07:00", "request-9 2018-03-27T19:00:00.000-07:00"));
+
+        // Status table is updated after everything is done.
+        ArgumentCaptor<Item> statusItemCaptor = ArgumentCaptor.forClass(Item.class);
+        verify(mockStatusStore).putItem(statusItemCaptor.capture());
+        assertEquals(statusItemCaptor.getValue().getLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME),
+                MOCK_NOW_MILLIS);
+    }
+
+    @Test
+    public void asyncSendMode() {
+        // Async sends call the mock SQS client on another thread.
+        ExecutorService sendExecutor = Executors.newFixedThreadPool(2);
+        AsyncMessageSink asyncMessageSink = new AsyncMessageSink() {
+            @Override
+            public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+                return mockSqsClient.sendMessageBatch(request);
+            }
+
+            @Override
+            public void sendMessageBatchAsync(SendMessageBatchRequest request,
+                    AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult> handler) {
+                sendExecutor.execute(() -> {
+                    try {
+                        handler.onSuccess(request, mockSqsClient.sendMessageBatch(request));
+                    } catch (RuntimeException ex) {
+                        handler.onError(ex);
+                    }
+                });
+            }
+        };
+        scheduler.setMessageSink(asyncMessageSink);
+        scheduler.setAsyncSendWindow(2);
+        doAnswer(invocation -> {
+            SqsDispatcher dispatcher = new SqsDispatcher(asyncMessageSink, scheduler.getDispatchController());
+            dispatcher.setRetryDelayMillis(0);
+            return dispatcher;
+        }).when(scheduler).createDispatcher();
+
+        // Mock status table.
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+
+        // Mock config table. 25 schedules on the same queue, which is 3 batches.
+        List<Item> configItemList = new ArrayList<>();
+        List<String> expectedMessageList = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            configItemList.add(new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-" + i)
+                    .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0 * * * ?")
+                    .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-" + i +
+                            " ${processTime}")
+                    .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1"));
+            expectedMessageList.add("request-" + i + " 2018-03-27T19:00:00.000-07:00");
+        }
+        doReturn(configItemList).when(mockConfigSource).scan(0, 1);
+
+        // Execute
+        try {
+            scheduler.schedule();
+        } finally {
+            sendExecutor.shutdown();
+        }
+
+        // Every message was sent before the status table was updated. Schedules are processed in schedule ID order,
+        // so sort before comparing.
+        List<String> sentMessageList = new ArrayList<>(getSentMessages().get("dummy-q-url-1"));
+        Collections.sort(sentMessageList);
+        Collections.sort(expectedMessageList);
+        assertEquals(sentMessageList, expectedMessageList);
+        verify(mockSqsClient, times(3)).sendMessageBatch(any(SendMessageBatchRequest.class));
+        ArgumentCaptor<Item> statusItemCaptor = ArgumentCaptor.forClass(Item.class);
+        verify(mockStatusStore).putItem(statusItemCaptor.capture());
+        assertEquals(statusItemCaptor.getValue().getLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME),
+                MOCK_NOW_MILLIS);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidAsyncSendWindow() {
+        scheduler.setAsyncSendWindow(-1);
+    }
+
+    @Test
+    public void badConfigDoesNotBlockOtherSchedules() {
+        // Mock status table.
+        mockStatusWithLastProcessedTime(LAST_PROCESS_TIME_MILLIS);
+
+        // Mock config table. The first config has no request template.
+        Item configItem1 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0,30 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
+
+        String requestTemplate2 = "request-2 ${processTime}";
+        Item configItem2 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-2")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 15,45 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, requestTemplate2)
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-2");
+
+        doReturn(ImmutableList.of(configItem1, configItem2)).when(mockConfigSource).scan(0, 1);
+
+        // Execute
+        scheduler.schedule();
+
+        // Verify only the second schedule was sent.
+        verifySentMessages(ImmutableMap.of("dummy-q-url-2", ImmutableList.of(
+                "request-2 2018-03-27T18:45:00.000-07:00")));
+    }
+
+    @Test
+    public void shardedInstancesSplitSchedules() {
+        // Shared status store. Lease rows start out empty, so shards start from the singleton status row.
+        InMemoryStatusStore statusStore = makeSharedStatusStore();
+
+        // Mock config table. 6 schedules, each with its own queue, spread over both shards.
+        List<Item> configList = new ArrayList<>();
+        ImmutableMap.Builder<String, List<String>> expectedMessagesBuilder = ImmutableMap.builder();
+        Set<Integer> shardSet = new HashSet<>();
+        for (int i = 1; i <= 6; i++) {
+            configList.add(new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-" + i)
+                    .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0,30 * * * ?")
+                    .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-" + i +
+                            " ${processTime}")
+                    .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-" + i));
+            expectedMessagesBuilder.put("dummy-q-url-" + i, ImmutableList.of("request-" + i +
+                    " 2018-03-27T19:00:00.000-07:00"));
+            shardSet.add(ShardLeases.getShard("schedule-" + i, 2));
+        }
+        assertEquals(shardSet, ImmutableSet.of(0, 1));
+
+        doReturn(configList).when(mockConfigSource).scan(0, 1);
+
+        // Two instances, each claiming one of the two shards.
+        BridgeMasterScheduler schedulerB = makeScheduler();
+        for (BridgeMasterScheduler oneScheduler : ImmutableList.of(scheduler, schedulerB)) {
+            oneScheduler.setNumShards(2);
+            oneScheduler.setMaxShardsPerInstance(1);
+            oneScheduler.setStatusStore(statusStore);
+        }
+        scheduler.setInstanceId("instance-a");
+        schedulerB.setInstanceId("instance-b");
+
+        // Execute
+        scheduler.schedule();
+        schedulerB.schedule();
+
+        // Every schedule was sent once, by one of the instances.
+        verifySentMessages(expectedMessagesBuilder.build());
+        assertEquals(scheduler.getFireTimeIndex().size() + schedulerB.getFireTimeIndex().size(), 6);
+
+        // Each shard has its own owner and watermark. The singleton status row isn't written.
+        Set<String> ownerIdSet = new HashSet<>();
+        for (int shard = 0; shard < 2; shard++) {
+            Item leaseRow = statusStore.getItem(ShardLeases.HASH_KEY_SHARD_PREFIX + shard);
+            ownerIdSet.add(leaseRow.getString(ShardLeases.KEY_LEASE_OWNER));
+            assertEquals(leaseRow.getLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME), MOCK_NOW_MILLIS);
+        }
+        assertEquals(ownerIdSet, ImmutableSet.of("instance-a", "instance-b"));
+        assertEquals(statusStore.getItem(BridgeMasterScheduler.HASH_KEY_MASTER_SCHEDULER).getLong(
+                BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME), LAST_PROCESS_TIME_MILLIS);
+    }
+
+    @Test
+    public void shardTakenOverAfterLeaseExpires() {
+        // Shared status store.
+        InMemoryStatusStore statusStore = makeSharedStatusStore();
+
+        // Mock config table. Schedule fires every minute.
+        Item configItem = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-1")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 * * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-1 ${processTime}")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-1");
+
+        doReturn(ImmutableList.of(configItem)).when(mockConfigSource).scan(0, 1);
+
+        // Two instances. Either one may claim every shard.
+        BridgeMasterScheduler schedulerB = makeScheduler();
+        for (BridgeMasterScheduler oneScheduler : ImmutableList.of(scheduler, schedulerB)) {
+            oneScheduler.setNumShards(2);
+            oneScheduler.setShardLeaseMillis(10 * 60 * 1000);
+            oneScheduler.setStatusStore(statusStore);
+        }
+        scheduler.setInstanceId("instance-a");
+        schedulerB.setInstanceId("instance-b");
+
+        // A claims both shards. B has nothing to do while A's leases are live.
+        scheduler.schedule();
+        schedulerB.schedule();
+        verifySentMessages(ImmutableMap.of("dummy-q-url-1", getMinutelyMessages("request-1",
+                LAST_PROCESS_TIME_MILLIS, MOCK_NOW_MILLIS)));
+        assertNull(schedulerB.getFireTimeIndex());
+
+        // A stops running. Once its leases expire, B takes over, and resumes from A's watermark.
+        long takeoverMillis = MOCK_NOW_MILLIS + 11 * 60 * 1000;
+        reset(mockSqsClient);
+        when(mockSqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(
+                new SendMessageBatchResult());
+        DateTimeUtils.setCurrentMillisFixed(takeoverMillis);
+        try {
+            schedulerB.schedule();
+        } finally {
+            DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+        }
+        verifySentMessages(ImmutableMap.of("dummy-q-url-1", getMinutelyMessages("request-1", MOCK_NOW_MILLIS,
+                takeoverMillis)));
+        for (int shard = 0; shard < 2; shard++) {
+            Item leaseRow = statusStore.getItem(ShardLeases.HASH_KEY_SHARD_PREFIX + shard);
+            assertEquals(leaseRow.getString(ShardLeases.KEY_LEASE_OWNER), "instance-b");
+            assertEquals(leaseRow.getLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME), takeoverMillis);
+        }
+    }
+
+    @Test
+    public void checkpointsDroppedForShardTakenOverMidRun() {
+        // Shared status store.
+        InMemoryStatusStore statusStore = makeSharedStatusStore();
+
+        // Mock config table. Schedule 1 is in shard 0, and schedule 3 is in shard 1.
+        List<Item> configList = new ArrayList<>();
+        for (int i : new int[] { 1, 3 }) {
+            configList.add(new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-" + i)
+                    .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0,30 * * * ?")
+                    .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request-" + i +
+                            " ${processTime}")
+                    .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url-" + i));
+        }
+        assertEquals(ShardLeases.getShard("schedule-1", 2), 0);
+        assertEquals(ShardLeases.getShard("schedule-3", 2), 1);
+
+        doReturn(configList).when(mockConfigSource).scan(0, 1);
+
+        // Two instances. A claims both shards. B claims one.
+        BridgeMasterScheduler schedulerB = makeScheduler();
+        for (BridgeMasterScheduler oneScheduler : ImmutableList.of(scheduler, schedulerB)) {
+            oneScheduler.setNumShards(2);
+            oneScheduler.setShardLeaseMillis(10 * 60 * 1000);
+            oneScheduler.setStatusStore(statusStore);
+        }
+        schedulerB.setMaxShardsPerInstance(1);
+        scheduler.setInstanceId("instance-a");
+        schedulerB.setInstanceId("instance-b");
+
+        // A's first send takes so long that (by B's clock) A's leases expire, and B takes over one of the shards.
+        long takeoverMillis = MOCK_NOW_MILLIS + 11 * 60 * 1000;
+        AtomicInteger numSends = new AtomicInteger();
+        when(mockSqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenAnswer(invocation -> {
+            if (numSends.getAndIncrement() == 0) {
+                DateTimeUtils.setCurrentMillisFixed(takeoverMillis);
+                try {
+                    schedulerB.schedule();
+                } finally {
+                    DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+                }
+            }
+            return new SendMessageBatchResult();
+        });
+
+        // Execute
+        scheduler.schedule();
+
+        // B owns one shard, and its schedule's checkpoint is B's. A didn't overwrite it with its own (older) one.
+        Set<Integer> shardSetB = new HashSet<>();
+        for (int shard = 0; shard < 2; shard++) {
+            Item leaseRow = statusStore.getItem(ShardLeases.HASH_KEY_SHARD_PREFIX + shard);
+            if ("instance-b".equals(leaseRow.getString(ShardLeases.KEY_LEASE_OWNER))) {
+                shardSetB.add(shard);
+            }
+        }
+        assertEquals(shardSetB.size(), 1);
+        int shardB = shardSetB.iterator().next();
+        String scheduleIdB = shardB == 0 ? "schedule-1" : "schedule-3";
+        String scheduleIdA = shardB == 0 ? "schedule-3" : "schedule-1";
+        assertEquals(statusStore.getItem(ScheduleCheckpoints.HASH_KEY_SCHEDULE_PREFIX + scheduleIdB).getLong(
+                BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME), takeoverMillis);
+        assertEquals(statusStore.getItem(ShardLeases.HASH_KEY_SHARD_PREFIX + shardB).getLong(
+                BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME), takeoverMillis);
+
+        // A's other shard is still A's, and its checkpoint and watermark are written.
+        Item leaseRowA = statusStore.getItem(ShardLeases.HASH_KEY_SHARD_PREFIX + (1 - shardB));
+        assertEquals(leaseRowA.getString(ShardLeases.KEY_LEASE_OWNER), "instance-a");
+        assertEquals(leaseRowA.getLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME), MOCK_NOW_MILLIS);
+        assertEquals(statusStore.getItem(ScheduleCheckpoints.HASH_KEY_SCHEDULE_PREFIX + scheduleIdA).getLong(
+                BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME), MOCK_NOW_MILLIS);
+    }
+
+    // Returns the messages for a schedule that fires every minute in the window (startMillis, endMillis].
+    private static List<String> getMinutelyMessages(String requestPrefix, long startMillis, long endMillis) {
+        List<String> messageList = new ArrayList<>();
+        for (long millis = startMillis + 60 * 1000; millis <= endMillis; millis += 60 * 1000) {
+            messageList.add(requestPrefix + " " + new DateTime(millis, TemplateVariable.LOCAL_TIME_ZONE));
+        }
+        return messageList;
+    }
+
+    // Returns every checkpoint written for the given schedule, in order.
+    private List<Long> getWrittenCheckpointList(String scheduleId) {
+        List<Long> checkpointList = new ArrayList<>();
+        String hashKey = ScheduleCheckpoints.HASH_KEY_SCHEDULE_PREFIX + scheduleId;
+        for (Item checkpointItem : getWrittenCheckpointItems()) {
+            if (hashKey.equals(checkpointItem.getString(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY))) {
+                checkpointList.add(checkpointItem.getLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME));
+            }
+        }
+        return checkpointList;
+    }
+
+    // Returns the checkpoints written by the scheduler, keyed by schedule ID.
+    private Map<String, Long> getWrittenCheckpoints() {
+        Map<String, Long> checkpointsByScheduleId = new HashMap<>();
+        for (Item checkpointItem : getWrittenCheckpointItems()) {
+            String scheduleId = checkpointItem.getString(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY)
+                    .substring(ScheduleCheckpoints.HASH_KEY_SCHEDULE_PREFIX.length());
+            checkpointsByScheduleId.put(scheduleId, checkpointItem.getLong(
+                    BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME));
+        }
+        return checkpointsByScheduleId;
+    }
+
+    // Returns every checkpoint item written to the status store, in order.
+    private List<Item> getWrittenCheckpointItems() {
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<Item>> itemListCaptor = ArgumentCaptor.forClass(List.class);
+        verify(mockStatusStore, atLeastOnce()).batchPutItems(itemListCaptor.capture());
+
+        List<Item> checkpointItemList = new ArrayList<>();
+        for (List<Item> oneItemList : itemListCaptor.getAllValues()) {
+            checkpointItemList.addAll(oneItemList);
+        }
+        return checkpointItemList;
+    }
+
+    // Verifies the messages sent to SQS, keyed by queue URL. Messages within a queue are in fire time order. Retried
+    // messages are only counted once.
+    private void verifySentMessages(Map<String, List<String>> expectedMessagesByQueueUrl) {
+        assertEquals(getSentMessages(), expectedMessagesByQueueUrl);
+    }
+
+    // Gets the messages sent to SQS, keyed by queue URL. Retried messages are only counted once.
+    private Map<String, List<String>> getSentMessages() {
+        ArgumentCaptor<SendMessageBatchRequest> requestCaptor = ArgumentCaptor.forClass(
+                SendMessageBatchRequest.class);
+        verify(mockSqsClient, atLeastOnce()).sendMessageBatch(requestCaptor.capture());
+
+        Map<String, List<String>> actualMessagesByQueueUrl = new HashMap<>();
+        for (SendMessageBatchRequest oneRequest : requestCaptor.getAllValues()) {
+            List<String> actualMessageList = actualMessagesByQueueUrl.computeIfAbsent(oneRequest.getQueueUrl(),
+                    k -> new ArrayList<>());
+            for (SendMessageBatchRequestEntry oneEntry : oneRequest.getEntries()) {
+                if (!actualMessageList.contains(oneEntry.getMessageBody())) {
+                    actualMessageList.add(oneEntry.getMessageBody());
+                }
+            }
+        }
+        return actualMessagesByQueueUrl;
+    }
+
+    // Makes a scheduler spy with the mock config source, status store, and SQS client.
+    private BridgeMasterScheduler makeScheduler() {
+        BridgeMasterScheduler scheduler = spy(new BridgeMasterScheduler());
+        scheduler.setConfigSource(mockConfigSource);
+        scheduler.setStatusStore(mockStatusStore);
+        scheduler.setMessageSink(new SqsMessageSink(mockSqsClient));
+
+        // Don't wait between retries in unit tests.
+        doNothing().when(scheduler).sleepMillis(anyLong());
+        doAnswer(invocation -> {
+            SqsDispatcher dispatcher = new SqsDispatcher(mockSqsClient);
+            dispatcher.setRetryDelayMillis(0);
+            return dispatcher;
+        }).when(scheduler).createDispatcher();
+        return scheduler;
+    }
+
+    // Makes a status store for sharded schedulers to share, with the singleton status row at the last process time.
+    private static InMemoryStatusStore makeSharedStatusStore() {
+        InMemoryStatusStore statusStore = new InMemoryStatusStore();
+        statusStore.putItem(new Item()
+                .withString(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY, BridgeMasterScheduler.HASH_KEY_MASTER_SCHEDULER)
+                .withLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME, LAST_PROCESS_TIME_MILLIS));
+        return statusStore;
+    }
+
+    private void mockConfigVersion(Item metadataItem) {
+        when(mockConfigSource.getMetadata()).thenReturn(metadataItem.withString(
+                BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, ConfigCache.METADATA_SCHEDULE_ID));
+    }
+
+    private static Item makeConfig(String scheduleId, String cronSchedule, String requestTemplate,
+            String sqsQueueUrl) {
+        return new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, scheduleId)
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, cronSchedule)
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, requestTemplate)
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, sqsQueueUrl);
     }
 
     private void mockStatusWithLastProcessedTime(long lastProcessTimeMillis) {
         Item statusItem = new Item()
                 .withString(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY, BridgeMasterScheduler.HASH_KEY_MASTER_SCHEDULER)
                 .withLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME, lastProcessTimeMillis);
-        when(mockStatusTable.getItem(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY,
-                BridgeMasterScheduler.HASH_KEY_MASTER_SCHEDULER)).thenReturn(statusItem);
+        when(mockStatusStore.getItem(BridgeMasterScheduler.HASH_KEY_MASTER_SCHEDULER)).thenReturn(statusItem);
     }
 }
\ No newline at end of file
@@ -0,0 +1,170 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.testng.annotations.Test;
+
+public class ConfigCacheTest {
+    private static final long NOW_MILLIS = 1000000;
+
+    private static final Item CONFIG_1 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID,
+            "schedule-1");
+    private static final Item CONFIG_2 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID,
+            "schedule-2");
+
+    @Test
+    public void fullScanNeededUntilLoaded() {
+        ConfigCache cache = new ConfigCache();
+        assertNull(cache.getConfigs());
+        assertNull(cache.getVersion());
+        assertNull(cache.getChangedScheduleIds(makeMetadata(1), NOW_MILLIS));
+    }
+
+    @Test
+    public void fullScanWithoutMetadata() {
+        // Without a metadata row, every load is a full scan.
+        ConfigCache cache = new ConfigCache();
+        cache.applyFullScan(ImmutableList.of(CONFIG_1), null, NOW_MILLIS);
+        assertNull(cache.getVersion());
+        assertNull(cache.getChangedScheduleIds(null, NOW_MILLIS));
+        assertNull(cache.getChangedScheduleIds(makeMetadata(1), NOW_MILLIS));
+    }
+
+    @Test
+    public void fullScanSkipsMetadataRow() {
+        ConfigCache cache = new ConfigCache();
+        Item metadataItem = makeMetadata(1);
+        List<Item> configList = cache.applyFullScan(ImmutableList.of(CONFIG_1, metadataItem, CONFIG_2),
+                metadataItem, NOW_MILLIS);
+        assertEquals(configList, ImmutableList.of(CONFIG_1, CONFIG_2));
+        assertEquals(cache.getVersion().longValue(), 1);
+    }
+
+    @Test
+    public void unchanged() {
+        ConfigCache cache = new ConfigCache();
+        List<Item> configList = cache.applyFullScan(ImmutableList.of(CONFIG_1), makeMetadata(1), NOW_MILLIS);
+        assertTrue(cache.getChangedScheduleIds(makeMetadata(1), NOW_MILLIS).isEmpty());
+        assertSame(cache.getConfigs(), configList);
+    }
+
+    @Test
+    public void changed() {
+        ConfigCache cache = new ConfigCache();
+        List<Item> configList = cache.applyFullScan(ImmutableList.of(CONFIG_1, CONFIG_2), makeMetadata(2),
+                NOW_MILLIS);
+
+        // Schedule 1 changed before our version. Schedules 2 and 3 changed after.
+        Item metadataItem = makeMetadata(4).withMap(ConfigCache.KEY_CHANGE_LOG, ImmutableMap.of("schedule-1", 2,
+                "schedule-2", 3, "schedule-3", 4));
+        assertEquals(cache.getChangedScheduleIds(metadataItem, NOW_MILLIS), ImmutableSet.of("schedule-2",
+                "schedule-3"));
+
+        // Schedule 2 was deleted. Schedule 3 was added.
+        Item config3 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-3");
+        Map<String, Item> changedConfigs = new HashMap<>();
+        changedConfigs.put("schedule-2", null);
+        changedConfigs.put("schedule-3", config3);
+        List<Item> newConfigList = cache.applyChanges(changedConfigs, metadataItem);
+        assertEquals(newConfigList, ImmutableList.of(CONFIG_1, config3));
+        assertEquals(cache.getVersion().longValue(), 4);
+
+        // The old list isn't modified.
+        assertEquals(configList, ImmutableList.of(CONFIG_1, CONFIG_2));
+    }
+
+    @Test
+    public void failedFullScanKeepsCache() {
+        ConfigCache cache = new ConfigCache();
+        List<Item> configList = cache.applyFullScan(ImmutableList.of(CONFIG_1, CONFIG_2), makeMetadata(2),
+                NOW_MILLIS);
+
+        // The scan fails after returning schedule 1.
+        Iterable<Item> failingScan = () -> new Iterator<Item>() {
+            private boolean returnedConfig = false;
+
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public Item next() {
+                if (returnedConfig) {
+                    throw new IllegalStateException("test exception");
+                }
+                returnedConfig = true;
+                return CONFIG_1;
+            }
+        };
+        try {
+            cache.applyFullScan(failingScan, makeMetadata(3), NOW_MILLIS + 1000);
+            fail("expected exception");
+        } catch (IllegalStateException ex) {
+            // Expected.
+        }
+        assertSame(cache.getConfigs(), configList);
+        assertEquals(cache.getVersion().longValue(), 2);
+        assertEquals(cache.getLastFullScanMillis(), NOW_MILLIS);
+
+        // Changes are still applied to the full config list.
+        Item config3 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-3");
+        Item metadataItem = makeMetadata(3).withMap(ConfigCache.KEY_CHANGE_LOG, ImmutableMap.of("schedule-3", 3));
+        assertEquals(cache.getChangedScheduleIds(metadataItem, NOW_MILLIS), ImmutableSet.of("schedule-3"));
+        assertEquals(cache.applyChanges(ImmutableMap.of("schedule-3", config3), metadataItem), ImmutableList.of(
+                CONFIG_1, CONFIG_2, config3));
+    }
+
+    @Test
+    public void changeLogPruned() {
+        ConfigCache cache = new ConfigCache();
+        cache.applyFullScan(ImmutableList.of(CONFIG_1), makeMetadata(2), NOW_MILLIS);
+
+        // Changes after version 3 are in the log, but we don't know what happened in version 3.
+        Item metadataItem = makeMetadata(5).withLong(ConfigCache.KEY_CHANGE_LOG_START_VERSION, 3)
+                .withMap(ConfigCache.KEY_CHANGE_LOG, ImmutableMap.of("schedule-1", 5));
+        assertNull(cache.getChangedScheduleIds(metadataItem, NOW_MILLIS));
+
+        // Same if there's no change log at all.
+        assertNull(cache.getChangedScheduleIds(makeMetadata(5), NOW_MILLIS));
+    }
+
+    @Test
+    public void versionWentBackwards() {
+        ConfigCache cache = new ConfigCache();
+        cache.applyFullScan(ImmutableList.of(CONFIG_1), makeMetadata(5), NOW_MILLIS);
+        assertNull(cache.getChangedScheduleIds(makeMetadata(1), NOW_MILLIS));
+    }
+
+    @Test
+    public void fullScanTtl() {
+        ConfigCache cache = new ConfigCache();
+        cache.setFullScanTtlMillis(1000);
+        cache.applyFullScan(ImmutableList.of(CONFIG_1), makeMetadata(1), NOW_MILLIS);
+        assertTrue(cache.getChangedScheduleIds(makeMetadata(1), NOW_MILLIS + 999).isEmpty());
+        assertNull(cache.getChangedScheduleIds(makeMetadata(1), NOW_MILLIS + 1000));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidFullScanTtl() {
+        new ConfigCache().setFullScanTtlMillis(-1);
+    }
+
+    private static Item makeMetadata(long version) {
+        return new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, ConfigCache.METADATA_SCHEDULE_ID)
+                .withLong(ConfigCache.KEY_CONFIG_VERSION, version);
+    }
+}
@@ -0,0 +1,172 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.joda.time.DateTime;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ConfigSnapshotFileTest {
+    private static final DateTime PROCESS_TIME_UTC = DateTime.parse("2018-03-28T04:21:45.862Z");
+    private static final long START_MILLIS = DateTime.parse("2018-03-27T00:00Z").getMillis();
+    private static final long END_MILLIS = DateTime.parse("2018-04-03T00:00Z").getMillis();
+
+    private File file;
+
+    @BeforeMethod
+    public void before() throws IOException {
+        file = new File(Files.createTempDirectory("ConfigSnapshotFileTest").toFile(), "config.snapshot");
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        // Bitset cron with a template with variables, Quartz fallback cron, and a config without a template.
+        Item bitsetConfig = makeConfig("schedule-1", "0 0,30 * * * ?",
+                "{\"start\":\"${startOfPreviousDay}\",\"end\":\"${endOfPreviousDay}\",\"at\":\"${processTime}\"}",
+                "dummy-q-url").withString(BridgeMasterScheduler.CONFIG_KEY_PRIORITY, "high");
+        Item quartzConfig = makeConfig("schedule-2", "0 0 12 L * ?", "no variables", "dummy-q-url")
+                .withInt(BridgeMasterScheduler.CONFIG_KEY_SPREAD_SECONDS, 300)
+                .withString(BridgeMasterScheduler.CONFIG_KEY_TIME_ZONE, "Asia/Tokyo");
+        Item badConfig = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, "schedule-3")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0 0 * * ?");
+        List<Item> configList = ImmutableList.of(bitsetConfig, quartzConfig, badConfig);
+
+        Map<String, ScheduleConfig> parsedConfigs = new LinkedHashMap<>();
+        Map<String, CronEvaluator> cronEvaluators = new LinkedHashMap<>();
+        for (Item oneConfig : ImmutableList.of(bitsetConfig, quartzConfig)) {
+            ScheduleConfig scheduleConfig = ScheduleConfig.fromItem(oneConfig);
+            parsedConfigs.put(scheduleConfig.getScheduleId(), scheduleConfig);
+            cronEvaluators.put(scheduleConfig.getScheduleId(), CronEvaluator.parse(scheduleConfig.getCronSchedule()));
+        }
+
+        ConfigSnapshotFile snapshotFile = new ConfigSnapshotFile(file);
+        assertFalse(snapshotFile.exists());
+        snapshotFile.write(new ConfigSnapshotFile.Contents(42, 1234, configList, parsedConfigs, cronEvaluators));
+        assertTrue(snapshotFile.exists());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        ConfigSnapshotFile.Contents contents = snapshotFile.read();
+        assertEquals(contents.getConfigVersion(), 42);
+        assertEquals(contents.getLastFullScanMillis(), 1234);
+        assertEquals(contents.getConfigItems(), configList);
+
+        // Parsed configs render the same as the originals. Every config is still the same as its item.
+        assertEquals(contents.getParsedConfigs().keySet(), parsedConfigs.keySet());
+        for (Item oneConfig : ImmutableList.of(bitsetConfig, quartzConfig)) {
+            String scheduleId = oneConfig.getString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID);
+            ScheduleConfig readConfig = contents.getParsedConfigs().get(scheduleId);
+            assertTrue(readConfig.isSameAs(oneConfig));
+            assertEquals(readConfig.getSpreadSeconds(), parsedConfigs.get(scheduleId).getSpreadSeconds());
+            assertEquals(readConfig.getRequestTemplate().render(PROCESS_TIME_UTC),
+                    parsedConfigs.get(scheduleId).getRequestTemplate().render(PROCESS_TIME_UTC));
+        }
+
+        assertEquals(contents.getParsedConfigs().get("schedule-1").getPriority(), Priority.HIGH);
+        assertEquals(contents.getParsedConfigs().get("schedule-2").getSpreadSeconds(), 300);
+        assertEquals(contents.getParsedConfigs().get("schedule-2").getTimeZone().getID(), "Asia/Tokyo");
+
+        // Repeated strings share an instance.
+        assertSame(contents.getParsedConfigs().get("schedule-1").getSqsQueueUrl(),
+                contents.getParsedConfigs().get("schedule-2").getSqsQueueUrl());
+
+        // Only the bitset evaluator is stored, and it computes the same fire times.
+        assertEquals(contents.getCronEvaluators().keySet(), ImmutableSet.of("schedule-1"));
+        CronEvaluator readEvaluator = contents.getCronEvaluators().get("schedule-1");
+        assertTrue(readEvaluator.isBitsetEngine());
+        assertEquals(getFireTimes(readEvaluator), getFireTimes(cronEvaluators.get("schedule-1")));
+    }
+
+    @Test
+    public void nullAttributes() throws IOException {
+        Item emptyConfig = new Item();
+        ConfigSnapshotFile snapshotFile = new ConfigSnapshotFile(file);
+        snapshotFile.write(new ConfigSnapshotFile.Contents(1, 0, ImmutableList.of(emptyConfig),
+                new LinkedHashMap<>(), new LinkedHashMap<>()));
+
+        ConfigSnapshotFile.Contents contents = snapshotFile.read();
+        assertEquals(contents.getConfigItems().size(), 1);
+        assertNull(contents.getConfigItems().get(0).getString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID));
+        assertTrue(contents.getParsedConfigs().isEmpty());
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void missingFile() throws IOException {
+        new ConfigSnapshotFile(file).read();
+    }
+
+    @Test(expectedExceptions = IOException.class, expectedExceptionsMessageRegExp = ".*checksum.*")
+    public void corruptFile() throws IOException {
+        writeSimpleSnapshot();
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        bytes[bytes.length / 2] ^= 0xff;
+        Files.write(file.toPath(), bytes);
+        new ConfigSnapshotFile(file).read();
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void truncatedFile() throws IOException {
+        writeSimpleSnapshot();
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 10));
+        new ConfigSnapshotFile(file).read();
+    }
+
+    @Test(expectedExceptions = IOException.class, expectedExceptionsMessageRegExp = "Not a config snapshot")
+    public void wrongMagic() throws IOException {
+        // Valid checksum, but not a snapshot.
+        ByteBuffer buffer = ByteBuffer.allocate(12);
+        buffer.putInt(0x12345678).putInt(ConfigSnapshotFile.FORMAT_VERSION);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, 8);
+        buffer.putInt((int) crc.getValue());
+        Files.write(file.toPath(), buffer.array());
+        new ConfigSnapshotFile(file).read();
+    }
+
+    private void writeSimpleSnapshot() throws IOException {
+        Item config = makeConfig("schedule-1", "0 0 * * * ?", "request ${processTime}", "dummy-q-url");
+        ScheduleConfig scheduleConfig = ScheduleConfig.fromItem(config);
+        Map<String, ScheduleConfig> parsedConfigs = new LinkedHashMap<>();
+        parsedConfigs.put("schedule-1", scheduleConfig);
+        Map<String, CronEvaluator> cronEvaluators = new LinkedHashMap<>();
+        cronEvaluators.put("schedule-1", CronEvaluator.parse("0 0 * * * ?"));
+        new ConfigSnapshotFile(file).write(new ConfigSnapshotFile.Contents(1, 0, ImmutableList.of(config),
+                parsedConfigs, cronEvaluators));
+    }
+
+    private static List<Long> getFireTimes(CronEvaluator evaluator) {
+        long[] buffer = new long[1000];
+        int numFireTimes = evaluator.getFireTimes(START_MILLIS, END_MILLIS, buffer);
+        ImmutableList.Builder<Long> fireTimeListBuilder = ImmutableList.builder();
+        for (int i = 0; i < numFireTimes; i++) {
+            fireTimeListBuilder.add(buffer[i]);
+        }
+        return fireTimeListBuilder.build();
+    }
+
+    private static Item makeConfig(String scheduleId, String cronSchedule, String requestTemplate,
+            String sqsQueueUrl) {
+        // New strings, so that shared instances after loading come from the snapshot's string table.
+        return new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, scheduleId)
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, cronSchedule)
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, requestTemplate)
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, new String(sqsQueueUrl));
+    }
+}
@@ -0,0 +1,109 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.fail;
+
+import org.testng.annotations.Test;
+
+public class CronCacheTest {
+    @Test
+    public void hitAndMiss() {
+        CronCache cache = new CronCache();
+        CronEvaluator evaluator = cache.get("schedule-1", "0 0 * * * ?");
+        assertEquals(evaluator.getCronSchedule(), "0 0 * * * ?");
+        assertEquals(cache.getNumMisses(), 1);
+        assertEquals(cache.getNumHits(), 0);
+
+        assertSame(cache.get("schedule-1", "0 0 * * * ?"), evaluator);
+        assertEquals(cache.getNumMisses(), 1);
+        assertEquals(cache.getNumHits(), 1);
+        assertEquals(cache.size(), 1);
+    }
+
+    @Test
+    public void changedExpressionReplacesEntry() {
+        CronCache cache = new CronCache();
+        CronEvaluator evaluator1 = cache.get("schedule-1", "0 0 * * * ?");
+        CronEvaluator evaluator2 = cache.get("schedule-1", "0 30 * * * ?");
+        assertNotSame(evaluator2, evaluator1);
+        assertEquals(evaluator2.getCronSchedule(), "0 30 * * * ?");
+        assertEquals(cache.getNumMisses(), 2);
+        assertEquals(cache.size(), 1);
+    }
+
+    @Test
+    public void sameExpressionDifferentSchedules() {
+        CronCache cache = new CronCache();
+        cache.get("schedule-1", "0 0 * * * ?");
+        cache.get("schedule-2", "0 0 * * * ?");
+        assertEquals(cache.getNumMisses(), 2);
+        assertEquals(cache.size(), 2);
+    }
+
+    @Test
+    public void invalidate() {
+        CronCache cache = new CronCache();
+        CronEvaluator evaluator = cache.get("schedule-1", "0 0 * * * ?");
+        cache.invalidate("schedule-1");
+        assertEquals(cache.size(), 0);
+        assertNotSame(cache.get("schedule-1", "0 0 * * * ?"), evaluator);
+        assertEquals(cache.getNumMisses(), 2);
+    }
+
+    @Test
+    public void lruEviction() {
+        CronCache cache = new CronCache(2);
+        CronEvaluator evaluator1 = cache.get("schedule-1", "0 0 * * * ?");
+        cache.get("schedule-2", "0 0 * * * ?");
+
+        // Touch schedule-1, so schedule-2 is the least recently used.
+        cache.get("schedule-1", "0 0 * * * ?");
+        cache.get("schedule-3", "0 0 * * * ?");
+        assertEquals(cache.size(), 2);
+
+        // schedule-1 is still cached. schedule-2 was evicted.
+        assertSame(cache.get("schedule-1", "0 0 * * * ?"), evaluator1);
+        assertEquals(cache.getNumMisses(), 3);
+        cache.get("schedule-2", "0 0 * * * ?");
+        assertEquals(cache.getNumMisses(), 4);
+    }
+
+    @Test
+    public void negativeEntry() {
+        CronCache cache = new CronCache();
+        for (int i = 0; i < 3; i++) {
+            try {
+                cache.get("schedule-1", "not a cron expression");
+                fail("expected exception");
+            } catch (IllegalArgumentException ex) {
+                assertEquals(ex.getMessage().startsWith("Schedule schedule-1 has invalid cron expression"), true);
+            }
+        }
+
+        // Only parsed once.
+        assertEquals(cache.getNumMisses(), 1);
+        assertEquals(cache.getNumHits(), 2);
+        assertEquals(cache.getNumNegativeHits(), 2);
+
+        // Fixing the expression replaces the negative entry.
+        cache.get("schedule-1", "0 0 * * * ?");
+        assertEquals(cache.getNumMisses(), 2);
+    }
+
+    @Test
+    public void nullExpressionIsNegativeEntry() {
+        CronCache cache = new CronCache();
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.get("schedule-1", null);
+                fail("expected exception");
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+        assertEquals(cache.getNumMisses(), 1);
+        assertEquals(cache.getNumNegativeHits(), 1);
+    }
+}
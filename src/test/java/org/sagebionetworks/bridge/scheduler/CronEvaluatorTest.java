@@ -0,0 +1,292 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.quartz.CronScheduleBuilder;
+import org.quartz.spi.MutableTrigger;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class CronEvaluatorTest {
+    private static final long WINDOW_START_MILLIS = DateTime.parse("2018-03-27T18:30:00.000Z").getMillis();
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void nullExpression() {
+        CronEvaluator.parse(null);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidExpression() {
+        CronEvaluator.parse("0 0 25 * * ?");
+    }
+
+    @Test
+    public void nextFireTimeIsStrictlyAfter() {
+        CronEvaluator evaluator = CronEvaluator.parse("0 0,30 * * * ?");
+        long startMillis = DateTime.parse("2018-03-27T18:30:00.000Z").getMillis();
+        assertEquals(evaluator.getNextFireTimeAfter(startMillis),
+                DateTime.parse("2018-03-27T19:00:00.000Z").getMillis());
+        assertEquals(evaluator.getNextFireTimeAfter(startMillis - 1), startMillis);
+    }
+
+    @Test
+    public void evaluatedInUtc() {
+        CronEvaluator evaluator = CronEvaluator.parse("0 0 3 * * ?");
+        assertEquals(evaluator.getNextFireTimeAfter(DateTime.parse("2018-03-27T19:00:00.000-07:00").getMillis()),
+                DateTime.parse("2018-03-28T03:00:00.000Z").getMillis());
+    }
+
+    @Test
+    public void neverFiresAgain() {
+        // Specific years fall back to Quartz.
+        CronEvaluator evaluator = CronEvaluator.parse("0 0 0 1 1 ? 2017");
+        assertFalse(evaluator.isBitsetEngine());
+        assertEquals(evaluator.getNextFireTimeAfter(WINDOW_START_MILLIS), -1);
+
+        // February 31st never happens.
+        evaluator = CronEvaluator.parse("0 0 0 31 2 ?");
+        assertTrue(evaluator.isBitsetEngine());
+        assertEquals(evaluator.getNextFireTimeAfter(WINDOW_START_MILLIS), -1);
+    }
+
+    @Test
+    public void fireTimesInChunks() {
+        // Every minute, over 2 hours, in chunks of 50.
+        CronEvaluator evaluator = CronEvaluator.parse("0 * * * * ?");
+        long endMillis = WINDOW_START_MILLIS + 2 * 60 * 60 * 1000;
+        long[] buffer = new long[50];
+
+        int total = 0;
+        long chunkStartMillis = WINDOW_START_MILLIS;
+        int count;
+        while ((count = evaluator.getFireTimes(chunkStartMillis, endMillis, buffer)) > 0) {
+            for (int i = 0; i < count; i++) {
+                total++;
+                assertEquals(buffer[i], WINDOW_START_MILLIS + total * 60 * 1000);
+            }
+            chunkStartMillis = buffer[count - 1];
+        }
+        assertEquals(total, 120);
+    }
+
+    @Test
+    public void emptyWindowOrBuffer() {
+        CronEvaluator evaluator = CronEvaluator.parse("* * * * * ?");
+        assertEquals(evaluator.getFireTimes(WINDOW_START_MILLIS, WINDOW_START_MILLIS, new long[10]), 0);
+        assertEquals(evaluator.getFireTimes(WINDOW_START_MILLIS, WINDOW_START_MILLIS + 5000, new long[0]), 0);
+    }
+
+    @Test
+    public void windowStartsMidSecond() {
+        CronEvaluator evaluator = CronEvaluator.parse("* * * * * ?");
+        long[] buffer = new long[10];
+        int count = evaluator.getFireTimes(WINDOW_START_MILLIS + 500, WINDOW_START_MILLIS + 3000, buffer);
+        assertEquals(count, 3);
+        assertEquals(buffer[0], WINDOW_START_MILLIS + 1000);
+        assertEquals(buffer[2], WINDOW_START_MILLIS + 3000);
+    }
+
+    @Test
+    public void civilFromDays() {
+        assertEquals(CronEvaluator.civilFromDays(0), new int[] { 1970, 1, 1 });
+        assertEquals(CronEvaluator.civilFromDays(-1), new int[] { 1969, 12, 31 });
+        assertEquals(CronEvaluator.civilFromDays(11016), new int[] { 2000, 2, 29 });
+        assertEquals(CronEvaluator.civilFromDays(17617), new int[] { 2018, 3, 27 });
+    }
+
+    @DataProvider
+    public Object[][] expressionProvider() {
+        return new Object[][] {
+                // Bitset engine.
+                { "0 0,30 * * * ?", true },
+                { "0 0 * * * ?", true },
+                { "0 */5 * * * ?", true },
+                { "*/10 * * * * ?", true },
+                { "15/20 5-50/15 * * * ?", true },
+                { "0 0 0 * * ?", true },
+                { "0 0 9-17 ? * MON-FRI", true },
+                { "0 0 12 ? * SUN,SAT", true },
+                { "0 30 2 ? * 2/3", true },
+                { "0 0 4 1,15 * ?", true },
+                { "0 0 4 31 * ?", true },
+                { "0 0 0 29 FEB ?", true },
+                { "0 0 6 1 JAN-MAR,OCT ?", true },
+                { "0 0 6 */10 */2 ?", true },
+                { "0 15 10 * * ? *", true },
+                { "0 15 10 ? * mon", true },
+                // Quartz fallback.
+                { "0 0 0 L * ?", false },
+                { "0 0 0 L-3 * ?", false },
+                { "0 0 0 15W * ?", false },
+                { "0 0 0 LW * ?", false },
+                { "0 0 0 ? * 6L", false },
+                { "0 0 0 ? * 6#3", false },
+                { "0 0 22-2 * * ?", false },
+                { "0 0 0 ? * FRI-MON", false },
+                { "0 0 0 1 1 ? 2019-2021", false },
+        };
+    }
+
+    @Test(dataProvider = "expressionProvider")
+    public void matchesQuartz(String cronSchedule, boolean expectedBitsetEngine) {
+        CronEvaluator evaluator = CronEvaluator.parse(cronSchedule);
+        assertEquals(evaluator.isBitsetEngine(), expectedBitsetEngine);
+
+        // Check a few window lengths: an hour, a day, two months, and four years.
+        long[] windowLengthMillis = { 60L * 60 * 1000, 24L * 60 * 60 * 1000, 60L * 24 * 60 * 60 * 1000,
+                4L * 366 * 24 * 60 * 60 * 1000 };
+        for (long oneWindowLength : windowLengthMillis) {
+            assertMatchesQuartz(evaluator, WINDOW_START_MILLIS, WINDOW_START_MILLIS + oneWindowLength);
+        }
+    }
+
+    @Test
+    public void randomExpressionsMatchQuartz() {
+        // Fixed seed, so failures are reproducible.
+        Random random = new Random(20180327L);
+        int numBitset = 0;
+        for (int i = 0; i < 2000; i++) {
+            String cronSchedule = randomExpression(random);
+
+            CronEvaluator evaluator;
+            try {
+                evaluator = CronEvaluator.parse(cronSchedule);
+            } catch (IllegalArgumentException ex) {
+                // Quartz must agree that this is invalid.
+                try {
+                    CronScheduleBuilder.cronSchedule(cronSchedule);
+                    fail("Quartz accepted " + cronSchedule + " but we rejected it");
+                } catch (RuntimeException quartzEx) {
+                    // expected
+                }
+                continue;
+            }
+            if (evaluator.isBitsetEngine()) {
+                numBitset++;
+            }
+
+            // Random window between 2000 and 2040, up to 90 days long, with random millis.
+            long startMillis = DateTime.parse("2000-01-01T00:00:00.000Z").getMillis() +
+                    (long) (random.nextDouble() * 40 * 365 * 24 * 60 * 60 * 1000);
+            long endMillis = startMillis + (long) (random.nextDouble() * 90 * 24 * 60 * 60 * 1000);
+            assertMatchesQuartz(evaluator, startMillis, endMillis);
+        }
+
+        // Sanity check that we're mostly testing the bitset engine.
+        assertTrue(numBitset > 1000, "numBitset=" + numBitset);
+    }
+
+    // Compares our fire times to stepping a Quartz trigger through getFireTimeAfter(), which is what the scheduler
+    // used to do. Compares up to the first 500 fire times.
+    private static void assertMatchesQuartz(CronEvaluator evaluator, long startMillis, long endMillis) {
+        String cronSchedule = evaluator.getCronSchedule();
+        MutableTrigger mutableTrigger = CronScheduleBuilder.cronSchedule(cronSchedule)
+                .inTimeZone(DateTimeZone.UTC.toTimeZone()).build();
+        mutableTrigger.setStartTime(new Date(startMillis));
+        mutableTrigger.setEndTime(new Date(endMillis));
+
+        long[] expected = new long[500];
+        int expectedCount = 0;
+        Date lastDate = new Date(startMillis);
+        while (expectedCount < expected.length &&
+                (lastDate = mutableTrigger.getFireTimeAfter(lastDate)) != null) {
+            expected[expectedCount++] = lastDate.getTime();
+        }
+
+        long[] actual = new long[500];
+        int actualCount = evaluator.getFireTimes(startMillis, endMillis, actual);
+        String message = cronSchedule + " from " + new DateTime(startMillis, DateTimeZone.UTC) + " to " +
+                new DateTime(endMillis, DateTimeZone.UTC);
+        assertEquals(actualCount, expectedCount, message);
+        assertEquals(Arrays.copyOf(actual, actualCount), Arrays.copyOf(expected, expectedCount), message);
+
+        // Next fire time matches too.
+        Date quartzNext = mutableTrigger.getFireTimeAfter(new Date(startMillis));
+        if (quartzNext != null) {
+            assertEquals(evaluator.getNextFireTimeAfter(startMillis), quartzNext.getTime(), message);
+        }
+    }
+
+    private static String randomExpression(Random random) {
+        boolean useDayOfWeek = random.nextBoolean();
+        String dayOfMonth = useDayOfWeek ? "?" : randomField(random, 1, 31, null);
+        String dayOfWeek = useDayOfWeek ? randomField(random, 1, 7,
+                new String[] { "SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT" }) : "?";
+        String year = "";
+
+        // Occasionally sprinkle in special characters, which should fall back to Quartz.
+        switch (random.nextInt(20)) {
+            case 0:
+                if (useDayOfWeek) {
+                    dayOfWeek = (1 + random.nextInt(7)) + "L";
+                } else {
+                    dayOfMonth = "L";
+                }
+                break;
+            case 1:
+                if (useDayOfWeek) {
+                    dayOfWeek = (1 + random.nextInt(7)) + "#" + (1 + random.nextInt(5));
+                } else {
+                    dayOfMonth = (1 + random.nextInt(28)) + "W";
+                }
+                break;
+            case 2:
+                year = " *";
+                break;
+            default:
+                break;
+        }
+
+        return randomField(random, 0, 59, null) + " " + randomField(random, 0, 59, null) + " " +
+                randomField(random, 0, 23, null) + " " + dayOfMonth + " " + randomField(random, 1, 12,
+                new String[] { "JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV",
+                        "DEC" }) + " " + dayOfWeek + year;
+    }
+
+    private static String randomField(Random random, int min, int max, String[] names) {
+        int range = max - min + 1;
+        switch (random.nextInt(8)) {
+            case 0:
+                return "*";
+            case 1:
+                return "*/" + (1 + random.nextInt(Math.max(1, range / 2)));
+            case 2: {
+                int start = min + random.nextInt(range);
+                int end = start + random.nextInt(max - start + 1);
+                return randomName(random, start, min, names) + "-" + randomName(random, end, min, names);
+            }
+            case 3: {
+                int start = min + random.nextInt(range);
+                return start + "/" + (1 + random.nextInt(Math.max(1, range / 2)));
+            }
+            case 4: {
+                int start = min + random.nextInt(range);
+                int end = start + random.nextInt(max - start + 1);
+                return start + "-" + end + "/" + (1 + random.nextInt(Math.max(1, range / 3)));
+            }
+            case 5: {
+                int value1 = min + random.nextInt(range);
+                int value2 = min + random.nextInt(range);
+                return randomName(random, value1, min, names) + "," + randomName(random, value2, min, names);
+            }
+            default:
+                return randomName(random, min + random.nextInt(range), min, names);
+        }
+    }
+
+    private static String randomName(Random random, int value, int min, String[] names) {
+        if (names != null && random.nextBoolean()) {
+            return names[value - min];
+        }
+        return String.valueOf(value);
+    }
+}
@@ -0,0 +1,62 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+
+import com.amazonaws.services.dynamodbv2.document.KeyAttribute;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.google.common.collect.ImmutableList;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class DdbConfigSourceTest {
+    private static final String EXPECTED_PROJECTION_EXPRESSION =
+            "#scheduleId,#cronSchedule,#requestTemplate,#sqsQueueUrl,#spreadSeconds,#priority,#timeZone";
+
+    private Table mockConfigTable;
+    private DdbConfigSource configSource;
+
+    @BeforeMethod
+    public void before() {
+        mockConfigTable = mock(Table.class);
+        configSource = new DdbConfigSource(mockConfigTable);
+    }
+
+    @Test
+    public void scanIsProjected() {
+        configSource.scan(2, 4);
+
+        ArgumentCaptor<ScanSpec> scanSpecCaptor = ArgumentCaptor.forClass(ScanSpec.class);
+        verify(mockConfigTable).scan(scanSpecCaptor.capture());
+        ScanSpec scanSpec = scanSpecCaptor.getValue();
+        assertEquals(scanSpec.getRequest().getSegment().intValue(), 2);
+        assertEquals(scanSpec.getRequest().getTotalSegments().intValue(), 4);
+        assertEquals(scanSpec.getProjectionExpression(), EXPECTED_PROJECTION_EXPRESSION);
+        assertEquals(ImmutableList.copyOf(scanSpec.getNameMap().values()),
+                DdbConfigSource.CONFIG_PROJECTION_ATTRIBUTES);
+    }
+
+    @Test
+    public void getConfigIsProjected() {
+        configSource.getConfig("schedule-1");
+
+        ArgumentCaptor<GetItemSpec> getItemSpecCaptor = ArgumentCaptor.forClass(GetItemSpec.class);
+        verify(mockConfigTable).getItem(getItemSpecCaptor.capture());
+        GetItemSpec getItemSpec = getItemSpecCaptor.getValue();
+        KeyAttribute key = getItemSpec.getKeyComponents().iterator().next();
+        assertEquals(key.getName(), BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID);
+        assertEquals(key.getValue(), "schedule-1");
+        assertEquals(getItemSpec.getProjectionExpression(), EXPECTED_PROJECTION_EXPRESSION);
+    }
+
+    @Test
+    public void getMetadata() {
+        configSource.getMetadata();
+        verify(mockConfigTable).getItem(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID,
+                ConfigCache.METADATA_SCHEDULE_ID);
+    }
+}
@@ -0,0 +1,152 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.amazonaws.services.dynamodbv2.document.KeyAttribute;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.UpdateItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class DdbStatusStoreTest {
+    private static final String TABLE_NAME = "test-status-table";
+
+    private Map<String, Item> leaseRowsByHashKey;
+    private Table mockStatusTable;
+    private DdbStatusStore statusStore;
+
+    @BeforeMethod
+    public void before() {
+        leaseRowsByHashKey = new HashMap<>();
+        mockStatusTable = mock(Table.class);
+        when(mockStatusTable.getTableName()).thenReturn(TABLE_NAME);
+        mockLeaseRows(mockStatusTable, leaseRowsByHashKey);
+        statusStore = spy(new DdbStatusStore(mock(DynamoDB.class), mockStatusTable));
+    }
+
+    @Test
+    public void leaseLifecycle() {
+        // A claims the lease. B can't while it's live, but can after it expires.
+        Item row = statusStore.claimLease("shard:0", "instance-a", 1000, 0);
+        assertEquals(row.getString(ShardLeases.KEY_LEASE_OWNER), "instance-a");
+        assertEquals(row.getLong(ShardLeases.KEY_LEASE_EXPIRES_AT), 1000);
+        assertNull(statusStore.claimLease("shard:0", "instance-b", 1500, 500));
+
+        // Only the owner can write the watermark.
+        assertTrue(statusStore.writeLeasedWatermark("shard:0", "instance-a", 100));
+        assertFalse(statusStore.writeLeasedWatermark("shard:0", "instance-b", 200));
+        assertEquals(leaseRowsByHashKey.get("shard:0").getLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME),
+                100);
+
+        // B takes over after the lease expires. A can't release it anymore.
+        row = statusStore.claimLease("shard:0", "instance-b", 2001, 1001);
+        assertEquals(row.getString(ShardLeases.KEY_LEASE_OWNER), "instance-b");
+        assertEquals(row.getLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME), 100);
+        assertFalse(statusStore.releaseLease("shard:0", "instance-a"));
+
+        // Once B releases it, the lease is free, and the watermark is kept.
+        assertTrue(statusStore.releaseLease("shard:0", "instance-b"));
+        row = statusStore.claimLease("shard:0", "instance-a", 2002, 1002);
+        assertEquals(row.getString(ShardLeases.KEY_LEASE_OWNER), "instance-a");
+        assertEquals(row.getLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME), 100);
+    }
+
+    @Test
+    public void batchPutReturnsUnprocessedItems() {
+        Item item1 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY, "schedule:schedule-1")
+                .withLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME, 100);
+        Item item2 = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY, "schedule:schedule-2")
+                .withLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME, 200);
+
+        // The second item comes back unprocessed.
+        WriteRequest unprocessedRequest = new WriteRequest(new PutRequest(ItemUtils.toAttributeValues(item2)));
+        doReturn(ImmutableMap.of(TABLE_NAME, ImmutableList.of(unprocessedRequest))).when(statusStore)
+                .batchWriteDdbItems(any());
+
+        List<Item> unprocessedList = statusStore.batchPutItems(ImmutableList.of(item1, item2));
+        assertEquals(unprocessedList, ImmutableList.of(item2));
+
+        // Both items were written to the status table.
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Map<String, List<WriteRequest>>> requestItemsCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(statusStore).batchWriteDdbItems(requestItemsCaptor.capture());
+        List<WriteRequest> writeRequestList = requestItemsCaptor.getValue().get(TABLE_NAME);
+        assertEquals(writeRequestList.size(), 2);
+        assertEquals(ItemUtils.toItem(writeRequestList.get(0).getPutRequest().getItem()), item1);
+    }
+
+    @Test
+    public void batchPutWithNoUnprocessedItems() {
+        doReturn(null).when(statusStore).batchWriteDdbItems(any());
+        Item item = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY, "schedule:schedule-1")
+                .withLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME, 100);
+        assertTrue(statusStore.batchPutItems(ImmutableList.of(item)).isEmpty());
+    }
+
+    // Mocks conditional updates to lease rows in the given status table, backed by the given map. Each update
+    // expression that DdbStatusStore uses is evaluated against the row, the same way DDB would.
+    private static void mockLeaseRows(Table mockStatusTable, Map<String, Item> leaseRowsByHashKey) {
+        when(mockStatusTable.updateItem(any(UpdateItemSpec.class))).thenAnswer(invocation -> {
+            UpdateItemSpec spec = invocation.getArgument(0);
+            KeyAttribute hashKey = spec.getKeyComponents().iterator().next();
+            Map<String, Object> valueMap = spec.getValueMap();
+            String ownerId = (String) valueMap.get(":owner");
+
+            Item row = leaseRowsByHashKey.get((String) hashKey.getValue());
+            String rowOwnerId = row != null ? row.getString(ShardLeases.KEY_LEASE_OWNER) : null;
+            if (spec.getUpdateExpression().startsWith("SET #owner")) {
+                // Claim.
+                long nowMillis = ((Number) valueMap.get(":now")).longValue();
+                if (rowOwnerId != null && !rowOwnerId.equals(ownerId) &&
+                        row.getLong(ShardLeases.KEY_LEASE_EXPIRES_AT) >= nowMillis) {
+                    throw new ConditionalCheckFailedException("Shard is owned by " + rowOwnerId);
+                }
+                if (row == null) {
+                    row = new Item().withString(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY,
+                            (String) hashKey.getValue());
+                }
+                row.withString(ShardLeases.KEY_LEASE_OWNER, ownerId).withLong(ShardLeases.KEY_LEASE_EXPIRES_AT,
+                        ((Number) valueMap.get(":expiresAt")).longValue());
+            } else {
+                // Watermark write or release.
+                if (!ownerId.equals(rowOwnerId)) {
+                    throw new ConditionalCheckFailedException("Shard is owned by " + rowOwnerId);
+                }
+                if (valueMap.containsKey(":lastProcessedTime")) {
+                    row.withLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME,
+                            ((Number) valueMap.get(":lastProcessedTime")).longValue());
+                } else {
+                    row.removeAttribute(ShardLeases.KEY_LEASE_OWNER);
+                    row.removeAttribute(ShardLeases.KEY_LEASE_EXPIRES_AT);
+                }
+            }
+            leaseRowsByHashKey.put((String) hashKey.getValue(), row);
+            return new UpdateItemOutcome(new UpdateItemResult().withAttributes(ItemUtils.toAttributeValues(
+                    Item.fromMap(row.asMap()))));
+        });
+    }
+}
@@ -0,0 +1,131 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableSet;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class DispatchControllerTest {
+    private static final String QUEUE_URL = "dummy-q-url";
+
+    private DispatchController controller;
+
+    @BeforeMethod
+    public void before() {
+        controller = new DispatchController();
+        controller.setInitialLimit(2);
+        controller.setMaxLimit(4);
+        controller.setLatencyTargetMillis(100);
+        controller.setFailureThreshold(3);
+        controller.setOpenMillis(50);
+        controller.setMaxOpenMillis(80);
+    }
+
+    @Test
+    public void limitsInFlightSends() {
+        assertTrue(controller.tryAcquire(QUEUE_URL));
+        assertTrue(controller.tryAcquire(QUEUE_URL));
+        assertFalse(controller.tryAcquire(QUEUE_URL));
+
+        // Other queues have their own limit.
+        assertTrue(controller.tryAcquire("other-q-url"));
+
+        controller.release(QUEUE_URL, 10, true);
+        assertTrue(controller.tryAcquire(QUEUE_URL));
+    }
+
+    @Test
+    public void additiveIncreaseMultiplicativeDecrease() {
+        // Each fast success adds 1/limit. It takes 3 successes to go from 2 to 3, and the limit is capped at 4.
+        succeed(2);
+        assertEquals(controller.getConcurrencyLimit(QUEUE_URL), 2);
+        succeed(1);
+        assertEquals(controller.getConcurrencyLimit(QUEUE_URL), 3);
+        succeed(20);
+        assertEquals(controller.getConcurrencyLimit(QUEUE_URL), 4);
+
+        // A slow send halves the limit.
+        acquireAndRelease(500, true);
+        assertEquals(controller.getConcurrencyLimit(QUEUE_URL), 2);
+
+        // So does a failure. The limit never goes below 1.
+        acquireAndRelease(10, false);
+        assertEquals(controller.getConcurrencyLimit(QUEUE_URL), 1);
+        acquireAndRelease(10, false);
+        assertEquals(controller.getConcurrencyLimit(QUEUE_URL), 1);
+    }
+
+    @Test
+    public void tracksLatencyAndErrorRate() {
+        assertEquals(controller.getAverageLatencyMillis(QUEUE_URL), 0.0);
+        assertEquals(controller.getErrorRate(QUEUE_URL), 0.0);
+
+        // First sample sets the average. Later samples move it part way.
+        acquireAndRelease(100, true);
+        assertEquals(controller.getAverageLatencyMillis(QUEUE_URL), 100.0, 0.001);
+        acquireAndRelease(200, false);
+        assertEquals(controller.getAverageLatencyMillis(QUEUE_URL), 120.0, 0.001);
+        assertEquals(controller.getErrorRate(QUEUE_URL), 0.2, 0.001);
+    }
+
+    @Test
+    public void circuitBreaker() throws Exception {
+        // Failures below the threshold don't open the breaker. A success resets the count.
+        acquireAndRelease(10, false);
+        acquireAndRelease(10, false);
+        acquireAndRelease(10, true);
+        acquireAndRelease(10, false);
+        acquireAndRelease(10, false);
+        assertTrue(controller.getUnhealthyQueueUrls().isEmpty());
+
+        // Third consecutive failure opens the breaker.
+        long beforeOpenMillis = DispatchController.nowMillis();
+        acquireAndRelease(10, false);
+        assertEquals(controller.getUnhealthyQueueUrls(), ImmutableSet.of(QUEUE_URL));
+        assertEquals(controller.getNumTimesOpened(QUEUE_URL), 1);
+        assertTrue(controller.getBlockedUntilMillis(QUEUE_URL) >= beforeOpenMillis + 50);
+        assertFalse(controller.tryAcquire(QUEUE_URL));
+
+        // After the open period, a single probe is allowed. It fails, so the breaker opens for twice as long, capped
+        // at the max (80ms, not 100ms).
+        Thread.sleep(60);
+        assertTrue(controller.tryAcquire(QUEUE_URL));
+        assertFalse(controller.tryAcquire(QUEUE_URL));
+        beforeOpenMillis = DispatchController.nowMillis();
+        controller.release(QUEUE_URL, 10, false);
+        assertEquals(controller.getNumTimesOpened(QUEUE_URL), 2);
+        long blockedMillis = controller.getBlockedUntilMillis(QUEUE_URL) - beforeOpenMillis;
+        assertTrue(blockedMillis >= 80 && blockedMillis < 100, "blockedMillis=" + blockedMillis);
+
+        // Next probe succeeds. The breaker closes.
+        Thread.sleep(90);
+        acquireAndRelease(10, true);
+        assertTrue(controller.getUnhealthyQueueUrls().isEmpty());
+        assertEquals(controller.getBlockedUntilMillis(QUEUE_URL), 0);
+        assertTrue(controller.tryAcquire(QUEUE_URL));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidMaxLimit() {
+        controller.setMaxLimit(0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidFailureThreshold() {
+        controller.setFailureThreshold(0);
+    }
+
+    private void succeed(int times) {
+        for (int i = 0; i < times; i++) {
+            acquireAndRelease(10, true);
+        }
+    }
+
+    private void acquireAndRelease(long latencyMillis, boolean succeeded) {
+        assertTrue(controller.tryAcquire(QUEUE_URL));
+        controller.release(QUEUE_URL, latencyMillis, succeeded);
+    }
+}
@@ -0,0 +1,65 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import org.testng.annotations.Test;
+
+public class FaultInjectorTest {
+    @Test
+    public void noFaultsByDefault() {
+        FaultInjector faultInjector = new FaultInjector();
+        for (int i = 0; i < 100; i++) {
+            faultInjector.beforeCall("test");
+        }
+        assertEquals(faultInjector.getNumCalls(), 100);
+        assertEquals(faultInjector.getNumErrors(), 0);
+    }
+
+    @Test
+    public void errorRateOfOneFailsEveryCall() {
+        FaultInjector faultInjector = new FaultInjector();
+        faultInjector.setErrorRate(1.0);
+        try {
+            faultInjector.beforeCall("getItem");
+            fail("expected exception");
+        } catch (IllegalStateException ex) {
+            assertEquals(ex.getMessage(), "Injected error in getItem");
+        }
+        assertEquals(faultInjector.getNumCalls(), 1);
+        assertEquals(faultInjector.getNumErrors(), 1);
+    }
+
+    @Test
+    public void latency() {
+        FaultInjector faultInjector = new FaultInjector();
+        faultInjector.setLatencyMillis(20);
+        faultInjector.setMaxJitterMillis(10);
+        long startNanos = System.nanoTime();
+        faultInjector.beforeCall("test");
+        assertTrue(System.nanoTime() - startNanos >= 20 * 1000 * 1000);
+    }
+
+    @Test
+    public void shouldFail() {
+        assertFalse(FaultInjector.shouldFail(0.0));
+        assertTrue(FaultInjector.shouldFail(1.0));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void negativeLatency() {
+        new FaultInjector().setLatencyMillis(-1);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void negativeJitter() {
+        new FaultInjector().setMaxJitterMillis(-1);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void errorRateTooHigh() {
+        new FaultInjector().setErrorRate(1.5);
+    }
+}
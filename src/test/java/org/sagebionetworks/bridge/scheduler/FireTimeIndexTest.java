@@ -0,0 +1,143 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.joda.time.DateTime;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class FireTimeIndexTest {
+    private static final long CURSOR_MILLIS = DateTime.parse("2018-03-27T18:30:00.000Z").getMillis();
+    private static final long MINUTE_MILLIS = 60 * 1000;
+
+    private FireTimeIndex index;
+
+    @BeforeMethod
+    public void before() {
+        index = new FireTimeIndex(CURSOR_MILLIS);
+    }
+
+    @Test
+    public void emptyIndex() {
+        assertEquals(index.size(), 0);
+        assertEquals(index.getCursorMillis(), CURSOR_MILLIS);
+        assertEquals(index.getNextFireTime(), FireTimeIndex.NEVER);
+        assertTrue(index.getDue(CURSOR_MILLIS + 60 * MINUTE_MILLIS).isEmpty());
+    }
+
+    @Test
+    public void putAndGetDue() {
+        put("schedule-15", "0 15 * * * ?");
+        put("schedule-45", "0 45 * * * ?");
+        put("schedule-00", "0 0 * * * ?");
+        assertEquals(index.size(), 3);
+        assertEquals(index.getNextFireTime(), CURSOR_MILLIS + 15 * MINUTE_MILLIS);
+
+        // Cursor is 18:30, so the schedules fire at 18:45, 19:00, and 19:15. Due is inclusive.
+        assertTrue(index.getDue(CURSOR_MILLIS + 14 * MINUTE_MILLIS).isEmpty());
+        assertEquals(getScheduleIds(index.getDue(CURSOR_MILLIS + 15 * MINUTE_MILLIS)),
+                ImmutableList.of("schedule-45"));
+        assertEquals(getScheduleIds(index.getDue(CURSOR_MILLIS + 30 * MINUTE_MILLIS)),
+                ImmutableList.of("schedule-45", "schedule-00"));
+        assertEquals(getScheduleIds(index.getDue(CURSOR_MILLIS + 45 * MINUTE_MILLIS)),
+                ImmutableList.of("schedule-45", "schedule-00", "schedule-15"));
+    }
+
+    @Test
+    public void sameFireTimeDifferentSchedules() {
+        put("schedule-b", "0 0 * * * ?");
+        put("schedule-a", "0 0 * * * ?");
+        put("schedule-c", "0 0 * * * ?");
+        assertEquals(getScheduleIds(index.getFiringBetween(CURSOR_MILLIS + 30 * MINUTE_MILLIS,
+                CURSOR_MILLIS + 30 * MINUTE_MILLIS)), ImmutableList.of("schedule-a", "schedule-b", "schedule-c"));
+    }
+
+    @Test
+    public void getFiringBetween() {
+        for (int minute = 0; minute < 60; minute += 5) {
+            put(String.format("schedule-%02d", minute), "0 " + minute + " * * * ?");
+        }
+
+        // [18:40, 18:50] fires schedules at 40, 45, and 50.
+        assertEquals(getScheduleIds(index.getFiringBetween(CURSOR_MILLIS + 10 * MINUTE_MILLIS,
+                CURSOR_MILLIS + 20 * MINUTE_MILLIS)), ImmutableList.of("schedule-40", "schedule-45",
+                "schedule-50"));
+
+        // Empty window.
+        assertTrue(index.getFiringBetween(CURSOR_MILLIS + 1, CURSOR_MILLIS + 1000).isEmpty());
+    }
+
+    @Test
+    public void replaceAndRemove() {
+        put("schedule-1", "0 15 * * * ?");
+        put("schedule-1", "0 45 * * * ?");
+        assertEquals(index.size(), 1);
+        assertEquals(index.get("schedule-1").getNextFireTime(), CURSOR_MILLIS + 15 * MINUTE_MILLIS);
+        assertEquals(index.get("schedule-1").getConfig().getCronSchedule(), "0 45 * * * ?");
+
+        index.remove("schedule-1");
+        assertEquals(index.size(), 0);
+        assertNull(index.get("schedule-1"));
+        assertTrue(index.getDue(CURSOR_MILLIS + 60 * MINUTE_MILLIS).isEmpty());
+
+        // Removing something that isn't there is a no-op.
+        index.remove("schedule-1");
+    }
+
+    @Test
+    public void advanceTo() {
+        put("schedule-00", "0 0 * * * ?");
+        put("schedule-daily", "0 0 0 * * ?");
+        long dailyFireTime = index.get("schedule-daily").getNextFireTime();
+
+        long newCursor = CURSOR_MILLIS + 30 * MINUTE_MILLIS;
+        index.advanceTo(newCursor);
+        assertEquals(index.getCursorMillis(), newCursor);
+
+        // Due schedule is rescheduled to the next hour. The daily schedule is untouched.
+        assertEquals(index.get("schedule-00").getNextFireTime(), newCursor + 60 * MINUTE_MILLIS);
+        assertEquals(index.get("schedule-daily").getNextFireTime(), dailyFireTime);
+        assertEquals(index.getNextFireTime(), newCursor + 60 * MINUTE_MILLIS);
+    }
+
+    @Test
+    public void rebase() {
+        put("schedule-00", "0 0 * * * ?");
+
+        // Rebase backwards an hour.
+        long newCursor = CURSOR_MILLIS - 60 * MINUTE_MILLIS;
+        index.rebase(newCursor);
+        assertEquals(index.getCursorMillis(), newCursor);
+        assertEquals(index.get("schedule-00").getNextFireTime(), newCursor + 30 * MINUTE_MILLIS);
+    }
+
+    @Test
+    public void neverFiresAgain() {
+        put("schedule-never", "0 0 0 1 1 ? 2017");
+        put("schedule-00", "0 0 * * * ?");
+        assertEquals(index.get("schedule-never").getNextFireTime(), FireTimeIndex.NEVER);
+        assertEquals(index.getNextFireTime(), CURSOR_MILLIS + 30 * MINUTE_MILLIS);
+        assertEquals(ImmutableSet.copyOf(index.getScheduleIds()), ImmutableSet.of("schedule-never",
+                "schedule-00"));
+    }
+
+    private void put(String scheduleId, String cronSchedule) {
+        index.put(new ScheduleConfig(scheduleId, cronSchedule, RequestTemplate.compile("request"), "dummy-q-url"),
+                CronEvaluator.parse(cronSchedule));
+    }
+
+    private static List<String> getScheduleIds(List<FireTimeIndex.Entry> entryList) {
+        List<String> scheduleIdList = new ArrayList<>();
+        for (FireTimeIndex.Entry oneEntry : entryList) {
+            scheduleIdList.add(oneEntry.getScheduleId());
+        }
+        return scheduleIdList;
+    }
+}
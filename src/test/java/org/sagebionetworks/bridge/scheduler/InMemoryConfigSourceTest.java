@@ -0,0 +1,55 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+public class InMemoryConfigSourceTest {
+    @Test
+    public void scanSegmentsCoverEveryConfig() {
+        InMemoryConfigSource configSource = new InMemoryConfigSource();
+        for (int i = 0; i < 10; i++) {
+            configSource.putConfig(makeConfig("schedule-" + i));
+        }
+
+        // Each config is in exactly one of the 3 segments.
+        Set<String> scheduleIdSet = new HashSet<>();
+        int numScanned = 0;
+        for (int segment = 0; segment < 3; segment++) {
+            for (Item oneItem : configSource.scan(segment, 3)) {
+                scheduleIdSet.add(oneItem.getString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID));
+                numScanned++;
+            }
+        }
+        assertEquals(numScanned, 10);
+        assertEquals(scheduleIdSet.size(), 10);
+        assertEquals(ImmutableList.copyOf(configSource.scan(0, 1)).size(), 10);
+    }
+
+    @Test
+    public void getConfigAndMetadata() {
+        InMemoryConfigSource configSource = new InMemoryConfigSource();
+        configSource.putConfig(makeConfig("schedule-1"));
+        assertNull(configSource.getMetadata());
+
+        configSource.putConfig(makeConfig(ConfigCache.METADATA_SCHEDULE_ID).withLong(ConfigCache.KEY_CONFIG_VERSION,
+                3));
+        assertEquals(configSource.getMetadata().getLong(ConfigCache.KEY_CONFIG_VERSION), 3);
+        assertEquals(configSource.getConfig("schedule-1"), makeConfig("schedule-1"));
+
+        configSource.deleteConfig("schedule-1");
+        assertNull(configSource.getConfig("schedule-1"));
+        assertEquals(configSource.size(), 1);
+    }
+
+    private static Item makeConfig(String scheduleId) {
+        return new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, scheduleId)
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0 * * * ?");
+    }
+}
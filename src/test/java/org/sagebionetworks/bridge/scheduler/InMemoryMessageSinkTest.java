@@ -0,0 +1,59 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.google.common.collect.ImmutableMap;
+import org.testng.annotations.Test;
+
+public class InMemoryMessageSinkTest {
+    @Test
+    public void countsMessagesByQueue() {
+        InMemoryMessageSink messageSink = new InMemoryMessageSink();
+        SendMessageBatchResult result = messageSink.sendMessageBatch(makeRequest("q-1", 3));
+        assertEquals(result.getSuccessful().size(), 3);
+        assertEquals(result.getFailed().size(), 0);
+        messageSink.sendMessageBatch(makeRequest("q-2", 2));
+
+        assertEquals(messageSink.getNumMessages(), 5);
+        assertEquals(messageSink.getNumMessagesByQueueUrl(), ImmutableMap.of("q-1", 3L, "q-2", 2L));
+    }
+
+    @Test
+    public void entryErrorsAreRetryable() {
+        InMemoryMessageSink messageSink = new InMemoryMessageSink();
+        messageSink.setEntryErrorRate(1.0);
+        SendMessageBatchResult result = messageSink.sendMessageBatch(makeRequest("q-1", 2));
+        assertEquals(result.getFailed().size(), 2);
+        for (BatchResultErrorEntry oneError : result.getFailed()) {
+            assertEquals(oneError.getCode(), InMemoryMessageSink.ENTRY_ERROR_CODE);
+            assertFalse(oneError.getSenderFault());
+        }
+        assertEquals(messageSink.getNumMessages(), 0);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void injectedBatchError() {
+        InMemoryMessageSink messageSink = new InMemoryMessageSink();
+        messageSink.getFaultInjector().setErrorRate(1.0);
+        messageSink.sendMessageBatch(makeRequest("q-1", 1));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidEntryErrorRate() {
+        new InMemoryMessageSink().setEntryErrorRate(-0.5);
+    }
+
+    private static SendMessageBatchRequest makeRequest(String queueUrl, int numEntries) {
+        SendMessageBatchRequest request = new SendMessageBatchRequest().withQueueUrl(queueUrl);
+        for (int i = 0; i < numEntries; i++) {
+            request.withEntries(new SendMessageBatchRequestEntry().withId(String.valueOf(i)).withMessageBody("msg-" +
+                    i));
+        }
+        return request;
+    }
+}
@@ -0,0 +1,81 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+public class InMemoryStatusStoreTest {
+    @Test
+    public void itemsAreCopied() {
+        InMemoryStatusStore statusStore = new InMemoryStatusStore();
+        Item item = makeItem("row-1", 100);
+        statusStore.putItem(item);
+
+        // Changing the caller's item, or the returned item, doesn't change the stored row.
+        item.withLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME, 200);
+        statusStore.getItem("row-1").withLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME, 300);
+        assertEquals(statusStore.getItem("row-1").getLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME), 100);
+        assertNull(statusStore.getItem("row-2"));
+    }
+
+    @Test
+    public void batchPutAndScan() {
+        InMemoryStatusStore statusStore = new InMemoryStatusStore();
+        assertTrue(statusStore.batchPutItems(ImmutableList.of(makeItem("row-1", 100), makeItem("row-2", 200)))
+                .isEmpty());
+        assertEquals(statusStore.size(), 2);
+        assertEquals(ImmutableList.copyOf(statusStore.scan()), ImmutableList.of(makeItem("row-1", 100),
+                makeItem("row-2", 200)));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void batchPutTooManyItems() {
+        List<Item> itemList = new ArrayList<>();
+        for (int i = 0; i <= StatusStore.MAX_BATCH_PUT_ITEMS; i++) {
+            itemList.add(makeItem("row-" + i, i));
+        }
+        new InMemoryStatusStore().batchPutItems(itemList);
+    }
+
+    @Test
+    public void injectedErrorDoesNotWrite() {
+        InMemoryStatusStore statusStore = new InMemoryStatusStore();
+        statusStore.getFaultInjector().setErrorRate(1.0);
+        try {
+            statusStore.batchPutItems(ImmutableList.of(makeItem("row-1", 100)));
+            fail("expected exception");
+        } catch (IllegalStateException ex) {
+            // Expected.
+        }
+        assertEquals(statusStore.size(), 0);
+    }
+
+    @Test
+    public void leaseOwnerCanRenewAndRelease() {
+        InMemoryStatusStore statusStore = new InMemoryStatusStore();
+        assertEquals(statusStore.claimLease("shard:0", "instance-a", 1000, 0).getString(
+                ShardLeases.KEY_LEASE_OWNER), "instance-a");
+        assertNull(statusStore.claimLease("shard:0", "instance-b", 1500, 500));
+        assertEquals(statusStore.claimLease("shard:0", "instance-a", 1500, 500).getLong(
+                ShardLeases.KEY_LEASE_EXPIRES_AT), 1500);
+
+        assertFalse(statusStore.releaseLease("shard:0", "instance-b"));
+        assertTrue(statusStore.releaseLease("shard:0", "instance-a"));
+        assertFalse(statusStore.getItem("shard:0").hasAttribute(ShardLeases.KEY_LEASE_OWNER));
+        assertFalse(statusStore.writeLeasedWatermark("shard:0", "instance-a", 100));
+    }
+
+    private static Item makeItem(String hashKey, long lastProcessedTimeMillis) {
+        return new Item().withString(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY, hashKey)
+                .withLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME, lastProcessedTimeMillis);
+    }
+}
@@ -0,0 +1,66 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+public class LatencyHistogramTest {
+    private static final long NANOS_PER_MICRO = 1000;
+    private static final long NANOS_PER_MILLI = 1000 * NANOS_PER_MICRO;
+
+    @Test
+    public void empty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(histogram.getCount(), 0);
+        assertEquals(histogram.getTotalNanos(), 0);
+        assertEquals(histogram.getMaxNanos(), 0);
+        assertEquals(histogram.getPercentileNanos(50), 0);
+    }
+
+    @Test
+    public void buckets() {
+        assertEquals(LatencyHistogram.getBucket(0), 0);
+        assertEquals(LatencyHistogram.getBucket(999), 0);
+        assertEquals(LatencyHistogram.getBucket(NANOS_PER_MICRO), 1);
+        assertEquals(LatencyHistogram.getBucket(2 * NANOS_PER_MICRO - 1), 1);
+        assertEquals(LatencyHistogram.getBucket(2 * NANOS_PER_MICRO), 2);
+        assertEquals(LatencyHistogram.getBucket(NANOS_PER_MILLI), 10);
+        assertEquals(LatencyHistogram.getBucket(Long.MAX_VALUE), LatencyHistogram.NUM_BUCKETS - 1);
+
+        // Upper bound of bucket i is the lower bound of bucket i + 1.
+        assertEquals(LatencyHistogram.getBucketUpperNanos(0), NANOS_PER_MICRO);
+        assertEquals(LatencyHistogram.getBucketUpperNanos(10), 1024 * NANOS_PER_MICRO);
+    }
+
+    @Test
+    public void percentiles() {
+        // 90 fast samples (~5us) and 10 slow samples (~3ms).
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.record(5 * NANOS_PER_MICRO);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(3 * NANOS_PER_MILLI);
+        }
+
+        assertEquals(histogram.getCount(), 100);
+        assertEquals(histogram.getTotalNanos(), 90 * 5 * NANOS_PER_MICRO + 10 * 3 * NANOS_PER_MILLI);
+        assertEquals(histogram.getMaxNanos(), 3 * NANOS_PER_MILLI);
+        assertEquals(histogram.getBucketCount(LatencyHistogram.getBucket(5 * NANOS_PER_MICRO)), 90);
+
+        // p50 and p90 fall in the [4us, 8us) bucket. p91 and up fall in the slow bucket, capped at the max.
+        assertEquals(histogram.getPercentileNanos(50), 8 * NANOS_PER_MICRO);
+        assertEquals(histogram.getPercentileNanos(90), 8 * NANOS_PER_MICRO);
+        assertEquals(histogram.getPercentileNanos(91), 3 * NANOS_PER_MILLI);
+        assertEquals(histogram.getPercentileNanos(100), 3 * NANOS_PER_MILLI);
+    }
+
+    @Test
+    public void negativeRecordedAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(histogram.getCount(), 1);
+        assertEquals(histogram.getTotalNanos(), 0);
+        assertEquals(histogram.getBucketCount(0), 1);
+    }
+}
@@ -0,0 +1,164 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.joda.time.DateTime;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class OutboxLogTest {
+    private static final DateTime PROCESS_TIME = DateTime.parse("2018-03-27T19:00:00.000-07:00");
+    private static final long END_MILLIS = DateTime.parse("2018-03-28T02:15:00.000Z").getMillis();
+
+    private File file;
+    private OutboxLog outboxLog;
+
+    @BeforeMethod
+    public void before() throws IOException {
+        file = new File(Files.createTempDirectory("OutboxLogTest").toFile(), "outbox.log");
+        outboxLog = new OutboxLog(file);
+    }
+
+    @Test
+    public void missingFileIsEmpty() throws IOException {
+        assertFalse(outboxLog.exists());
+        OutboxLog.Contents contents = outboxLog.read();
+        assertTrue(contents.getUnsentRequests().isEmpty());
+        assertTrue(contents.getSentDedupIds().isEmpty());
+        assertTrue(contents.getResolvedMillisByScheduleId().isEmpty());
+        assertEquals(contents.getNumDiscardedBytes(), 0);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        DispatchRequest request1 = new DispatchRequest("schedule-1", "dummy-q-url", PROCESS_TIME, "request-1");
+        DispatchRequest request2 = new DispatchRequest("schedule-2", "other-q-url", PROCESS_TIME.plusMinutes(30),
+                "request-2", 120, Priority.HIGH);
+        DispatchRequest request3 = new DispatchRequest("schedule-2", "other-q-url", PROCESS_TIME.plusMinutes(60),
+                "request-3");
+        outboxLog.appendRequests(ImmutableList.of(request1, request2));
+        outboxLog.appendRequests(ImmutableList.of(request3));
+        outboxLog.appendSent(ImmutableList.of(request1.getDedupId()));
+        outboxLog.appendResolved(END_MILLIS - 1000, ImmutableList.of("schedule-1", "schedule-2"));
+        outboxLog.appendResolved(END_MILLIS, ImmutableList.of("schedule-2"));
+        assertTrue(outboxLog.exists());
+
+        // Request 1 was sent. Each schedule's resolved time is the latest one in the log.
+        OutboxLog.Contents contents = outboxLog.read();
+        List<DispatchRequest> unsentList = contents.getUnsentRequests();
+        assertEquals(unsentList.size(), 2);
+        assertRequest(unsentList.get(0), request2);
+        assertRequest(unsentList.get(1), request3);
+        assertEquals(contents.getSentDedupIds(), ImmutableSet.of(request1.getDedupId()));
+        assertEquals(contents.getResolvedMillisByScheduleId(), ImmutableMap.of("schedule-1", END_MILLIS - 1000,
+                "schedule-2", END_MILLIS));
+        assertEquals(contents.getNumDiscardedBytes(), 0);
+    }
+
+    @Test
+    public void duplicateRequestsReadOnce() throws IOException {
+        DispatchRequest request = new DispatchRequest("schedule-1", "dummy-q-url", PROCESS_TIME, "request-1");
+        outboxLog.appendRequests(ImmutableList.of(request));
+        outboxLog.appendRequests(ImmutableList.of(request));
+        assertEquals(outboxLog.read().getUnsentRequests().size(), 1);
+    }
+
+    @Test
+    public void largeBody() throws IOException {
+        String body = Strings.repeat("x", 200 * 1024);
+        outboxLog.appendRequests(ImmutableList.of(new DispatchRequest("schedule-1", "dummy-q-url", PROCESS_TIME,
+                body)));
+        assertEquals(outboxLog.read().getUnsentRequests().get(0).getBody(), body);
+    }
+
+    @Test
+    public void tornTailDiscarded() throws IOException {
+        DispatchRequest request1 = new DispatchRequest("schedule-1", "dummy-q-url", PROCESS_TIME, "request-1");
+        outboxLog.appendRequests(ImmutableList.of(request1));
+        long goodLength = file.length();
+        outboxLog.appendResolved(END_MILLIS, ImmutableList.of("schedule-1"));
+
+        // Cut the resolved record short, as if the run died in the middle of writing it.
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(file.length() - 3);
+        }
+        OutboxLog.Contents contents = outboxLog.read();
+        assertEquals(contents.getUnsentRequests().size(), 1);
+        assertTrue(contents.getResolvedMillisByScheduleId().isEmpty());
+        assertTrue(contents.getNumDiscardedBytes() > 0);
+        assertEquals(file.length(), goodLength);
+
+        // Records written after the torn tail is discarded can be read.
+        outboxLog.appendResolved(END_MILLIS, ImmutableList.of("schedule-1"));
+        contents = outboxLog.read();
+        assertEquals(contents.getResolvedMillisByScheduleId(), ImmutableMap.of("schedule-1", END_MILLIS));
+        assertEquals(contents.getNumDiscardedBytes(), 0);
+    }
+
+    @Test
+    public void badChecksumDiscarded() throws IOException {
+        outboxLog.appendRequests(ImmutableList.of(new DispatchRequest("schedule-1", "dummy-q-url", PROCESS_TIME,
+                "request-1")));
+        long goodLength = file.length();
+        outboxLog.appendResolved(END_MILLIS, ImmutableList.of("schedule-1"));
+
+        // Flip a byte in the resolved record's schedule ID.
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(file.length() - 6);
+            raf.write('X');
+        }
+        OutboxLog.Contents contents = outboxLog.read();
+        assertEquals(contents.getUnsentRequests().size(), 1);
+        assertTrue(contents.getResolvedMillisByScheduleId().isEmpty());
+        assertEquals(file.length(), goodLength);
+    }
+
+    @Test
+    public void tornHeaderDiscarded() throws IOException {
+        Files.write(file.toPath(), new byte[] { 0x42, 0x4d });
+        OutboxLog.Contents contents = outboxLog.read();
+        assertTrue(contents.getUnsentRequests().isEmpty());
+        assertEquals(contents.getNumDiscardedBytes(), 2);
+        assertEquals(file.length(), 0);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void badMagic() throws IOException {
+        Files.write(file.toPath(), "not an outbox log".getBytes("UTF-8"));
+        outboxLog.read();
+    }
+
+    @Test
+    public void clear() throws IOException {
+        outboxLog.appendResolved(END_MILLIS, ImmutableList.of("schedule-1"));
+        assertTrue(outboxLog.exists());
+        outboxLog.clear();
+        assertFalse(outboxLog.exists());
+        assertFalse(file.exists());
+
+        // Clearing a missing log is fine.
+        outboxLog.clear();
+    }
+
+    private static void assertRequest(DispatchRequest actual, DispatchRequest expected) {
+        assertEquals(actual.getScheduleId(), expected.getScheduleId());
+        assertEquals(actual.getSqsQueueUrl(), expected.getSqsQueueUrl());
+        assertEquals(actual.getProcessTime().getMillis(), expected.getProcessTime().getMillis());
+        assertEquals(actual.getBody(), expected.getBody());
+        assertEquals(actual.getDelaySeconds(), expected.getDelaySeconds());
+        assertEquals(actual.getPriority(), expected.getPriority());
+        assertEquals(actual.getDedupId(), expected.getDedupId());
+    }
+}
@@ -0,0 +1,129 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+public class ParallelScanTest {
+    @Test
+    public void combinesSegments() {
+        // More items than fit in the queue, so segments have to wait for the consumer.
+        int itemsPerSegment = ParallelScan.QUEUE_CAPACITY;
+        ParallelScan scan = new ParallelScan(3, segment -> {
+            List<Item> itemList = new ArrayList<>();
+            for (int i = 0; i < itemsPerSegment; i++) {
+                itemList.add(new Item().withString("id", segment + "-" + i));
+            }
+            return itemList;
+        });
+
+        Set<String> idSet = new HashSet<>();
+        for (Item oneItem : scan) {
+            idSet.add(oneItem.getString("id"));
+        }
+        assertEquals(idSet.size(), 3 * itemsPerSegment);
+        for (int segment = 0; segment < 3; segment++) {
+            for (int i = 0; i < itemsPerSegment; i++) {
+                assertEquals(idSet.contains(segment + "-" + i), true);
+            }
+        }
+    }
+
+    @Test
+    public void emptySegments() {
+        ParallelScan scan = new ParallelScan(2, segment -> ImmutableList.of());
+        Iterator<Item> iterator = scan.iterator();
+        assertFalse(iterator.hasNext());
+        try {
+            iterator.next();
+            fail("expected exception");
+        } catch (NoSuchElementException ex) {
+            // expected exception
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void segmentErrorThrown() {
+        ParallelScan scan = new ParallelScan(2, segment -> {
+            if (segment == 1) {
+                throw new IllegalArgumentException("test exception");
+            }
+            return ImmutableList.of(new Item().withString("id", "0"));
+        });
+        for (Item ignored : scan) {
+            // Consume the scan.
+        }
+    }
+
+    @Test
+    public void segmentErrorCancelsOtherSegments() throws InterruptedException {
+        // Segment 0 fails right away. The others have more items than fit in the queue, so they're blocked on it when
+        // the error is thrown. Segment 2 swallows interrupts, like a client that catches them.
+        ParallelScan scan = new ParallelScan(3, segment -> {
+            if (segment == 0) {
+                throw new IllegalArgumentException("test exception");
+            }
+            return () -> new Iterator<Item>() {
+                private int numItems = 0;
+
+                @Override
+                public boolean hasNext() {
+                    if (segment == 2) {
+                        Thread.interrupted();
+                    }
+                    return numItems < 10 * ParallelScan.QUEUE_CAPACITY;
+                }
+
+                @Override
+                public Item next() {
+                    numItems++;
+                    return new Item().withString("id", segment + "-" + numItems);
+                }
+            };
+        });
+
+        try {
+            for (Item ignored : scan) {
+                // Consume the scan.
+            }
+            fail("expected exception");
+        } catch (IllegalStateException ex) {
+            assertTrue(ex.getCause() instanceof IllegalArgumentException);
+        }
+
+        // Every segment thread exits. (Segments that hadn't started yet are never started.)
+        long deadlineMillis = System.currentTimeMillis() + 5000;
+        while (!getSegmentThreads().isEmpty() && System.currentTimeMillis() < deadlineMillis) {
+            Thread.sleep(10);
+        }
+        assertTrue(getSegmentThreads().isEmpty(), getSegmentThreads().size() + " segment threads still running");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidTotalSegments() {
+        new ParallelScan(0, segment -> ImmutableList.of());
+    }
+
+    // Returns the live segment threads.
+    private static List<Thread> getSegmentThreads() {
+        List<Thread> threadList = new ArrayList<>();
+        for (Thread oneThread : Thread.getAllStackTraces().keySet()) {
+            if (oneThread.isAlive() && oneThread.getName().equals("ParallelScan-segment")) {
+                threadList.add(oneThread);
+            }
+        }
+        return threadList;
+    }
+}
@@ -0,0 +1,71 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+public class RecentlySentStoreTest {
+    @Test
+    public void addAndContains() {
+        RecentlySentStore store = new RecentlySentStore();
+        assertFalse(store.contains("dedup-1"));
+        store.add("dedup-1");
+        assertTrue(store.contains("dedup-1"));
+        assertFalse(store.contains("dedup-2"));
+
+        // Adding the same ID again doesn't add an entry.
+        store.add("dedup-1");
+        assertEquals(store.size(), 1);
+    }
+
+    @Test
+    public void oldestEntriesEvictedWhenFull() {
+        RecentlySentStore store = new RecentlySentStore();
+        store.setMaxEntries(3);
+        store.add("dedup-1");
+        store.add("dedup-2");
+        store.add("dedup-3");
+
+        // Re-adding dedup-1 makes it the newest, so dedup-2 is the one that's evicted.
+        store.add("dedup-1");
+        store.add("dedup-4");
+        assertEquals(store.size(), 3);
+        assertTrue(store.contains("dedup-1"));
+        assertFalse(store.contains("dedup-2"));
+        assertTrue(store.contains("dedup-3"));
+        assertTrue(store.contains("dedup-4"));
+
+        // Shrinking the store evicts right away.
+        store.setMaxEntries(1);
+        assertEquals(store.size(), 1);
+        assertTrue(store.contains("dedup-4"));
+    }
+
+    @Test
+    public void entriesExpire() throws Exception {
+        RecentlySentStore store = new RecentlySentStore();
+        store.setTtlMillis(50);
+        store.add("dedup-1");
+        assertTrue(store.contains("dedup-1"));
+
+        Thread.sleep(60);
+        assertFalse(store.contains("dedup-1"));
+
+        // Expired entries are evicted on the next add.
+        store.add("dedup-2");
+        assertEquals(store.size(), 1);
+        assertTrue(store.contains("dedup-2"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidMaxEntries() {
+        new RecentlySentStore().setMaxEntries(0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidTtlMillis() {
+        new RecentlySentStore().setTtlMillis(0);
+    }
+}
@@ -0,0 +1,117 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.testng.annotations.Test;
+
+public class RequestTemplateTest {
+    private static final DateTime PROCESS_TIME_UTC = DateTime.parse("2018-03-28T04:21:45.862Z");
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void nullTemplate() {
+        RequestTemplate.compile(null);
+    }
+
+    @Test
+    public void noVariables() {
+        String template = "{\"foo\":\"bar\"}";
+        RequestTemplate requestTemplate = RequestTemplate.compile(template);
+        assertFalse(requestTemplate.hasVariables());
+        assertEquals(requestTemplate.getTemplate(), template);
+
+        // No variables means we return the original string.
+        assertSame(requestTemplate.render(PROCESS_TIME_UTC), template);
+    }
+
+    @Test
+    public void emptyTemplate() {
+        RequestTemplate requestTemplate = RequestTemplate.compile("");
+        assertFalse(requestTemplate.hasVariables());
+        assertEquals(requestTemplate.render(PROCESS_TIME_UTC), "");
+    }
+
+    @Test
+    public void allVariables() {
+        StringBuilder templateBuilder = new StringBuilder();
+        StringBuilder expectedBuilder = new StringBuilder();
+        for (TemplateVariable oneVar : TemplateVariable.values()) {
+            String oneVarTemplate = "${" + oneVar.getVarName() + "}";
+            templateBuilder.append(oneVar.name()).append('=').append(oneVarTemplate).append(';');
+            expectedBuilder.append(oneVar.name()).append('=').append(oneVar.resolve(oneVarTemplate,
+                    PROCESS_TIME_UTC)).append(';');
+        }
+
+        RequestTemplate requestTemplate = RequestTemplate.compile(templateBuilder.toString());
+        assertTrue(requestTemplate.hasVariables());
+        assertEquals(requestTemplate.render(PROCESS_TIME_UTC), expectedBuilder.toString());
+    }
+
+    @Test
+    public void timeZone() {
+        // 04:21 UTC on the 28th is still the 27th in Seattle, but it's the 28th in London.
+        RequestTemplate requestTemplate = RequestTemplate.compile("${todaysDate} ${startOfDay}");
+        DateTimeZone londonZone = DateTimeZone.forID("Europe/London");
+        String expected = "2018-03-28 2018-03-28T00:00:00.000+01:00";
+        assertEquals(requestTemplate.render(PROCESS_TIME_UTC, londonZone, null, new StringBuilder()), expected);
+
+        // Same result through the memo table. The second render is all hits.
+        TemplateValueMemo memo = new TemplateValueMemo();
+        assertEquals(requestTemplate.render(PROCESS_TIME_UTC, londonZone, memo, new StringBuilder()), expected);
+        assertEquals(requestTemplate.render(PROCESS_TIME_UTC, londonZone, memo, new StringBuilder()), expected);
+        assertEquals(memo.getNumMisses(), 2);
+        assertEquals(memo.getNumHits(), 2);
+
+        // Default zone doesn't share the London values.
+        assertEquals(requestTemplate.render(PROCESS_TIME_UTC, TemplateVariable.LOCAL_TIME_ZONE, memo,
+                new StringBuilder()), requestTemplate.render(PROCESS_TIME_UTC));
+        assertEquals(memo.size(), 2);
+    }
+
+    @Test
+    public void variablesAtStartAndEnd() {
+        RequestTemplate requestTemplate = RequestTemplate.compile("${todaysDate} middle ${yesterdaysDate}");
+        assertEquals(requestTemplate.render(PROCESS_TIME_UTC), "2018-03-27 middle 2018-03-26");
+    }
+
+    @Test
+    public void adjacentVariables() {
+        RequestTemplate requestTemplate = RequestTemplate.compile("${todaysDate}${yesterdaysDate}");
+        assertEquals(requestTemplate.render(PROCESS_TIME_UTC), "2018-03-272018-03-26");
+    }
+
+    @Test
+    public void multipleInstances() {
+        RequestTemplate requestTemplate = RequestTemplate.compile(
+                "{\"start\":\"${yesterdaysDate}\",\"end\":\"${yesterdaysDate}\"}");
+        assertEquals(requestTemplate.render(PROCESS_TIME_UTC),
+                "{\"start\":\"2018-03-26\",\"end\":\"2018-03-26\"}");
+    }
+
+    @Test
+    public void ignoresOtherVariables() {
+        RequestTemplate requestTemplate = RequestTemplate.compile("${badVar} ${todaysDate} ${unclosed");
+        assertEquals(requestTemplate.render(PROCESS_TIME_UTC), "${badVar} 2018-03-27 ${unclosed");
+    }
+
+    @Test
+    public void nestedPrefix() {
+        // This matches the behavior of String.replace() in TemplateVariable.resolve().
+        RequestTemplate requestTemplate = RequestTemplate.compile("${${todaysDate}}");
+        assertEquals(requestTemplate.render(PROCESS_TIME_UTC), "${2018-03-27}");
+    }
+
+    @Test
+    public void reusedBuffer() {
+        RequestTemplate requestTemplate = RequestTemplate.compile("request ${processTime}");
+        StringBuilder buffer = new StringBuilder("leftover garbage");
+
+        assertEquals(requestTemplate.render(PROCESS_TIME_UTC, buffer), "request 2018-03-27T21:21:45.862-07:00");
+        assertEquals(requestTemplate.render(PROCESS_TIME_UTC.plusHours(1), buffer),
+                "request 2018-03-27T22:21:45.862-07:00");
+    }
+}
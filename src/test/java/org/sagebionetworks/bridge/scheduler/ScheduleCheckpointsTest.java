@@ -0,0 +1,96 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.testng.annotations.Test;
+
+public class ScheduleCheckpointsTest {
+    private static final long LAST_PROCESSED_TIME_MILLIS = 1000;
+
+    @Test
+    public void load() {
+        ScheduleCheckpoints checkpoints = new ScheduleCheckpoints();
+        checkpoints.load(ImmutableList.of(
+                new Item().withString(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY,
+                        BridgeMasterScheduler.HASH_KEY_MASTER_SCHEDULER)
+                        .withLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME, LAST_PROCESSED_TIME_MILLIS),
+                new Item().withString(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY, "schedule:caught-up")
+                        .withLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME, LAST_PROCESSED_TIME_MILLIS),
+                new Item().withString(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY, "schedule:lagging")
+                        .withLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME, 500),
+                new Item().withString(BridgeMasterScheduler.CONFIG_KEY_HASH_KEY, "schedule:no-time"),
+                new Item().withLong(BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME, 500)),
+                LAST_PROCESSED_TIME_MILLIS);
+
+        assertEquals(checkpoints.size(), 2);
+        assertEquals(checkpoints.getStartMillis("caught-up", LAST_PROCESSED_TIME_MILLIS), LAST_PROCESSED_TIME_MILLIS);
+        assertEquals(checkpoints.getStartMillis("lagging", LAST_PROCESSED_TIME_MILLIS), 500);
+        assertEquals(checkpoints.getStartMillis("unknown", LAST_PROCESSED_TIME_MILLIS), LAST_PROCESSED_TIME_MILLIS);
+        assertEquals(checkpoints.getLaggingScheduleIds(), ImmutableSet.of("lagging"));
+        assertTrue(checkpoints.drainDirty().isEmpty());
+
+        // Loading again replaces everything.
+        checkpoints.load(ImmutableList.of(), LAST_PROCESSED_TIME_MILLIS);
+        assertEquals(checkpoints.size(), 0);
+        assertTrue(checkpoints.getLaggingScheduleIds().isEmpty());
+    }
+
+    @Test
+    public void succeededIsMonotonic() {
+        ScheduleCheckpoints checkpoints = new ScheduleCheckpoints();
+        checkpoints.markSucceeded("schedule", 2000);
+        assertEquals(checkpoints.drainDirty(), ImmutableMap.of("schedule", 2000L));
+
+        // An older end time doesn't move the checkpoint back.
+        checkpoints.markSucceeded("schedule", 1500);
+        assertEquals(checkpoints.getStartMillis("schedule", LAST_PROCESSED_TIME_MILLIS), 2000);
+        assertTrue(checkpoints.drainDirty().isEmpty());
+    }
+
+    @Test
+    public void failedThenSucceeded() {
+        ScheduleCheckpoints checkpoints = new ScheduleCheckpoints();
+
+        // A failed schedule without a checkpoint gets its start time written.
+        checkpoints.markFailed("schedule", LAST_PROCESSED_TIME_MILLIS);
+        assertEquals(checkpoints.getLaggingScheduleIds(), ImmutableSet.of("schedule"));
+        assertEquals(checkpoints.drainDirty(), ImmutableMap.of("schedule", LAST_PROCESSED_TIME_MILLIS));
+
+        // Failing again doesn't write anything.
+        checkpoints.markFailed("schedule", LAST_PROCESSED_TIME_MILLIS);
+        assertTrue(checkpoints.drainDirty().isEmpty());
+        assertEquals(checkpoints.getStartMillis("schedule", 3000), LAST_PROCESSED_TIME_MILLIS);
+
+        checkpoints.markSucceeded("schedule", 3000);
+        assertTrue(checkpoints.getLaggingScheduleIds().isEmpty());
+        assertEquals(checkpoints.drainDirty(), ImmutableMap.of("schedule", 3000L));
+    }
+
+    @Test
+    public void remove() {
+        ScheduleCheckpoints checkpoints = new ScheduleCheckpoints();
+        checkpoints.markFailed("schedule", LAST_PROCESSED_TIME_MILLIS);
+        checkpoints.remove("schedule");
+        assertEquals(checkpoints.size(), 0);
+        assertTrue(checkpoints.getLaggingScheduleIds().isEmpty());
+        assertTrue(checkpoints.drainDirty().isEmpty());
+    }
+
+    @Test
+    public void restoreDirty() {
+        ScheduleCheckpoints checkpoints = new ScheduleCheckpoints();
+        checkpoints.markSucceeded("schedule-1", 2000);
+        checkpoints.markSucceeded("schedule-2", 2000);
+        ImmutableMap<String, Long> failedWrite = ImmutableMap.copyOf(checkpoints.drainDirty());
+
+        // Schedule 1 moved on while the write was failing. Its newer checkpoint wins.
+        checkpoints.markSucceeded("schedule-1", 3000);
+        checkpoints.restoreDirty(failedWrite);
+        assertEquals(checkpoints.drainDirty(), ImmutableMap.of("schedule-1", 3000L, "schedule-2", 2000L));
+    }
+}
@@ -0,0 +1,130 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.testng.annotations.Test;
+
+public class ScheduleConfigTest {
+    private static final long PROCESS_TIME_MILLIS = DateTime.parse("2018-03-27T19:00:00.000Z").getMillis();
+    private static final long ONE_HOUR_MILLIS = 60 * 60 * 1000;
+
+    @Test
+    public void noSpread() {
+        ScheduleConfig scheduleConfig = ScheduleConfig.fromItem(makeConfig("schedule-1"));
+        assertEquals(scheduleConfig.getSpreadSeconds(), 0);
+        assertEquals(scheduleConfig.getDelaySeconds(PROCESS_TIME_MILLIS), 0);
+    }
+
+    @Test
+    public void delayIsStableAndWithinSpread() {
+        ScheduleConfig scheduleConfig = ScheduleConfig.fromItem(makeConfig("schedule-1").withInt(
+                BridgeMasterScheduler.CONFIG_KEY_SPREAD_SECONDS, 600));
+        assertEquals(scheduleConfig.getSpreadSeconds(), 600);
+
+        // Same schedule and fire time always gets the same delay, even from a separately parsed config.
+        ScheduleConfig sameConfig = ScheduleConfig.fromItem(makeConfig("schedule-1").withInt(
+                BridgeMasterScheduler.CONFIG_KEY_SPREAD_SECONDS, 600));
+        Set<Integer> delaySet = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            long processTimeMillis = PROCESS_TIME_MILLIS + i * ONE_HOUR_MILLIS;
+            int delaySeconds = scheduleConfig.getDelaySeconds(processTimeMillis);
+            assertTrue(delaySeconds >= 0 && delaySeconds <= 600, "delaySeconds=" + delaySeconds);
+            assertEquals(sameConfig.getDelaySeconds(processTimeMillis), delaySeconds);
+            delaySet.add(delaySeconds);
+        }
+
+        // Hourly fire times don't all land on the same few delays.
+        assertTrue(delaySet.size() > 50, "distinct delays=" + delaySet.size());
+    }
+
+    @Test
+    public void schedulesFiringTogetherAreSpread() {
+        // 100 schedules that fire at the same time, spread over 15 minutes.
+        Set<Integer> delaySet = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            ScheduleConfig scheduleConfig = ScheduleConfig.fromItem(makeConfig("schedule-" + i).withInt(
+                    BridgeMasterScheduler.CONFIG_KEY_SPREAD_SECONDS, ScheduleConfig.MAX_SPREAD_SECONDS));
+            delaySet.add(scheduleConfig.getDelaySeconds(PROCESS_TIME_MILLIS));
+        }
+        assertTrue(delaySet.size() > 80, "distinct delays=" + delaySet.size());
+    }
+
+    @Test
+    public void isSameAsComparesSpread() {
+        Item config = makeConfig("schedule-1").withInt(BridgeMasterScheduler.CONFIG_KEY_SPREAD_SECONDS, 60);
+        ScheduleConfig scheduleConfig = ScheduleConfig.fromItem(config);
+        assertTrue(scheduleConfig.isSameAs(config));
+        assertFalse(scheduleConfig.isSameAs(makeConfig("schedule-1").withInt(
+                BridgeMasterScheduler.CONFIG_KEY_SPREAD_SECONDS, 120)));
+        assertFalse(scheduleConfig.isSameAs(makeConfig("schedule-1")));
+    }
+
+    @Test
+    public void priority() {
+        assertEquals(ScheduleConfig.fromItem(makeConfig("schedule-1")).getPriority(), Priority.NORMAL);
+
+        // Case-insensitive. Changing the case doesn't count as a change.
+        Item config = makeConfig("schedule-1").withString(BridgeMasterScheduler.CONFIG_KEY_PRIORITY, "High");
+        ScheduleConfig scheduleConfig = ScheduleConfig.fromItem(config);
+        assertEquals(scheduleConfig.getPriority(), Priority.HIGH);
+        assertTrue(scheduleConfig.isSameAs(makeConfig("schedule-1").withString(
+                BridgeMasterScheduler.CONFIG_KEY_PRIORITY, "high")));
+        assertFalse(scheduleConfig.isSameAs(makeConfig("schedule-1")));
+
+        // Missing and explicit normal are the same.
+        assertTrue(ScheduleConfig.fromItem(makeConfig("schedule-1")).isSameAs(makeConfig("schedule-1").withString(
+                BridgeMasterScheduler.CONFIG_KEY_PRIORITY, "normal")));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = "Unknown priority.*")
+    public void unknownPriority() {
+        ScheduleConfig.fromItem(makeConfig("schedule-1").withString(BridgeMasterScheduler.CONFIG_KEY_PRIORITY,
+                "urgent"));
+    }
+
+    @Test
+    public void timeZone() {
+        assertEquals(ScheduleConfig.fromItem(makeConfig("schedule-1")).getTimeZone(),
+                TemplateVariable.LOCAL_TIME_ZONE);
+
+        Item config = makeConfig("schedule-1").withString(BridgeMasterScheduler.CONFIG_KEY_TIME_ZONE, "Asia/Tokyo");
+        ScheduleConfig scheduleConfig = ScheduleConfig.fromItem(config);
+        assertEquals(scheduleConfig.getTimeZone(), DateTimeZone.forID("Asia/Tokyo"));
+        assertTrue(scheduleConfig.isSameAs(config));
+        assertFalse(scheduleConfig.isSameAs(makeConfig("schedule-1")));
+        assertFalse(scheduleConfig.isSameAs(makeConfig("schedule-1").withString(
+                BridgeMasterScheduler.CONFIG_KEY_TIME_ZONE, "Europe/London")));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void unknownTimeZone() {
+        ScheduleConfig.fromItem(makeConfig("schedule-1").withString(BridgeMasterScheduler.CONFIG_KEY_TIME_ZONE,
+                "Mars/Olympus_Mons"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void negativeSpread() {
+        ScheduleConfig.fromItem(makeConfig("schedule-1").withInt(BridgeMasterScheduler.CONFIG_KEY_SPREAD_SECONDS, -1));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void spreadTooLong() {
+        ScheduleConfig.fromItem(makeConfig("schedule-1").withInt(BridgeMasterScheduler.CONFIG_KEY_SPREAD_SECONDS,
+                ScheduleConfig.MAX_SPREAD_SECONDS + 1));
+    }
+
+    private static Item makeConfig(String scheduleId) {
+        return new Item().withString(BridgeMasterScheduler.CONFIG_KEY_SCHEDULE_ID, scheduleId)
+                .withString(BridgeMasterScheduler.CONFIG_KEY_CRON_SCHEDULE, "0 0 * * * ?")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_REQUEST_TEMPLATE, "request")
+                .withString(BridgeMasterScheduler.CONFIG_KEY_QUEUE_URL, "dummy-q-url");
+    }
+}
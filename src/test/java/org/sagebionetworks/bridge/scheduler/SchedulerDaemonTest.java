@@ -0,0 +1,185 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SchedulerDaemonTest {
+    // Generous timeout, so slow build machines don't cause flaky tests. Tests normally finish in well under a second.
+    private static final long JOIN_TIMEOUT_MILLIS = 10000;
+
+    private BridgeMasterScheduler mockScheduler;
+    private SchedulerDaemon daemon;
+    private AtomicLong nextFireTime;
+
+    @BeforeMethod
+    public void before() {
+        mockScheduler = mock(BridgeMasterScheduler.class);
+        nextFireTime = new AtomicLong(FireTimeIndex.NEVER);
+        when(mockScheduler.getNextFireTime()).thenAnswer(invocation -> nextFireTime.get());
+
+        daemon = new SchedulerDaemon(mockScheduler);
+        daemon.setErrorDelayMillis(0);
+    }
+
+    @Test
+    public void runsAtEachFireTime() throws Exception {
+        // Each run schedules the next fire time 20ms out. Record when each run started relative to its fire time.
+        List<Long> lateMillisList = new ArrayList<>();
+        doAnswer(invocation -> {
+            long fireTime = nextFireTime.get();
+            if (fireTime != FireTimeIndex.NEVER) {
+                lateMillisList.add(System.currentTimeMillis() - fireTime);
+            }
+            if (daemon.getNumRuns() >= 4) {
+                daemon.stop();
+            }
+            nextFireTime.set(System.currentTimeMillis() + 20);
+            return null;
+        }).when(mockScheduler).schedule();
+
+        runDaemon();
+
+        // First run is the catch-up run at startup, plus 3 runs at fire times. Runs never start early.
+        assertEquals(daemon.getNumRuns(), 4);
+        assertEquals(lateMillisList.size(), 3);
+        for (long oneLateMillis : lateMillisList) {
+            assertTrue(oneLateMillis >= 0, "run started " + (-oneLateMillis) + "ms early");
+        }
+
+        // Configs were loaded before the first run. Shard leases were released when the daemon stopped.
+        verify(mockScheduler, atLeast(1)).refreshConfigs();
+        verify(mockScheduler).releaseShardLeases();
+    }
+
+    @Test
+    public void failedRunIsRetried() throws Exception {
+        AtomicInteger numErrorsHandled = new AtomicInteger();
+        daemon.setScheduleErrorHandler(numErrorsHandled::incrementAndGet);
+
+        // First run fails, second succeeds.
+        doAnswer(invocation -> {
+            if (daemon.getNumRuns() == 1) {
+                throw new IllegalStateException("test exception");
+            }
+            daemon.stop();
+            return null;
+        }).when(mockScheduler).schedule();
+
+        runDaemon();
+        assertEquals(daemon.getNumRuns(), 2);
+        assertEquals(numErrorsHandled.get(), 1);
+    }
+
+    @Test
+    public void configRefreshWakesDaemon() throws Exception {
+        // Nothing is scheduled, and the daemon would normally sleep for a minute. A config refresh adds a schedule
+        // that's due now.
+        daemon.setConfigRefreshMillis(20);
+        AtomicInteger numRefreshes = new AtomicInteger();
+        doAnswer(invocation -> {
+            if (numRefreshes.incrementAndGet() == 2) {
+                nextFireTime.set(System.currentTimeMillis());
+            }
+            return null;
+        }).when(mockScheduler).refreshConfigs();
+        doAnswer(invocation -> {
+            if (daemon.getNumRuns() >= 2) {
+                daemon.stop();
+            }
+            return null;
+        }).when(mockScheduler).schedule();
+
+        runDaemon();
+        assertEquals(daemon.getNumRuns(), 2);
+    }
+
+    @Test
+    public void refreshErrorDoesNotStopDaemon() throws Exception {
+        doAnswer(invocation -> {
+            throw new IllegalStateException("test exception");
+        }).when(mockScheduler).refreshConfigs();
+        doAnswer(invocation -> {
+            daemon.stop();
+            return null;
+        }).when(mockScheduler).schedule();
+
+        runDaemon();
+        assertEquals(daemon.getNumRuns(), 1);
+    }
+
+    @Test
+    public void shutdownHookWaitsForRunBeforeClientShutdown() throws Exception {
+        // The run blocks until it's released, so the shutdown hook starts while it's in progress.
+        List<String> eventList = new CopyOnWriteArrayList<>();
+        CountDownLatch runStartedLatch = new CountDownLatch(1);
+        CountDownLatch releaseRunLatch = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            runStartedLatch.countDown();
+            releaseRunLatch.await();
+            eventList.add("run finished");
+            return null;
+        }).when(mockScheduler).schedule();
+        doAnswer(invocation -> {
+            eventList.add("leases released");
+            return null;
+        }).when(mockScheduler).releaseShardLeases();
+
+        Thread daemonThread = new Thread(daemon);
+        daemonThread.start();
+        assertTrue(runStartedLatch.await(JOIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        Thread shutdownHook = SchedulerLauncher.makeDaemonShutdownHook(daemon, daemonThread,
+                () -> eventList.add("clients shut down"));
+        shutdownHook.start();
+
+        // The hook waits for the run.
+        shutdownHook.join(100);
+        assertTrue(shutdownHook.isAlive());
+        assertTrue(eventList.isEmpty());
+
+        releaseRunLatch.countDown();
+        shutdownHook.join(JOIN_TIMEOUT_MILLIS);
+        assertFalse(shutdownHook.isAlive(), "shutdown hook did not finish");
+        assertEquals(eventList, ImmutableList.of("run finished", "leases released", "clients shut down"));
+        assertEquals(daemon.getNumRuns(), 1);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidConfigRefresh() {
+        daemon.setConfigRefreshMillis(0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidMaxSleep() {
+        daemon.setMaxSleepMillis(0);
+    }
+
+    // Runs the daemon on a separate thread, and waits for it to stop.
+    private void runDaemon() throws InterruptedException {
+        Thread daemonThread = new Thread(daemon);
+        daemonThread.start();
+        daemonThread.join(JOIN_TIMEOUT_MILLIS);
+        boolean isStillRunning = daemonThread.isAlive();
+        if (isStillRunning) {
+            daemon.stop();
+        }
+        assertFalse(isStillRunning, "daemon did not stop");
+    }
+}
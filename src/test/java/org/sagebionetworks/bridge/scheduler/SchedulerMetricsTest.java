@@ -0,0 +1,94 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.joda.time.DateTime;
+import org.testng.annotations.Test;
+
+public class SchedulerMetricsTest {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final DateTime PROCESS_TIME = DateTime.parse("2018-03-27T19:00:00.000-07:00");
+    private static final long TIMESTAMP_MILLIS = PROCESS_TIME.getMillis();
+
+    @Test
+    public void emfFormat() throws Exception {
+        SchedulerMetrics metrics = new SchedulerMetrics();
+        metrics.getHistogram(SchedulerMetrics.Phase.STATUS_READ).record(2000000);
+        metrics.getHistogram(SchedulerMetrics.Phase.TEMPLATE_RENDER).record(3000);
+        metrics.getHistogram(SchedulerMetrics.Phase.TEMPLATE_RENDER).record(5000);
+        metrics.setScheduleCounts(10, 3);
+        metrics.setNumDeferredSchedules(1);
+        metrics.setNumOwnedShards(2);
+        metrics.getLaneHistogram(Priority.HIGH).record(4000000);
+
+        DispatchResult dispatchResult = new DispatchResult();
+        dispatchResult.addSqsCall();
+        dispatchResult.addSent("q1", 2);
+        dispatchResult.addDuplicate();
+        dispatchResult.addFailure(new DispatchRequest("schedule-2", "q2", PROCESS_TIME, "body"), "error");
+        metrics.setDispatchResult(dispatchResult);
+
+        String json = metrics.toEmfJson("test-scheduler", TIMESTAMP_MILLIS);
+        assertFalse(json.contains("\n"), "EMF record must be a single line");
+        JsonNode root = MAPPER.readTree(json);
+
+        // Metadata.
+        JsonNode awsNode = root.get("_aws");
+        assertEquals(awsNode.get("Timestamp").longValue(), TIMESTAMP_MILLIS);
+        JsonNode directive = awsNode.get("CloudWatchMetrics").get(0);
+        assertEquals(directive.get("Namespace").textValue(), SchedulerMetrics.NAMESPACE);
+        assertEquals(directive.get("Dimensions").get(0).get(0).textValue(), "SchedulerName");
+        assertEquals(root.get("SchedulerName").textValue(), "test-scheduler");
+
+        // Every metric definition has a value in the root.
+        Set<String> metricNameSet = new HashSet<>();
+        for (JsonNode oneDefinition : directive.get("Metrics")) {
+            String name = oneDefinition.get("Name").textValue();
+            metricNameSet.add(name);
+            assertTrue(root.get(name).isNumber(), "missing value for " + name);
+        }
+        for (SchedulerMetrics.Phase onePhase : SchedulerMetrics.Phase.values()) {
+            assertTrue(metricNameSet.contains(onePhase.getMetricName() + "P99"));
+        }
+
+        // Phase values.
+        assertEquals(root.get("StatusReadCount").longValue(), 1);
+        assertEquals(root.get("StatusReadMax").doubleValue(), 2.0);
+        assertEquals(root.get("TemplateRenderCount").longValue(), 2);
+        assertEquals(root.get("TemplateRenderTotal").doubleValue(), 0.008);
+        assertEquals(root.get("SqsSendCount").longValue(), 0);
+        assertEquals(root.get("LatencyHistograms").get("TemplateRender").size(), 2);
+
+        // Lane values.
+        assertEquals(root.get("DispatchHighCount").longValue(), 1);
+        assertEquals(root.get("DispatchHighMax").doubleValue(), 4.0);
+        assertEquals(root.get("DispatchLowCount").longValue(), 0);
+
+        // Counts.
+        assertEquals(root.get("Schedules").longValue(), 10);
+        assertEquals(root.get("DueSchedules").longValue(), 3);
+        assertEquals(root.get("DeferredSchedules").longValue(), 1);
+        assertEquals(root.get("OwnedShards").longValue(), 2);
+        assertEquals(root.get("MessagesSent").longValue(), 2);
+        assertEquals(root.get("MessagesFailed").longValue(), 1);
+        assertEquals(root.get("SqsCalls").longValue(), 1);
+        assertEquals(root.get("DuplicatesSkipped").longValue(), 1);
+        assertEquals(root.get("MessagesSentByQueue").get("q1").intValue(), 2);
+        assertEquals(root.get("FailuresByScheduleId").get("schedule-2").intValue(), 1);
+    }
+
+    @Test
+    public void noDispatchResult() throws Exception {
+        // If the run fails before sending, we still get phase metrics, just no message counts.
+        JsonNode root = MAPPER.readTree(new SchedulerMetrics().toEmfJson("test-scheduler", TIMESTAMP_MILLIS));
+        assertEquals(root.get("ConfigScanCount").longValue(), 0);
+        assertFalse(root.has("MessagesSent"));
+    }
+}
@@ -0,0 +1,152 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.google.common.collect.ImmutableMap;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SchedulerRuntimeTest {
+    private static final String SCHEDULER_NAME = "test-scheduler";
+    private static final String SNAPSHOT_DIR = "/tmp/test-snapshot-dir";
+    private static final String OUTBOX_DIR = "/tmp/test-outbox-dir";
+
+    private List<AmazonDynamoDB> ddbClientList;
+    private List<AmazonSQS> sqsClientList;
+    private SchedulerRuntime runtime;
+
+    @BeforeMethod
+    public void before() {
+        ddbClientList = new ArrayList<>();
+        sqsClientList = new ArrayList<>();
+        runtime = new SchedulerRuntime(SCHEDULER_NAME, () -> {
+            AmazonDynamoDB ddbClient = mock(AmazonDynamoDB.class);
+            ddbClientList.add(ddbClient);
+            return ddbClient;
+        }, () -> {
+            AmazonSQS sqsClient = mock(AmazonSQS.class);
+            sqsClientList.add(sqsClient);
+            return sqsClient;
+        }, ImmutableMap.<String, String>builder().put(SchedulerRuntime.ENV_CONCURRENCY, "4")
+                .put(SchedulerRuntime.ENV_BACKFILL_CHUNK_SIZE, "100")
+                .put(SchedulerRuntime.ENV_BACKFILL_MAX_MESSAGES_PER_SECOND, "")
+                .put(SchedulerRuntime.ENV_CONFIG_FULL_SCAN_TTL_SECONDS, "3600")
+                .put(SchedulerRuntime.ENV_SNAPSHOT_DIR, SNAPSHOT_DIR)
+                .put(SchedulerRuntime.ENV_OUTBOX_DIR, OUTBOX_DIR).build());
+    }
+
+    @AfterMethod
+    public void after() {
+        SchedulerRuntime.shutdownAll();
+    }
+
+    @Test
+    public void warmInvocationsReuseClients() {
+        assertEquals(runtime.getSchedulerName(), SCHEDULER_NAME);
+        assertFalse(runtime.isInitialized());
+        assertEquals(runtime.getNumInvocations(), 0);
+
+        // First invocation is a cold start.
+        BridgeMasterScheduler scheduler = runtime.getScheduler();
+        assertTrue(runtime.isInitialized());
+        assertEquals(ddbClientList.size(), 1);
+        assertEquals(sqsClientList.size(), 1);
+        assertEquals(scheduler.getConfigSnapshotFile().getFile(), new File(SNAPSHOT_DIR, SCHEDULER_NAME +
+                "-config.snapshot"));
+        assertEquals(scheduler.getOutboxLog().getFile(), new File(OUTBOX_DIR, SCHEDULER_NAME + "-outbox.log"));
+
+        // Second invocation reuses everything.
+        assertSame(runtime.getScheduler(), scheduler);
+        assertEquals(runtime.getNumInvocations(), 2);
+        assertEquals(ddbClientList.size(), 1);
+        assertEquals(sqsClientList.size(), 1);
+    }
+
+    @Test
+    public void localFilesOffByDefault() {
+        SchedulerRuntime defaultRuntime = new SchedulerRuntime(SCHEDULER_NAME, () -> mock(AmazonDynamoDB.class),
+                () -> mock(AmazonSQS.class), ImmutableMap.of());
+        BridgeMasterScheduler scheduler = defaultRuntime.getScheduler();
+        assertNull(scheduler.getConfigSnapshotFile());
+        assertNull(scheduler.getOutboxLog());
+        defaultRuntime.shutdown();
+    }
+
+    @Test
+    public void resetDdbClient() {
+        BridgeMasterScheduler scheduler = runtime.getScheduler();
+        runtime.resetDdbClient();
+
+        // Old client is shut down and a new one is built. Scheduler and SQS client are kept.
+        assertEquals(ddbClientList.size(), 2);
+        verify(ddbClientList.get(0)).shutdown();
+        verifyZeroInteractions(ddbClientList.get(1));
+        assertEquals(sqsClientList.size(), 1);
+        assertSame(runtime.getScheduler(), scheduler);
+    }
+
+    @Test
+    public void resetSqsClient() {
+        BridgeMasterScheduler scheduler = runtime.getScheduler();
+        runtime.resetSqsClient();
+
+        // Old client is shut down and a new one is built. Scheduler and DDB client are kept.
+        assertEquals(sqsClientList.size(), 2);
+        verify(sqsClientList.get(0)).shutdown();
+        verifyZeroInteractions(sqsClientList.get(1));
+        assertEquals(ddbClientList.size(), 1);
+        assertSame(runtime.getScheduler(), scheduler);
+    }
+
+    @Test
+    public void resetBeforeInitIsNoOp() {
+        runtime.resetDdbClient();
+        runtime.resetSqsClient();
+        assertTrue(ddbClientList.isEmpty());
+        assertTrue(sqsClientList.isEmpty());
+        assertFalse(runtime.isInitialized());
+    }
+
+    @Test
+    public void shutdownAndReinitialize() {
+        BridgeMasterScheduler scheduler = runtime.getScheduler();
+        runtime.shutdown();
+        assertFalse(runtime.isInitialized());
+        verify(ddbClientList.get(0)).shutdown();
+        verify(sqsClientList.get(0)).shutdown();
+
+        // Shutting down twice is safe.
+        runtime.shutdown();
+
+        // Next invocation is a cold start again.
+        assertNotSame(runtime.getScheduler(), scheduler);
+        assertEquals(ddbClientList.size(), 2);
+        assertEquals(sqsClientList.size(), 2);
+    }
+
+    @Test
+    public void forSchedulerIsKeyedByName() {
+        SchedulerRuntime runtime1 = SchedulerRuntime.forScheduler("scheduler-1");
+        assertSame(SchedulerRuntime.forScheduler("scheduler-1"), runtime1);
+        assertNotSame(SchedulerRuntime.forScheduler("scheduler-2"), runtime1);
+
+        // shutdownAll() removes runtimes, so we get new ones afterwards.
+        SchedulerRuntime.shutdownAll();
+        assertNotSame(SchedulerRuntime.forScheduler("scheduler-1"), runtime1);
+    }
+}
@@ -0,0 +1,194 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ShardLeasesTest {
+    private static final long LEASE_MILLIS = 1000;
+
+    private InMemoryStatusStore statusStore;
+
+    @BeforeMethod
+    public void before() {
+        statusStore = new InMemoryStatusStore();
+    }
+
+    @Test
+    public void getShard() {
+        int[] countsByShard = new int[8];
+        int numMoved = 0;
+        for (int i = 0; i < 10000; i++) {
+            String scheduleId = "schedule-" + i;
+            int shard = ShardLeases.getShard(scheduleId, 8);
+            assertEquals(ShardLeases.getShard(scheduleId, 8), shard);
+            assertEquals(ShardLeases.getShard(scheduleId, 1), 0);
+            countsByShard[shard]++;
+
+            // Adding a shard only moves schedules to the new shard.
+            int shardOfNine = ShardLeases.getShard(scheduleId, 9);
+            if (shardOfNine != shard) {
+                assertEquals(shardOfNine, 8);
+                numMoved++;
+            }
+        }
+
+        // Roughly even, and only about 1/9 of the schedules moved.
+        for (int oneCount : countsByShard) {
+            assertTrue(oneCount > 1000 && oneCount < 1500, "count=" + oneCount);
+        }
+        assertTrue(numMoved > 900 && numMoved < 1300, "numMoved=" + numMoved);
+    }
+
+    @Test
+    public void instancesSplitShards() {
+        ShardLeases leasesA = makeLeases("instance-a", 2);
+        ShardLeases leasesB = makeLeases("instance-b", 2);
+
+        // Each instance claims 2 of the 4 shards. Nothing has been processed yet.
+        Map<Integer, Long> watermarksA = leasesA.claim(statusStore, 0);
+        Map<Integer, Long> watermarksB = leasesB.claim(statusStore, 0);
+        assertEquals(watermarksA.size(), 2);
+        assertEquals(watermarksB.size(), 2);
+        Set<Integer> allShardSet = new HashSet<>(watermarksA.keySet());
+        allShardSet.addAll(watermarksB.keySet());
+        assertEquals(allShardSet, ImmutableSet.of(0, 1, 2, 3));
+        for (Long oneWatermark : watermarksA.values()) {
+            assertNull(oneWatermark);
+        }
+        assertEquals(leasesA.getLeaseExpiresAtMillis(), LEASE_MILLIS);
+        assertEquals(leasesA.getNextClaimMillis(), LEASE_MILLIS / 2);
+
+        // Watermarks are kept in the lease rows. Renewing keeps the same shards.
+        for (int oneShard : watermarksA.keySet()) {
+            assertTrue(leasesA.writeWatermark(statusStore, oneShard, 500));
+        }
+        Map<Integer, Long> renewedWatermarksA = leasesA.claim(statusStore, 500);
+        assertEquals(renewedWatermarksA.keySet(), watermarksA.keySet());
+        for (Long oneWatermark : renewedWatermarksA.values()) {
+            assertEquals(oneWatermark.longValue(), 500);
+        }
+        assertEquals(leasesA.getLeaseExpiresAtMillis(), 500 + LEASE_MILLIS);
+    }
+
+    @Test
+    public void expiredLeaseIsTakenOver() {
+        ShardLeases leasesA = makeLeases("instance-a", Integer.MAX_VALUE);
+        ShardLeases leasesB = makeLeases("instance-b", Integer.MAX_VALUE);
+
+        // A takes all shards. B gets nothing while A's leases are live.
+        assertEquals(leasesA.claim(statusStore, 0).keySet(), ImmutableSet.of(0, 1, 2, 3));
+        assertTrue(leasesA.writeWatermark(statusStore, 2, 100));
+        assertTrue(leasesB.claim(statusStore, 500).isEmpty());
+        assertTrue(leasesB.getOwnedShards().isEmpty());
+
+        // After A's leases expire, B takes over, and resumes from A's watermark.
+        Map<Integer, Long> watermarksB = leasesB.claim(statusStore, LEASE_MILLIS + 1);
+        assertEquals(watermarksB.keySet(), ImmutableSet.of(0, 1, 2, 3));
+        assertEquals(watermarksB.get(2).longValue(), 100);
+
+        // A can't write its watermark anymore, and loses the shard.
+        assertFalse(leasesA.writeWatermark(statusStore, 2, 200));
+        assertEquals(leasesA.getOwnedShards(), ImmutableSet.of(0, 1, 3));
+        assertEquals(statusStore.getItem(ShardLeases.getHashKey(2)).getLong(
+                BridgeMasterScheduler.CONFIG_KEY_LAST_PROCESSED_TIME), 100);
+        assertTrue(leasesA.claim(statusStore, LEASE_MILLIS + 2).isEmpty());
+    }
+
+    @Test
+    public void getLostShards() {
+        ShardLeases leasesA = makeLeases("instance-a", Integer.MAX_VALUE);
+        ShardLeases leasesB = makeLeases("instance-b", Integer.MAX_VALUE);
+        leasesA.claim(statusStore, 0);
+
+        // Nothing is lost while A's leases are live.
+        assertTrue(leasesA.getLostShards(statusStore, ImmutableSet.of(0, 1), 500).isEmpty());
+        assertEquals(leasesA.getOwnedShards(), ImmutableSet.of(0, 1, 2, 3));
+
+        // B takes over shard 1 (by B's clock, A's lease has expired). A sees that in the lease row, even though A's
+        // lease hasn't expired by A's clock. The check doesn't extend A's leases.
+        assertTrue(statusStore.claimLease(ShardLeases.getHashKey(1), "instance-b", LEASE_MILLIS * 3,
+                LEASE_MILLIS + 1) != null);
+        assertEquals(leasesA.getLostShards(statusStore, ImmutableSet.of(0, 1), 500), ImmutableSet.of(1));
+        assertEquals(leasesA.getOwnedShards(), ImmutableSet.of(0, 2, 3));
+        assertEquals(statusStore.getItem(ShardLeases.getHashKey(0)).getLong(ShardLeases.KEY_LEASE_EXPIRES_AT),
+                LEASE_MILLIS);
+
+        // Once A's leases expire by A's clock, they're all lost, whether or not anyone took them over.
+        assertEquals(leasesA.getLostShards(statusStore, ImmutableSet.of(0, 2), LEASE_MILLIS), ImmutableSet.of(0, 2));
+        assertEquals(leasesA.getOwnedShards(), ImmutableSet.of(3));
+
+        // Shards that weren't claimed are lost.
+        assertEquals(leasesB.getLostShards(statusStore, ImmutableSet.of(1), 500), ImmutableSet.of(1));
+    }
+
+    @Test
+    public void statusStoreErrorKeepsShard() {
+        ShardLeases leases = makeLeases("instance-a", Integer.MAX_VALUE);
+        leases.claim(statusStore, 0);
+        statusStore.getFaultInjector().setErrorRate(1.0);
+        assertTrue(leases.getLostShards(statusStore, ImmutableSet.of(0), 500).isEmpty());
+        assertEquals(leases.getOwnedShards(), ImmutableSet.of(0, 1, 2, 3));
+    }
+
+    @Test
+    public void releaseAll() {
+        ShardLeases leasesA = makeLeases("instance-a", Integer.MAX_VALUE);
+        ShardLeases leasesB = makeLeases("instance-b", Integer.MAX_VALUE);
+        leasesA.claim(statusStore, 0);
+        assertTrue(leasesA.writeWatermark(statusStore, 0, 100));
+
+        // Once A releases its leases, B can take over right away. Watermarks are kept.
+        leasesA.releaseAll(statusStore);
+        assertTrue(leasesA.getOwnedShards().isEmpty());
+        assertEquals(leasesA.getNextClaimMillis(), 0);
+        Map<Integer, Long> watermarksB = leasesB.claim(statusStore, 1);
+        assertEquals(watermarksB.keySet(), ImmutableSet.of(0, 1, 2, 3));
+        assertEquals(watermarksB.get(0).longValue(), 100);
+    }
+
+    @Test
+    public void statusStoreErrorSkipsShard() {
+        statusStore.getFaultInjector().setErrorRate(1.0);
+        ShardLeases leases = makeLeases("instance-a", Integer.MAX_VALUE);
+        assertTrue(leases.claim(statusStore, 0).isEmpty());
+        assertFalse(leases.writeWatermark(statusStore, 0, 100));
+    }
+
+    @Test
+    public void changingNumShardsClearsOwnedShards() {
+        ShardLeases leases = makeLeases("instance-a", Integer.MAX_VALUE);
+        leases.claim(statusStore, 0);
+        assertEquals(leases.getOwnedShards().size(), 4);
+        leases.setNumShards(8);
+        assertTrue(leases.getOwnedShards().isEmpty());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidNumShards() {
+        new ShardLeases().setNumShards(0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidOwnerId() {
+        new ShardLeases().setOwnerId("");
+    }
+
+    private static ShardLeases makeLeases(String ownerId, int maxShards) {
+        ShardLeases leases = new ShardLeases();
+        leases.setOwnerId(ownerId);
+        leases.setNumShards(4);
+        leases.setMaxShards(maxShards);
+        leases.setLeaseMillis(LEASE_MILLIS);
+        return leases;
+    }
+}
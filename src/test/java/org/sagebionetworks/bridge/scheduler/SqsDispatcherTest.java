@@ -0,0 +1,732 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.joda.time.DateTime;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SqsDispatcherTest {
+    private static final DateTime PROCESS_TIME = DateTime.parse("2018-03-27T19:00:00.000-07:00");
+
+    private SqsDispatcher dispatcher;
+    private AmazonSQS mockSqsClient;
+
+    @BeforeMethod
+    public void before() {
+        mockSqsClient = mock(AmazonSQS.class);
+        when(mockSqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(
+                new SendMessageBatchResult());
+
+        dispatcher = new SqsDispatcher(mockSqsClient);
+        dispatcher.setRetryDelayMillis(0);
+    }
+
+    @Test
+    public void noRequests() {
+        DispatchResult result = dispatcher.flush();
+        assertEquals(result.getNumSent(), 0);
+        assertEquals(result.getNumSqsCalls(), 0);
+        assertEquals(result.getNumFailed(), 0);
+        verifyZeroInteractions(mockSqsClient);
+    }
+
+    @Test
+    public void batchesGroupedByQueue() {
+        // 25 requests for queue 1 (3 batches) and 2 requests for queue 2 (1 batch).
+        for (int i = 0; i < 25; i++) {
+            dispatcher.add(makeRequest("schedule-1", "q1", "request-" + i));
+        }
+        dispatcher.add(makeRequest("schedule-2", "q2", "other-0"));
+        dispatcher.add(makeRequest("schedule-2", "q2", "other-1"));
+        assertEquals(dispatcher.getNumPending(), 27);
+
+        LatencyHistogram sendLatencyHistogram = new LatencyHistogram();
+        dispatcher.setSendLatencyHistogram(sendLatencyHistogram);
+        DispatchResult result = dispatcher.flush();
+        assertEquals(result.getNumSent(), 27);
+        assertEquals(result.getNumSentByQueueUrl(), ImmutableMap.of("q1", 25, "q2", 2));
+        assertEquals(result.getNumSqsCalls(), 4);
+        assertEquals(sendLatencyHistogram.getCount(), 4);
+        assertEquals(result.getNumFailed(), 0);
+        assertEquals(dispatcher.getNumPending(), 0);
+
+        List<SendMessageBatchRequest> requestList = captureBatches(4);
+        assertBatch(requestList.get(0), "q1", 10);
+        assertBatch(requestList.get(1), "q1", 10);
+        assertBatch(requestList.get(2), "q1", 5);
+        assertBatch(requestList.get(3), "q2", 2);
+        assertEquals(requestList.get(2).getEntries().get(4).getMessageBody(), "request-24");
+    }
+
+    @Test
+    public void flushWithExecutor() {
+        for (int i = 0; i < 12; i++) {
+            dispatcher.add(makeRequest("schedule-1", "q1", "request-" + i));
+        }
+        dispatcher.add(makeRequest("schedule-2", "q2", "other-0"));
+
+        // q2 fails on every attempt.
+        when(mockSqsClient.sendMessageBatch(argThat((SendMessageBatchRequest request) ->
+                request.getQueueUrl().equals("q2")))).thenThrow(new RuntimeException("test exception"));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        DispatchResult result;
+        try {
+            result = dispatcher.flush(executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(result.getNumSent(), 12);
+        assertEquals(result.getNumSqsCalls(), 2 + SqsDispatcher.DEFAULT_MAX_ATTEMPTS);
+        assertEquals(result.getNumFailed(), 1);
+        assertEquals(result.getFailuresByScheduleId().keySet().size(), 1);
+        assertTrue(result.getFailuresByScheduleId().get("schedule-2").get(0).contains("test exception"));
+        assertEquals(dispatcher.getNumPending(), 0);
+    }
+
+    @Test
+    public void partitionBySize() {
+        // Each message is 100 KB, so only 2 fit in a batch.
+        String body = Strings.repeat("a", 100 * 1024);
+        List<DispatchRequest> requestList = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            requestList.add(makeRequest("schedule-1", "q1", body));
+        }
+
+        List<List<DispatchRequest>> batchList = SqsDispatcher.partition(requestList);
+        assertEquals(batchList.size(), 3);
+        assertEquals(batchList.get(0).size(), 2);
+        assertEquals(batchList.get(1).size(), 2);
+        assertEquals(batchList.get(2).size(), 1);
+    }
+
+    @Test
+    public void partitionCountsUtf8Bytes() {
+        // 3-byte chars (CJK) and 4-byte chars (emoji, as surrogate pairs). These are 180 KB and 100 KB, which don't
+        // fit together in one batch, even though they're only 60k and 50k chars.
+        String threeByteBody = Strings.repeat("\u4e2d", 60 * 1024);
+        String fourByteBody = Strings.repeat("\ud83d\ude00", 25 * 1024);
+        List<DispatchRequest> requestList = new ArrayList<>();
+        requestList.add(makeRequest("schedule-1", "q1", threeByteBody));
+        requestList.add(makeRequest("schedule-1", "q1", fourByteBody));
+        requestList.add(makeRequest("schedule-1", "q1", "\u00e9"));
+
+        List<List<DispatchRequest>> batchList = SqsDispatcher.partition(requestList);
+        assertEquals(batchList.size(), 2);
+        assertEquals(batchList.get(0).size(), 1);
+        assertEquals(batchList.get(1).size(), 2);
+    }
+
+    @Test
+    public void oversizedMessageFailsWithoutSending() {
+        dispatcher.add(makeRequest("schedule-1", "q1", Strings.repeat("a", SqsDispatcher.MAX_BATCH_BYTES + 1)));
+        DispatchResult result = dispatcher.flush();
+        assertEquals(result.getNumSent(), 0);
+        assertEquals(result.getNumFailed(), 1);
+        assertTrue(result.getFailuresByScheduleId().get("schedule-1").get(0).contains("message size exceeds"));
+        verifyZeroInteractions(mockSqsClient);
+    }
+
+    @Test
+    public void retriesOnlyFailedEntries() {
+        // First call fails entry 1 (retryable) and entry 2 (sender fault). Second call succeeds.
+        SendMessageBatchResult partialResult = new SendMessageBatchResult().withFailed(
+                new BatchResultErrorEntry().withId("1").withCode("ServiceUnavailable").withSenderFault(false),
+                new BatchResultErrorEntry().withId("2").withCode("InvalidMessageContents").withSenderFault(true));
+        when(mockSqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(partialResult,
+                new SendMessageBatchResult());
+
+        dispatcher.add(makeRequest("schedule-1", "q1", "request-0"));
+        dispatcher.add(makeRequest("schedule-1", "q1", "request-1"));
+        dispatcher.add(makeRequest("schedule-2", "q1", "request-2"));
+
+        DispatchResult result = dispatcher.flush();
+        assertEquals(result.getNumSent(), 2);
+        assertEquals(result.getNumSqsCalls(), 2);
+        assertEquals(result.getNumFailed(), 1);
+        assertEquals(result.getFailuresByScheduleId().keySet().size(), 1);
+        assertTrue(result.getFailuresByScheduleId().get("schedule-2").get(0).contains("InvalidMessageContents"));
+
+        List<SendMessageBatchRequest> requestList = captureBatches(2);
+        assertBatch(requestList.get(0), "q1", 3);
+        assertBatch(requestList.get(1), "q1", 1);
+        assertEquals(requestList.get(1).getEntries().get(0).getMessageBody(), "request-1");
+    }
+
+    @Test
+    public void retryableFailureGivesUpAfterMaxAttempts() {
+        SendMessageBatchResult failedResult = new SendMessageBatchResult().withFailed(
+                new BatchResultErrorEntry().withId("0").withCode("ServiceUnavailable").withSenderFault(false));
+        when(mockSqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(failedResult);
+        dispatcher.setMaxAttempts(2);
+
+        dispatcher.add(makeRequest("schedule-1", "q1", "request-0"));
+        DispatchResult result = dispatcher.flush();
+        assertEquals(result.getNumSent(), 0);
+        assertEquals(result.getNumSqsCalls(), 2);
+        assertEquals(result.getNumFailed(), 1);
+        assertTrue(result.getFailuresByScheduleId().get("schedule-1").get(0).contains("ServiceUnavailable"));
+    }
+
+    @Test
+    public void exceptionFailsWholeBatchAndRetries() {
+        when(mockSqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenThrow(
+                new RuntimeException("test exception"));
+        dispatcher.setRetryDelayMillis(1);
+
+        dispatcher.add(makeRequest("schedule-1", "q1", "request-0"));
+        dispatcher.add(makeRequest("schedule-2", "q1", "request-1"));
+        DispatchResult result = dispatcher.flush();
+        assertEquals(result.getNumSent(), 0);
+        assertEquals(result.getNumSqsCalls(), SqsDispatcher.DEFAULT_MAX_ATTEMPTS);
+        assertEquals(result.getNumFailed(), 2);
+        assertTrue(result.getFailuresByScheduleId().get("schedule-1").get(0).contains("test exception"));
+        assertTrue(result.getFailuresByScheduleId().get("schedule-2").get(0).contains("test exception"));
+    }
+
+    @Test
+    public void openCircuitBreakerParksBatchesUntilDeadline() {
+        // q1 always fails, and its breaker opens after 2 failures and stays open. q2 is healthy.
+        DispatchController controller = new DispatchController();
+        controller.setFailureThreshold(2);
+        controller.setOpenMillis(60 * 1000);
+        dispatcher = new SqsDispatcher(new SqsMessageSink(mockSqsClient), controller);
+        dispatcher.setRetryDelayMillis(0);
+        dispatcher.setMaxFlushMillis(50);
+        when(mockSqsClient.sendMessageBatch(argThat((SendMessageBatchRequest request) ->
+                request.getQueueUrl().equals("q1")))).thenThrow(new RuntimeException("test exception"));
+
+        // 3 batches for q1, 1 batch for q2.
+        for (int i = 0; i < 30; i++) {
+            dispatcher.add(makeRequest("schedule-1", "q1", "request-" + i));
+        }
+        dispatcher.add(makeRequest("schedule-2", "q2", "other-0"));
+
+        DispatchResult result = dispatcher.flush();
+
+        // q1's first 2 batches fail, which opens the breaker. Nothing else is sent to q1. Everything else for q1 is
+        // parked, and fails at the deadline.
+        assertEquals(result.getNumSentByQueueUrl(), ImmutableMap.of("q2", 1));
+        assertEquals(result.getNumFailed(), 30);
+        assertEquals(result.getNumSqsCalls(), 3);
+        assertTrue(result.getFailuresByScheduleId().get("schedule-1").get(29).contains("flush deadline exceeded"));
+        assertEquals(controller.getUnhealthyQueueUrls(), ImmutableSet.of("q1"));
+        assertEquals(controller.getNumTimesOpened("q1"), 1);
+    }
+
+    @Test
+    public void parkedBatchesSentWhenBreakerCloses() {
+        // q1 fails twice, which opens the breaker, then recovers.
+        DispatchController controller = new DispatchController();
+        controller.setFailureThreshold(2);
+        controller.setOpenMillis(20);
+        dispatcher = new SqsDispatcher(new SqsMessageSink(mockSqsClient), controller);
+        dispatcher.setRetryDelayMillis(0);
+        dispatcher.setMaxAttempts(5);
+        when(mockSqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenThrow(
+                new RuntimeException("test exception"), new RuntimeException("test exception")).thenReturn(
+                new SendMessageBatchResult());
+
+        dispatcher.add(makeRequest("schedule-1", "q1", "request-0"));
+        DispatchResult result = dispatcher.flush();
+        assertEquals(result.getNumSent(), 1);
+        assertEquals(result.getNumSqsCalls(), 3);
+        assertEquals(result.getNumFailed(), 0);
+        assertTrue(controller.getUnhealthyQueueUrls().isEmpty());
+        assertEquals(controller.getNumTimesOpened("q1"), 1);
+    }
+
+    @Test
+    public void concurrencyLimitedPerQueue() throws Exception {
+        // Each queue may have at most 2 batches in flight. Track the max in flight per queue.
+        DispatchController controller = new DispatchController();
+        controller.setInitialLimit(2);
+        controller.setMaxLimit(2);
+        dispatcher = new SqsDispatcher(new SqsMessageSink(mockSqsClient), controller);
+        Map<String, AtomicInteger> inFlightByQueueUrl = new ConcurrentHashMap<>();
+        Map<String, Integer> maxInFlightByQueueUrl = new ConcurrentHashMap<>();
+        when(mockSqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenAnswer(invocation -> {
+            String queueUrl = ((SendMessageBatchRequest) invocation.getArgument(0)).getQueueUrl();
+            AtomicInteger inFlight = inFlightByQueueUrl.computeIfAbsent(queueUrl, k -> new AtomicInteger());
+            maxInFlightByQueueUrl.merge(queueUrl, inFlight.incrementAndGet(), Math::max);
+            Thread.sleep(5);
+            inFlight.decrementAndGet();
+            return new SendMessageBatchResult();
+        });
+
+        for (int i = 0; i < 100; i++) {
+            dispatcher.add(makeRequest("schedule-1", "q1", "request-" + i));
+            dispatcher.add(makeRequest("schedule-2", "q2", "other-" + i));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        DispatchResult result;
+        try {
+            result = dispatcher.flush(executor);
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(result.getNumSent(), 200);
+        assertEquals(result.getNumSqsCalls(), 20);
+        assertEquals(maxInFlightByQueueUrl.get("q1").intValue(), 2);
+        assertEquals(maxInFlightByQueueUrl.get("q2").intValue(), 2);
+    }
+
+    @Test
+    public void delaySecondsOnlySetWhenPositive() {
+        dispatcher.add(makeRequest("schedule-1", "q1", "no-delay"));
+        dispatcher.add(new DispatchRequest("schedule-2", "q1", PROCESS_TIME, "delayed", 300, Priority.NORMAL));
+        DispatchResult result = dispatcher.flush();
+        assertEquals(result.getNumSent(), 2);
+
+        // No delay leaves the queue's default delay in place.
+        List<SendMessageBatchRequestEntry> entryList = captureBatches(1).get(0).getEntries();
+        assertNull(entryList.get(0).getDelaySeconds());
+        assertEquals(entryList.get(1).getDelaySeconds().intValue(), 300);
+    }
+
+    @Test
+    public void higherPriorityLanesSentFirst() {
+        // Same queue, added in low, normal, high order.
+        dispatcher.add(makeRequest("schedule-1", "q1", "low", Priority.LOW));
+        dispatcher.add(makeRequest("schedule-2", "q1", "normal", Priority.NORMAL));
+        dispatcher.add(makeRequest("schedule-3", "q1", "high-0", Priority.HIGH));
+        dispatcher.add(makeRequest("schedule-3", "q1", "high-1", Priority.HIGH));
+        assertEquals(dispatcher.getNumPending(), 4);
+
+        Map<Priority, LatencyHistogram> laneHistograms = new EnumMap<>(Priority.class);
+        for (Priority oneLane : Priority.values()) {
+            laneHistograms.put(oneLane, new LatencyHistogram());
+            dispatcher.setLaneLatencyHistogram(oneLane, laneHistograms.get(oneLane));
+        }
+        DispatchResult result = dispatcher.flush();
+        assertEquals(result.getNumSent(), 4);
+
+        // Lanes don't share batches. High goes first.
+        List<SendMessageBatchRequest> requestList = captureBatches(3);
+        assertEquals(requestList.get(0).getEntries().size(), 2);
+        assertEquals(requestList.get(0).getEntries().get(0).getMessageBody(), "high-0");
+        assertEquals(requestList.get(1).getEntries().get(0).getMessageBody(), "normal");
+        assertEquals(requestList.get(2).getEntries().get(0).getMessageBody(), "low");
+
+        // One lane latency sample per batch.
+        for (Priority oneLane : Priority.values()) {
+            assertEquals(laneHistograms.get(oneLane).getCount(), 1, oneLane.name());
+        }
+    }
+
+    @Test
+    public void lanesKeepReservedSlots() throws Exception {
+        // 4 slots. High reserves 2 and normal reserves 1, which leaves 1 shared slot. High gets its 2 plus the shared
+        // slot, and normal still gets its reserved slot. Hold the first 4 sends until they've all started.
+        DispatchController controller = new DispatchController();
+        controller.setInitialLimit(16);
+        dispatcher = new SqsDispatcher(new SqsMessageSink(mockSqsClient), controller);
+        dispatcher.setMaxInFlight(4);
+        CountDownLatch firstSendsLatch = new CountDownLatch(4);
+        List<String> startedQueueUrlList = Collections.synchronizedList(new ArrayList<>());
+        when(mockSqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenAnswer(invocation -> {
+            startedQueueUrlList.add(((SendMessageBatchRequest) invocation.getArgument(0)).getQueueUrl());
+            firstSendsLatch.countDown();
+            firstSendsLatch.await(5, TimeUnit.SECONDS);
+            return new SendMessageBatchResult();
+        });
+
+        for (int i = 0; i < 100; i++) {
+            dispatcher.add(makeRequest("schedule-1", "high-q", "high-" + i, Priority.HIGH));
+            dispatcher.add(makeRequest("schedule-2", "normal-q", "normal-" + i, Priority.NORMAL));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        DispatchResult result;
+        try {
+            result = dispatcher.flush(executor);
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(result.getNumSent(), 200);
+
+        List<String> firstQueueUrlList = new ArrayList<>(startedQueueUrlList.subList(0, 4));
+        Collections.sort(firstQueueUrlList);
+        assertEquals(firstQueueUrlList, ImmutableList.of("high-q", "high-q", "high-q", "normal-q"));
+    }
+
+    @Test
+    public void dedupIdIsDeterministic() {
+        DispatchRequest request = makeRequest("schedule-1", "q1", "request-0");
+        assertEquals(request.getDedupId(), makeRequest("schedule-1", "q2", "other body").getDedupId());
+        assertEquals(request.getDedupId(), DispatchRequest.makeDedupId("schedule-1", PROCESS_TIME.getMillis()));
+        assertEquals(request.getDedupId().length(), 64);
+
+        // Different schedule or different fire time is a different dedup ID.
+        assertNotEquals(request.getDedupId(), makeRequest("schedule-2", "q1", "request-0").getDedupId());
+        assertNotEquals(request.getDedupId(), new DispatchRequest("schedule-1", "q1", PROCESS_TIME.plusMinutes(1),
+                "request-0").getDedupId());
+    }
+
+    @Test
+    public void recentlySentRequestsSkipped() {
+        RecentlySentStore store = new RecentlySentStore();
+        dispatcher.setRecentlySentStore(store);
+
+        // Entry 1 fails, so only entries 0 and 2 are remembered.
+        when(mockSqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(
+                new SendMessageBatchResult().withFailed(new BatchResultErrorEntry().withId("1")
+                        .withCode("InvalidMessageContents").withSenderFault(true)),
+                new SendMessageBatchResult());
+        dispatcher.add(makeRequest("schedule-0", "q1", "request-0"));
+        dispatcher.add(makeRequest("schedule-1", "q1", "request-1"));
+        dispatcher.add(makeRequest("schedule-2", "q1", "request-2"));
+        DispatchResult result = dispatcher.flush();
+        assertEquals(result.getNumSent(), 2);
+        assertEquals(result.getNumDuplicates(), 0);
+        assertEquals(store.size(), 2);
+
+        // Re-dispatching the same requests only sends the one that failed.
+        dispatcher.add(makeRequest("schedule-0", "q1", "request-0"));
+        dispatcher.add(makeRequest("schedule-1", "q1", "request-1"));
+        dispatcher.add(makeRequest("schedule-2", "q1", "request-2"));
+        result = dispatcher.flush();
+        assertEquals(result.getNumSent(), 1);
+        assertEquals(result.getNumDuplicates(), 2);
+        assertEquals(result.getNumSqsCalls(), 1);
+
+        List<SendMessageBatchRequest> requestList = captureBatches(2);
+        assertBatch(requestList.get(1), "q1", 1);
+        assertEquals(requestList.get(1).getEntries().get(0).getMessageBody(), "request-1");
+    }
+
+    @Test
+    public void fifoQueueGetsDedupAndGroupIds() {
+        String fifoQueueUrl = "https://sqs.us-east-1.amazonaws.com/123456789012/test-queue.fifo";
+        dispatcher.add(new DispatchRequest("schedule-1", fifoQueueUrl, PROCESS_TIME, "request-0", 30,
+                Priority.NORMAL));
+        dispatcher.add(new DispatchRequest("schedule with spaces", fifoQueueUrl, PROCESS_TIME, "request-1", 0,
+                Priority.NORMAL));
+        dispatcher.add(new DispatchRequest("schedule-1", "standard-q", PROCESS_TIME, "request-2", 30,
+                Priority.NORMAL));
+        DispatchResult result = dispatcher.flush();
+        assertEquals(result.getNumSent(), 3);
+
+        List<SendMessageBatchRequest> requestList = captureBatches(2);
+        SendMessageBatchRequest fifoRequest = requestList.get(0);
+        assertBatch(fifoRequest, fifoQueueUrl, 2);
+
+        // FIFO entries have dedup and group IDs, and no delay. Group IDs that SQS won't accept are hashed.
+        SendMessageBatchRequestEntry fifoEntry = fifoRequest.getEntries().get(0);
+        assertEquals(fifoEntry.getMessageDeduplicationId(), DispatchRequest.makeDedupId("schedule-1",
+                PROCESS_TIME.getMillis()));
+        assertEquals(fifoEntry.getMessageGroupId(), "schedule-1");
+        assertNull(fifoEntry.getDelaySeconds());
+        String hashedGroupId = fifoRequest.getEntries().get(1).getMessageGroupId();
+        assertEquals(hashedGroupId.length(), 64);
+        assertTrue(hashedGroupId.matches("[0-9a-f]+"));
+
+        // Standard queues keep their delay, and don't get dedup or group IDs.
+        SendMessageBatchRequestEntry standardEntry = requestList.get(1).getEntries().get(0);
+        assertEquals(standardEntry.getDelaySeconds().intValue(), 30);
+        assertNull(standardEntry.getMessageDeduplicationId());
+        assertNull(standardEntry.getMessageGroupId());
+    }
+
+    @Test
+    public void asyncSendsStartBeforeFlush() throws Exception {
+        AmazonSQSAsync mockAsyncClient = mock(AmazonSQSAsync.class);
+        when(mockAsyncClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(
+                new SendMessageBatchResult());
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            dispatcher = makeAsyncDispatcher(mockAsyncClient, executor, 2);
+
+            // The first 2 full batches are sent as soon as they're added. The last 5 requests wait for the flush.
+            for (int i = 0; i < 25; i++) {
+                dispatcher.add(makeRequest("schedule-1", "q1", "request-" + i));
+            }
+            verify(mockAsyncClient, timeout(1000).times(2)).sendMessageBatch(any(SendMessageBatchRequest.class));
+            assertEquals(dispatcher.getNumPending(), 5);
+
+            DispatchResult result = dispatcher.flush();
+            assertEquals(result.getNumSent(), 25);
+            assertEquals(result.getNumSqsCalls(), 3);
+            assertEquals(result.getNumFailed(), 0);
+            assertEquals(dispatcher.getNumPending(), 0);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void asyncWindowBoundsBatchesInFlight() throws Exception {
+        // 4 queues, with a window of 3. Track the max in flight across all queues.
+        AmazonSQSAsync mockAsyncClient = mock(AmazonSQSAsync.class);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        when(mockAsyncClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenAnswer(invocation -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            Thread.sleep(5);
+            inFlight.decrementAndGet();
+            return new SendMessageBatchResult();
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        DispatchResult result;
+        try {
+            dispatcher = makeAsyncDispatcher(mockAsyncClient, executor, 3);
+            for (int i = 0; i < 50; i++) {
+                for (int q = 0; q < 4; q++) {
+                    dispatcher.add(makeRequest("schedule-" + q, "q" + q, "request-" + i));
+                }
+            }
+            result = dispatcher.flush();
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(result.getNumSent(), 200);
+        assertEquals(result.getNumSqsCalls(), 20);
+        assertTrue(maxInFlight.get() <= 3, "max in flight " + maxInFlight.get());
+    }
+
+    @Test
+    public void fullAsyncWindowDoesNotBlockAdd() throws Exception {
+        // Window of 1. The first send doesn't finish until the latch is released.
+        AmazonSQSAsync mockAsyncClient = mock(AmazonSQSAsync.class);
+        CountDownLatch sendLatch = new CountDownLatch(1);
+        when(mockAsyncClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenAnswer(invocation -> {
+            sendLatch.await();
+            return new SendMessageBatchResult();
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        ExecutorService addExecutor = Executors.newSingleThreadExecutor();
+        DispatchResult result;
+        try {
+            dispatcher = makeAsyncDispatcher(mockAsyncClient, executor, 1);
+            for (int i = 0; i < 10; i++) {
+                dispatcher.add(makeRequest("schedule-1", "q1", "request-" + i));
+            }
+            verify(mockAsyncClient, timeout(1000)).sendMessageBatch(any(SendMessageBatchRequest.class));
+
+            // With the window full, another full batch is left pending instead of waiting for the send.
+            addExecutor.submit(() -> {
+                for (int i = 10; i < 20; i++) {
+                    dispatcher.add(makeRequest("schedule-1", "q1", "request-" + i));
+                }
+            }).get(1, TimeUnit.SECONDS);
+            assertEquals(dispatcher.getNumPending(), 10);
+
+            sendLatch.countDown();
+            result = dispatcher.flush();
+        } finally {
+            sendLatch.countDown();
+            addExecutor.shutdown();
+            executor.shutdown();
+        }
+        assertEquals(result.getNumSent(), 20);
+        assertEquals(result.getNumSqsCalls(), 2);
+        assertEquals(result.getNumFailed(), 0);
+    }
+
+    @Test
+    public void asyncFailuresReportedPerRequest() throws Exception {
+        // q1's batch with schedule-0's request rejects it (sender fault). The batches can reach the client in either
+        // order, so this is matched by the batch's first message, not by call order. Every call to q2 throws, so q2's
+        // batch is retried, then fails.
+        AmazonSQSAsync mockAsyncClient = mock(AmazonSQSAsync.class);
+        SendMessageBatchResult partialResult = new SendMessageBatchResult().withFailed(
+                new BatchResultErrorEntry().withId("0").withCode("InvalidMessageContents").withSenderFault(true));
+        when(mockAsyncClient.sendMessageBatch(argThat(request -> request != null &&
+                request.getQueueUrl().equals("q1")))).thenReturn(new SendMessageBatchResult());
+        when(mockAsyncClient.sendMessageBatch(argThat(request -> request != null &&
+                request.getQueueUrl().equals("q1") &&
+                request.getEntries().get(0).getMessageBody().equals("request-0")))).thenReturn(partialResult);
+        when(mockAsyncClient.sendMessageBatch(argThat(request -> request != null &&
+                request.getQueueUrl().equals("q2")))).thenThrow(new RuntimeException("test exception"));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        DispatchResult result;
+        try {
+            dispatcher = makeAsyncDispatcher(mockAsyncClient, executor, 2);
+            dispatcher.setRetryDelayMillis(1);
+            for (int i = 0; i < 12; i++) {
+                dispatcher.add(makeRequest("schedule-" + i, "q1", "request-" + i));
+            }
+            dispatcher.add(makeRequest("schedule-q2", "q2", "other-0"));
+            result = dispatcher.flush();
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(result.getNumSent(), 11);
+        assertEquals(result.getNumSentByQueueUrl(), ImmutableMap.of("q1", 11));
+        assertEquals(result.getNumSqsCalls(), 2 + SqsDispatcher.DEFAULT_MAX_ATTEMPTS);
+        assertEquals(result.getNumFailed(), 2);
+        assertEquals(result.getFailuresByScheduleId().keySet(), ImmutableSet.of("schedule-0", "schedule-q2"));
+        assertTrue(result.getFailuresByScheduleId().get("schedule-0").get(0).contains("InvalidMessageContents"));
+        assertTrue(result.getFailuresByScheduleId().get("schedule-q2").get(0).contains("test exception"));
+    }
+
+    @Test
+    public void outboxRecordsRequestsAndSends() throws IOException {
+        OutboxLog outboxLog = new OutboxLog(new File(Files.createTempDirectory("SqsDispatcherTest").toFile(),
+                "outbox.log"));
+        dispatcher.setOutboxLog(outboxLog);
+        for (int i = 0; i < 12; i++) {
+            dispatcher.add(makeRequest("schedule-" + i, "dummy-q-url", "request-" + i));
+        }
+
+        // Requests are in the outbox before they're sent.
+        assertTrue(dispatcher.writeOutbox());
+        verifyZeroInteractions(mockSqsClient);
+        OutboxLog.Contents contents = outboxLog.read();
+        assertEquals(contents.getUnsentRequests().size(), 12);
+        assertTrue(contents.getSentDedupIds().isEmpty());
+
+        // After the flush, they're all marked as sent.
+        DispatchResult result = dispatcher.flush();
+        assertEquals(result.getNumSent(), 12);
+        contents = outboxLog.read();
+        assertTrue(contents.getUnsentRequests().isEmpty());
+        assertEquals(contents.getSentDedupIds().size(), 12);
+    }
+
+    @Test
+    public void loggedRequestsNotLoggedAgain() throws IOException {
+        OutboxLog outboxLog = new OutboxLog(new File(Files.createTempDirectory("SqsDispatcherTest").toFile(),
+                "outbox.log"));
+        dispatcher.setOutboxLog(outboxLog);
+        dispatcher.addLogged(makeRequest("schedule-1", "dummy-q-url", "request-1"));
+        assertTrue(dispatcher.writeOutbox());
+        assertTrue(outboxLog.read().getUnsentRequests().isEmpty());
+
+        DispatchResult result = dispatcher.flush();
+        assertEquals(result.getNumSent(), 1);
+        assertEquals(outboxLog.read().getSentDedupIds().size(), 1);
+    }
+
+    @Test
+    public void outboxWriteFailureFailsRequests() throws IOException {
+        // The outbox's directory doesn't exist, so writes fail.
+        File missingDir = new File(Files.createTempDirectory("SqsDispatcherTest").toFile(), "missing");
+        dispatcher.setOutboxLog(new OutboxLog(new File(missingDir, "outbox.log")));
+        dispatcher.add(makeRequest("schedule-1", "dummy-q-url", "request-1"));
+        dispatcher.add(makeRequest("schedule-2", "dummy-q-url", "request-2"));
+        assertFalse(dispatcher.writeOutbox());
+
+        // Requests that couldn't be logged aren't sent.
+        DispatchResult result = dispatcher.flush();
+        assertEquals(result.getNumSent(), 0);
+        assertEquals(result.getNumFailed(), 2);
+        assertEquals(result.getFailuresByScheduleId().keySet(), ImmutableSet.of("schedule-1", "schedule-2"));
+        assertTrue(result.getFailuresByScheduleId().get("schedule-1").get(0).contains("outbox"));
+        verifyZeroInteractions(mockSqsClient);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void asyncWindowNeedsAsyncSink() {
+        dispatcher.setAsyncWindow(2);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidAsyncWindow() {
+        new SqsDispatcher(new SqsAsyncMessageSink(mock(AmazonSQSAsync.class)), new DispatchController())
+                .setAsyncWindow(0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidMaxInFlight() {
+        dispatcher.setMaxInFlight(0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidMaxFlushMillis() {
+        dispatcher.setMaxFlushMillis(-1);
+    }
+
+    // Makes a dispatcher with the given async window. The mock client's async sends call its sync send on the given
+    // executor, then call the handler.
+    private static SqsDispatcher makeAsyncDispatcher(AmazonSQSAsync mockAsyncClient, ExecutorService executor,
+            int asyncWindow) {
+        when(mockAsyncClient.sendMessageBatchAsync(any(SendMessageBatchRequest.class), any())).thenAnswer(
+                invocation -> {
+                    SendMessageBatchRequest request = invocation.getArgument(0);
+                    AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult> handler = invocation.getArgument(1);
+                    return executor.submit(() -> {
+                        SendMessageBatchResult batchResult;
+                        try {
+                            batchResult = mockAsyncClient.sendMessageBatch(request);
+                        } catch (RuntimeException ex) {
+                            handler.onError(ex);
+                            throw ex;
+                        }
+                        handler.onSuccess(request, batchResult);
+                        return batchResult;
+                    });
+                });
+        SqsDispatcher asyncDispatcher = new SqsDispatcher(new SqsAsyncMessageSink(mockAsyncClient),
+                new DispatchController());
+        asyncDispatcher.setRetryDelayMillis(0);
+        asyncDispatcher.setAsyncWindow(asyncWindow);
+        return asyncDispatcher;
+    }
+
+    private List<SendMessageBatchRequest> captureBatches(int expectedCount) {
+        ArgumentCaptor<SendMessageBatchRequest> requestCaptor = ArgumentCaptor.forClass(
+                SendMessageBatchRequest.class);
+        verify(mockSqsClient, times(expectedCount)).sendMessageBatch(requestCaptor.capture());
+        return requestCaptor.getAllValues();
+    }
+
+    private static void assertBatch(SendMessageBatchRequest request, String expectedQueueUrl, int expectedSize) {
+        assertEquals(request.getQueueUrl(), expectedQueueUrl);
+        assertEquals(request.getEntries().size(), expectedSize);
+        for (int i = 0; i < expectedSize; i++) {
+            SendMessageBatchRequestEntry oneEntry = request.getEntries().get(i);
+            assertEquals(oneEntry.getId(), String.valueOf(i));
+        }
+    }
+
+    private static DispatchRequest makeRequest(String scheduleId, String sqsQueueUrl, String body) {
+        return new DispatchRequest(scheduleId, sqsQueueUrl, PROCESS_TIME, body);
+    }
+
+    private static DispatchRequest makeRequest(String scheduleId, String sqsQueueUrl, String body, Priority priority) {
+        return new DispatchRequest(scheduleId, sqsQueueUrl, PROCESS_TIME, body, 0, priority);
+    }
+}
@@ -0,0 +1,69 @@
+package org.sagebionetworks.bridge.scheduler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.testng.annotations.Test;
+
+public class TemplateValueMemoTest {
+    private static final DateTime PROCESS_TIME_UTC = DateTime.parse("2018-03-28T04:00:00.000Z");
+    private static final long PROCESS_TIME_MILLIS = PROCESS_TIME_UTC.getMillis();
+    private static final DateTimeZone TOKYO_ZONE = DateTimeZone.forID("Asia/Tokyo");
+
+    @Test
+    public void valuesMatchTemplateVariables() {
+        TemplateValueMemo memo = new TemplateValueMemo();
+        for (TemplateVariable oneVar : TemplateVariable.values()) {
+            assertEquals(memo.getValue(oneVar, TOKYO_ZONE, PROCESS_TIME_MILLIS),
+                    oneVar.getReplacementValue(PROCESS_TIME_UTC.withZone(TOKYO_ZONE)), oneVar.name());
+            assertEquals(memo.getValue(oneVar, TemplateVariable.LOCAL_TIME_ZONE, PROCESS_TIME_MILLIS),
+                    oneVar.getReplacementValue(PROCESS_TIME_UTC.withZone(TemplateVariable.LOCAL_TIME_ZONE)),
+                    oneVar.name());
+        }
+        assertEquals(memo.size(), 2);
+        assertEquals(memo.getNumMisses(), 2 * TemplateVariable.values().length);
+        assertEquals(memo.getNumHits(), 0);
+    }
+
+    @Test
+    public void valuesComputedOnce() {
+        TemplateValueMemo memo = new TemplateValueMemo();
+        String todaysDate = memo.getValue(TemplateVariable.TODAYS_DATE, TOKYO_ZONE, PROCESS_TIME_MILLIS);
+        assertEquals(todaysDate, "2018-03-28");
+
+        // Same zone from a separate lookup is the same key.
+        assertEquals(memo.getValue(TemplateVariable.TODAYS_DATE, DateTimeZone.forID("Asia/Tokyo"),
+                PROCESS_TIME_MILLIS), todaysDate);
+        assertEquals(memo.getNumMisses(), 1);
+        assertEquals(memo.getNumHits(), 1);
+
+        // Other zones and times aren't.
+        assertNotEquals(memo.getValue(TemplateVariable.TODAYS_DATE, TemplateVariable.LOCAL_TIME_ZONE,
+                PROCESS_TIME_MILLIS), todaysDate);
+        memo.getValue(TemplateVariable.TODAYS_DATE, TOKYO_ZONE, PROCESS_TIME_MILLIS + 1);
+        assertEquals(memo.getNumMisses(), 3);
+        assertEquals(memo.size(), 3);
+    }
+
+    @Test
+    public void clearedWhenFull() {
+        TemplateValueMemo memo = new TemplateValueMemo(2);
+        memo.getValue(TemplateVariable.PROCESS_TIME, TOKYO_ZONE, PROCESS_TIME_MILLIS);
+        memo.getValue(TemplateVariable.PROCESS_TIME, TOKYO_ZONE, PROCESS_TIME_MILLIS + 1);
+        assertEquals(memo.size(), 2);
+
+        // Third entry clears the table first.
+        memo.getValue(TemplateVariable.PROCESS_TIME, TOKYO_ZONE, PROCESS_TIME_MILLIS + 2);
+        assertEquals(memo.size(), 1);
+        assertEquals(memo.getValue(TemplateVariable.PROCESS_TIME, TOKYO_ZONE, PROCESS_TIME_MILLIS),
+                PROCESS_TIME_UTC.withZone(TOKYO_ZONE).toString());
+        assertEquals(memo.getNumMisses(), 4);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidMaxEntries() {
+        new TemplateValueMemo(0);
+    }
+}